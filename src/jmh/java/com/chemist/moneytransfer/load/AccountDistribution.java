@@ -0,0 +1,64 @@
+package com.chemist.moneytransfer.load;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Chooses accounts for generated transfers, accounts are numbered from 0.
+ */
+public final class AccountDistribution {
+    public enum Skew {
+        UNIFORM,
+        //zipfian with exponent 1, the most popular of 10k accounts gets about 10% of transfers
+        ZIPF,
+        //all transfers go between two accounts
+        HOT_PAIR,
+        //uniform senders pay to account 0, like many customers of one merchant
+        HOT_RECIPIENT
+    }
+
+    private final Skew skew;
+    private final int accounts;
+    //cumulative distribution for ZIPF
+    private final double[] cdf;
+
+    public AccountDistribution(Skew skew, int accounts) {
+        if (accounts < 2) throw new IllegalArgumentException("At least two accounts are required");
+        this.skew = skew;
+        this.accounts = accounts;
+        if (skew == Skew.ZIPF) {
+            cdf = new double[accounts];
+            double sum = 0;
+            for (int i = 0; i < accounts; i++) {
+                sum += 1.0 / (i + 1);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < accounts; i++) cdf[i] /= sum;
+        } else {
+            cdf = null;
+        }
+    }
+
+    public int next(Random random) {
+        switch (skew) {
+            case UNIFORM:
+                return random.nextInt(accounts);
+            case ZIPF:
+                int i = Arrays.binarySearch(cdf, random.nextDouble());
+                return Math.min(accounts - 1, i >= 0 ? i : -i - 1);
+            case HOT_RECIPIENT:
+                return 1 + random.nextInt(accounts - 1);
+            default:
+                return random.nextInt(2);
+        }
+    }
+
+    /**
+     * @return account which differs from the sender
+     */
+    public int nextRecipient(int sender, Random random) {
+        if (skew == Skew.HOT_RECIPIENT) return 0;
+        int recipient = next(random);
+        return recipient != sender ? recipient : (sender + 1) % (skew == Skew.HOT_PAIR ? 2 : accounts);
+    }
+}
@@ -0,0 +1,264 @@
+package com.chemist.moneytransfer.load;
+
+import com.chemist.moneytransfer.server.Config;
+import com.chemist.moneytransfer.server.Server;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop load generator for {@code POST /transfer}.<br/>
+ * Requests are sent at fixed rate regardless of responses, so slow server doesn't slow down the load.
+ * Latency is measured from the moment the request should have been sent, not from the moment it was sent,
+ * so delays of the generator itself and queueing for a connection are counted too (no coordinated omission).
+ * <p>
+ * Options (--name=value):
+ * <ul>
+ * <li>target: host:port of the server, embedded server is started if it's omitted</li>
+ * <li>rates: comma separated requests per second, every rate is run in turn to get saturation curve</li>
+ * <li>duration: seconds per rate</li>
+ * <li>warmup: seconds of warmup at the first rate, it isn't recorded</li>
+ * <li>connections: keep-alive connections</li>
+ * <li>protocol: HTTP11 or H2C, requests of the latter share one multiplexed connection and embedded server accepts h2c</li>
+ * <li>accounts: number of accounts, they are named acc0, acc1 and so on</li>
+ * <li>skew: UNIFORM, ZIPF, HOT_PAIR or HOT_RECIPIENT</li>
+ * <li>duplicates: share of requests which repeat one of recent requests with the same Idempotency-Key</li>
+ * <li>histogram: file prefix to save full percentile distribution of every rate</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private static final int RECENT_REQUESTS = 1024;
+    //time to wait for responses after the last request of the run
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Transport transport;
+    private final AccountDistribution distribution;
+    private final double duplicates;
+    private final Random random = new Random(46);
+    private final String[] recentKeys = new String[RECENT_REQUESTS];
+    private final String[] recentUris = new String[RECENT_REQUESTS];
+    private long sent;
+
+    LoadGenerator(Transport transport, AccountDistribution distribution, double duplicates) {
+        this.transport = transport;
+        this.distribution = distribution;
+        this.duplicates = duplicates;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) throw new IllegalArgumentException("Bad option " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        String target = options.get("target");
+        String[] rates = options.getOrDefault("rates", "1000,2000,5000,10000,20000").split(",");
+        int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int connections = Integer.parseInt(options.getOrDefault("connections", "64"));
+        int accounts = Integer.parseInt(options.getOrDefault("accounts", "10000"));
+        var skew = AccountDistribution.Skew.valueOf(options.getOrDefault("skew", "UNIFORM"));
+        double duplicates = Double.parseDouble(options.getOrDefault("duplicates", "0"));
+        String histogram = options.get("histogram");
+        var protocol = HttpProtocol.valueOf(options.getOrDefault("protocol", "HTTP11"));
+
+        String host;
+        int port;
+        if (target == null) {
+            Server server = startServer(accounts, protocol == HttpProtocol.H2C);
+            host = "localhost";
+            port = server.port();
+        } else {
+            host = target.substring(0, target.lastIndexOf(':'));
+            port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+        }
+
+        String baseUrl = "http://" + host + ":" + port;
+        var transport = protocol == HttpProtocol.H2C ? Transport.h2c(baseUrl) : Transport.http11(baseUrl, connections);
+        var generator = new LoadGenerator(transport, new AccountDistribution(skew, accounts), duplicates);
+        if (warmup > 0) generator.run(Integer.parseInt(rates[0]), warmup);
+
+        System.out.printf("%10s %10s %10s %10s %10s %10s %10s %s%n",
+                "target/s", "actual/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors", "statuses");
+        for (String rate : rates) {
+            var result = generator.run(Integer.parseInt(rate), duration);
+            result.print();
+            if (histogram != null) {
+                try (var out = new PrintStream(new FileOutputStream(histogram + "-" + rate + ".hgrm"))) {
+                    //values are recorded in microseconds
+                    result.histogram.outputPercentileDistribution(out, 1000.0);
+                }
+            }
+        }
+        //embedded server is stopped by its shutdown hook
+        System.exit(0);
+    }
+
+    private static Server startServer(int accounts, boolean h2c) {
+        Config config = new Config();
+        config.port = 0;
+        config.h2c = h2c;
+        //defaults are zero on single cpu machine
+        config.nioThreads = Math.max(1, config.nioThreads);
+        config.processingThreads = Math.max(1, config.processingThreads);
+        Map<String, BigDecimal> balances = new HashMap<>();
+        for (int i = 0; i < accounts; i++) balances.put("acc" + i, BigDecimal.valueOf(1_000_000_000));
+        Server server = new Server(config, balances);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Sends requests at given rate and waits for all responses.
+     */
+    Result run(int rate, int durationSec) throws InterruptedException, IOException {
+        var recorder = new Recorder(3);
+        var statuses = new ConcurrentHashMap<Integer, LongAdder>();
+        var errors = new LongAdder();
+        var outstanding = new AtomicLong();
+        long[] lastResponse = {0};
+
+        long count = (long) rate * durationSec;
+        long start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            long intended = start + (long) (i * 1e9 / rate);
+            for (long delay; (delay = intended - System.nanoTime()) > 0; ) {
+                if (delay > 50_000) LockSupport.parkNanos(delay - 50_000);
+                else Thread.onSpinWait();
+            }
+
+            outstanding.incrementAndGet();
+            String[] request = nextRequest();
+            transport.post(request[0], request[1]).whenComplete((code, e) -> {
+                if (e == null) statuses.computeIfAbsent(code, c -> new LongAdder()).increment();
+                else errors.increment();
+                complete(recorder, intended, outstanding, lastResponse);
+            });
+        }
+
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) Thread.sleep(1);
+        long missing = outstanding.get();
+
+        Map<Integer, Long> statusCounts = new TreeMap<>();
+        statuses.forEach((code, counter) -> statusCounts.put(code, counter.sum()));
+        long completed = count - missing;
+        long elapsed;
+        synchronized (lastResponse) {
+            elapsed = Math.max(1, lastResponse[0] - start);
+        }
+        return new Result(rate, completed * 1e9 / elapsed, recorder.getIntervalHistogram(), errors.sum() + missing, statusCounts);
+    }
+
+    private static void complete(Recorder recorder, long intended, AtomicLong outstanding, long[] lastResponse) {
+        long now = System.nanoTime();
+        recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(now - intended));
+        synchronized (lastResponse) {
+            lastResponse[0] = Math.max(lastResponse[0], now);
+        }
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * @return Idempotency-Key and URI
+     */
+    private String[] nextRequest() {
+        if (sent > 0 && random.nextDouble() < duplicates) {
+            int i = random.nextInt((int) Math.min(sent, RECENT_REQUESTS));
+            return new String[]{recentKeys[i], recentUris[i]};
+        }
+        int sender = distribution.next(random);
+        int recipient = distribution.nextRecipient(sender, random);
+        String key = UUID.randomUUID().toString();
+        String uri = "/transfer?sender=acc" + sender + "&recipient=acc" + recipient + "&amount=0.01";
+        int i = (int) (sent++ % RECENT_REQUESTS);
+        recentKeys[i] = key;
+        recentUris[i] = uri;
+        return new String[]{key, uri};
+    }
+
+    /**
+     * Sends {@code POST} requests, the future is completed with response status.
+     */
+    interface Transport {
+        CompletableFuture<Integer> post(String idempotencyKey, String uri);
+
+        /**
+         * Requests are spread over pool of keep-alive connections, one request per connection at a time.
+         */
+        static Transport http11(String baseUrl, int connections) {
+            var client = HttpClient.create(ConnectionProvider.fixed("load", connections, TimeUnit.MINUTES.toMillis(1)))
+                    .baseUrl(baseUrl);
+            return (idempotencyKey, uri) -> client
+                    .headers(headers -> headers.set("Idempotency-Key", idempotencyKey))
+                    .post()
+                    .uri(uri)
+                    .send(Mono.empty())
+                    .responseSingle((resp, buf) -> Mono.just(resp.status().code()))
+                    .toFuture();
+        }
+
+        /**
+         * Requests are multiplexed as HTTP/2 streams over one connection which is upgraded from HTTP/1.1.
+         * JDK client is used because reactor-netty 0.8 client doesn't support h2c.
+         */
+        static Transport h2c(String baseUrl) {
+            var client = java.net.http.HttpClient.newBuilder().version(java.net.http.HttpClient.Version.HTTP_2).build();
+            return (idempotencyKey, uri) -> client
+                    .sendAsync(HttpRequest.newBuilder(URI.create(baseUrl + uri))
+                                    .header("Idempotency-Key", idempotencyKey)
+                                    .POST(HttpRequest.BodyPublishers.noBody())
+                                    .build(),
+                            HttpResponse.BodyHandlers.discarding())
+                    .thenApply(HttpResponse::statusCode);
+        }
+    }
+
+    static final class Result {
+        final int targetRate;
+        final double actualRate;
+        final Histogram histogram;
+        final long errors;
+        final Map<Integer, Long> statuses;
+
+        Result(int targetRate, double actualRate, Histogram histogram, long errors, Map<Integer, Long> statuses) {
+            this.targetRate = targetRate;
+            this.actualRate = actualRate;
+            this.histogram = histogram;
+            this.errors = errors;
+            this.statuses = statuses;
+        }
+
+        void print() {
+            System.out.printf("%10d %10.0f %10.3f %10.3f %10.3f %10.3f %10d %s%n",
+                    targetRate, actualRate,
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0,
+                    errors, statuses);
+        }
+    }
+}
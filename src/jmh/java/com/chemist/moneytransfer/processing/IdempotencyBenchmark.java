@@ -0,0 +1,81 @@
+package com.chemist.moneytransfer.processing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link IdempotencyStore#execute} without the transfer itself:
+ * hit is a retry of completed operation, miss is a new operation which completes immediately.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class IdempotencyBenchmark {
+    private static final int HIT_KEYS = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class StoreState {
+        @Param({"UUID", "TEXT"})
+        String keyType;
+
+        //hit keys live for the whole benchmark
+        final IdempotencyStore hitStore = new IdempotencyStore(TimeUnit.HOURS.toSeconds(1));
+        //new keys expire quickly to keep memory flat
+        final IdempotencyStore missStore = new IdempotencyStore(1);
+        final String[] completedKeys = new String[HIT_KEYS];
+
+        @Setup
+        public void setup() {
+            for (int i = 0; i < HIT_KEYS; i++) {
+                completedKeys[i] = key(keyType, i, 0);
+                String key = completedKeys[i];
+                hitStore.execute(key, () -> {
+                    hitStore.succeeded(key);
+                    return CompletableFuture.completedFuture(null);
+                }).join();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        long counter;
+        int thread;
+
+        @Setup
+        public void setup() {
+            thread = (int) Thread.currentThread().getId();
+        }
+    }
+
+    @Benchmark
+    public CompletableFuture<Void> hit(StoreState state, ThreadState thread) {
+        String key = state.completedKeys[(int) (thread.counter++ & (HIT_KEYS - 1))];
+        return state.hitStore.execute(key, () -> {
+            throw new IllegalStateException("Completed operation is executed again");
+        });
+    }
+
+    @Benchmark
+    public CompletableFuture<Void> miss(StoreState state, ThreadState thread) {
+        String key = key(state.keyType, thread.counter++, thread.thread);
+        IdempotencyStore store = state.missStore;
+        return store.execute(key, () -> {
+            store.succeeded(key);
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private static String key(String type, long counter, int thread) {
+        //UUID keys are encoded exactly, other keys are hashed
+        return type.equals("UUID")
+                ? new UUID(thread, counter).toString()
+                : "key-" + thread + "-" + counter;
+    }
+}
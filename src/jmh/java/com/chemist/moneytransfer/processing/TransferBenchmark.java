@@ -0,0 +1,121 @@
+package com.chemist.moneytransfer.processing;
+
+import com.chemist.moneytransfer.load.AccountDistribution;
+import com.chemist.moneytransfer.load.AccountDistribution.Skew;
+import com.chemist.moneytransfer.server.Config;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of {@link InMemoryMoneyTransferService#transfer} for both engines and different account contention.<br/>
+ * Every operation is a new transfer with unique idempotency key, the caller waits for its completion.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    private static final int ACCOUNTS = 10_000;
+    //pre-generated pairs per thread, so random generator isn't measured
+    private static final int PAIRS = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class ServiceState {
+        @Param({"CAS", "SHARDED"})
+        Config.Engine engine;
+
+        @Param({"UNIFORM", "ZIPF", "HOT_PAIR", "HOT_RECIPIENT"})
+        Skew skew;
+
+        //zero disables striping of hot accounts
+        @Param({"64"})
+        int maxHotAccounts;
+
+        InMemoryMoneyTransferService service;
+        String[] ids;
+        AccountDistribution distribution;
+        final AtomicInteger threadNumbers = new AtomicInteger();
+
+        @Setup
+        public void setup() {
+            Config config = new Config();
+            config.engine = engine;
+            config.processingThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            config.maxHotAccounts = maxHotAccounts;
+            //keys are unique, so they expire quickly to keep memory flat
+            config.idempotencyKeyCacheLifetimeSec = 1;
+
+            Map<String, BigDecimal> accounts = new HashMap<>();
+            ids = new String[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                ids[i] = "acc" + i;
+                //enough money to never fail during the benchmark
+                accounts.put(ids[i], BigDecimal.valueOf(1_000_000_000));
+            }
+            service = new InMemoryMoneyTransferService(config, accounts);
+            distribution = new AccountDistribution(skew, ACCOUNTS);
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            service.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        String[] senders = new String[PAIRS];
+        String[] recipients = new String[PAIRS];
+        String keyPrefix;
+        long counter;
+
+        @Setup
+        public void setup(ServiceState state) {
+            int thread = state.threadNumbers.getAndIncrement();
+            Random random = new Random(thread);
+            for (int i = 0; i < PAIRS; i++) {
+                int sender = state.distribution.next(random);
+                int recipient = state.distribution.nextRecipient(sender, random);
+                senders[i] = state.ids[sender];
+                recipients[i] = state.ids[recipient];
+            }
+            keyPrefix = "thread" + thread + "-";
+        }
+
+        String nextKey() {
+            return keyPrefix + counter++;
+        }
+    }
+
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+
+    @Benchmark
+    @Threads(1)
+    public void transfer1Thread(ServiceState service, ThreadState thread) {
+        transfer(service, thread);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void transfer4Threads(ServiceState service, ThreadState thread) {
+        transfer(service, thread);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void transfer16Threads(ServiceState service, ThreadState thread) {
+        transfer(service, thread);
+    }
+
+    private static void transfer(ServiceState service, ThreadState thread) {
+        int i = (int) thread.counter & (PAIRS - 1);
+        service.service.transfer(thread.senders[i], thread.recipients[i], AMOUNT, thread.nextKey()).join();
+    }
+}
@@ -0,0 +1,81 @@
+package com.chemist.moneytransfer.server;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.openjdk.jmh.annotations.*;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request parsing, processing and response encoding of {@link ApiHandler} over loopback keep-alive connections.<br/>
+ * Balance request doesn't change anything, so it shows the cost of HTTP layer itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ApiHandlerBenchmark {
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        Server server;
+        HttpClient client;
+        final AtomicInteger threadNumbers = new AtomicInteger();
+
+        @Setup
+        public void setup() {
+            Config config = new Config();
+            config.port = 0;
+            config.nioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            config.processingThreads = config.nioThreads;
+            config.idempotencyKeyCacheLifetimeSec = 1;
+            //money goes back and forth, so there is always enough of it
+            server = new Server(config, Map.of("a", BigDecimal.valueOf(1_000_000_000), "b", BigDecimal.valueOf(1_000_000_000)));
+            server.start();
+            client = HttpClient.create().port(server.port());
+        }
+
+        @TearDown
+        public void tearDown() {
+            server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        String keyPrefix;
+        long counter;
+
+        @Setup
+        public void setup(ServerState state) {
+            keyPrefix = "thread" + state.threadNumbers.getAndIncrement() + "-";
+        }
+    }
+
+    @Benchmark
+    public HttpResponseStatus transfer(ServerState state, ThreadState thread) {
+        String key = thread.keyPrefix + thread.counter;
+        String uri = (thread.counter++ & 1) == 0 ? "/transfer?sender=a&recipient=b&amount=0.01" : "/transfer?sender=b&recipient=a&amount=0.01";
+        return state.client
+                .headers(headers -> headers.set("Idempotency-Key", key))
+                .post()
+                .uri(uri)
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> Mono.just(resp.status()))
+                .block();
+    }
+
+    @Benchmark
+    public HttpResponseStatus balance(ServerState state) {
+        return state.client
+                .get()
+                .uri("/accounts/a")
+                .responseSingle((resp, buf) -> Mono.just(resp.status()))
+                .block();
+    }
+}
@@ -0,0 +1,60 @@
+package com.chemist.moneytransfer.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power of 2 buckets in nanoseconds, from about 1 microsecond to 8.6 seconds.<br/>
+ * Counts are striped by thread, every stripe is a separate part of one array with padding between them,
+ * so threads recording at the same time don't share cache lines. Stripes are summed only when metrics are read.
+ */
+public final class Histogram {
+    //bucket i counts values up to 2^(MIN_SHIFT + i) nanoseconds, the last one counts the rest
+    static final int MIN_SHIFT = 10;
+    static final int BUCKETS = 24;
+    private static final int SUM = BUCKETS + 1;
+    //buckets, overflow bucket, sum and padding up to the next cache line
+    private static final int STRIDE = (SUM + 1 + 7) / 8 * 8 + 8;
+
+    private final int stripeMask;
+    private final AtomicLongArray cells;
+
+    public Histogram() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        stripeMask = stripes - 1;
+        cells = new AtomicLongArray(stripes * STRIDE);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int bucket = nanos <= 1L << MIN_SHIFT ? 0 : Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(nanos - 1) - MIN_SHIFT);
+        //thread IDs are sequential, so they spread threads between stripes well enough
+        int base = ((int) Thread.currentThread().getId() & stripeMask) * STRIDE;
+        cells.getAndIncrement(base + bucket);
+        cells.getAndAdd(base + SUM, nanos);
+    }
+
+    /**
+     * Records time since given {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return counts of every bucket (not cumulative) and total sum of values at the end
+     */
+    long[] read() {
+        long[] result = new long[SUM + 1];
+        for (int base = 0; base < cells.length(); base += STRIDE) {
+            for (int i = 0; i <= SUM; i++) result[i] += cells.get(base + i);
+        }
+        return result;
+    }
+
+    /**
+     * @return upper bound of the bucket in seconds
+     */
+    static double upperBound(int bucket) {
+        return (1L << (MIN_SHIFT + bucket)) / 1e9;
+    }
+}
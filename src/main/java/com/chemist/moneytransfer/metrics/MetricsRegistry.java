@@ -0,0 +1,113 @@
+package com.chemist.moneytransfer.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named metrics exported in Prometheus text format.<br/>
+ * Metrics are registered once and updated without locks: counters are {@link LongAdder},
+ * histograms are {@link Histogram}. Values which already exist elsewhere are registered as suppliers,
+ * so they are read only on export.
+ */
+public class MetricsRegistry {
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public LongAdder counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /**
+     * @return counter of one series of the labeled family, the same counter is returned for the same label value
+     */
+    public synchronized LongAdder counter(String name, String help, String label, String labelValue) {
+        Family family = family(name, help, "counter");
+        String labels = label == null ? "" : "{" + label + "=\"" + labelValue + "\"}";
+        for (Series series : family.series) {
+            if (series.labels.equals(labels)) return series.counter;
+        }
+        var counter = new LongAdder();
+        family.series.add(new Series(labels, counter, counter::sum, null));
+        return counter;
+    }
+
+    /**
+     * Registers counter which is maintained elsewhere.
+     */
+    public synchronized void counter(String name, String help, String label, String labelValue, LongSupplier value) {
+        String labels = label == null ? "" : "{" + label + "=\"" + labelValue + "\"}";
+        family(name, help, "counter").series.add(new Series(labels, null, value, null));
+    }
+
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        family(name, help, "gauge").series.add(new Series("", null, value, null));
+    }
+
+    /**
+     * @param name base name, values are exported in seconds
+     */
+    public synchronized Histogram histogram(String name, String help) {
+        var histogram = new Histogram();
+        family(name, help, "histogram").series.add(new Series("", null, null, histogram));
+        return histogram;
+    }
+
+    public synchronized void write(StringBuilder out) {
+        for (var e : families.entrySet()) {
+            String name = e.getKey();
+            Family family = e.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Series series : family.series) {
+                if (series.histogram == null) {
+                    out.append(name).append(series.labels).append(' ').append(series.value.getAsLong()).append('\n');
+                    continue;
+                }
+                long[] values = series.histogram.read();
+                long count = 0;
+                for (int i = 0; i < Histogram.BUCKETS; i++) {
+                    count += values[i];
+                    out.append(name).append("_bucket{le=\"").append(Histogram.upperBound(i)).append("\"} ").append(count).append('\n');
+                }
+                count += values[Histogram.BUCKETS];
+                out.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+                out.append(name).append("_sum ").append(values[Histogram.BUCKETS + 1] / 1e9).append('\n');
+                out.append(name).append("_count ").append(count).append('\n');
+            }
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        return family;
+    }
+
+    private static final class Family {
+        final String help;
+        final String type;
+        final List<Series> series = new ArrayList<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Series {
+        final String labels;
+        final LongAdder counter;
+        final LongSupplier value;
+        final Histogram histogram;
+
+        Series(String labels, LongAdder counter, LongSupplier value, Histogram histogram) {
+            this.labels = labels;
+            this.counter = counter;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+}
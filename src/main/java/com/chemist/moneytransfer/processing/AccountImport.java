@@ -0,0 +1,328 @@
+package com.chemist.moneytransfer.processing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk import of initial accounts from CSV or binary export.<br/>
+ * The file is memory mapped and split into chunks at record boundaries, chunks are parsed in parallel
+ * by fork-join pool straight to ID and balance arrays, so there are no intermediate maps or BigDecimals.
+ * Progress is logged every second.
+ * <p>
+ * CSV (file name ends with {@code .csv}): account per line, ID and balance separated by comma, e.g. {@code acc1,5.25}.
+ * Optional {@code id,balance} header and CRLF line ends are accepted, empty lines are skipped.<br/>
+ * Binary (any other file name): magic, balance scale, account count (ints), accounts as (ID, balance in minor units (long)),
+ * IDs are stored as unsigned short length + UTF-8 bytes like in {@link SnapshotFile}.
+ */
+final class AccountImport {
+    private static final Logger log = LoggerFactory.getLogger(AccountImport.class);
+
+    static final int BINARY_MAGIC = 0x4D544143;
+    //bytes per chunk, it's small enough to balance threads and big enough to keep task overhead low
+    static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final String CSV_HEADER = "id,balance";
+    //ID of max length in UTF-8, comma, balance digits and line end
+    private static final int MAX_CSV_LINE = 3 * InMemoryMoneyTransferService.MAX_ID_LENGTH + 64;
+    //longer unscaled balance may not fit long
+    private static final int MAX_BALANCE_DIGITS = 18;
+
+    final String[] ids;
+    //minor units
+    final long[] balances;
+
+    private AccountImport(String[] ids, long[] balances) {
+        this.ids = ids;
+        this.balances = balances;
+    }
+
+    /**
+     * @param scale balance scale of the store, CSV balances must not have more digits after decimal point
+     * @throws IllegalArgumentException if the file is malformed
+     */
+    static AccountImport load(Path path, int scale) throws IOException {
+        return load(path, scale, CHUNK_SIZE);
+    }
+
+    static AccountImport load(Path path, int scale, int chunkSize) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ChunkParser parser = path.getFileName().toString().endsWith(".csv")
+                    ? csvParser(ch, size, scale, chunkSize)
+                    : binaryParser(ch, size, scale, chunkSize);
+
+            var parsedBytes = new AtomicLong();
+            Chunk[] chunks = new Chunk[parser.count()];
+            var task = new ParseTask(parser, chunks, 0, chunks.length, parsedBytes);
+            var pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                pool.execute(task);
+                awaitWithProgress(task, path, parsedBytes, size);
+            } finally {
+                pool.shutdownNow();
+            }
+
+            int count = 0;
+            for (Chunk chunk : chunks) count = Math.addExact(count, chunk.count);
+            String[] ids = new String[count];
+            long[] balances = new long[count];
+            int offset = 0;
+            for (Chunk chunk : chunks) {
+                System.arraycopy(chunk.ids, 0, ids, offset, chunk.count);
+                System.arraycopy(chunk.balances, 0, balances, offset, chunk.count);
+                offset += chunk.count;
+            }
+            log.info("Imported {} accounts from {} in {} ms", count, path,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return new AccountImport(ids, balances);
+        }
+    }
+
+    private static void awaitWithProgress(ForkJoinTask<?> task, Path path, AtomicLong parsedBytes, long size) throws IOException {
+        for (; ; ) {
+            try {
+                task.get(1, TimeUnit.SECONDS);
+                return;
+            } catch (TimeoutException e) {
+                log.info("Importing accounts from {}: {}%", path, size == 0 ? 100 : parsedBytes.get() * 100 / size);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Account import is interrupted", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                //fork-join task rethrows a copy of the worker exception which wraps the original one
+                if (cause.getCause() != null && cause.getCause().getClass() == cause.getClass()) cause = cause.getCause();
+                if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Chunks are split at fixed offsets, every chunk parses lines which start inside it,
+     * so the line crossing the boundary belongs to the previous chunk.
+     */
+    private static ChunkParser csvParser(FileChannel ch, long size, int scale, int chunkSize) {
+        int count = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        return new ChunkParser() {
+            @Override
+            public int count() {
+                return count;
+            }
+
+            @Override
+            public Chunk parse(int index) throws IOException {
+                long start = (long) index * chunkSize;
+                long end = Math.min(size, start + chunkSize);
+                //one byte before the chunk tells whether the chunk starts with a new line
+                long mapStart = Math.max(0, start - 1);
+                long mapEnd = Math.min(size, end + MAX_CSV_LINE);
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+                int pos = (int) (start - mapStart);
+                if (start > 0 && buf.get(0) != '\n') pos = lineEnd(buf, pos) + 1;
+                int limit = (int) (end - mapStart);
+
+                var chunk = new Chunk((int) (end - start) / 16 + 16, end - start);
+                byte[] scratch = new byte[MAX_CSV_LINE];
+                while (pos < limit) {
+                    int lineEnd = lineEnd(buf, pos);
+                    if (lineEnd - pos > MAX_CSV_LINE || lineEnd == buf.limit() && mapEnd < size) {
+                        throw invalidRecord(mapStart + pos, "line is too long");
+                    }
+                    int contentEnd = lineEnd > pos && buf.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+                    if (contentEnd > pos) parseLine(buf, pos, contentEnd, mapStart, scale, scratch, chunk);
+                    pos = lineEnd + 1;
+                }
+                return chunk;
+            }
+        };
+    }
+
+    private static int lineEnd(ByteBuffer buf, int pos) {
+        while (pos < buf.limit() && buf.get(pos) != '\n') pos++;
+        return pos;
+    }
+
+    private static void parseLine(ByteBuffer buf, int start, int end, long offset, int scale, byte[] scratch, Chunk chunk) {
+        int comma = start;
+        while (comma < end && buf.get(comma) != ',') comma++;
+        if (comma == start || comma >= end - 1) throw invalidRecord(offset + start, "expected ID and balance separated by comma");
+        buf.position(start);
+        buf.get(scratch, 0, end - start);
+        String id = new String(scratch, 0, comma - start, StandardCharsets.UTF_8);
+        if (id.length() > InMemoryMoneyTransferService.MAX_ID_LENGTH) throw invalidRecord(offset + start, "too long ID");
+
+        long balance = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (int i = comma + 1 - start; i < end - start; i++) {
+            byte b = scratch[i];
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (b >= '0' && b <= '9' && digits < MAX_BALANCE_DIGITS) {
+                balance = balance * 10 + (b - '0');
+                digits++;
+                if (fraction >= 0) fraction++;
+            } else {
+                //the header has no digits, so it never looks like a valid record
+                if (offset + start == 0 && new String(scratch, 0, end - start, StandardCharsets.UTF_8).equals(CSV_HEADER)) return;
+                throw invalidRecord(offset + start, "invalid balance");
+            }
+        }
+        if (digits == 0 || fraction == 0 || fraction > scale) throw invalidRecord(offset + start, "invalid balance");
+        try {
+            chunk.add(id, Money.toMinorUnits(balance, Math.max(fraction, 0), scale));
+        } catch (ArithmeticException e) {
+            throw invalidRecord(offset + start, "too big balance");
+        }
+    }
+
+    /**
+     * Records have variable length, so chunk boundaries are found by sequential scan which reads only lengths of IDs.
+     */
+    private static ChunkParser binaryParser(FileChannel ch, long size, int scale, int chunkSize) throws IOException {
+        if (size < 12) throw new IllegalArgumentException("Account file is too short");
+        var reader = new SnapshotFile.MappedReader(ch, size);
+        if (reader.getInt() != BINARY_MAGIC) throw new IllegalArgumentException("Account file has bad magic");
+        int fileScale = reader.getInt();
+        if (fileScale != scale) throw new IllegalArgumentException("Account file balance scale " + fileScale + " differs from configured one");
+        int count = reader.getInt();
+        if (count < 0) throw new IllegalArgumentException("Account file has bad account count");
+
+        List<long[]> boundaries = new ArrayList<>();
+        long chunkStart = reader.position();
+        int chunkFirst = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                reader.skipString();
+                reader.skip(8);
+            } catch (IllegalArgumentException e) {
+                throw invalidRecord(reader.position(), "truncated record");
+            }
+            if (reader.position() - chunkStart >= chunkSize || i == count - 1) {
+                //start offset, end offset, index of the first account, number of accounts
+                boundaries.add(new long[]{chunkStart, reader.position(), chunkFirst, i + 1 - chunkFirst});
+                chunkStart = reader.position();
+                chunkFirst = i + 1;
+            }
+        }
+        if (reader.remaining() != 0) throw invalidRecord(reader.position(), "unexpected data after the last account");
+
+        return new ChunkParser() {
+            @Override
+            public int count() {
+                return boundaries.size();
+            }
+
+            @Override
+            public Chunk parse(int index) throws IOException {
+                long[] bounds = boundaries.get(index);
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, bounds[0], bounds[1] - bounds[0]);
+                var chunk = new Chunk((int) bounds[3], bounds[1] - bounds[0]);
+                for (int i = 0; i < bounds[3]; i++) {
+                    String id = JournalRecord.getString(buf);
+                    long balance = buf.getLong();
+                    if (id.isEmpty() || id.length() > InMemoryMoneyTransferService.MAX_ID_LENGTH || balance < 0) {
+                        throw invalidRecord(bounds[0] + buf.position(), "invalid account " + (bounds[2] + i));
+                    }
+                    chunk.add(id, balance);
+                }
+                return chunk;
+            }
+        };
+    }
+
+    private static IllegalArgumentException invalidRecord(long offset, String reason) {
+        return new IllegalArgumentException("Invalid account record at byte " + offset + ": " + reason);
+    }
+
+    private interface ChunkParser {
+        int count();
+
+        Chunk parse(int index) throws IOException;
+    }
+
+    /**
+     * Accounts of one chunk in file order.
+     */
+    private static final class Chunk {
+        final long bytes;
+        String[] ids;
+        long[] balances;
+        int count;
+
+        Chunk(int capacity, long bytes) {
+            this.bytes = bytes;
+            ids = new String[capacity];
+            balances = new long[capacity];
+        }
+
+        void add(String id, long balance) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                balances = Arrays.copyOf(balances, count * 2);
+            }
+            ids[count] = id;
+            balances[count] = balance;
+            count++;
+        }
+    }
+
+    /**
+     * Splits the range of chunks in halves until a single chunk is left.
+     */
+    private static final class ParseTask extends RecursiveAction {
+        private final ChunkParser parser;
+        private final Chunk[] results;
+        private final int from;
+        private final int to;
+        private final AtomicLong parsedBytes;
+
+        ParseTask(ChunkParser parser, Chunk[] results, int from, int to, AtomicLong parsedBytes) {
+            this.parser = parser;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.parsedBytes = parsedBytes;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(parser, results, from, middle, parsedBytes),
+                        new ParseTask(parser, results, middle, to, parsedBytes));
+                return;
+            }
+            if (to == from) return;
+            try {
+                Chunk chunk = parser.parse(from);
+                results[from] = chunk;
+                parsedBytes.addAndGet(chunk.bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
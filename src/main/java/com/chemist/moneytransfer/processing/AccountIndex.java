@@ -0,0 +1,263 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Maps account ID to a dense slot number.<br/>
+ * It's open addressing hash table with linear probing which stores only primitive ints,
+ * account IDs themselves are kept once in pages of {@code ids} (slot -> ID), so growth never copies them.
+ * <p>
+ * Lookups are lock-free and may run concurrently with changes, changes are serialized by the caller.
+ * When the table gets half full, the new table of double size becomes current and entries of the previous one
+ * are moved to it by a few cells on every insert, so there is no stop-the-world rehashing.
+ * Lookup checks the previous table only if the entry isn't found in the current one.<br/>
+ * Removed entries are replaced by tombstones, they are dropped when the table grows.
+ * <p>
+ * Initial accounts are inserted by pages in parallel (fork-join common pool), empty cells are taken by CAS.
+ */
+class AccountIndex {
+    static final int NOT_FOUND = -1;
+    static final int MAX_SIZE = 1 << 30;
+
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+    private static final int TOMBSTONE = -1;
+    //cells of the previous table moved on every insert, it's enough to finish before the next growth
+    private static final int MIGRATION_STEP = 8;
+
+    private final String[][] ids = new String[MAX_SIZE >>> PAGE_SHIFT][];
+    private volatile Table table;
+    //the table which is being moved to the current one, null if there is no migration
+    private volatile Table previous;
+    //changed by writers only
+    private int migrated;
+    private int used;
+    private volatile int size;
+
+    AccountIndex(String[] ids) {
+        if (ids.length > MAX_SIZE) throw new IllegalArgumentException("Too many accounts");
+        //keep load factor <= 0.5 to make probe sequences short
+        Table table = new Table(Integer.highestOneBit(Math.max(2, ids.length) * 2 - 1) << 1);
+        int pages = (ids.length + PAGE_MASK) >>> PAGE_SHIFT;
+        for (int page = 0; page < pages; page++) this.ids[page] = new String[1 << PAGE_SHIFT];
+        IntStream.range(0, pages).parallel().forEach(page -> {
+            int end = Math.min(ids.length, (page + 1) << PAGE_SHIFT);
+            for (int slot = page << PAGE_SHIFT; slot < end; slot++) {
+                String id = ids[slot];
+                setId(slot, id);
+                if (insert(table, slot, id) != NOT_FOUND) throw new IllegalArgumentException("Duplicate account '" + id + "'");
+            }
+        });
+        this.table = table;
+        used = ids.length;
+        size = ids.length;
+    }
+
+    /**
+     * @return slot of the account or {@link #NOT_FOUND}
+     */
+    int slot(String id) {
+        int hash = hash(id);
+        for (; ; ) {
+            //both tables are read before the search, so the migration can't finish unnoticed in the middle of it
+            Table table = this.table;
+            Table previous = this.previous;
+            int slot = lookup(table, id, hash);
+            if (slot == NOT_FOUND && previous != null) slot = lookup(previous, id, hash);
+            //entries added after the table growth are only in the new table
+            if (slot != NOT_FOUND || table == this.table) return slot;
+        }
+    }
+
+    /**
+     * Same as {@link #slot(String)}, but doesn't require String, so the ID can be a view of request bytes.
+     */
+    int slot(CharSequence id) {
+        if (id instanceof String) return slot((String) id);
+        int hash = spread(hashCode(id));
+        for (; ; ) {
+            Table table = this.table;
+            Table previous = this.previous;
+            int slot = lookup(table, id, hash);
+            if (slot == NOT_FOUND && previous != null) slot = lookup(previous, id, hash);
+            if (slot != NOT_FOUND || table == this.table) return slot;
+        }
+    }
+
+    /**
+     * Appends the account, it must not be called concurrently with other changes.
+     *
+     * @return slot of the new account, it's equal to the size before the call, or {@link #NOT_FOUND} if the ID exists
+     */
+    int add(String id) {
+        int hash = hash(id);
+        if (slot(id) != NOT_FOUND) return NOT_FOUND;
+        int slot = size;
+        if (slot == MAX_SIZE) throw new IllegalStateException("Too many accounts");
+        setId(slot, id);
+
+        Table current = table;
+        if ((used + 1) * 2 > current.entries.length()) {
+            //the previous growth is finished by this time normally, it's just a safety net
+            while (previous != null) migrate(Integer.MAX_VALUE);
+            previous = current;
+            migrated = 0;
+            used = 0;
+            current = new Table(current.entries.length() * 2);
+            table = current;
+        }
+        put(current, slot, hash);
+        used++;
+        if (previous != null) migrate(MIGRATION_STEP);
+        //publishes the ID to readers of id(slot)
+        size = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Removes the account, the slot is never reused. It must not be called concurrently with other changes.
+     */
+    void remove(int slot) {
+        String id = id(slot);
+        int hash = hash(id);
+        tombstone(table, slot, hash);
+        Table previous = this.previous;
+        if (previous != null) tombstone(previous, slot, hash);
+    }
+
+    String id(int slot) {
+        return ids[slot >>> PAGE_SHIFT][slot & PAGE_MASK];
+    }
+
+    /**
+     * @return number of slots including removed accounts
+     */
+    int size() {
+        return size;
+    }
+
+    private void setId(int slot, String id) {
+        String[] page = ids[slot >>> PAGE_SHIFT];
+        if (page == null) {
+            page = new String[1 << PAGE_SHIFT];
+            ids[slot >>> PAGE_SHIFT] = page;
+        }
+        page[slot & PAGE_MASK] = id;
+    }
+
+    private int lookup(Table table, String id, int hash) {
+        AtomicIntegerArray entries = table.entries;
+        int mask = entries.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = entries.get(i);
+            if (entry == 0) return NOT_FOUND;
+            if (entry != TOMBSTONE && table.hashes[i] == hash && id(entry - 1).equals(id)) return entry - 1;
+        }
+    }
+
+    private int lookup(Table table, CharSequence id, int hash) {
+        AtomicIntegerArray entries = table.entries;
+        int mask = entries.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = entries.get(i);
+            if (entry == 0) return NOT_FOUND;
+            if (entry != TOMBSTONE && table.hashes[i] == hash && id(entry - 1).contentEquals(id)) return entry - 1;
+        }
+    }
+
+    private static void put(Table table, int slot, int hash) {
+        AtomicIntegerArray entries = table.entries;
+        int mask = entries.length() - 1;
+        int i = hash & mask;
+        while (entries.get(i) != 0) i = (i + 1) & mask;
+        //hash is written before the entry, so readers which see the entry see the hash too
+        table.hashes[i] = hash;
+        entries.set(i, slot + 1);
+    }
+
+    /**
+     * Concurrent insert of the initial account.
+     *
+     * @return slot of the account with the same ID or {@link #NOT_FOUND}
+     */
+    private int insert(Table table, int slot, String id) {
+        AtomicIntegerArray entries = table.entries;
+        int mask = entries.length() - 1;
+        int hash = hash(id);
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = entries.get(i);
+            if (entry == 0) {
+                if (entries.compareAndSet(i, 0, slot + 1)) {
+                    table.hashes[i] = hash;
+                    return NOT_FOUND;
+                }
+                entry = entries.get(i);
+            }
+            //hash of the cell may be not written yet by other thread, the same ID always takes the same probe sequence though
+            if (id(entry - 1).equals(id)) return entry - 1;
+        }
+    }
+
+    private static void tombstone(Table table, int slot, int hash) {
+        AtomicIntegerArray entries = table.entries;
+        int mask = entries.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = entries.get(i);
+            if (entry == 0) return;
+            if (entry == slot + 1) {
+                entries.set(i, TOMBSTONE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves up to the given number of cells of the previous table to the current one.
+     */
+    private void migrate(int cells) {
+        Table from = previous;
+        Table to = table;
+        int end = (int) Math.min(from.entries.length(), (long) migrated + cells);
+        for (; migrated < end; migrated++) {
+            int entry = from.entries.get(migrated);
+            if (entry > 0) {
+                put(to, entry - 1, from.hashes[migrated]);
+                used++;
+            }
+        }
+        //every entry is in the current table now, readers may stop looking at the previous one
+        if (migrated == from.entries.length()) previous = null;
+    }
+
+    private static int hash(String id) {
+        return spread(id.hashCode());
+    }
+
+    private static int spread(int hashCode) {
+        //spread bits because String.hashCode() of short similar IDs differs only in low bits
+        int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the same value as {@link String#hashCode()} of the same chars
+     */
+    private static int hashCode(CharSequence id) {
+        int h = 0;
+        for (int i = 0; i < id.length(); i++) h = 31 * h + id.charAt(i);
+        return h;
+    }
+
+    private static final class Table {
+        //slot + 1 for every cell, 0 means empty cell
+        final AtomicIntegerArray entries;
+        //cached hash code of the key stored in the same cell, used to skip string comparison
+        final int[] hashes;
+
+        Table(int capacity) {
+            entries = new AtomicIntegerArray(capacity);
+            hashes = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,583 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Holds all account balances as long minor units in pages of primitive arrays.<br/>
+ * Account ID is resolved to the slot once, then all operations are done by slot number.
+ * New accounts get next slots, pages are allocated on demand and never moved, so adding accounts
+ * doesn't copy balances and doesn't block transfers. Slots of closed accounts are never reused.
+ * <p>
+ * Every balance word also carries the low byte of the epoch (see {@link EpochGate}) of the last transfer which changed it.
+ * The first transfer of the new epoch which changes the account saves the balance at the end of previous epoch
+ * to the pre-image array (copy-on-write). Transfers of the previous epoch which are still running
+ * after that apply their changes to the pre-image too. So when previous epoch is drained,
+ * pre-images together with untouched balances form a consistent cut, see {@link #snapshot(int)}.
+ * <p>
+ * Word layout: epoch tag (8 bits), signed balance (56 bits).
+ * Total amount of money in the store must not exceed {@link #MAX_BALANCE}, so balances never overflow.
+ * <p>
+ * Hot accounts (configured or having many contended credits) get stripe words in the separate array,
+ * their balance is the balance word plus all stripes, like {@link LongAdder}.
+ * CAS engine credits them to the stripe of the calling thread, so credits from different threads never contend.
+ * Debit gathers stripes to the balance word when it doesn't have enough money.
+ * Stripes are ordinary tagged words, so snapshot rules above hold for them too.
+ */
+class AccountStore {
+    static final int NOT_FOUND = AccountIndex.NOT_FOUND;
+    static final long MAX_BALANCE = (1L << 55) - 1;
+
+    private static final long BALANCE_MASK = (1L << 56) - 1;
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    //state bit of closed account, the rest of the state is hot group number + 1
+    private static final int CLOSED = 1 << 31;
+    //tags are compared as signed byte difference, so every word is moved to the new epoch before it may wrap
+    private static final int MAX_EPOCHS_WITHOUT_CUT = 64;
+    //longs per stripe, so stripes of different threads don't share a cache line
+    private static final int STRIPE_STRIDE = 8;
+    //number of credits which failed CAS before the account is made hot
+    private static final int HOT_CONTENDED_CREDITS = 1024;
+
+    private final AccountIndex index;
+    //pages by slot >>> PAGE_SHIFT, a page is published before its first slot is added to the index
+    private final Page[] pages = new Page[AccountIndex.MAX_SIZE >>> PAGE_SHIFT];
+
+    private final int maxHotAccounts;
+    private final int stripeMask;
+    //stripe words of all hot groups
+    private final Words stripes;
+    //slot by hot group
+    private final int[] hotOwners;
+    //monitors by hot group, gathering of stripes is exclusive, so a debit never misses money moved by other one
+    private final Object[] gatherLocks;
+    private volatile int hotCount;
+
+    //changed under the store lock
+    private volatile int closedCount;
+    //epoch of the last move of all words to the new epoch
+    private int cutEpoch;
+
+    //failed CAS attempts, they show contention on hot accounts
+    final LongAdder debitRetries = new LongAdder();
+    final LongAdder creditRetries = new LongAdder();
+
+    AccountStore(String[] ids, long[] initialBalances, int epoch) {
+        this(ids, initialBalances, epoch, 0, 1);
+    }
+
+    /**
+     * @param maxHotAccounts maximum number of hot accounts, zero disables striping
+     * @param stripes        number of stripes of every hot account, must be power of 2
+     */
+    AccountStore(String[] ids, long[] initialBalances, int epoch, int maxHotAccounts, int stripes) {
+        if (ids.length != initialBalances.length) throw new IllegalArgumentException("ids and balances lengths differ");
+        long total = 0;
+        for (long balance : initialBalances) {
+            if (balance < 0) throw new IllegalArgumentException("Negative balance");
+            total += balance;
+            if (total > MAX_BALANCE) throw new IllegalArgumentException("Total amount of money is too big");
+        }
+        if (maxHotAccounts < 0) throw new IllegalArgumentException("Negative number of hot accounts");
+        if (stripes <= 0 || Integer.bitCount(stripes) != 1) throw new IllegalArgumentException("Number of stripes must be power of 2");
+        index = new AccountIndex(ids);
+        this.maxHotAccounts = maxHotAccounts;
+        stripeMask = stripes - 1;
+        hotOwners = new int[maxHotAccounts];
+        gatherLocks = new Object[maxHotAccounts];
+        for (int i = 0; i < maxHotAccounts; i++) gatherLocks[i] = new Object();
+        this.stripes = new Words(Math.toIntExact((long) maxHotAccounts * stripes * STRIPE_STRIDE));
+        int tag = tag(epoch);
+        //pages are independent, so millions of imported accounts are filled in parallel
+        int pageCount = (ids.length + PAGE_MASK) >>> PAGE_SHIFT;
+        for (int p = 0; p < pageCount; p++) page(p << PAGE_SHIFT);
+        IntStream.range(0, pageCount).parallel().forEach(p -> {
+            Page page = pages[p];
+            int end = Math.min(ids.length, (p + 1) << PAGE_SHIFT);
+            for (int slot = p << PAGE_SHIFT; slot < end; slot++) {
+                page.balances.lazySet(slot & PAGE_MASK, pack(tag, initialBalances[slot]));
+                page.preImages.lazySet(slot & PAGE_MASK, pack(tag, initialBalances[slot]));
+            }
+        });
+        for (int word = 0; word < this.stripes.balances.length(); word += STRIPE_STRIDE) {
+            this.stripes.balances.set(word, pack(tag, 0));
+            this.stripes.preImages.set(word, pack(tag, 0));
+        }
+        cutEpoch = epoch;
+    }
+
+    /**
+     * @return slot of the account or {@link #NOT_FOUND}
+     */
+    int slot(String accountId) {
+        return index.slot(accountId);
+    }
+
+    /**
+     * @return slot of the account or {@link #NOT_FOUND}
+     */
+    int slot(CharSequence accountId) {
+        return index.slot(accountId);
+    }
+
+    String id(int slot) {
+        return index.id(slot);
+    }
+
+    /**
+     * @return number of slots including closed accounts
+     */
+    int size() {
+        return index.size();
+    }
+
+    int openAccounts() {
+        return size() - closedCount;
+    }
+
+    int hotAccounts() {
+        return hotCount;
+    }
+
+    /**
+     * Adds account with zero balance, it's visible to lookups when the method returns.
+     * It may run concurrently with transfers and snapshots.
+     *
+     * @param epoch current epoch, the caller must be inside the gate
+     * @return slot of the new account or {@link #NOT_FOUND} if the account exists
+     */
+    synchronized int add(String accountId, int epoch) {
+        if (index.slot(accountId) != NOT_FOUND) return NOT_FOUND;
+        int slot = size();
+        if (slot == AccountIndex.MAX_SIZE) throw new IllegalStateException("Too many accounts");
+        //the slot is unused, so words are ready before the index publishes it
+        Page page = page(slot);
+        page.balances.set(slot & PAGE_MASK, pack(tag(epoch), 0));
+        page.preImages.set(slot & PAGE_MASK, pack(tag(epoch), 0));
+        return index.add(accountId);
+    }
+
+    /**
+     * Makes transfers of the account fail, the ones which are already running aren't affected.
+     */
+    synchronized void markClosed(int slot) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        page.state.set(slot & PAGE_MASK, page.state.get(slot & PAGE_MASK) | CLOSED);
+        closedCount++;
+    }
+
+    /**
+     * Reverts {@link #markClosed(int)}.
+     */
+    synchronized void reopen(int slot) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        page.state.set(slot & PAGE_MASK, page.state.get(slot & PAGE_MASK) & ~CLOSED);
+        closedCount--;
+    }
+
+    /**
+     * Removes closed account from the index, so its ID can be used again. The slot is never reused.
+     */
+    synchronized void remove(int slot) {
+        index.remove(slot);
+    }
+
+    boolean isClosed(int slot) {
+        return pages[slot >>> PAGE_SHIFT].state.get(slot & PAGE_MASK) < 0;
+    }
+
+    /**
+     * @return slots of open accounts among the first {@code size} ones or null if there are no closed accounts
+     */
+    int[] openSlots(int size) {
+        if (closedCount == 0) return null;
+        int count = 0;
+        for (int slot = 0; slot < size; slot++) if (!isClosed(slot)) count++;
+        int[] slots = new int[count];
+        int i = 0;
+        for (int slot = 0; slot < size && i < count; slot++) if (!isClosed(slot)) slots[i++] = slot;
+        return slots;
+    }
+
+    /**
+     * @return current balance, it may include changes of running transfers
+     */
+    long balance(int slot) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        long balance = balance(page.balances.get(slot & PAGE_MASK));
+        int group = hotGroup(page, slot);
+        if (group >= 0) {
+            for (int stripe = 0; stripe <= stripeMask; stripe++) balance += balance(stripes.balances.get(stripeWord(group, stripe)));
+        }
+        return balance;
+    }
+
+    /**
+     * Gives stripes to the account, so its credits don't contend.
+     *
+     * @return false if there is no room for one more hot account
+     */
+    synchronized boolean makeHot(int slot) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        int state = page.state.get(slot & PAGE_MASK);
+        if ((state & ~CLOSED) != 0) return true;
+        int group = hotCount;
+        if (group == maxHotAccounts) return false;
+        hotOwners[group] = slot;
+        //volatile write publishes the owner to snapshots
+        hotCount = group + 1;
+        page.state.set(slot & PAGE_MASK, state | (group + 1));
+        return true;
+    }
+
+    /**
+     * Removes money from the account using CAS loop.
+     * Stripes of hot account are gathered to its balance word under the lock of the account if the word
+     * doesn't have enough money, so money moved by a concurrent gather is in the word when the debit checks it again.
+     *
+     * @param epoch epoch of the transfer
+     * @return false if account doesn't have enough money
+     */
+    boolean tryDebit(int slot, long amount, int epoch) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        if (tryDebitWord(page, slot & PAGE_MASK, amount, epoch)) return true;
+        int group = hotGroup(page, slot);
+        if (group < 0) return false;
+        synchronized (gatherLocks[group]) {
+            for (; ; ) {
+                if (tryDebitWord(page, slot & PAGE_MASK, amount, epoch)) return true;
+                //stripes are empty, only credits which come after this check could add money
+                if (gather(page, slot & PAGE_MASK, group, epoch) == 0) return false;
+            }
+        }
+    }
+
+    /**
+     * Adds money to the account using CAS loop, hot account gets it to the stripe of the calling thread.
+     *
+     * @param epoch epoch of the transfer
+     */
+    void credit(int slot, long amount, int epoch) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        int group = hotGroup(page, slot);
+        if (group >= 0) {
+            //thread IDs of the pool are sequential, so threads get distinct stripes while there are enough of them
+            creditWord(stripes, stripeWord(group, (int) Thread.currentThread().getId() & stripeMask), amount, epoch);
+            return;
+        }
+        if (creditWord(page, slot & PAGE_MASK, amount, epoch) && maxHotAccounts > 0
+                && page.contendedCredits.incrementAndGet(slot & PAGE_MASK) == HOT_CONTENDED_CREDITS) {
+            makeHot(slot);
+        }
+    }
+
+    /**
+     * Moves money of all stripes to the balance word of the hot account.
+     * Both changes are done in the epoch of the transfer, so the cut isn't affected.
+     *
+     * @return amount of moved money
+     */
+    private long gather(Page page, int i, int group, int epoch) {
+        int tag = tag(epoch);
+        long gathered = 0;
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            int word = stripeWord(group, stripe);
+            for (; ; ) {
+                long value = stripes.balances.get(word);
+                long available = balance(value);
+                int wordTag = tag(value);
+                if (wordTag != tag && (byte) (wordTag - tag) > 0) {
+                    //late transfer may take only money which is both in the pre-image and in the current balance
+                    available = Math.min(available, balance(awaitPreImage(stripes, word, wordTag)));
+                }
+                if (available <= 0) break;
+                if (tryDebitWord(stripes, word, available, epoch)) {
+                    creditWord(page, i, available, epoch);
+                    gathered += available;
+                    break;
+                }
+            }
+        }
+        return gathered;
+    }
+
+    private boolean tryDebitWord(Words words, int i, long amount, int epoch) {
+        int tag = tag(epoch);
+        for (; ; ) {
+            long word = words.balances.get(i);
+            long balance = balance(word);
+            int wordTag = tag(word);
+            if (wordTag != tag && (byte) (wordTag - tag) > 0) {
+                //we are the transfer of previous epoch, but the account has been changed in the new one
+                return tryDebitLate(words, i, amount, wordTag);
+            }
+
+            if (balance < amount) return false;
+            if (words.balances.compareAndSet(i, word, pack(tag, balance - amount))) {
+                if (wordTag != tag) words.preImages.set(i, pack(tag, balance));
+                return true;
+            }
+            debitRetries.increment();
+        }
+    }
+
+    /**
+     * @return true if CAS failed at least once
+     */
+    private boolean creditWord(Words words, int i, long amount, int epoch) {
+        int tag = tag(epoch);
+        boolean contended = false;
+        for (; ; ) {
+            long word = words.balances.get(i);
+            long balance = balance(word);
+            int wordTag = tag(word);
+            if (wordTag != tag && (byte) (wordTag - tag) > 0) {
+                creditLate(words, i, amount, wordTag);
+                return contended;
+            }
+
+            if (words.balances.compareAndSet(i, word, pack(tag, balance + amount))) {
+                if (wordTag != tag) words.preImages.set(i, pack(tag, balance));
+                return contended;
+            }
+            creditRetries.increment();
+            contended = true;
+        }
+    }
+
+    /**
+     * Single writer version of {@link #tryDebit(int, long, int)} without CAS, the slot must be changed only by the calling thread.
+     * Snapshot may move the slot to the new epoch concurrently, but it never changes the balance,
+     * so plain ordered writes are enough.<br/>
+     * Single writer has no contention, so owned operations use the balance word only and stripes stay empty.
+     */
+    boolean tryDebitOwned(int slot, long amount, int epoch) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        int i = slot & PAGE_MASK;
+        int tag = tag(epoch);
+        long word = page.balances.get(i);
+        long balance = balance(word);
+        int wordTag = tag(word);
+        if (wordTag != tag && (byte) (wordTag - tag) > 0) {
+            //pre-image is written by this thread too, snapshot doesn't touch it until our epoch is drained
+            long preImage = page.preImages.get(i);
+            if (balance(preImage) < amount || balance < amount) return false;
+            page.preImages.set(i, pack(wordTag, balance(preImage) - amount));
+            page.balances.lazySet(i, pack(wordTag, balance - amount));
+            return true;
+        }
+
+        if (balance < amount) return false;
+        page.balances.lazySet(i, pack(tag, balance - amount));
+        if (wordTag != tag) page.preImages.set(i, pack(tag, balance));
+        return true;
+    }
+
+    /**
+     * Single writer version of {@link #credit(int, long, int)}, see {@link #tryDebitOwned(int, long, int)}.
+     */
+    void creditOwned(int slot, long amount, int epoch) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        int i = slot & PAGE_MASK;
+        int tag = tag(epoch);
+        long word = page.balances.get(i);
+        long balance = balance(word);
+        int wordTag = tag(word);
+        if (wordTag != tag && (byte) (wordTag - tag) > 0) {
+            long preImage = page.preImages.get(i);
+            page.preImages.set(i, pack(wordTag, balance(preImage) + amount));
+            page.balances.lazySet(i, pack(wordTag, balance + amount));
+            return;
+        }
+
+        page.balances.lazySet(i, pack(tag, balance + amount));
+        if (wordTag != tag) page.preImages.set(i, pack(tag, balance));
+    }
+
+    /**
+     * Applies already validated change without any checks, it's used for journal replay before transfers start.
+     */
+    void add(int slot, long delta) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        long word = page.balances.get(slot & PAGE_MASK);
+        page.balances.set(slot & PAGE_MASK, pack(tag(word), balance(word) + delta));
+    }
+
+    /**
+     * Moves all accounts to the given epoch, it's used after journal replay before transfers start.
+     */
+    void startEpoch(int epoch) {
+        int tag = tag(epoch);
+        for (int slot = 0; slot < size(); slot++) {
+            Page page = pages[slot >>> PAGE_SHIFT];
+            long balance = balance(page.balances.get(slot & PAGE_MASK));
+            page.balances.set(slot & PAGE_MASK, pack(tag, balance));
+            page.preImages.set(slot & PAGE_MASK, pack(tag, balance));
+        }
+        for (int word = 0; word < stripes.balances.length(); word += STRIPE_STRIDE) {
+            long balance = balance(stripes.balances.get(word));
+            stripes.balances.set(word, pack(tag, balance));
+            stripes.preImages.set(word, pack(tag, balance));
+        }
+        cutEpoch = epoch;
+    }
+
+    /**
+     * Reads the cut of balances at the start of the epoch.
+     * Must be called when there are no running transfers of previous epochs.<br/>
+     * Every account is moved to the given epoch, so only the current and the previous epoch tags
+     * exist in the store when the next epoch starts.
+     *
+     * @param epoch current epoch
+     * @return balances by slot, closed accounts have zero balance
+     */
+    long[] snapshot(int epoch) {
+        int tag = tag(epoch);
+        long[] result = new long[size()];
+        for (int slot = 0; slot < result.length; slot++) result[slot] = cut(pages[slot >>> PAGE_SHIFT], slot & PAGE_MASK, tag);
+        //stripes of groups which aren't given yet are empty, but their tags must be moved too
+        int hot = hotCount;
+        for (int group = 0; group < maxHotAccounts; group++) {
+            for (int stripe = 0; stripe <= stripeMask; stripe++) {
+                long balance = cut(stripes, stripeWord(group, stripe), tag);
+                if (group < hot) result[hotOwners[group]] += balance;
+            }
+        }
+        cutEpoch = epoch;
+        return result;
+    }
+
+    /**
+     * Must be called after every {@link EpochGate#advance()} which isn't followed by {@link #snapshot(int)},
+     * so tags of words which nobody changes don't wrap.
+     *
+     * @param epoch current epoch
+     */
+    void epochAdvanced(int epoch) {
+        if (epoch - cutEpoch >= MAX_EPOCHS_WITHOUT_CUT) snapshot(epoch);
+    }
+
+    private long cut(Words words, int i, int tag) {
+        for (; ; ) {
+            long word = words.balances.get(i);
+            if (tag(word) == tag) return balance(awaitPreImage(words, i, tag));
+            //nobody has changed the account in the new epoch yet, move it to the new epoch ourselves
+            if (words.balances.compareAndSet(i, word, pack(tag, balance(word)))) {
+                words.preImages.set(i, pack(tag, balance(word)));
+                return balance(word);
+            }
+        }
+    }
+
+    private Page page(int slot) {
+        Page page = pages[slot >>> PAGE_SHIFT];
+        if (page == null) {
+            page = new Page(maxHotAccounts > 0);
+            pages[slot >>> PAGE_SHIFT] = page;
+        }
+        return page;
+    }
+
+    private static int hotGroup(Page page, int slot) {
+        return (page.state.get(slot & PAGE_MASK) & ~CLOSED) - 1;
+    }
+
+    private int stripeWord(int group, int stripe) {
+        return ((group << Integer.numberOfTrailingZeros(stripeMask + 1)) + stripe) * STRIPE_STRIDE;
+    }
+
+    private boolean tryDebitLate(Words words, int i, long amount, int newTag) {
+        //the cut must stay valid, so both pre-image and current balance must have enough money
+        for (; ; ) {
+            long preImage = awaitPreImage(words, i, newTag);
+            long balance = balance(preImage);
+            if (balance < amount) return false;
+            if (words.preImages.compareAndSet(i, preImage, pack(newTag, balance - amount))) break;
+        }
+        for (; ; ) {
+            long word = words.balances.get(i);
+            long balance = balance(word);
+            if (balance < amount) {
+                //return money to the pre-image, nobody reads it until our epoch is drained
+                addToPreImage(words, i, amount, newTag);
+                return false;
+            }
+            if (words.balances.compareAndSet(i, word, pack(newTag, balance - amount))) return true;
+        }
+    }
+
+    private void creditLate(Words words, int i, long amount, int newTag) {
+        addToPreImage(words, i, amount, newTag);
+        for (; ; ) {
+            long word = words.balances.get(i);
+            if (words.balances.compareAndSet(i, word, pack(newTag, balance(word) + amount))) return;
+        }
+    }
+
+    private void addToPreImage(Words words, int i, long amount, int tag) {
+        for (; ; ) {
+            long preImage = awaitPreImage(words, i, tag);
+            if (words.preImages.compareAndSet(i, preImage, pack(tag, balance(preImage) + amount))) return;
+        }
+    }
+
+    /**
+     * Pre-image is written right after the balance word gets new tag, so we may need to wait a bit.
+     */
+    private static long awaitPreImage(Words words, int i, int tag) {
+        for (; ; ) {
+            long preImage = words.preImages.get(i);
+            if (tag(preImage) == tag) return preImage;
+            Thread.onSpinWait();
+        }
+    }
+
+    private static int tag(int epoch) {
+        return epoch & 0xFF;
+    }
+
+    private static int tag(long word) {
+        return (int) (word >>> 56);
+    }
+
+    private static long balance(long word) {
+        //restore sign of 56 bit value
+        return (word << 8) >> 8;
+    }
+
+    private static long pack(int tag, long balance) {
+        return ((long) tag << 56) | (balance & BALANCE_MASK);
+    }
+
+    /**
+     * Balance words with their pre-images.
+     */
+    private static class Words {
+        final AtomicLongArray balances;
+        final AtomicLongArray preImages;
+
+        Words(int size) {
+            balances = new AtomicLongArray(size);
+            preImages = new AtomicLongArray(size);
+        }
+    }
+
+    /**
+     * Accounts of {@link #PAGE_SIZE} consecutive slots.
+     */
+    private static final class Page extends Words {
+        //hot group number + 1 and CLOSED bit by slot
+        final AtomicIntegerArray state = new AtomicIntegerArray(PAGE_SIZE);
+        //contended credits by slot, it isn't counted after the account is made hot, null if striping is disabled
+        final AtomicIntegerArray contendedCredits;
+
+        Page(boolean striping) {
+            super(PAGE_SIZE);
+            contendedCredits = striping ? new AtomicIntegerArray(PAGE_SIZE) : null;
+        }
+    }
+}
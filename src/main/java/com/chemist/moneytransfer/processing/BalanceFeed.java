@@ -0,0 +1,136 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes balance changes to {@link BalanceSubscription}s which watch the account.<br/>
+ * Watchers are kept by account slot in pages, rows are copied on write under the lock, so the transfer path
+ * only reads: accounts without watchers cost a volatile read and a null check.
+ * The transfer never waits for subscribers: it marks the watcher dirty and offers it to the subscription ring
+ * only if it isn't dirty yet, so changes of the account are conflated until the subscriber reads the balance.
+ */
+class BalanceFeed {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    //rows of watchers by slot, the array is replaced when a page is added
+    private volatile Page[] pages = new Page[0];
+    private volatile int subscriptions;
+
+    //changes merged into the pending update of the subscriber
+    final LongAdder conflated = new LongAdder();
+
+    /**
+     * Is called by the engine after every change of the balance, inside the epoch of the change.
+     */
+    void changed(int slot) {
+        var pages = this.pages;
+        int page = slot >>> PAGE_BITS;
+        if (page >= pages.length || pages[page] == null) return;
+        Watcher[] watchers = pages[page].get(slot & PAGE_MASK);
+        if (watchers == null) return;
+        for (Watcher watcher : watchers) {
+            if (!watcher.changed()) conflated.increment();
+        }
+    }
+
+    /**
+     * Adds watchers of the subscription, account slots must not be removed meanwhile.
+     */
+    synchronized void add(BalanceSubscription subscription) {
+        for (Watcher watcher : subscription.watchers) {
+            Page page = page(subscription.slot(watcher.index));
+            int i = subscription.slot(watcher.index) & PAGE_MASK;
+            Watcher[] row = page.get(i);
+            if (row == null) {
+                page.set(i, new Watcher[]{watcher});
+            } else {
+                row = Arrays.copyOf(row, row.length + 1);
+                row[row.length - 1] = watcher;
+                page.set(i, row);
+            }
+        }
+        subscriptions++;
+    }
+
+    synchronized void remove(BalanceSubscription subscription) {
+        for (Watcher watcher : subscription.watchers) {
+            int slot = subscription.slot(watcher.index);
+            var pages = this.pages;
+            //the row could be dropped on closure of the account
+            Page page = pages[slot >>> PAGE_BITS];
+            Watcher[] row = page.get(slot & PAGE_MASK);
+            if (row == null) continue;
+            int length = 0;
+            Watcher[] rest = new Watcher[row.length];
+            for (Watcher w : row) {
+                if (w != watcher) rest[length++] = w;
+            }
+            page.set(slot & PAGE_MASK, length == 0 ? null : Arrays.copyOf(rest, length));
+        }
+        subscriptions--;
+    }
+
+    /**
+     * Drops watchers of the closed account, so they don't see the account which reuses the slot.
+     * It's called under the same lock as the slot removal.
+     */
+    synchronized void closed(int slot) {
+        var pages = this.pages;
+        int page = slot >>> PAGE_BITS;
+        if (page < pages.length && pages[page] != null) pages[page].set(slot & PAGE_MASK, null);
+    }
+
+    int subscriptions() {
+        return subscriptions;
+    }
+
+    private Page page(int slot) {
+        int page = slot >>> PAGE_BITS;
+        var pages = this.pages;
+        if (page < pages.length && pages[page] != null) return pages[page];
+        var grown = Arrays.copyOf(pages, Math.max(page + 1, pages.length));
+        grown[page] = new Page();
+        //the new page is published together with the array
+        this.pages = grown;
+        return grown[page];
+    }
+
+    /**
+     * Rows of watchers of {@link #PAGE_SIZE} slots, it's a class of its own, so pages are kept in a typed array.
+     */
+    private static final class Page extends AtomicReferenceArray<Watcher[]> {
+        Page() {
+            super(PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Account of the subscription, it's in the subscription ring while it's dirty.
+     */
+    static final class Watcher {
+        final BalanceSubscription subscription;
+        //index of the account in the subscription
+        final int index;
+        final AtomicBoolean dirty = new AtomicBoolean();
+
+        Watcher(BalanceSubscription subscription, int index) {
+            this.subscription = subscription;
+            this.index = index;
+        }
+
+        /**
+         * @return false if the change is merged into the pending one
+         */
+        boolean changed() {
+            //the flag is always written, so the subscriber which clears it later reads the new balance
+            if (dirty.getAndSet(true)) return false;
+            subscription.offer(this);
+            return true;
+        }
+    }
+}
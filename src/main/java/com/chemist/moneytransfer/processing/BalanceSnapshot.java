@@ -0,0 +1,56 @@
+package com.chemist.moneytransfer.processing;
+
+import java.math.BigDecimal;
+
+/**
+ * Consistent cut of all balances.<br/>
+ * It includes every transfer which had completed before the snapshot was requested
+ * and no parts of transfers which were running at that moment, so the total amount of money is always the same.
+ */
+public final class BalanceSnapshot {
+    private final int version;
+    private final int scale;
+    private final AccountStore accounts;
+    //minor units by slot
+    private final long[] balances;
+    //slot by index, null if there are no closed accounts
+    private final int[] slots;
+
+    BalanceSnapshot(int version, int scale, AccountStore accounts, long[] balances) {
+        this.version = version;
+        this.scale = scale;
+        this.accounts = accounts;
+        this.balances = balances;
+        slots = accounts.openSlots(balances.length);
+    }
+
+    /**
+     * @return epoch of the cut, it grows with every snapshot
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return slots == null ? balances.length : slots.length;
+    }
+
+    public String accountId(int index) {
+        return accounts.id(slot(index));
+    }
+
+    public BigDecimal balance(int index) {
+        return Money.fromMinorUnits(balances[slot(index)], scale);
+    }
+
+    public BigDecimal total() {
+        //closed accounts have zero balance
+        long total = 0;
+        for (long balance : balances) total += balance;
+        return Money.fromMinorUnits(total, scale);
+    }
+
+    private int slot(int index) {
+        return slots == null ? index : slots[index];
+    }
+}
@@ -0,0 +1,107 @@
+package com.chemist.moneytransfer.processing;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Balance changes of a set of accounts, conflated per account.<br/>
+ * Transfers only mark the account dirty and put it to the lock-free ring once, so the ring never overflows
+ * and a slow subscriber never slows down transfers: it gets the latest balance of every changed account
+ * when it polls, intermediate balances are skipped.
+ */
+public final class BalanceSubscription implements AutoCloseable {
+    private final BalanceFeed feed;
+    private final AccountStore accounts;
+    private final int scale;
+    private final String[] accountIds;
+    private final int[] slots;
+    final BalanceFeed.Watcher[] watchers;
+    //dirty watchers, every watcher is there at most once
+    private final MpscRing<BalanceFeed.Watcher> pending;
+    //set when the listener is called, it's cleared by poll() when the ring is empty
+    private final AtomicBoolean signalled = new AtomicBoolean(true);
+    private volatile Runnable listener;
+    private volatile boolean closed;
+
+    BalanceSubscription(BalanceFeed feed, AccountStore accounts, int scale, List<String> accountIds, int[] slots) {
+        this.feed = feed;
+        this.accounts = accounts;
+        this.scale = scale;
+        this.accountIds = accountIds.toArray(new String[0]);
+        this.slots = slots;
+        watchers = new BalanceFeed.Watcher[slots.length];
+        for (int i = 0; i < slots.length; i++) watchers[i] = new BalanceFeed.Watcher(this, i);
+        pending = new MpscRing<>(Integer.highestOneBit(Math.max(1, slots.length - 1)) << 1);
+    }
+
+    /**
+     * Marks all accounts changed, so their current balances are polled first.
+     *
+     * @param listener is called by the changing thread when there is something to poll and the previous call
+     *                 has been handled, it must only schedule {@link #poll} and return
+     */
+    public void start(Runnable listener) {
+        this.listener = listener;
+        for (BalanceFeed.Watcher watcher : watchers) watcher.changed();
+        signalled.set(false);
+        signal();
+    }
+
+    /**
+     * Reads the latest balances of changed accounts. It must not be called concurrently.
+     *
+     * @param limit    maximum number of balances
+     * @param consumer takes account ID and its balance
+     * @return number of balances, the listener will be called for new changes if it's less than the limit
+     */
+    public int poll(int limit, BiConsumer<String, BigDecimal> consumer) {
+        int count = 0;
+        while (count < limit) {
+            BalanceFeed.Watcher watcher = pending.poll();
+            if (watcher == null) {
+                signalled.set(false);
+                //the change could be offered after the ring was seen empty and before the flag was cleared
+                if (pending.isEmpty() || !signalled.compareAndSet(false, true)) break;
+                continue;
+            }
+            //cleared before the read, so the change made after the read marks it dirty again
+            watcher.dirty.set(false);
+            String accountId = accountIds[watcher.index];
+            int slot = slots[watcher.index];
+            //the account could be closed, its slot might belong to other account then
+            if (!accountId.equals(accounts.id(slot))) continue;
+            consumer.accept(accountId, Money.fromMinorUnits(accounts.balance(slot), scale));
+            count++;
+        }
+        return count;
+    }
+
+    int slot(int index) {
+        return slots[index];
+    }
+
+    void offer(BalanceFeed.Watcher watcher) {
+        //capacity isn't less than the number of watchers, so it always fits
+        pending.offer(watcher);
+        signal();
+    }
+
+    private void signal() {
+        if (!closed && listener != null && signalled.compareAndSet(false, true)) listener.run();
+    }
+
+    /**
+     * Stops updates, it may be called many times.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        feed.remove(this);
+    }
+}
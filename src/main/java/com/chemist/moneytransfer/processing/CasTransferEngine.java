@@ -0,0 +1,130 @@
+package com.chemist.moneytransfer.processing;
+
+import com.chemist.moneytransfer.metrics.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers are run by any thread of the pool, accounts are changed using CAS loops.
+ * The pool queue is bounded, transfers are rejected with 503 when it's full.
+ */
+class CasTransferEngine implements TransferEngine {
+    private static final Logger log = LoggerFactory.getLogger(CasTransferEngine.class);
+
+    private final AccountStore accounts;
+    private final EpochGate gate;
+    private final Commit commit;
+    private final ExecutorService executor;
+    private final Histogram queueWait;
+    private final Histogram execution;
+
+    CasTransferEngine(AccountStore accounts, EpochGate gate, Commit commit, ExecutorService executor,
+                      Histogram queueWait, Histogram execution) {
+        this.accounts = accounts;
+        this.gate = gate;
+        this.commit = commit;
+        this.executor = executor;
+        this.queueWait = queueWait;
+        this.execution = execution;
+    }
+
+    @Override
+    public CompletableFuture<Void> transfer(int senderSlot, int recipientSlot, long amount, String idempotencyKey) {
+        long submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> apply(senderSlot, recipientSlot, amount, idempotencyKey, submitted), executor)
+                    .thenCompose(durable -> durable);
+        } catch (RejectedExecutionException e) {
+            return rejected();
+        }
+    }
+
+    private CompletableFuture<Void> apply(int senderSlot, int recipientSlot, long amount, String idempotencyKey, long submitted) {
+        long started = System.nanoTime();
+        queueWait.record(started - submitted);
+        int epoch = gate.enter();
+        try {
+            MoneyTransferException closed = TransferEngine.checkOpen(accounts, senderSlot, recipientSlot);
+            if (closed != null) throw closed;
+
+            //remove money from sender balance
+            if (!accounts.tryDebit(senderSlot, amount, epoch)) throw TransferEngine.notEnoughMoneyException();
+
+            CompletableFuture<Void> durable = commit.commit(epoch, senderSlot, recipientSlot, amount, idempotencyKey);
+            commit.changed(senderSlot);
+
+            //add money to recipient balance
+            accounts.credit(recipientSlot, amount, epoch);
+            commit.changed(recipientSlot);
+            return durable;
+        } finally {
+            gate.exit(epoch);
+            execution.recordSince(started);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> transferBatch(int[] slots, long[] deltas, int payerCount, String idempotencyKey,
+                                                 Object attachment) {
+        long submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> applyBatch(slots, deltas, payerCount, idempotencyKey, attachment, submitted),
+                            executor)
+                    .thenCompose(durable -> durable);
+        } catch (RejectedExecutionException e) {
+            return rejected();
+        }
+    }
+
+    private CompletableFuture<Void> rejected() {
+        if (executor.isShutdown()) return CompletableFuture.failedFuture(new MoneyTransferException(503, "Server is shutting down."));
+        return CompletableFuture.failedFuture(TransferEngine.overloadedException());
+    }
+
+    private CompletableFuture<Void> applyBatch(int[] slots, long[] deltas, int payerCount, String idempotencyKey, Object attachment,
+                                               long submitted) {
+        long started = System.nanoTime();
+        queueWait.record(started - submitted);
+        int epoch = gate.enter();
+        try {
+            MoneyTransferException closed = TransferEngine.checkOpen(accounts, slots);
+            if (closed != null) throw closed;
+
+            for (int i = 0; i < payerCount; i++) {
+                if (!accounts.tryDebit(slots[i], -deltas[i], epoch)) {
+                    //credit never fails, so money is simply returned to already debited accounts
+                    for (int j = 0; j < i; j++) {
+                        accounts.credit(slots[j], -deltas[j], epoch);
+                        commit.changed(slots[j]);
+                    }
+                    throw TransferEngine.notEnoughMoneyException();
+                }
+                commit.changed(slots[i]);
+            }
+
+            CompletableFuture<Void> durable = commit.commitBatch(epoch, slots, deltas, idempotencyKey, attachment);
+
+            for (int i = payerCount; i < slots.length; i++) {
+                accounts.credit(slots[i], deltas[i], epoch);
+                commit.changed(slots[i]);
+            }
+            return durable;
+        } finally {
+            gate.exit(epoch);
+            execution.recordSince(started);
+        }
+    }
+
+    @Override
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.info("Waiting for transfers completion");
+        }
+    }
+}
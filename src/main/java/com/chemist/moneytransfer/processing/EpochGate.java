@@ -0,0 +1,61 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits transfers into epochs to get a consistent cut of all balances without stopping transfers.<br/>
+ * Every transfer runs between {@link #enter()} and {@link #exit(int)}.
+ * {@link #advance()} starts the new epoch and waits until all transfers of the previous epoch are finished,
+ * new transfers aren't blocked meanwhile.<br/>
+ * Enter and exit counters are striped ({@link LongAdder}), so the gate isn't a contention point.
+ */
+class EpochGate {
+    private final LongAdder[] enters = {new LongAdder(), new LongAdder()};
+    private final LongAdder[] exits = {new LongAdder(), new LongAdder()};
+    private volatile int epoch;
+
+    EpochGate(int epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * @return epoch of the transfer, it must be passed to {@link #exit(int)}
+     */
+    int enter() {
+        for (; ; ) {
+            int e = epoch;
+            enters[e & 1].increment();
+            //epoch could be advanced between read and increment, advance() might not see our increment then
+            if (epoch == e) return e;
+            exits[e & 1].increment();
+        }
+    }
+
+    void exit(int epoch) {
+        exits[epoch & 1].increment();
+    }
+
+    int epoch() {
+        return epoch;
+    }
+
+    /**
+     * Must not be called concurrently.
+     *
+     * @return new epoch, there are no running transfers of previous epochs when the method returns
+     */
+    int advance() {
+        int previous = epoch;
+        epoch = previous + 1;
+        int parity = previous & 1;
+        //counters only grow, so if exits read first are equal to enters read later,
+        //there was a moment without running transfers of the previous epoch
+        for (int spins = 0; exits[parity].sum() != enters[parity].sum(); spins++) {
+            //transfer thread may be descheduled, don't burn cpu for long
+            if (spins < 1000) Thread.onSpinWait();
+            else LockSupport.parkNanos(10_000);
+        }
+        return previous + 1;
+    }
+}
@@ -0,0 +1,344 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Open holds by key and held funds by account slot.<br/>
+ * Held money is debited from the balance, so transfers see only the available balance and never race with holds,
+ * the account total of held funds is kept aside in pages of {@link AtomicLongArray} and changed by atomic add.
+ * <p>
+ * Holds are kept like {@link IdempotencyStore} keys: segments of open addressing tables of primitive arrays
+ * keyed by two longs, about 40 bytes per hold. Every segment has {@link TimingWheel} of slots by expiration second,
+ * so expired holds are found without a scan. A hold is taken for release when it's captured, voided or expired,
+ * so only one of them can release it. It stays in the table until the release is committed, so snapshots
+ * of the epoch include it, and it's restored if the release fails.
+ */
+class HoldStore {
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    //expiration times are stored as int seconds since 2020-01-01
+    private static final long BASE_EPOCH_SECOND = 1577836800L;
+
+    private static final byte EMPTY = 0;
+    private static final byte TOMBSTONE = 1;
+    private static final byte HELD = 2;
+    //taken for release, it isn't open anymore but it's a part of the state until the release is committed
+    private static final byte RELEASING = 3;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    //held funds by account slot
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    final LongAdder expired = new LongAdder();
+
+    interface HoldConsumer {
+        void accept(long high, long low, int payerSlot, long amount, int expiresAt);
+    }
+
+    HoldStore() {
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment();
+    }
+
+    /**
+     * Hold taken from the store.
+     */
+    static final class Hold {
+        final long high;
+        final long low;
+        final int payerSlot;
+        final long amount;
+        final int expiresAt;
+
+        Hold(long high, long low, int payerSlot, long amount, int expiresAt) {
+            this.high = high;
+            this.low = low;
+            this.payerSlot = payerSlot;
+            this.amount = amount;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Adds the hold, its funds must be added to the payer by {@link #addHeld(int, long)} before the debit.
+     *
+     * @return false if the key is already held or being released
+     */
+    boolean add(long high, long low, int payerSlot, long amount, int expiresAt) {
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            if (segment.find(high, low) >= 0) return false;
+            int i = segment.insert(high, low, payerSlot, amount, expiresAt);
+            segment.wheel.add(i, expiresAt);
+            return true;
+        }
+    }
+
+    boolean contains(long high, long low) {
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            return segment.find(high, low) >= 0;
+        }
+    }
+
+    /**
+     * @return held amount or -1 if there is no such hold
+     */
+    long amount(long high, long low) {
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            int i = segment.find(high, low);
+            return i < 0 || segment.states[i] != HELD ? -1 : segment.amounts[i];
+        }
+    }
+
+    /**
+     * Takes the hold for release, so nobody else can release it.
+     *
+     * @return the hold or null if there is no such open hold
+     */
+    Hold remove(long high, long low) {
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            int i = segment.find(high, low);
+            if (i < 0 || segment.states[i] != HELD) return null;
+            segment.take(i);
+            return new Hold(high, low, segment.payers[i], segment.amounts[i], segment.expirations[i]);
+        }
+    }
+
+    /**
+     * Returns the hold which wasn't released, it expires on the next advance if its time has passed.
+     */
+    void restore(Hold hold) {
+        Segment segment = segment(hold.high, hold.low);
+        synchronized (segment) {
+            int i = segment.find(hold.high, hold.low);
+            if (i < 0 || segment.states[i] != RELEASING) throw new IllegalStateException("Hold isn't taken for release");
+            segment.states[i] = HELD;
+            segment.size++;
+            segment.releasing--;
+            segment.wheel.add(i, segment.expirations[i]);
+        }
+    }
+
+    /**
+     * Drops the hold taken for release, it's called when the release is committed.
+     *
+     * @return false if there is no such hold
+     */
+    boolean released(long high, long low) {
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            int i = segment.find(high, low);
+            if (i < 0) return false;
+            //replay releases holds which aren't taken
+            if (segment.states[i] == HELD) segment.take(i);
+            segment.states[i] = TOMBSTONE;
+            segment.releasing--;
+            return true;
+        }
+    }
+
+    /**
+     * Takes expired holds for release. It's called periodically, not lazily by operations,
+     * because the money must return to idle accounts too.
+     */
+    List<Hold> expire(int now) {
+        List<Hold> holds = new ArrayList<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.expired = holds;
+                segment.wheel.advance(now);
+                segment.expired = null;
+            }
+        }
+        expired.add(holds.size());
+        return holds;
+    }
+
+    /**
+     * Iterates open holds and the ones being released, so it's consistent with balances of the epoch
+     * if the previous epoch is drained, see {@link #released}.
+     */
+    void forEach(HoldConsumer consumer) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int i = 0; i < segment.states.length; i++) {
+                    if (segment.states[i] < HELD) continue;
+                    consumer.accept(segment.highs[i], segment.lows[i], segment.payers[i], segment.amounts[i], segment.expirations[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of open holds
+     */
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    void addHeld(int slot, long delta) {
+        page(slot >>> PAGE_BITS).addAndGet(slot & PAGE_MASK, delta);
+    }
+
+    /**
+     * @return funds held from the account
+     */
+    long held(int slot) {
+        var pages = this.pages;
+        int page = slot >>> PAGE_BITS;
+        return page < pages.length && pages[page] != null ? pages[page].get(slot & PAGE_MASK) : 0;
+    }
+
+    static int now() {
+        return (int) (System.currentTimeMillis() / 1000 - BASE_EPOCH_SECOND);
+    }
+
+    private Segment segment(long high, long low) {
+        return segments[(int) (IdempotencyStore.mix(high, low) >>> 58)];
+    }
+
+    private AtomicLongArray page(int index) {
+        AtomicLongArray[] pages = this.pages;
+        if (index < pages.length && pages[index] != null) return pages[index];
+        return addPage(index);
+    }
+
+    private synchronized AtomicLongArray addPage(int index) {
+        AtomicLongArray[] pages = this.pages;
+        if (index < pages.length && pages[index] != null) return pages[index];
+        AtomicLongArray[] grown = new AtomicLongArray[Math.max(index + 1, pages.length)];
+        System.arraycopy(pages, 0, grown, 0, pages.length);
+        grown[index] = new AtomicLongArray(PAGE_SIZE);
+        //the page is published together with the new array
+        this.pages = grown;
+        return grown[index];
+    }
+
+    private static final class Segment implements TimingWheel.Owner {
+        long[] highs = new long[INITIAL_CAPACITY];
+        long[] lows = new long[INITIAL_CAPACITY];
+        byte[] states = new byte[INITIAL_CAPACITY];
+        int[] payers = new int[INITIAL_CAPACITY];
+        long[] amounts = new long[INITIAL_CAPACITY];
+        int[] expirations = new int[INITIAL_CAPACITY];
+        //open holds
+        int size;
+        //holds taken for release, they are kept by rehash as well
+        int releasing;
+        //open and releasing holds and tombstones
+        int used;
+        final TimingWheel wheel = new TimingWheel(this, now());
+        //receives holds expired by the current advance
+        List<Hold> expired;
+
+        /**
+         * @return slot of the open hold or the one being released, -1 if there is no such hold
+         */
+        int find(long high, long low) {
+            int mask = states.length - 1;
+            for (int i = (int) IdempotencyStore.mix(high, low) & mask; ; i = (i + 1) & mask) {
+                byte state = states[i];
+                if (state == EMPTY) return -1;
+                if (state >= HELD && highs[i] == high && lows[i] == low) return i;
+            }
+        }
+
+        /**
+         * Key must be absent.
+         *
+         * @return slot of the new entry
+         */
+        int insert(long high, long low, int payer, long amount, int expiresAt) {
+            if ((used + 1) * 4L > states.length * 3L) rehash();
+            return place(high, low, payer, amount, expiresAt);
+        }
+
+        /**
+         * Puts the entry without the load check, the table must have a free slot.
+         */
+        private int place(long high, long low, int payer, long amount, int expiresAt) {
+            int mask = states.length - 1;
+            int i = (int) IdempotencyStore.mix(high, low) & mask;
+            for (int probes = 0; states[i] >= HELD; i = (i + 1) & mask) {
+                if (++probes == states.length) throw new IllegalStateException("Hold table is full");
+            }
+            //stale wheel payload of the reused tombstone is harmless, the deadline is read from the current entry
+            if (states[i] == EMPTY) used++;
+            highs[i] = high;
+            lows[i] = low;
+            states[i] = HELD;
+            payers[i] = payer;
+            amounts[i] = amount;
+            expirations[i] = expiresAt;
+            size++;
+            return i;
+        }
+
+        @Override
+        public long deadline(int slot) {
+            return states[slot] == HELD ? expirations[slot] : -1;
+        }
+
+        @Override
+        public void expire(int slot) {
+            expired.add(new Hold(highs[slot], lows[slot], payers[slot], amounts[slot], expirations[slot]));
+            take(slot);
+        }
+
+        /**
+         * Open hold isn't counted and leaves the wheel on its next visit.
+         */
+        void take(int slot) {
+            states[slot] = RELEASING;
+            size--;
+            releasing++;
+        }
+
+        private void rehash() {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            byte[] oldStates = states;
+            int[] oldPayers = payers;
+            long[] oldAmounts = amounts;
+            int[] oldExpirations = expirations;
+
+            //tombstones are dropped, so the table grows only if open and releasing holds need it,
+            //the new entry fits too, so it's placed without another rehash
+            int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit((size + releasing + 1) * 4 - 1));
+            highs = new long[capacity];
+            lows = new long[capacity];
+            states = new byte[capacity];
+            payers = new int[capacity];
+            amounts = new long[capacity];
+            expirations = new int[capacity];
+            size = 0;
+            releasing = 0;
+            used = 0;
+            wheel.clear();
+
+            for (int i = 0; i < oldStates.length; i++) {
+                if (oldStates[i] < HELD) continue;
+                int slot = place(oldHighs[i], oldLows[i], oldPayers[i], oldAmounts[i], oldExpirations[i]);
+                if (oldStates[i] == HELD) {
+                    wheel.add(slot, oldExpirations[i]);
+                } else {
+                    take(slot);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Idempotency key to operation result store.<br/>
+ * Keys are encoded as two longs: UUID keys exactly, other keys by 128 bit hash.
+ * Completed operation keeps only one byte of outcome code instead of the future.
+ * Failures are interned into the codes while there are free ones, the rest are kept per key,
+ * so failures with account IDs in their messages can't exhaust the codes.
+ * Futures are kept only for running operations, so duplicate requests can wait for them.
+ * <p>
+ * The store consists of segments guarded by their own monitors. Every segment is open addressing table
+ * of primitive arrays with linear probing, so memory per key is about 40 bytes and lookup cost doesn't depend on size.
+ * Keys expire after given lifetime since completion: every segment has {@link TimingWheel} of slot numbers,
+ * which is advanced lazily by operations on the segment, so there are no background threads.
+ * Expired entries become tombstones, they are dropped when the segment is rehashed.
+ */
+class IdempotencyStore {
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_CAPACITY = 1024;
+    //expiration times are stored as int seconds since 2020-01-01
+    private static final long BASE_EPOCH_SECOND = 1577836800L;
+
+    private static final byte EMPTY = 0;
+    private static final byte TOMBSTONE = 1;
+    private static final byte RUNNING = 2;
+    private static final byte SUCCEEDED = 3;
+    //failure is kept in the segment, see Segment.failures
+    private static final byte FAILED = 4;
+    //the rest codes are interned failures, see failureCodes
+    private static final int FIRST_FAILURE = 5;
+    private static final int MAX_CODES = 128;
+
+    private static final CompletableFuture<Void> SUCCESS = CompletableFuture.completedFuture(null);
+
+    /**
+     * Receives completed keys.
+     */
+    interface KeyConsumer {
+        void accept(long high, long low, int expiresAt);
+    }
+
+    private final long lifetimeSec;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    //failure exceptions are interned by http code and message, so one byte is enough to store them
+    private final Map<String, Byte> failureCodes = new ConcurrentHashMap<>();
+    private final MoneyTransferException[] failures = new MoneyTransferException[MAX_CODES];
+
+    //requests with known key (retries) and with new key
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+
+    IdempotencyStore(long lifetimeSec) {
+        this.lifetimeSec = lifetimeSec;
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment();
+    }
+
+    /**
+     * Returns the result of already started operation with the same key or starts the new one.<br/>
+     * The operation must report success via {@link #succeeded(String)} before its future completes,
+     * failure is recorded when the future fails.
+     */
+    CompletableFuture<Void> execute(String key, Supplier<CompletableFuture<Void>> operation) {
+        long high = high(key);
+        long low = low(key);
+        Segment segment = segment(high, low);
+        CompletableFuture<Void> future;
+        synchronized (segment) {
+            segment.advance(now());
+            int i = segment.find(high, low);
+            if (i >= 0) {
+                hits.increment();
+                byte state = segment.states[i];
+                if (state == RUNNING) return segment.running.get(new Key(high, low));
+                if (state == SUCCEEDED) return SUCCESS;
+                if (state == FAILED) return CompletableFuture.failedFuture(segment.failures.get(new Key(high, low)));
+                return CompletableFuture.failedFuture(failures[state]);
+            }
+            misses.increment();
+            future = new CompletableFuture<>();
+            segment.insert(high, low, RUNNING, 0);
+            segment.running.put(new Key(high, low), future);
+        }
+
+        CompletableFuture<Void> result;
+        try {
+            result = operation.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((v, e) -> {
+            if (e == null) {
+                future.complete(null);
+            } else {
+                failed(high, low, e);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Records successful completion.
+     * It's called by the operation itself before the future completes,
+     * so the key is visible to snapshot as soon as operation is durable.
+     */
+    void succeeded(String key) {
+        long high = high(key);
+        long low = low(key);
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            int i = segment.find(high, low);
+            if (i >= 0 && segment.states[i] == RUNNING) {
+                segment.complete(i, SUCCEEDED, expiresAt());
+                segment.running.remove(new Key(high, low));
+            }
+        }
+    }
+
+    /**
+     * @return true if the operation with the key has succeeded and the key hasn't expired yet
+     */
+    boolean isSucceeded(String key) {
+        long high = high(key);
+        long low = low(key);
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            segment.advance(now());
+            int i = segment.find(high, low);
+            return i >= 0 && segment.states[i] == SUCCEEDED;
+        }
+    }
+
+    /**
+     * Adds completed key, it's used during recovery.
+     */
+    void restore(long high, long low, int expiresAt) {
+        if (expiresAt <= now()) return;
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            int i = segment.find(high, low);
+            if (i >= 0) segment.expire(i);
+            int slot = segment.insert(high, low, SUCCEEDED, expiresAt);
+            segment.wheel.add(slot, expiresAt);
+        }
+    }
+
+    /**
+     * Adds completed key with full lifetime, it's used during journal replay.
+     */
+    void restore(String key) {
+        restore(high(key), low(key), expiresAt());
+    }
+
+    /**
+     * Iterates over successfully completed keys. Every segment is locked while it's iterated.
+     */
+    void forEachSucceeded(KeyConsumer consumer) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int i = 0; i < segment.states.length; i++) {
+                    if (segment.states[i] == SUCCEEDED) {
+                        consumer.accept(segment.highs[i], segment.lows[i], segment.expirations[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    private void failed(long high, long low, Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        //overload (503) and rate limit (429) rejections aren't results of the operation, so they aren't remembered either
+        int code = e instanceof MoneyTransferException && !isRejection((MoneyTransferException) e)
+                ? failureCode((MoneyTransferException) e)
+                : -1;
+
+        Segment segment = segment(high, low);
+        synchronized (segment) {
+            int i = segment.find(high, low);
+            if (i >= 0 && segment.states[i] == RUNNING) {
+                if (code < 0) {
+                    //unexpected failure isn't remembered, so the client can retry
+                    segment.states[i] = TOMBSTONE;
+                    segment.size--;
+                } else {
+                    if (code == FAILED) segment.failures.put(new Key(high, low), (MoneyTransferException) e);
+                    segment.complete(i, (byte) code, expiresAt());
+                }
+            }
+            segment.running.remove(new Key(high, low));
+        }
+    }
+
+    private static boolean isRejection(MoneyTransferException e) {
+        return e.getHttpCode() == 503 || e.getHttpCode() == 429;
+    }
+
+    /**
+     * @return code of interned failure or {@link #FAILED} if there are too many distinct failures
+     */
+    private int failureCode(MoneyTransferException e) {
+        String id = e.getHttpCode() + " " + e.getMessage();
+        Byte code = failureCodes.get(id);
+        if (code != null) return code;
+        synchronized (failureCodes) {
+            code = failureCodes.get(id);
+            if (code != null) return code;
+            int next = FIRST_FAILURE + failureCodes.size();
+            if (next >= MAX_CODES) return FAILED;
+            failures[next] = e;
+            failureCodes.put(id, (byte) next);
+            return next;
+        }
+    }
+
+    private Segment segment(long high, long low) {
+        return segments[(int) (mix(high, low) >>> 58) & (SEGMENTS - 1)];
+    }
+
+    private int expiresAt() {
+        return (int) Math.min(Integer.MAX_VALUE, now() + lifetimeSec);
+    }
+
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 1000 - BASE_EPOCH_SECOND);
+    }
+
+    static long mix(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the most significant bits of UUID key or the first 64 bit hash of other key
+     */
+    static long high(String key) {
+        if (isUuid(key)) return parseHex(key, 0, 8) << 32 | parseHex(key, 9, 13) << 16 | parseHex(key, 14, 18);
+        //FNV-1a
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    /**
+     * @return the least significant bits of UUID key or the second 64 bit hash of other key
+     */
+    static long low(String key) {
+        if (isUuid(key)) return parseHex(key, 19, 23) << 48 | parseHex(key, 24, 36);
+        //polynomial hash with murmur finalizer, independent from FNV-1a
+        long h = key.length();
+        for (int i = 0; i < key.length(); i++) {
+            h = h * 0x9E3779B97F4A7C15L + key.charAt(i);
+        }
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean isUuid(String key) {
+        if (key.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = key.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String key, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value << 4 | Character.digit(key.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static final class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+
+    private static final class Segment implements TimingWheel.Owner {
+        long[] highs = new long[INITIAL_CAPACITY];
+        long[] lows = new long[INITIAL_CAPACITY];
+        byte[] states = new byte[INITIAL_CAPACITY];
+        int[] expirations = new int[INITIAL_CAPACITY];
+        //live entries
+        int size;
+        //live entries and tombstones
+        int used;
+        final TimingWheel wheel = new TimingWheel(this, now());
+        final Map<Key, CompletableFuture<Void>> running = new HashMap<>();
+        //failures of entries in FAILED state
+        final Map<Key, MoneyTransferException> failures = new HashMap<>();
+
+        int find(long high, long low) {
+            int mask = states.length - 1;
+            for (int i = (int) mix(high, low) & mask; ; i = (i + 1) & mask) {
+                byte state = states[i];
+                if (state == EMPTY) return -1;
+                if (state != TOMBSTONE && highs[i] == high && lows[i] == low) return i;
+            }
+        }
+
+        /**
+         * Key must be absent.
+         *
+         * @return slot of the new entry
+         */
+        int insert(long high, long low, byte state, int expiresAt) {
+            if ((used + 1) * 4L > states.length * 3L) rehash();
+            int mask = states.length - 1;
+            int i = (int) mix(high, low) & mask;
+            while (states[i] != EMPTY && states[i] != TOMBSTONE) i = (i + 1) & mask;
+            //tombstone can be reused, stale wheel payload pointing to it is harmless
+            //because deadline is always read from the current entry
+            if (states[i] == EMPTY) used++;
+            highs[i] = high;
+            lows[i] = low;
+            states[i] = state;
+            expirations[i] = expiresAt;
+            size++;
+            return i;
+        }
+
+        void complete(int slot, byte state, int expiresAt) {
+            states[slot] = state;
+            expirations[slot] = expiresAt;
+            wheel.add(slot, expiresAt);
+        }
+
+        void advance(int now) {
+            wheel.advance(now);
+        }
+
+        @Override
+        public long deadline(int slot) {
+            byte state = states[slot];
+            return state == EMPTY || state == TOMBSTONE || state == RUNNING ? -1 : expirations[slot];
+        }
+
+        @Override
+        public void expire(int slot) {
+            if (states[slot] == FAILED) failures.remove(new Key(highs[slot], lows[slot]));
+            states[slot] = TOMBSTONE;
+            size--;
+        }
+
+        private void rehash() {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            byte[] oldStates = states;
+            int[] oldExpirations = expirations;
+
+            //tombstones are dropped, so the table grows only if live entries need it
+            int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, size) * 4 - 1));
+            highs = new long[capacity];
+            lows = new long[capacity];
+            states = new byte[capacity];
+            expirations = new int[capacity];
+            size = 0;
+            used = 0;
+            wheel.clear();
+
+            for (int i = 0; i < oldStates.length; i++) {
+                byte state = oldStates[i];
+                if (state == EMPTY || state == TOMBSTONE) continue;
+                int slot = insert(oldHighs[i], oldLows[i], state, oldExpirations[i]);
+                if (state != RUNNING) wheel.add(slot, oldExpirations[i]);
+            }
+        }
+    }
+}
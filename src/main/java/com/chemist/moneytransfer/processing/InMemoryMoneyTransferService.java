@@ -1,45 +1,290 @@
 package com.chemist.moneytransfer.processing;
 
+import com.chemist.moneytransfer.metrics.MetricsRegistry;
 import com.chemist.moneytransfer.server.Config;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 public class InMemoryMoneyTransferService implements MoneyTransferService {
     private static final Logger log = LoggerFactory.getLogger(InMemoryMoneyTransferService.class);
 
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+    //rejections share the failed future, so shedding abusive traffic doesn't allocate
+    private static final CompletableFuture<Void> RATE_LIMITED = CompletableFuture.failedFuture(TransferEngine.rateLimitedException());
+
+    //keys and account IDs are journaled with unsigned short length
+    public static final int MAX_ID_LENGTH = 1024;
+
     private final Config config;
 
-    //maps account ID to balance reference
-    //we don't use ConcurrentHashMap because we aren't going to update map concurrently
-    private final Map<String, AtomicReference<BigDecimal>> accounts;
+    //balances are stored as long minor units, BigDecimal is used only at the API edge
+    private final AccountStore accounts;
+
+    //account is opened and removed on closure under this lock together with journaling,
+    //so journal order of open, close and transfers of the same ID is the order they became visible
+    private final Object accountsLock = new Object();
+
+    //every transfer runs inside the gate, so consistent snapshot can be taken at epoch boundary
+    private final EpochGate gate;
+
+    //CAS or sharded single writer engine, see Config.engine
+    private final TransferEngine engine;
 
-    private final ExecutorService processingExecutor;
+    //idempotency key to transaction result store
+    private final IdempotencyStore resultStore;
 
-    //idempotency key to transaction result cache
-    private final Cache<String, CompletableFuture<Void>> resultCache;
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(threadFactoryWithPrefix("snapshot-"));
+
+    //persistence fields are null if it's disabled
+    private final Path dataDir;
+    private final Journal journal;
+    private final ScheduledExecutorService checkpointExecutor;
+
+    //null if replication listener is disabled
+    private final ReplicationLog replication;
+
+    //null if history is disabled
+    private final TransactionLog history;
+    //watchers of balance changes
+    private final BalanceFeed feed = new BalanceFeed();
+    //future and recurring transfers, they aren't journaled
+    //null if the state is journaled or replicated, schedules live in memory only, so they would be lost on restart
+    //or failover while transfers of their past runs are kept
+    private final TransferScheduler scheduler;
+    //open holds and held funds by account, they are changed on commit of hold batches, so they are journaled,
+    //snapshotted and replicated together with the balances
+    private final HoldStore holds = new HoldStore();
+    private final ScheduledExecutorService holdExecutor = Executors.newSingleThreadScheduledExecutor(threadFactoryWithPrefix("holds-"));
+    //buckets by sender slot, null if the limit is disabled
+    private final RateLimiter senderLimiter;
+    //null unless the server has started as follower
+    private final ReplicaClient replica;
+    //writes are rejected until promotion
+    private volatile boolean follower;
+    //memory may have changes which aren't durable after journal failure, so the server stops serving until restart,
+    //the restart recovers the last durable state
+    private volatile boolean journalFailed;
 
     public InMemoryMoneyTransferService(Config config, Map<String, BigDecimal> initialAccounts) {
+        this(config, initialAccounts, new MetricsRegistry());
+    }
+
+    public InMemoryMoneyTransferService(Config config, Map<String, BigDecimal> initialAccounts, MetricsRegistry metrics) {
         this.config = config;
-        //wrap balances with AtomicReference and create simple HashMap
-        //this map will not be modified later
-        accounts = initialAccounts.entrySet().stream()
-                .map(e -> Map.entry(e.getKey(), new AtomicReference<>(e.getValue())))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        if ((config.replicationPort >= 0 || config.replicaOf != null)
+                && (config.replicationSecret == null || config.replicationSecret.isEmpty())) {
+            throw new IllegalArgumentException("Replication requires replicationSecret");
+        }
+
+        resultStore = new IdempotencyStore(config.idempotencyKeyCacheLifetimeSec);
+
+        if (config.replicaOf != null) {
+            //the primary state replaces the local one
+            replica = new ReplicaClient(config.replicaOf, config.replicationSecret);
+            SnapshotFile snapshot;
+            try {
+                snapshot = replica.snapshot();
+                if (snapshot.scale != config.balanceMaxScale) {
+                    throw new IllegalStateException("Primary balance scale " + snapshot.scale + " differs from configured one");
+                }
+                accounts = new AccountStore(snapshot.ids, snapshot.balances, snapshot.epoch,
+                        config.maxHotAccounts, config.hotAccountStripes);
+                snapshot.restoreKeys(resultStore);
+                snapshot.restoreHolds(holds, accounts);
+                gate = new EpochGate(snapshot.epoch);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't get state from primary " + config.replicaOf, e);
+            }
+            follower = true;
+
+            dataDir = config.dataDir == null ? null : Path.of(config.dataDir);
+            if (dataDir != null) {
+                try {
+                    //local data is older than the primary state, it must not be replayed over it.
+                    //Crash between these steps leaves older local state, the restarted follower gets the state again
+                    Files.createDirectories(dataDir);
+                    Journal.deleteSegments(dataDir);
+                    SnapshotFile.write(dataDir, snapshot.epoch, config.balanceMaxScale, accounts, snapshot.balances, holds, resultStore);
+                    journal = new Journal(dataDir, config.journalBatchSize, config.journalMaxDelayMicros, this::journalFailed);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Can't write primary state to " + dataDir, e);
+                }
+            } else {
+                journal = null;
+            }
+        } else if (config.dataDir != null) {
+            replica = null;
+            dataDir = Path.of(config.dataDir);
+            try {
+                //balances are restored from the latest snapshot and the journal tail written after it
+                var snapshot = SnapshotFile.loadLatest(dataDir);
+                int snapshotEpoch;
+                if (snapshot != null) {
+                    if (snapshot.scale != config.balanceMaxScale) {
+                        throw new IllegalStateException("Snapshot balance scale " + snapshot.scale + " differs from configured one");
+                    }
+                    accounts = new AccountStore(snapshot.ids, snapshot.balances, snapshot.epoch,
+                            config.maxHotAccounts, config.hotAccountStripes);
+                    snapshot.restoreKeys(resultStore);
+                    //before the replay, which releases some of them
+                    snapshot.restoreHolds(holds, accounts);
+                    snapshotEpoch = snapshot.epoch;
+                } else {
+                    accounts = createStore(initialAccounts, config);
+                    snapshotEpoch = 0;
+                }
+
+                //new transfers must get epoch greater than any replayed one,
+                //otherwise the next snapshot wouldn't cover replayed transfers
+                int[] startEpoch = {snapshotEpoch};
+                Journal.replay(dataDir, record -> {
+                    replay(record, snapshotEpoch);
+                    startEpoch[0] = Math.max(startEpoch[0], record.epoch + 1);
+                });
+                accounts.startEpoch(startEpoch[0]);
+                gate = new EpochGate(startEpoch[0]);
+
+                journal = new Journal(dataDir, config.journalBatchSize, config.journalMaxDelayMicros, this::journalFailed);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't recover data from " + dataDir, e);
+            }
+        } else {
+            replica = null;
+            try {
+                accounts = createStore(initialAccounts, config);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't import accounts from " + config.accountsFile, e);
+            }
+            gate = new EpochGate(0);
+            dataDir = null;
+            journal = null;
+        }
+
+        if (journal != null && config.snapshotIntervalSec > 0) {
+            checkpointExecutor = Executors.newSingleThreadScheduledExecutor(threadFactoryWithPrefix("checkpoint-"));
+            checkpointExecutor.scheduleWithFixedDelay(this::checkpointSafely,
+                    config.snapshotIntervalSec, config.snapshotIntervalSec, TimeUnit.SECONDS);
+        } else {
+            checkpointExecutor = null;
+        }
+
+        for (String accountId : config.hotAccounts) {
+            int slot = accounts.slot(accountId);
+            if (slot == AccountStore.NOT_FOUND) throw new IllegalArgumentException("Hot account '" + accountId + "' not found");
+            if (!accounts.makeHot(slot)) throw new IllegalArgumentException("Too many hot accounts");
+        }
+
+        senderLimiter = config.accountRateLimit > 0 ? new RateLimiter(config.accountRateLimit, config.accountRateBurst) : null;
+        history = config.transactionHistory
+                ? new TransactionLog(config.historyRingSize, config.historyMaxEntries, accounts::id, threadFactoryWithPrefix("history-"))
+                : null;
+
+        var commit = new TransferEngine.Commit() {
+            @Override
+            public CompletableFuture<Void> commit(int epoch, int senderSlot, int recipientSlot, long amount, String idempotencyKey) {
+                return InMemoryMoneyTransferService.this.commit(epoch, senderSlot, recipientSlot, amount, idempotencyKey);
+            }
+
+            @Override
+            public CompletableFuture<Void> commitBatch(int epoch, int[] slots, long[] deltas, String idempotencyKey,
+                                                       Object attachment) {
+                return InMemoryMoneyTransferService.this.commitBatch(epoch, slots, deltas, idempotencyKey, (HoldChange) attachment);
+            }
+
+            @Override
+            public void changed(int slot) {
+                feed.changed(slot);
+            }
+        };
+        var queueWait = metrics.histogram("transfer_queue_wait_seconds", "Time from transfer submission to the start of its processing.");
+        var execution = metrics.histogram("transfer_execution_seconds", "Time of transfer processing without waiting for durability.");
+        if (config.engine == Config.Engine.SHARDED) {
+            engine = new ShardedTransferEngine(accounts, gate, commit, config.processingThreads,
+                    config.shardRingSize, threadFactoryWithPrefix("shard-"), queueWait, execution);
+        } else {
+            engine = new CasTransferEngine(accounts, gate, commit,
+                    new ThreadPoolExecutor(config.processingThreads, config.processingThreads, 0, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(config.processingQueueSize), threadFactoryWithPrefix("processing-")),
+                    queueWait, execution);
+        }
 
-        processingExecutor = Executors.newFixedThreadPool(config.processingThreads, threadFactoryWithPrefix("processing-"));
+        if (config.dataDir == null && config.replicationPort < 0 && config.replicaOf == null) {
+            //runs aren't rate limited, the number of running ones is bounded by the scheduler
+            scheduler = new TransferScheduler((senderSlot, recipientSlot, amount, idempotencyKey) -> journalFailed
+                    ? CompletableFuture.failedFuture(journalFailedException())
+                    : resultStore.execute(idempotencyKey, () -> engine.transfer(senderSlot, recipientSlot, amount, idempotencyKey)),
+                    config.scheduleTickMillis, config.maxScheduledTransfers, config.scheduledMaxInFlight, threadFactoryWithPrefix("scheduler-"));
+        } else {
+            scheduler = null;
+        }
+
+        holdExecutor.scheduleWithFixedDelay(this::expireHolds, 1, 1, TimeUnit.SECONDS);
+
+        if (config.replicationPort >= 0) {
+            try {
+                replication = new ReplicationLog(config.replicationHost, config.replicationPort, config.replicationSecret,
+                        config.replicationAck == Config.ReplicationAck.ONE_FOLLOWER, config.replicationAckTimeoutMillis,
+                        config.replicationBacklogBytes, this::replicationSnapshot);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't listen on replication port " + config.replicationPort, e);
+            }
+        } else {
+            replication = null;
+        }
+        registerMetrics(metrics);
 
-        resultCache = CacheBuilder.newBuilder()
-                .expireAfterAccess(config.idempotencyKeyCacheLifetimeSec, TimeUnit.SECONDS)
-                .build();
+        if (replica != null) {
+            replica.start(this::applyReplicated);
+        }
+    }
+
+    private void registerMetrics(MetricsRegistry metrics) {
+        metrics.counter("account_cas_retries_total", "Failed CAS attempts on account balance.", "op", "debit", accounts.debitRetries::sum);
+        metrics.counter("account_cas_retries_total", "Failed CAS attempts on account balance.", "op", "credit", accounts.creditRetries::sum);
+        metrics.counter("idempotency_requests_total", "Requests by idempotency key lookup result.", "result", "hit", resultStore.hits::sum);
+        metrics.counter("idempotency_requests_total", "Requests by idempotency key lookup result.", "result", "miss", resultStore.misses::sum);
+        metrics.gauge("idempotency_keys", "Number of stored idempotency keys.", resultStore::size);
+        metrics.gauge("accounts", "Number of open accounts.", accounts::openAccounts);
+        metrics.gauge("hot_accounts", "Number of accounts with striped balance.", accounts::hotAccounts);
+        if (senderLimiter != null) {
+            metrics.counter("rate_limited_total", "Transfers rejected by rate limit.", "scope", "account", senderLimiter::rejected);
+        }
+        if (scheduler != null) {
+            metrics.gauge("scheduled_transfers", "Number of schedules with future runs.", scheduler::size);
+            metrics.counter("scheduled_transfer_runs_total", "Runs of scheduled transfers by result.", "result", "succeeded", scheduler.succeeded::sum);
+            metrics.counter("scheduled_transfer_runs_total", "Runs of scheduled transfers by result.", "result", "failed", scheduler.failed::sum);
+            metrics.counter("scheduled_transfer_runs_total", "Runs of scheduled transfers by result.", "result", "retried", scheduler.retried::sum);
+            metrics.counter("scheduled_transfer_runs_total", "Runs of scheduled transfers by result.", "result", "dropped", scheduler.dropped::sum);
+        }
+        metrics.gauge("holds", "Number of open holds.", holds::size);
+        metrics.counter("holds_expired_total", "Holds voided on expiration.", null, null, holds.expired::sum);
+        metrics.gauge("balance_subscriptions", "Number of open balance subscriptions.", feed::subscriptions);
+        metrics.counter("balance_updates_conflated_total", "Balance changes merged into pending update of subscriber.", null, null, feed.conflated::sum);
+        if (history != null) {
+            metrics.gauge("transaction_history_entries", "Number of entries in account histories.", history::entries);
+            metrics.counter("transaction_history_ring_full_total", "Commits which waited for history writer.", null, null, history.ringFull::sum);
+        }
+        if (replication != null) {
+            metrics.gauge("replication_followers", "Number of connected followers which ack the log.", replication::followers);
+            metrics.counter("replication_ack_timeouts_total", "Transfers completed without follower ack.", null, null, replication.ackTimeouts::sum);
+        }
+        if (replica != null) {
+            metrics.counter("replication_applied_records_total", "Records applied from the primary log.", null, null, replica.appliedRecords::sum);
+        }
     }
 
     @Override
@@ -47,71 +292,972 @@ public class InMemoryMoneyTransferService implements MoneyTransferService {
                                             String recipient,
                                             BigDecimal amount,
                                             String idempotencyKey) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+
         //validate parameters
-        var senderBalanceRef = accounts.get(sender);
-        if (senderBalanceRef == null) {
-            return CompletableFuture.failedFuture(accountNotFoundException(sender));
+        if (idempotencyKey.length() > MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'Idempotency-Key' header is too long."));
         }
 
-        var recipientBalanceRef = accounts.get(recipient);
-        if (recipientBalanceRef == null) {
-            return CompletableFuture.failedFuture(accountNotFoundException(recipient));
+        int senderSlot = accounts.slot(sender);
+        if (senderSlot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(sender));
         }
+        if (isRateLimited(senderSlot)) return RATE_LIMITED;
 
-        if (amount.compareTo(BigDecimal.ZERO) <= 0 || amount.scale() > config.balanceMaxScale) {
-            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'amount' param has invalid value."));
+        int recipientSlot = accounts.slot(recipient);
+        if (recipientSlot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(recipient));
         }
 
-        //get cached future or do actual money transfer
+        long minorUnits = toMinorUnits(amount);
+        if (minorUnits < 0) {
+            return CompletableFuture.failedFuture(invalidAmountException());
+        }
+
+        //get stored result or do actual money transfer
+        //the future completes after the transfer is durable (if journal is enabled)
+        return resultStore.execute(idempotencyKey, () -> engine.transfer(senderSlot, recipientSlot, minorUnits, idempotencyKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> transfer(CharSequence sender,
+                                            CharSequence recipient,
+                                            long amount,
+                                            int amountScale,
+                                            String idempotencyKey) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+
+        //validate parameters, account IDs are copied only for error messages
+        if (idempotencyKey.length() > MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'Idempotency-Key' header is too long."));
+        }
+
+        int senderSlot = accounts.slot(sender);
+        if (senderSlot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(sender.toString()));
+        }
+        if (isRateLimited(senderSlot)) return RATE_LIMITED;
+
+        int recipientSlot = accounts.slot(recipient);
+        if (recipientSlot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(recipient.toString()));
+        }
+
+        long minorUnits = toMinorUnits(amount, amountScale);
+        if (minorUnits < 0) {
+            return CompletableFuture.failedFuture(invalidAmountException());
+        }
+
+        return resultStore.execute(idempotencyKey, () -> engine.transfer(senderSlot, recipientSlot, minorUnits, idempotencyKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> transferBatch(List<TransferLeg> legs, String idempotencyKey) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+
+        //validate parameters
+        if (idempotencyKey.length() > MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'Idempotency-Key' header is too long."));
+        }
+        if (legs.isEmpty()) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "Batch is empty."));
+        }
+        if (legs.size() > config.maxBatchLegs) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "Batch is too big."));
+        }
+
+        //legs are netted per account, so every account is changed only once
+        Map<Integer, Long> netDeltas = new LinkedHashMap<>();
+        int payerCount = 0;
         try {
-            return resultCache.get(idempotencyKey, () -> {
-                return CompletableFuture.runAsync(() -> transfer(senderBalanceRef, recipientBalanceRef, amount), processingExecutor);
-            });
-        } catch (ExecutionException e) {
-            //it's impossible situation, but we should pass exception to the future
+            for (TransferLeg leg : legs) {
+                int senderSlot = accounts.slot(leg.getSender());
+                if (senderSlot == AccountStore.NOT_FOUND) {
+                    return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(leg.getSender()));
+                }
+
+                int recipientSlot = accounts.slot(leg.getRecipient());
+                if (recipientSlot == AccountStore.NOT_FOUND) {
+                    return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(leg.getRecipient()));
+                }
+
+                long minorUnits = toMinorUnits(leg.getAmount());
+                if (minorUnits < 0) {
+                    return CompletableFuture.failedFuture(invalidAmountException());
+                }
+                netDeltas.merge(senderSlot, -minorUnits, Math::addExact);
+                netDeltas.merge(recipientSlot, minorUnits, Math::addExact);
+            }
+        } catch (ArithmeticException e) {
+            return CompletableFuture.failedFuture(invalidAmountException());
+        }
+
+        //payers go first, accounts without net change are skipped
+        int count = 0;
+        for (long delta : netDeltas.values()) {
+            if (delta < 0) payerCount++;
+            if (delta != 0) count++;
+        }
+        int[] slots = new int[count];
+        long[] deltas = new long[count];
+        int payer = 0;
+        int payee = payerCount;
+        for (var e : netDeltas.entrySet()) {
+            long delta = e.getValue();
+            int i = delta < 0 ? payer++ : delta > 0 ? payee++ : -1;
+            if (i < 0) continue;
+            slots[i] = e.getKey();
+            deltas[i] = delta;
+        }
+
+        for (int i = 0; i < payerCount; i++) {
+            if (isRateLimited(slots[i])) return RATE_LIMITED;
+        }
+
+        int payers = payerCount;
+        return resultStore.execute(idempotencyKey, () -> engine.transferBatch(slots, deltas, payers, idempotencyKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> schedule(String sender,
+                                            String recipient,
+                                            BigDecimal amount,
+                                            long firstRunMillis,
+                                            long periodMillis,
+                                            int runs,
+                                            String idempotencyKey) {
+        if (scheduler == null) return CompletableFuture.failedFuture(schedulesDisabledException());
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+
+        //validate parameters, the run key is derived from the key hash, so the key itself isn't stored
+        if (idempotencyKey.length() > MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'Idempotency-Key' header is too long."));
+        }
+        if (runs == 0 || runs < -1) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'count' param has invalid value."));
+        }
+        if (runs != 1 && periodMillis < config.scheduleTickMillis) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'every' param has invalid value."));
+        }
+
+        int senderSlot = accounts.slot(sender);
+        if (senderSlot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(sender));
+        }
+
+        int recipientSlot = accounts.slot(recipient);
+        if (recipientSlot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(recipient));
+        }
+
+        long minorUnits = toMinorUnits(amount);
+        if (minorUnits < 0) {
+            return CompletableFuture.failedFuture(invalidAmountException());
+        }
+
+        try {
+            //the known key means retry of the same request
+            scheduler.add(senderSlot, recipientSlot, minorUnits, firstRunMillis, periodMillis, runs, idempotencyKey);
+            return COMPLETED;
+        } catch (MoneyTransferException e) {
             return CompletableFuture.failedFuture(e);
         }
     }
 
-    private void transfer(AtomicReference<BigDecimal> senderBalanceRef,
-                          AtomicReference<BigDecimal> recipientBalanceRef,
-                          BigDecimal amount) {
-        //actual money transfer is done using CAS loops
+    @Override
+    public CompletableFuture<Void> cancelSchedule(String idempotencyKey) {
+        if (scheduler == null) return CompletableFuture.failedFuture(schedulesDisabledException());
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+        if (!scheduler.cancel(idempotencyKey)) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(404, "Scheduled transfer '" + idempotencyKey + "' not found."));
+        }
+        return COMPLETED;
+    }
+
+    @Override
+    public CompletableFuture<Void> hold(String accountId, BigDecimal amount, long lifetimeSec, String idempotencyKey) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+
+        //validate parameters
+        if (idempotencyKey.length() > MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'Idempotency-Key' header is too long."));
+        }
+        if (lifetimeSec < 0) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'ttl' param has invalid value."));
+        }
+
+        int slot = accounts.slot(accountId);
+        if (slot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(accountId));
+        }
+        if (isRateLimited(slot)) return RATE_LIMITED;
+
+        long minorUnits = toMinorUnits(amount);
+        if (minorUnits < 0) {
+            return CompletableFuture.failedFuture(invalidAmountException());
+        }
+
+        long high = IdempotencyStore.high(idempotencyKey);
+        long low = IdempotencyStore.low(idempotencyKey);
+        long lifetime = lifetimeSec == 0 ? config.holdLifetimeSec : lifetimeSec;
+        int expiresAt = (int) Math.min(Integer.MAX_VALUE, HoldStore.now() + lifetime);
+        return resultStore.execute(idempotencyKey, () -> {
+            //the store could forget the key of the long hold
+            if (holds.contains(high, low)) {
+                return CompletableFuture.failedFuture(new MoneyTransferException(409, "Hold '" + idempotencyKey + "' already exists."));
+            }
+            //funds are counted as held before the debit, so closure never sees them neither available nor held
+            holds.addHeld(slot, minorUnits);
+            //single leg batch, the hold is added and journaled by its commit
+            var change = new HoldChange(JournalRecord.HOLD, new HoldStore.Hold(high, low, slot, minorUnits, expiresAt),
+                    slot, 0);
+            return engine.transferBatch(new int[]{slot}, new long[]{-minorUnits}, 1, idempotencyKey, change).whenComplete((r, e) -> {
+                if (e != null && !change.committed) holds.addHeld(slot, -minorUnits);
+            });
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> capture(String holdKey, String recipient, BigDecimal amount, String idempotencyKey) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+
+        //validate parameters
+        if (idempotencyKey.length() > MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'Idempotency-Key' header is too long."));
+        }
+
+        int recipientSlot = accounts.slot(recipient);
+        if (recipientSlot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(recipient));
+        }
+
+        long high = IdempotencyStore.high(holdKey);
+        long low = IdempotencyStore.low(holdKey);
+        long minorUnits = amount == null ? Long.MAX_VALUE : toMinorUnits(amount);
+        if (minorUnits < 0) {
+            return CompletableFuture.failedFuture(invalidAmountException());
+        }
+
+        return resultStore.execute(idempotencyKey, () -> {
+            HoldStore.Hold hold = holds.remove(high, low);
+            if (hold == null) return CompletableFuture.failedFuture(holdNotFoundException(holdKey));
+            if (minorUnits != Long.MAX_VALUE && minorUnits > hold.amount) {
+                holds.restore(hold);
+                return CompletableFuture.failedFuture(new MoneyTransferException(400, "Amount is greater than held one."));
+            }
+            return release(hold, recipientSlot, Math.min(minorUnits, hold.amount), idempotencyKey);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> voidHold(String holdKey, String idempotencyKey) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+        if (idempotencyKey.length() > MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'Idempotency-Key' header is too long."));
+        }
+
+        long high = IdempotencyStore.high(holdKey);
+        long low = IdempotencyStore.low(holdKey);
+        return resultStore.execute(idempotencyKey, () -> {
+            HoldStore.Hold hold = holds.remove(high, low);
+            if (hold == null) return CompletableFuture.failedFuture(holdNotFoundException(holdKey));
+            return release(hold, hold.payerSlot, hold.amount, idempotencyKey);
+        });
+    }
+
+    /**
+     * Credits the captured part to recipient and the rest to the payer by one batch without payers,
+     * the commit of the batch drops the hold and journals the release.
+     * The hold was taken from the store by the caller, it's restored if the batch fails before the commit,
+     * so it can be released again.
+     *
+     * @param captured amount credited to the recipient, the whole hold is voided if the recipient is the payer
+     */
+    private CompletableFuture<Void> release(HoldStore.Hold hold, int recipientSlot, long captured, String idempotencyKey) {
+        byte type = recipientSlot == hold.payerSlot ? JournalRecord.VOID : JournalRecord.CAPTURE;
+        var change = new HoldChange(type, hold, recipientSlot, type == JournalRecord.VOID ? 0 : captured);
+        return engine.transferBatch(releaseSlots(change), releaseDeltas(change), 0, idempotencyKey, change).whenComplete((r, e) -> {
+            if (e != null && !change.committed) holds.restore(hold);
+        });
+    }
+
+    private static int[] releaseSlots(HoldChange change) {
+        if (change.captured == 0) return new int[]{change.hold.payerSlot};
+        if (change.captured == change.hold.amount) return new int[]{change.recipientSlot};
+        return new int[]{change.recipientSlot, change.hold.payerSlot};
+    }
+
+    private static long[] releaseDeltas(HoldChange change) {
+        if (change.captured == 0 || change.captured == change.hold.amount) return new long[]{change.hold.amount};
+        return new long[]{change.captured, change.hold.amount - change.captured};
+    }
+
+    /**
+     * Voids expired holds, the void key is derived from the hold key and its expiration,
+     * so it's the same for retries of the failed void and differs for the next hold with the same key.
+     */
+    private void expireHolds() {
+        //the primary voids holds of the follower
+        if (journalFailed || follower) return;
+        try {
+            for (HoldStore.Hold hold : holds.expire(HoldStore.now())) {
+                String idempotencyKey = "hold:" + Long.toHexString(hold.high) + ':' + Long.toHexString(hold.low) + ':' + hold.expiresAt;
+                resultStore.execute(idempotencyKey, () -> release(hold, hold.payerSlot, hold.amount, idempotencyKey));
+            }
+        } catch (Exception e) {
+            log.error("Hold expiration failed", e);
+        }
+    }
+
+    private CompletableFuture<Void> commit(int epoch, int senderSlot, int recipientSlot, long amount, String idempotencyKey) {
+        if (history != null) {
+            history.transfer(System.currentTimeMillis(), senderSlot, recipientSlot, amount,
+                    IdempotencyStore.high(idempotencyKey), IdempotencyStore.low(idempotencyKey));
+        }
+        //the record is appended before the credit becomes visible,
+        //so any transfer which spends this money is journaled after this one
+        CompletableFuture<Void> durable = journal == null && replication == null
+                ? COMPLETED
+                : append(JournalRecord.transfer(epoch, idempotencyKey, accounts.id(senderSlot), accounts.id(recipientSlot), amount));
+
+        //the key is recorded before we leave the epoch, so snapshot of the next epoch sees it
+        //as soon as the transfer is durable
+        return durable.handle((r, e) -> succeeded(e, idempotencyKey));
+    }
+
+    private CompletableFuture<Void> commitBatch(int epoch, int[] slots, long[] deltas, String idempotencyKey, HoldChange change) {
+        //all debits are done and no credit is visible yet, see commit()
+        CompletableFuture<Void> durable = COMPLETED;
+        if (history != null) {
+            history.batch(System.currentTimeMillis(), slots, deltas, IdempotencyStore.high(idempotencyKey), IdempotencyStore.low(idempotencyKey));
+        }
+        if (change != null) {
+            durable = commitHold(epoch, change, idempotencyKey);
+        } else if (journal != null || replication != null) {
+            String[] ids = new String[slots.length];
+            for (int i = 0; i < slots.length; i++) ids[i] = accounts.id(slots[i]);
+            durable = append(JournalRecord.batch(epoch, idempotencyKey, ids, deltas));
+        }
+        return durable.handle((r, e) -> succeeded(e, idempotencyKey));
+    }
+
+    /**
+     * Changes the hold store inside the epoch of the batch, so snapshots see the hold together with its debit or release.
+     */
+    private CompletableFuture<Void> commitHold(int epoch, HoldChange change, String idempotencyKey) {
+        HoldStore.Hold hold = change.hold;
+        boolean logged = journal != null || replication != null;
+        CompletableFuture<Void> durable = COMPLETED;
+        if (change.type == JournalRecord.HOLD) {
+            if (logged) durable = append(JournalRecord.hold(epoch, idempotencyKey, accounts.id(hold.payerSlot), hold.amount, hold.expiresAt));
+            holds.add(hold.high, hold.low, hold.payerSlot, hold.amount, hold.expiresAt);
+        } else {
+            if (logged) {
+                String payer = accounts.id(hold.payerSlot);
+                durable = append(change.type == JournalRecord.CAPTURE
+                        ? JournalRecord.capture(epoch, idempotencyKey, payer, accounts.id(change.recipientSlot), hold.high, hold.low,
+                        hold.amount, change.captured)
+                        : JournalRecord.voidHold(epoch, idempotencyKey, payer, hold.high, hold.low, hold.amount));
+            }
+            holds.released(hold.high, hold.low);
+            holds.addHeld(hold.payerSlot, -hold.amount);
+        }
+        change.committed = true;
+        return durable;
+    }
+
+    /**
+     * Records the key of the durable change. Failed journal write stops the server before the future fails,
+     * so the caller gets 503 and the retry after restart is done against the recovered state.
+     */
+    private Void succeeded(Throwable e, String idempotencyKey) {
+        if (e != null) throw journalFailed ? journalFailedException() : new CompletionException(e);
+        resultStore.succeeded(idempotencyKey);
+        return null;
+    }
+
+    /**
+     * Called by the journal writer on the first write error, before futures of unwritten records fail.
+     */
+    private void journalFailed(Exception e) {
+        journalFailed = true;
+        log.error("Server is stopped after journal failure, restart it to recover the durable state", e);
+    }
+
+    /**
+     * Sender is checked before the idempotency key lookup, so rejection costs a CAS and isn't remembered with the key.
+     */
+    private boolean isRateLimited(int senderSlot) {
+        return senderLimiter != null && !senderLimiter.tryAcquire(senderSlot);
+    }
+
+    /**
+     * Takes money from the account, it's the first phase of transfer to account of other cluster node.
+     */
+    public CompletableFuture<Void> debit(String accountId, BigDecimal amount, String idempotencyKey) {
+        return changeBalance(accountId, amount, idempotencyKey, true);
+    }
+
+    /**
+     * Gives money to the account, it's the second phase of transfer from account of other cluster node.
+     * The rejection is remembered with the key as well.
+     */
+    public CompletableFuture<Void> credit(String accountId, BigDecimal amount, String idempotencyKey) {
+        return changeBalance(accountId, amount, idempotencyKey, false);
+    }
+
+    /**
+     * Runs the operation of the transfer coordinator once per key, retries get its outcome like retries of transfers.
+     * The outcome is kept in memory only, durable parts of the operation must be journaled by their own keys.
+     */
+    public CompletableFuture<Void> coordinate(String idempotencyKey, Supplier<CompletableFuture<Void>> operation) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+        return resultStore.execute(idempotencyKey, () -> operation.get().thenRun(() -> resultStore.succeeded(idempotencyKey)));
+    }
+
+    /**
+     * @return true if the durable change with the key is done, e.g. the refund of the rejected credit
+     */
+    public boolean isSucceeded(String idempotencyKey) {
+        return resultStore.isSucceeded(idempotencyKey);
+    }
+
+    /**
+     * Single leg batch, so it's journaled, replicated and recovered the same way.<br/>
+     * Keys are derived from the transfer key by the coordinating node, HTTP header size limit keeps them journalable.
+     */
+    private CompletableFuture<Void> changeBalance(String accountId, BigDecimal amount, String idempotencyKey, boolean debit) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+        if (debit && senderLimiter != null) {
+            int slot = accounts.slot(accountId);
+            if (slot != AccountStore.NOT_FOUND && isRateLimited(slot)) return RATE_LIMITED;
+        }
+
+        //validation is a part of the operation, so the coordinator gets the same answer on retry
+        return resultStore.execute(idempotencyKey, () -> {
+            int slot = accounts.slot(accountId);
+            if (slot == AccountStore.NOT_FOUND) return CompletableFuture.failedFuture(TransferEngine.accountNotFoundException(accountId));
+            long minorUnits = toMinorUnits(amount);
+            if (minorUnits < 0) return CompletableFuture.failedFuture(invalidAmountException());
+            return engine.transferBatch(new int[]{slot}, new long[]{debit ? -minorUnits : minorUnits}, debit ? 1 : 0, idempotencyKey);
+        });
+    }
+
+    /**
+     * Journals and replicates the record, it's called at the same point of every change, so both logs are causal.
+     *
+     * @return future which completes when the record is durable and acknowledged by follower if it's required
+     */
+    private CompletableFuture<Void> append(JournalRecord record) {
+        CompletableFuture<Void> durable = journal == null ? COMPLETED : journal.append(record);
+        if (replication == null) return durable;
+        CompletableFuture<Void> replicated = replication.append(record);
+        if (replicated.isDone()) return durable;
+        return durable.thenCombine(replicated, (d, r) -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> openAccount(String accountId) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+        if (accountId.isEmpty() || accountId.length() > MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'id' param has invalid value."));
+        }
+
+        //the account is added inside the epoch, so snapshot either includes it or the journal record
+        int epoch = gate.enter();
+        try {
+            synchronized (accountsLock) {
+                if (accounts.slot(accountId) != AccountStore.NOT_FOUND) {
+                    return CompletableFuture.failedFuture(new MoneyTransferException(409, "Account '" + accountId + "' already exists."));
+                }
+                //the record goes before any transfer of the account, they can't start until it's added
+                CompletableFuture<Void> durable = append(JournalRecord.open(epoch, accountId));
+                accounts.add(accountId, epoch);
+                return durable;
+            }
+        } finally {
+            gate.exit(epoch);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAccount(String accountId) {
+        if (follower || journalFailed) return CompletableFuture.failedFuture(readOnlyException());
+        //it waits for running transfers of the account, so it isn't done by the caller thread
+        return CompletableFuture.supplyAsync(() -> close(accountId), snapshotExecutor).thenCompose(durable -> durable);
+    }
 
-        //remove money from sender balance
-        for (; ; ) {
-            BigDecimal senderBalance = senderBalanceRef.get();
+    /**
+     * Shares the epoch sequence with checkpoints, so they must not run concurrently.
+     */
+    private synchronized CompletableFuture<Void> close(String accountId) {
+        int slot = accounts.slot(accountId);
+        if (slot == AccountStore.NOT_FOUND) throw new MoneyTransferException(404, "Account '" + accountId + "' not found.");
+        //held funds are added before the debit, so the balance is read first
+        if (accounts.balance(slot) != 0 || holds.held(slot) != 0) throw accountHasMoneyException(accountId);
 
-            if (senderBalance.compareTo(amount) < 0)
-                throw new MoneyTransferException(500, "Sender doesn't have enough money.");
+        //new transfers fail on the mark, the ones which have passed the check are drained by the epoch advance
+        accounts.markClosed(slot);
+        int epoch = gate.advance();
+        accounts.epochAdvanced(epoch);
+        //money could be received before the mark
+        if (accounts.balance(slot) != 0 || holds.held(slot) != 0) {
+            accounts.reopen(slot);
+            throw accountHasMoneyException(accountId);
+        }
 
-            var newSenderBalance = senderBalance.subtract(amount);
-            if (senderBalanceRef.compareAndSet(senderBalance, newSenderBalance)) break;
+        synchronized (accountsLock) {
+            CompletableFuture<Void> durable = append(JournalRecord.close(epoch, accountId));
+            accounts.remove(slot);
+            if (history != null) history.closed(slot);
+            feed.closed(slot);
+            return durable;
         }
+    }
+
+    private void replay(JournalRecord record, int snapshotEpoch) {
+        if (record.idempotencyKey != null) resultStore.restore(record.idempotencyKey);
+        //older changes are already included into the snapshot
+        if (record.epoch < snapshotEpoch) return;
+
+        if (record.type == JournalRecord.OPEN) {
+            //the snapshot may include accounts opened in its epoch
+            if (accounts.slot(record.account) == AccountStore.NOT_FOUND) accounts.add(record.account, record.epoch);
+        } else if (record.type == JournalRecord.CLOSE) {
+            int slot = accounts.slot(record.account);
+            if (slot == AccountStore.NOT_FOUND) throw new IllegalStateException("Journal refers to unknown account");
+            accounts.markClosed(slot);
+            accounts.remove(slot);
+        } else if (record.type == JournalRecord.BATCH) {
+            for (int i = 0; i < record.accounts.length; i++) {
+                int slot = accounts.slot(record.accounts[i]);
+                if (slot == AccountStore.NOT_FOUND) throw new IllegalStateException("Journal refers to unknown account");
+                accounts.add(slot, record.deltas[i]);
+            }
+        } else if (record.type == JournalRecord.HOLD || record.type == JournalRecord.CAPTURE || record.type == JournalRecord.VOID) {
+            var change = holdChange(record);
+            if (change == null) throw new IllegalStateException("Journal refers to unknown account");
+            int[] slots = change.type == JournalRecord.HOLD ? new int[]{change.hold.payerSlot} : releaseSlots(change);
+            long[] deltas = change.type == JournalRecord.HOLD ? new long[]{-change.hold.amount} : releaseDeltas(change);
+            //the snapshot may include holds changed in its epoch, so the store is changed only if it hasn't seen the change
+            replayHold(change);
+            for (int i = 0; i < slots.length; i++) accounts.add(slots[i], deltas[i]);
+        } else {
+            int senderSlot = accounts.slot(record.sender);
+            int recipientSlot = accounts.slot(record.recipient);
+            if (senderSlot == AccountStore.NOT_FOUND || recipientSlot == AccountStore.NOT_FOUND) {
+                throw new IllegalStateException("Journal refers to unknown account");
+            }
+            //the transfer was validated before it was journaled, so we just apply it
+            accounts.add(senderSlot, -record.amount);
+            accounts.add(recipientSlot, record.amount);
+        }
+    }
+
+    /**
+     * @return change of the hold record or null if it refers to unknown account
+     */
+    private HoldChange holdChange(JournalRecord record) {
+        int payerSlot = accounts.slot(record.account);
+        int recipientSlot = record.type == JournalRecord.CAPTURE ? accounts.slot(record.recipient) : payerSlot;
+        if (payerSlot == AccountStore.NOT_FOUND || recipientSlot == AccountStore.NOT_FOUND) return null;
+        if (record.type == JournalRecord.HOLD) {
+            var hold = new HoldStore.Hold(IdempotencyStore.high(record.idempotencyKey), IdempotencyStore.low(record.idempotencyKey),
+                    payerSlot, record.amount, record.expiresAt);
+            return new HoldChange(record.type, hold, payerSlot, 0);
+        }
+        var hold = new HoldStore.Hold(record.holdHigh, record.holdLow, payerSlot, record.amount, 0);
+        return new HoldChange(record.type, hold, recipientSlot, record.type == JournalRecord.CAPTURE ? record.captured : 0);
+    }
 
-        //add money to recipient balance
-        for (; ; ) {
-            BigDecimal recipientBalance = recipientBalanceRef.get();
-            var newRecipientBalance = recipientBalance.add(amount);
-            if (recipientBalanceRef.compareAndSet(recipientBalance, newRecipientBalance)) break;
+    /**
+     * Applies the recovered or replicated hold change to the store, held funds follow the store,
+     * so the change already included into the snapshot isn't counted twice.
+     */
+    private void replayHold(HoldChange change) {
+        HoldStore.Hold hold = change.hold;
+        if (change.type == JournalRecord.HOLD) {
+            if (holds.add(hold.high, hold.low, hold.payerSlot, hold.amount, hold.expiresAt)) holds.addHeld(hold.payerSlot, hold.amount);
+        } else if (holds.released(hold.high, hold.low)) {
+            holds.addHeld(hold.payerSlot, -hold.amount);
         }
     }
 
-    //for testing only
+    /**
+     * Applies the record received from the primary, it's called by the single replication thread.<br/>
+     * Changes are made inside the epoch and appended to the local logs like the own ones,
+     * so snapshots of the follower are consistent, and followers of the follower get the same records.
+     */
+    private void applyReplicated(JournalRecord record, int snapshotEpoch) {
+        //replication stops, the follower gets the state again after restart
+        if (journalFailed) throw journalFailedException();
+        //retries of replicated transfers are answered from the store after promotion
+        if (record.idempotencyKey != null) resultStore.restore(record.idempotencyKey);
+        //older changes are already included into the snapshot from the primary
+        if (record.epoch < snapshotEpoch) return;
+
+        if (record.type == JournalRecord.CLOSE) {
+            closeReplicated(record.account);
+            return;
+        }
+        int epoch = gate.enter();
+        try {
+            if (record.type == JournalRecord.OPEN) {
+                synchronized (accountsLock) {
+                    if (accounts.slot(record.account) != AccountStore.NOT_FOUND) throw new IllegalStateException("Primary reopens account");
+                    append(JournalRecord.open(epoch, record.account));
+                    accounts.add(record.account, epoch);
+                }
+            } else if (record.type == JournalRecord.BATCH) {
+                int[] slots = new int[record.accounts.length];
+                for (int i = 0; i < slots.length; i++) slots[i] = replicatedSlot(record.accounts[i]);
+                //the same order as on the primary: debits, the record, credits
+                for (int i = 0; i < slots.length; i++) {
+                    if (record.deltas[i] >= 0) continue;
+                    if (!accounts.tryDebit(slots[i], -record.deltas[i], epoch)) {
+                        throw new IllegalStateException("Replicated batch overdraws account '" + record.accounts[i] + "'");
+                    }
+                    feed.changed(slots[i]);
+                }
+                append(JournalRecord.batch(epoch, record.idempotencyKey, record.accounts, record.deltas));
+                if (history != null) {
+                    history.batch(System.currentTimeMillis(), slots, record.deltas,
+                            IdempotencyStore.high(record.idempotencyKey), IdempotencyStore.low(record.idempotencyKey));
+                }
+                for (int i = 0; i < slots.length; i++) {
+                    if (record.deltas[i] <= 0) continue;
+                    accounts.credit(slots[i], record.deltas[i], epoch);
+                    feed.changed(slots[i]);
+                }
+            } else if (record.type == JournalRecord.HOLD || record.type == JournalRecord.CAPTURE || record.type == JournalRecord.VOID) {
+                applyReplicatedHold(record, epoch);
+            } else {
+                int senderSlot = replicatedSlot(record.sender);
+                int recipientSlot = replicatedSlot(record.recipient);
+                if (!accounts.tryDebit(senderSlot, record.amount, epoch)) {
+                    throw new IllegalStateException("Replicated transfer overdraws account '" + record.sender + "'");
+                }
+                feed.changed(senderSlot);
+                append(JournalRecord.transfer(epoch, record.idempotencyKey, record.sender, record.recipient, record.amount));
+                if (history != null) {
+                    history.transfer(System.currentTimeMillis(), senderSlot, recipientSlot, record.amount,
+                            IdempotencyStore.high(record.idempotencyKey), IdempotencyStore.low(record.idempotencyKey));
+                }
+                accounts.credit(recipientSlot, record.amount, epoch);
+                feed.changed(recipientSlot);
+            }
+        } finally {
+            gate.exit(epoch);
+        }
+    }
+
+    /**
+     * Same order as on the primary: held funds, the debit, the record and the store change, credits.
+     */
+    private void applyReplicatedHold(JournalRecord record, int epoch) {
+        var change = holdChange(record);
+        if (change == null) throw new IllegalStateException("Primary refers to unknown account");
+        HoldStore.Hold hold = change.hold;
+        if (change.type == JournalRecord.HOLD) {
+            replayHold(change);
+            if (!accounts.tryDebit(hold.payerSlot, hold.amount, epoch)) {
+                throw new IllegalStateException("Replicated hold overdraws account '" + record.account + "'");
+            }
+            feed.changed(hold.payerSlot);
+            append(JournalRecord.hold(epoch, record.idempotencyKey, record.account, hold.amount, hold.expiresAt));
+            if (history != null) {
+                history.batch(System.currentTimeMillis(), new int[]{hold.payerSlot}, new long[]{-hold.amount}, hold.high, hold.low);
+            }
+            return;
+        }
+        append(record.type == JournalRecord.CAPTURE
+                ? JournalRecord.capture(epoch, record.idempotencyKey, record.account, record.recipient, hold.high, hold.low,
+                hold.amount, change.captured)
+                : JournalRecord.voidHold(epoch, record.idempotencyKey, record.account, hold.high, hold.low, hold.amount));
+        replayHold(change);
+        int[] slots = releaseSlots(change);
+        long[] deltas = releaseDeltas(change);
+        if (history != null) {
+            history.batch(System.currentTimeMillis(), slots, deltas,
+                    IdempotencyStore.high(record.idempotencyKey), IdempotencyStore.low(record.idempotencyKey));
+        }
+        for (int i = 0; i < slots.length; i++) {
+            accounts.credit(slots[i], deltas[i], epoch);
+            feed.changed(slots[i]);
+        }
+    }
+
+    /**
+     * There are no other writers on follower, so the account is removed without draining,
+     * it only must not run concurrently with snapshots.
+     */
+    private synchronized void closeReplicated(String accountId) {
+        int slot = replicatedSlot(accountId);
+        int epoch = gate.enter();
+        try {
+            synchronized (accountsLock) {
+                append(JournalRecord.close(epoch, accountId));
+                accounts.markClosed(slot);
+                accounts.remove(slot);
+                if (history != null) history.closed(slot);
+                feed.closed(slot);
+            }
+        } finally {
+            gate.exit(epoch);
+        }
+    }
+
+    private int replicatedSlot(String accountId) {
+        int slot = accounts.slot(accountId);
+        if (slot == AccountStore.NOT_FOUND) throw new IllegalStateException("Primary refers to unknown account '" + accountId + "'");
+        return slot;
+    }
+
+    /**
+     * Cuts the state for a new follower, records of the snapshot epoch and later ones are appended after this call starts.
+     * Shares the epoch sequence with checkpoints, so they must not run concurrently.
+     */
+    private synchronized SnapshotFile replicationSnapshot() {
+        if (journalFailed) throw journalFailedException();
+        int epoch = gate.advance();
+        long[] balances = accounts.snapshot(epoch);
+        //keys of previous epochs are recorded as succeeded after the barrier, see checkpoint()
+        if (journal != null) journal.barrier().join();
+        return SnapshotFile.of(epoch, config.balanceMaxScale, accounts, balances, holds, resultStore);
+    }
+
+    @Override
+    public CompletableFuture<Void> promote() {
+        //it waits for the record being applied, so it isn't done by the caller thread
+        return CompletableFuture.runAsync(this::stopReplication, snapshotExecutor);
+    }
+
+    private void stopReplication() {
+        if (!follower) throw new MoneyTransferException(409, "Server isn't a follower.");
+        try {
+            replica.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Promotion is interrupted", e);
+        }
+        follower = false;
+        log.info("Promoted to primary after replicated record {}", replica.appliedSequence());
+    }
+
+    /**
+     * Writes snapshot of all balances while transfers keep running
+     * and deletes journal segments which are covered by it.
+     */
+    synchronized void checkpoint() throws IOException {
+        if (journal == null) throw new IllegalStateException("Persistence is disabled");
+        //the snapshot would make changes of failed writes durable
+        if (journalFailed) throw journalFailedException();
+        long start = System.nanoTime();
+
+        //transfers of the new epoch are journaled to the new segment only
+        long segment = journal.rotate().join();
+        int epoch = gate.advance();
+        long[] balances = accounts.snapshot(epoch);
+
+        //transfers of previous epochs are durable after the barrier, so their keys are recorded as succeeded
+        journal.barrier().join();
+
+        SnapshotFile.write(dataDir, epoch, config.balanceMaxScale, accounts, balances, holds, resultStore);
+        journal.deleteSegmentsBefore(segment);
+        log.info("Checkpoint at epoch {} took {} ms", epoch, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void checkpointSafely() {
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            log.error("Checkpoint failed", e);
+        }
+    }
+
+    @Override
     public BigDecimal balance(String accountId) {
-        return accounts.get(accountId).get();
+        if (journalFailed) throw journalFailedException();
+        int slot = accounts.slot(accountId);
+        if (slot == AccountStore.NOT_FOUND) throw new MoneyTransferException(404, "Account '" + accountId + "' not found.");
+        return Money.fromMinorUnits(accounts.balance(slot), config.balanceMaxScale);
+    }
+
+    @Override
+    public BigDecimal heldBalance(String accountId) {
+        if (journalFailed) throw journalFailedException();
+        int slot = accounts.slot(accountId);
+        if (slot == AccountStore.NOT_FOUND) throw new MoneyTransferException(404, "Account '" + accountId + "' not found.");
+        return Money.fromMinorUnits(holds.held(slot), config.balanceMaxScale);
+    }
+
+    @Override
+    public CompletableFuture<TransactionHistory> history(String accountId, long before, int limit) {
+        if (journalFailed) return CompletableFuture.failedFuture(journalFailedException());
+        if (history == null) return CompletableFuture.failedFuture(new MoneyTransferException(404, "Transaction history is disabled."));
+        int slot = accounts.slot(accountId);
+        if (slot == AccountStore.NOT_FOUND) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(404, "Account '" + accountId + "' not found."));
+        }
+        return history.query(slot, accountId, before, limit, config.balanceMaxScale);
+    }
+
+    @Override
+    public CompletableFuture<BalanceSubscription> subscribe(List<String> accountIds) {
+        if (journalFailed) return CompletableFuture.failedFuture(journalFailedException());
+        if (accountIds.isEmpty()) return CompletableFuture.failedFuture(new MoneyTransferException(400, "Subscription has no accounts."));
+        if (accountIds.size() > config.subscriptionMaxAccounts) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "Subscription has too many accounts."));
+        }
+        //it waits for running transfers, so it isn't done by the caller thread
+        return CompletableFuture.supplyAsync(() -> openSubscription(accountIds), snapshotExecutor);
+    }
+
+    /**
+     * Shares the epoch sequence with checkpoints, so they must not run concurrently.
+     */
+    private synchronized BalanceSubscription openSubscription(List<String> accountIds) {
+        List<String> ids = List.copyOf(new LinkedHashSet<>(accountIds));
+        BalanceSubscription subscription;
+        //accounts aren't removed meanwhile, so watchers don't get slots of closed accounts
+        synchronized (accountsLock) {
+            int[] slots = new int[ids.size()];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = accounts.slot(ids.get(i));
+                if (slots[i] == AccountStore.NOT_FOUND) throw new MoneyTransferException(404, "Account '" + ids.get(i) + "' not found.");
+            }
+            subscription = new BalanceSubscription(feed, accounts, config.balanceMaxScale, ids, slots);
+            feed.add(subscription);
+        }
+        //running transfers could miss the new watchers, their changes are visible after the advance,
+        //so balances read on start include them
+        int epoch = gate.advance();
+        accounts.epochAdvanced(epoch);
+        return subscription;
+    }
+
+    @Override
+    public CompletableFuture<BalanceSnapshot> snapshot() {
+        if (journalFailed) return CompletableFuture.failedFuture(journalFailedException());
+        //it waits for running transfers of the previous epoch, so it isn't done by the caller thread
+        return CompletableFuture.supplyAsync(this::takeSnapshot, snapshotExecutor);
+    }
+
+    /**
+     * Shares the epoch sequence with checkpoints, so they must not run concurrently.
+     */
+    private synchronized BalanceSnapshot takeSnapshot() {
+        int epoch = gate.advance();
+        return new BalanceSnapshot(epoch, config.balanceMaxScale, accounts, accounts.snapshot(epoch));
     }
 
     @Override
     public void shutdown() throws InterruptedException {
-        processingExecutor.shutdown();
-        while (!processingExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
-            log.info("Waiting for transfers completion");
+        if (replica != null) replica.close();
+        if (scheduler != null) scheduler.close();
+        holdExecutor.shutdown();
+        holdExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        if (checkpointExecutor != null) {
+            checkpointExecutor.shutdown();
+            checkpointExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        engine.shutdown();
+        snapshotExecutor.shutdown();
+        if (history != null) history.close();
+        if (journal != null) {
+            //the final snapshot makes the next start fast
+            checkpointSafely();
+            journal.close();
+        }
+        if (replication != null) replication.close();
+    }
+
+    /**
+     * @return port of replication listener or -1 if it's disabled
+     */
+    public int replicationPort() {
+        return replication == null ? -1 : replication.port();
+    }
+
+    /**
+     * @return minor units or -1 if the amount is invalid
+     */
+    private long toMinorUnits(BigDecimal amount) {
+        if (amount.compareTo(BigDecimal.ZERO) <= 0 || amount.scale() > config.balanceMaxScale) return -1;
+        try {
+            return Money.toMinorUnits(amount, config.balanceMaxScale);
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    private long toMinorUnits(long amount, int amountScale) {
+        if (amount <= 0 || amountScale < 0 || amountScale > config.balanceMaxScale) return -1;
+        try {
+            return Money.toMinorUnits(amount, amountScale, config.balanceMaxScale);
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    private static AccountStore createStore(Map<String, BigDecimal> initialAccounts, Config config) throws IOException {
+        //cluster nodes share the initial accounts, every node keeps its own ones
+        ShardMap shards = config.clusterNodes.isEmpty() ? null : new ShardMap(config.clusterNodes, config.clusterNodeIndex);
+        String[] ids;
+        long[] balances;
+        if (config.accountsFile != null) {
+            //tens of millions of accounts go straight to arrays, the map isn't built
+            var imported = AccountImport.load(Path.of(config.accountsFile), config.balanceMaxScale);
+            ids = imported.ids;
+            balances = imported.balances;
+        } else {
+            ids = new String[initialAccounts.size()];
+            balances = new long[initialAccounts.size()];
+            int slot = 0;
+            for (var e : initialAccounts.entrySet()) {
+                if (e.getKey().length() > MAX_ID_LENGTH) throw new IllegalArgumentException("Too long account ID");
+                ids[slot] = e.getKey();
+                balances[slot] = Money.toMinorUnits(e.getValue(), config.balanceMaxScale);
+                slot++;
+            }
         }
+        if (shards != null) {
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (!shards.owns(ids[i])) continue;
+                ids[count] = ids[i];
+                balances[count] = balances[i];
+                count++;
+            }
+            ids = Arrays.copyOf(ids, count);
+            balances = Arrays.copyOf(balances, count);
+        }
+        return new AccountStore(ids, balances, 0, config.maxHotAccounts, config.hotAccountStripes);
+    }
+
+    private MoneyTransferException readOnlyException() {
+        return journalFailed ? journalFailedException() : new MoneyTransferException(503, "Server is read-only follower.");
+    }
+
+    private static MoneyTransferException journalFailedException() {
+        return new MoneyTransferException(503, "Server is stopped after journal failure.");
+    }
+
+    private static MoneyTransferException schedulesDisabledException() {
+        return new MoneyTransferException(404, "Scheduled transfers are disabled with persistence or replication.");
+    }
+
+    private static MoneyTransferException accountHasMoneyException(String accountId) {
+        return new MoneyTransferException(409, "Account '" + accountId + "' has money.");
+    }
+
+    private static MoneyTransferException holdNotFoundException(String holdKey) {
+        return new MoneyTransferException(404, "Hold '" + holdKey + "' not found.");
     }
 
-    private static MoneyTransferException accountNotFoundException(String accountId) {
-        return new MoneyTransferException(400, "Account '" + accountId + "' not found.");
+    private static MoneyTransferException invalidAmountException() {
+        return new MoneyTransferException(400, "'amount' param has invalid value.");
     }
 
     private static ThreadFactory threadFactoryWithPrefix(String prefix) {
@@ -126,4 +1272,25 @@ public class InMemoryMoneyTransferService implements MoneyTransferService {
             }
         };
     }
+
+    /**
+     * Change of the hold store which is attached to its batch and applied by the commit of the batch.
+     */
+    private static final class HoldChange {
+        //JournalRecord.HOLD, CAPTURE or VOID
+        final byte type;
+        final HoldStore.Hold hold;
+        final int recipientSlot;
+        //part of the hold credited to the recipient, the rest goes back to the payer
+        final long captured;
+        //the store is changed, so the failure of the batch after it doesn't revert the change
+        volatile boolean committed;
+
+        HoldChange(byte type, HoldStore.Hold hold, int recipientSlot, long captured) {
+            this.type = type;
+            this.hold = hold;
+            this.recipientSlot = recipientSlot;
+            this.captured = captured;
+        }
+    }
 }
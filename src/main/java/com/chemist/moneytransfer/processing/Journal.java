@@ -0,0 +1,392 @@
+package com.chemist.moneytransfer.processing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only binary log of applied transfers.<br/>
+ * Records are written by the single writer thread. It takes all pending records (up to batch size),
+ * writes them with one FileChannel write and makes them durable with one fsync (group commit).
+ * Futures returned by {@link #append(JournalRecord)} complete only after fsync.<br/>
+ * Every record is framed as payload length (int), CRC32C of payload (int), payload.
+ * Torn record at the end of segment is detected by CRC and ignored during replay.
+ */
+class Journal implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_LENGTH = 8;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    //anything longer is treated as corrupted length field
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte APPEND = 0;
+    private static final byte ROTATE = 1;
+    private static final byte BARRIER = 2;
+    private static final byte STOP = 3;
+
+    private final Path dir;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private FileChannel channel;
+    private long segmentNumber;
+    private volatile boolean closed;
+    //the first write error, journal can't be trusted after it
+    private Exception failure;
+    //is told about the first write error before any future fails with it
+    private final Consumer<Exception> failureListener;
+
+    Journal(Path dir, int batchSize, long maxDelayMicros) throws IOException {
+        this(dir, batchSize, maxDelayMicros, e -> {
+        });
+    }
+
+    /**
+     * Opens new segment after the existing ones, so old segments are never appended.
+     *
+     * @param failureListener is called by the writer thread on the first write or rotation error
+     */
+    Journal(Path dir, int batchSize, long maxDelayMicros, Consumer<Exception> failureListener) throws IOException {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive");
+        this.dir = dir;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.failureListener = failureListener;
+        Files.createDirectories(dir);
+        var segments = segments(dir);
+        segmentNumber = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+        channel = openSegment(segmentNumber);
+
+        writer = new Thread(this::run, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return future which completes when the record is durable
+     */
+    CompletableFuture<Void> append(JournalRecord record) {
+        return enqueue(new Pending(APPEND, record)).future;
+    }
+
+    /**
+     * Starts new segment, records appended after this call are written to the new segment.
+     *
+     * @return future with the new segment number, it completes when all previous records are durable
+     */
+    CompletableFuture<Long> rotate() {
+        var pending = enqueue(new Pending(ROTATE, null));
+        return pending.future.thenApply(v -> pending.segment);
+    }
+
+    /**
+     * @return future which completes when all previously appended records are durable
+     */
+    CompletableFuture<Void> barrier() {
+        return enqueue(new Pending(BARRIER, null)).future;
+    }
+
+    /**
+     * Deletes segments with numbers less than given one. They are never touched by the writer after rotation.
+     */
+    void deleteSegmentsBefore(long number) throws IOException {
+        for (Path segment : segments(dir)) {
+            if (segmentNumber(segment) < number) {
+                Files.delete(segment);
+                log.info("Deleted journal segment {}", segment);
+            }
+        }
+    }
+
+    /**
+     * Deletes all segments of the directory, it's called before the journal is opened.
+     */
+    static void deleteSegments(Path dir) throws IOException {
+        for (Path segment : segments(dir)) {
+            Files.delete(segment);
+            log.info("Deleted journal segment {}", segment);
+        }
+        //deleted segments must not come back after crash, they would be replayed over the state written next
+        forceDirectory(dir);
+    }
+
+    /**
+     * Makes file creations, renames and deletions in the directory durable, fsync of a file covers its content only.
+     */
+    static void forceDirectory(Path dir) throws IOException {
+        //directories can't be opened on Windows, NTFS makes metadata changes durable itself
+        if (File.separatorChar == '\\') return;
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+    }
+
+    private Pending enqueue(Pending pending) {
+        if (closed) {
+            pending.future.completeExceptionally(new IllegalStateException("Journal is closed"));
+        } else {
+            queue.add(pending);
+        }
+        return pending;
+    }
+
+    /**
+     * Waits for all appended records to become durable and closes the journal.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (closed) return;
+        closed = true;
+        queue.add(new Pending(STOP, null));
+        writer.join();
+    }
+
+    /**
+     * Reads all segments in order and passes valid records to the consumer.
+     * Reading of a segment stops at the first torn or corrupted record.
+     */
+    static void replay(Path dir, Consumer<JournalRecord> consumer) throws IOException {
+        if (!Files.isDirectory(dir)) return;
+        var crc = new CRC32C();
+        var buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        for (Path segment : segments(dir)) {
+            int count = 0;
+            long tail = 0;
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                buf.clear().flip();
+                boolean eof = false;
+                for (; ; ) {
+                    if (buf.remaining() >= HEADER_LENGTH) {
+                        int length = buf.getInt(buf.position());
+                        if (length <= 0 || length > MAX_RECORD_LENGTH) break;
+
+                        if (buf.remaining() - HEADER_LENGTH >= length) {
+                            int checksum = buf.getInt(buf.position() + 4);
+                            var payload = buf.slice().position(HEADER_LENGTH).limit(HEADER_LENGTH + length).slice();
+                            crc.reset();
+                            crc.update(payload.duplicate());
+                            if ((int) crc.getValue() != checksum) break;
+
+                            consumer.accept(JournalRecord.decode(payload));
+                            buf.position(buf.position() + HEADER_LENGTH + length);
+                            count++;
+                            continue;
+                        }
+
+                        if (HEADER_LENGTH + length > buf.capacity()) {
+                            //record is bigger than the buffer, grow it
+                            var bigger = ByteBuffer.allocateDirect(HEADER_LENGTH + length);
+                            bigger.put(buf).flip();
+                            buf = bigger;
+                        }
+                    }
+                    if (eof) break;
+
+                    //segment may be bigger than 2GB, so we read it by chunks instead of mapping
+                    buf.compact();
+                    while (!eof && buf.hasRemaining()) eof = ch.read(buf) < 0;
+                    buf.flip();
+                }
+                tail = buf.remaining() + ch.size() - ch.position();
+            }
+            if (tail > 0) {
+                log.warn("Journal segment {} has {} bytes of torn tail, they are ignored", segment, tail);
+            }
+            log.info("Replayed {} records from {}", count, segment);
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - batch.size());
+                //wait a bit for more records to share fsync with them
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < batchSize && batch.get(batch.size() - 1).command == APPEND) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    var next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+
+            stopping |= process(batch);
+            batch.clear();
+        }
+
+        //fail records which are appended concurrently with close
+        for (Pending pending; (pending = queue.poll()) != null; ) {
+            pending.future.completeExceptionally(new IllegalStateException("Journal is closed"));
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Can't close journal segment", e);
+        }
+    }
+
+    /**
+     * Writes records with one fsync per run of records between commands.
+     *
+     * @return true if writer should stop
+     */
+    private boolean process(List<Pending> batch) {
+        int from = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            var pending = batch.get(i);
+            if (pending.command == APPEND) continue;
+
+            write(batch.subList(from, i));
+            from = i + 1;
+            switch (pending.command) {
+                case ROTATE:
+                    if (failure != null) {
+                        pending.future.completeExceptionally(failure);
+                        break;
+                    }
+                    try {
+                        channel.close();
+                        channel = openSegment(++segmentNumber);
+                        pending.segment = segmentNumber;
+                        pending.future.complete(null);
+                    } catch (IOException e) {
+                        log.error("Journal rotation failed", e);
+                        fail(e);
+                        pending.future.completeExceptionally(e);
+                    }
+                    break;
+                case BARRIER:
+                    if (failure != null) pending.future.completeExceptionally(failure);
+                    else pending.future.complete(null);
+                    break;
+                case STOP:
+                    pending.future.complete(null);
+                    write(batch.subList(from, batch.size()));
+                    return true;
+            }
+        }
+        write(batch.subList(from, batch.size()));
+        return false;
+    }
+
+    private void write(List<Pending> batch) {
+        if (batch.isEmpty()) return;
+        if (failure != null) {
+            for (Pending pending : batch) pending.future.completeExceptionally(failure);
+            return;
+        }
+        try {
+            buffer.clear();
+            for (Pending pending : batch) {
+                int maxLength = HEADER_LENGTH + pending.record.maxEncodedLength();
+                if (buffer.remaining() < maxLength) {
+                    flush();
+                    if (buffer.capacity() < maxLength) buffer = ByteBuffer.allocateDirect(maxLength);
+                }
+                int start = buffer.position();
+                buffer.position(start + HEADER_LENGTH);
+                pending.record.encode(buffer);
+                int end = buffer.position();
+
+                crc.reset();
+                crc.update(buffer.duplicate().position(start + HEADER_LENGTH).limit(end));
+                buffer.putInt(start, end - start - HEADER_LENGTH);
+                buffer.putInt(start + 4, (int) crc.getValue());
+            }
+            flush();
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            log.error("Journal write failed", e);
+            //we don't know what is on disk now, so reject everything after the failure
+            fail(e);
+            for (Pending pending : batch) pending.future.completeExceptionally(e);
+            return;
+        }
+        for (Pending pending : batch) pending.future.complete(null);
+    }
+
+    private void fail(Exception e) {
+        failure = e;
+        failureListener.accept(e);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        Path path = dir.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        log.info("Opening journal segment {}", path);
+        var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        //records fsynced to the segment are lost after crash if the segment itself isn't in the directory
+        try {
+            forceDirectory(dir);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                    .filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static final class Pending {
+        final byte command;
+        final JournalRecord record;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        //new segment number for ROTATE command
+        long segment;
+
+        Pending(byte command, JournalRecord record) {
+            this.command = command;
+            this.record = record;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.chemist.moneytransfer.processing;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single journal entry.<br/>
+ * Binary layout: type (byte), epoch (int), then
+ * transfer: idempotency key, sender, recipient (short length + UTF-8 bytes), amount (long);
+ * batch: idempotency key (string as above), account count (int), accounts as (ID string, delta (long));
+ * open and close: account ID (string as above);
+ * hold: idempotency key which is the hold key, payer (strings), amount (long), expiration (int, see {@link HoldStore#now()});
+ * capture: idempotency key, payer, recipient (strings), hold key high, low, held amount, captured amount (longs);
+ * void: idempotency key, payer (strings), hold key high, low, held amount (longs).<br/>
+ * Hold records carry the whole hold, so they are applied to balances even if the hold store doesn't have it.
+ */
+final class JournalRecord {
+    static final byte TRANSFER = 1;
+    static final byte BATCH = 2;
+    static final byte OPEN = 3;
+    static final byte CLOSE = 4;
+    static final byte HOLD = 5;
+    static final byte CAPTURE = 6;
+    static final byte VOID = 7;
+
+    //strings are prefixed with unsigned short length
+    static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    final byte type;
+    //epoch of the transfer, see EpochGate
+    final int epoch;
+    //null for open and close
+    final String idempotencyKey;
+    //transfer only
+    final String sender;
+    //transfer and capture
+    final String recipient;
+    //minor units, held amount for hold records
+    final long amount;
+    //batch only: netted balance changes in minor units
+    final String[] accounts;
+    final long[] deltas;
+    //open and close, payer of hold records
+    final String account;
+    //capture and void
+    final long holdHigh;
+    final long holdLow;
+    //capture only
+    final long captured;
+    //hold only
+    final int expiresAt;
+
+    private JournalRecord(byte type, int epoch, String idempotencyKey, String sender, String recipient, long amount,
+                          String[] accounts, long[] deltas, String account, long holdHigh, long holdLow, long captured,
+                          int expiresAt) {
+        this.type = type;
+        this.epoch = epoch;
+        this.idempotencyKey = idempotencyKey;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.amount = amount;
+        this.accounts = accounts;
+        this.deltas = deltas;
+        this.account = account;
+        this.holdHigh = holdHigh;
+        this.holdLow = holdLow;
+        this.captured = captured;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Strings must not be longer than {@link #MAX_STRING_LENGTH} bytes in UTF-8, it's checked by the service.
+     */
+    static JournalRecord transfer(int epoch, String idempotencyKey, String sender, String recipient, long amount) {
+        return new JournalRecord(TRANSFER, epoch, idempotencyKey, sender, recipient, amount, null, null, null, 0, 0, 0, 0);
+    }
+
+    /**
+     * Same restrictions as for {@link #transfer}.
+     */
+    static JournalRecord batch(int epoch, String idempotencyKey, String[] accounts, long[] deltas) {
+        return new JournalRecord(BATCH, epoch, idempotencyKey, null, null, 0, accounts, deltas, null, 0, 0, 0, 0);
+    }
+
+    static JournalRecord open(int epoch, String account) {
+        return new JournalRecord(OPEN, epoch, null, null, null, 0, null, null, account, 0, 0, 0, 0);
+    }
+
+    static JournalRecord close(int epoch, String account) {
+        return new JournalRecord(CLOSE, epoch, null, null, null, 0, null, null, account, 0, 0, 0, 0);
+    }
+
+    /**
+     * Debit of the payer into the new hold, the idempotency key is the hold key.
+     */
+    static JournalRecord hold(int epoch, String idempotencyKey, String payer, long amount, int expiresAt) {
+        return new JournalRecord(HOLD, epoch, idempotencyKey, null, null, amount, null, null, payer, 0, 0, 0, expiresAt);
+    }
+
+    /**
+     * Release of the hold: captured part is credited to the recipient, the rest is returned to the payer.
+     */
+    static JournalRecord capture(int epoch, String idempotencyKey, String payer, String recipient, long holdHigh, long holdLow,
+                                 long amount, long captured) {
+        return new JournalRecord(CAPTURE, epoch, idempotencyKey, null, recipient, amount, null, null, payer, holdHigh, holdLow,
+                captured, 0);
+    }
+
+    /**
+     * Release of the whole hold to the payer, it's also written for expired holds.
+     */
+    static JournalRecord voidHold(int epoch, String idempotencyKey, String payer, long holdHigh, long holdLow, long amount) {
+        return new JournalRecord(VOID, epoch, idempotencyKey, null, null, amount, null, null, payer, holdHigh, holdLow, 0, 0);
+    }
+
+    int maxEncodedLength() {
+        //every char takes at most 3 bytes in UTF-8
+        if (type == OPEN || type == CLOSE) return 1 + 4 + 2 + 3 * account.length();
+        if (type == TRANSFER) return 1 + 4 + 3 * 2 + 3 * (idempotencyKey.length() + sender.length() + recipient.length()) + 8;
+        if (type == HOLD) return 1 + 4 + 2 * 2 + 3 * (idempotencyKey.length() + account.length()) + 8 + 4;
+        if (type == CAPTURE) return 1 + 4 + 3 * 2 + 3 * (idempotencyKey.length() + account.length() + recipient.length()) + 4 * 8;
+        if (type == VOID) return 1 + 4 + 2 * 2 + 3 * (idempotencyKey.length() + account.length()) + 3 * 8;
+        long length = 1 + 4 + 2 + 3L * idempotencyKey.length() + 4;
+        for (String account : accounts) length += 2 + 3L * account.length() + 8;
+        return (int) Math.min(Integer.MAX_VALUE, length);
+    }
+
+    void encode(ByteBuffer buf) {
+        buf.put(type);
+        buf.putInt(epoch);
+        if (type == OPEN || type == CLOSE) {
+            putString(buf, account);
+            return;
+        }
+        putString(buf, idempotencyKey);
+        if (type == TRANSFER) {
+            putString(buf, sender);
+            putString(buf, recipient);
+            buf.putLong(amount);
+        } else if (type == HOLD) {
+            putString(buf, account);
+            buf.putLong(amount);
+            buf.putInt(expiresAt);
+        } else if (type == CAPTURE) {
+            putString(buf, account);
+            putString(buf, recipient);
+            buf.putLong(holdHigh).putLong(holdLow).putLong(amount).putLong(captured);
+        } else if (type == VOID) {
+            putString(buf, account);
+            buf.putLong(holdHigh).putLong(holdLow).putLong(amount);
+        } else {
+            buf.putInt(accounts.length);
+            for (int i = 0; i < accounts.length; i++) {
+                putString(buf, accounts[i]);
+                buf.putLong(deltas[i]);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    static JournalRecord decode(ByteBuffer buf) {
+        try {
+            byte type = buf.get();
+            if (type == TRANSFER) return transfer(buf.getInt(), getString(buf), getString(buf), getString(buf), buf.getLong());
+            if (type == OPEN) return open(buf.getInt(), getString(buf));
+            if (type == CLOSE) return close(buf.getInt(), getString(buf));
+            if (type == HOLD) return hold(buf.getInt(), getString(buf), getString(buf), buf.getLong(), buf.getInt());
+            if (type == CAPTURE) {
+                return capture(buf.getInt(), getString(buf), getString(buf), getString(buf),
+                        buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+            }
+            if (type == VOID) return voidHold(buf.getInt(), getString(buf), getString(buf), buf.getLong(), buf.getLong(), buf.getLong());
+            if (type != BATCH) throw new IllegalArgumentException("Unknown journal record type " + type);
+            int epoch = buf.getInt();
+            String idempotencyKey = getString(buf);
+            int count = buf.getInt();
+            //every account takes at least 10 bytes
+            if (count < 0 || count > buf.remaining() / 10) throw new IllegalArgumentException("Bad batch size " + count);
+            String[] accounts = new String[count];
+            long[] deltas = new long[count];
+            for (int i = 0; i < count; i++) {
+                accounts[i] = getString(buf);
+                deltas[i] = buf.getLong();
+            }
+            return batch(epoch, idempotencyKey, accounts, deltas);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated journal record");
+        }
+    }
+
+    static void putString(ByteBuffer buf, String value) {
+        int len = value.length();
+        if (len > MAX_STRING_LENGTH) throw new IllegalArgumentException("Too long string in journal record");
+        boolean ascii = true;
+        for (int i = 0; i < len; i++) {
+            if (value.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            //fast path without intermediate byte array
+            buf.putShort((short) len);
+            for (int i = 0; i < len; i++) buf.put((byte) value.charAt(i));
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_STRING_LENGTH) throw new IllegalArgumentException("Too long string in journal record");
+            buf.putShort((short) bytes.length);
+            buf.put(bytes);
+        }
+    }
+
+    static String getString(ByteBuffer buf) {
+        int len = Short.toUnsignedInt(buf.getShort());
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+package com.chemist.moneytransfer.processing;
+
+import java.math.BigDecimal;
+
+/**
+ * Converts amounts between API representation (BigDecimal) and
+ * internal fixed-point representation (long number of minor units, e.g. cents).
+ */
+public final class Money {
+    //digits of Long.MAX_VALUE
+    private static final int MAX_INTEGER_DIGITS = 19;
+
+    private Money() {
+    }
+
+    /**
+     * @return amount in minor units
+     * @throws ArithmeticException if amount has more digits after decimal point than scale or doesn't fit long
+     */
+    public static long toMinorUnits(BigDecimal amount, int scale) {
+        //0e10000000 would be scaled by a huge power of ten otherwise
+        if (amount.signum() == 0) return 0;
+        //setScale of a huge exponent like 1e10000000 takes seconds, so the number of integer digits is checked first
+        if ((long) amount.precision() - amount.scale() > MAX_INTEGER_DIGITS) {
+            throw new ArithmeticException("Overflow");
+        }
+        if (amount.scale() > scale) {
+            //1e-10000000 would be divided by a huge power of ten otherwise
+            amount = amount.stripTrailingZeros();
+            if (amount.scale() > scale) throw new ArithmeticException("Rounding necessary");
+        }
+        return amount.setScale(scale).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Parses an API amount, rejecting exponents no valid amount has before anything scales or prints it.
+     *
+     * @throws NumberFormatException if value is not a number or has more than 19 digits before or after decimal point
+     */
+    public static BigDecimal parse(String value) {
+        BigDecimal amount = new BigDecimal(value);
+        if ((long) amount.precision() - amount.scale() > MAX_INTEGER_DIGITS || amount.scale() > MAX_INTEGER_DIGITS) {
+            throw new NumberFormatException("Amount is out of range");
+        }
+        return amount;
+    }
+
+    /**
+     * Allocation-free version of {@link #toMinorUnits(BigDecimal, int)}.
+     *
+     * @param unscaled    amount without decimal point, e.g. 525 for 5.25
+     * @param amountScale number of digits after decimal point in the amount, e.g. 2 for 5.25
+     * @return amount in minor units
+     * @throws ArithmeticException if amount has more digits after decimal point than scale or doesn't fit long
+     */
+    public static long toMinorUnits(long unscaled, int amountScale, int scale) {
+        if (amountScale > scale) throw new ArithmeticException("Rounding necessary");
+        long result = unscaled;
+        for (int i = amountScale; i < scale; i++) result = Math.multiplyExact(result, 10);
+        return result;
+    }
+
+    public static BigDecimal fromMinorUnits(long minorUnits, int scale) {
+        return BigDecimal.valueOf(minorUnits, scale);
+    }
+}
@@ -1,6 +1,7 @@
 package com.chemist.moneytransfer.processing;
 
 import java.math.BigDecimal;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -23,5 +24,150 @@ public interface MoneyTransferService {
                                      BigDecimal amount,
                                      String idempotencyKey);
 
+    /**
+     * Allocation-free version of {@link #transfer(String, String, BigDecimal, String)} for parsed requests.<br/>
+     * Account IDs are read only during the call, so they may be reusable views of request bytes.
+     *
+     * @param amount      amount without decimal point, e.g. 525 for 5.25
+     * @param amountScale number of digits after decimal point in the amount, e.g. 2 for 5.25
+     */
+    CompletableFuture<Void> transfer(CharSequence sender,
+                                     CharSequence recipient,
+                                     long amount,
+                                     int amountScale,
+                                     String idempotencyKey);
+
+    /**
+     * Applies all legs atomically: either all of them succeed or none.<br/>
+     * Legs are netted per account, so an account may spend money received in the same batch.
+     * All parameters are expected to be non null.<br/>
+     * The method must be idempotent and non-blocking.
+     *
+     * @param legs           transfers in any order
+     * @param idempotencyKey idempotency key of the whole batch
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if any leg fails
+     */
+    CompletableFuture<Void> transferBatch(List<TransferLeg> legs, String idempotencyKey);
+
+    /**
+     * Schedules transfers from sender to recipient account at the given time and optionally repeats them.<br/>
+     * The schedule is identified by the idempotency key: the schedule with a known key isn't added again.
+     * Every run is an ordinary transfer with the key derived from the schedule key and the run number,
+     * so a run is never executed twice. Runs without enough money fail and the next ones are still done.
+     * The method must be non-blocking.
+     *
+     * @param firstRunMillis time of the first run, milliseconds since epoch
+     * @param periodMillis   time between runs, ignored if there is only one run
+     * @param runs           number of runs, -1 for endless schedule
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if parameters are invalid
+     */
+    CompletableFuture<Void> schedule(String sender,
+                                     String recipient,
+                                     BigDecimal amount,
+                                     long firstRunMillis,
+                                     long periodMillis,
+                                     int runs,
+                                     String idempotencyKey);
+
+    /**
+     * Stops future runs of the schedule, the running one completes.
+     *
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if there is no schedule with the key
+     */
+    CompletableFuture<Void> cancelSchedule(String idempotencyKey);
+
+    /**
+     * Reserves funds of the account: they are taken from the available balance and released by
+     * {@link #capture}, {@link #voidHold} or expiration, whichever is the first.<br/>
+     * The hold is identified by the idempotency key. The method must be idempotent and non-blocking.
+     *
+     * @param lifetimeSec time after which the hold is voided automatically, zero for the configured one
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if the account doesn't have enough money
+     */
+    CompletableFuture<Void> hold(String accountId, BigDecimal amount, long lifetimeSec, String idempotencyKey);
+
+    /**
+     * Transfers the captured part of the held funds to recipient and returns the rest to the payer.<br/>
+     * The method must be idempotent and non-blocking.
+     *
+     * @param holdKey idempotency key of the hold
+     * @param amount  captured amount, not greater than the held one, null captures all
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if the hold doesn't exist
+     */
+    CompletableFuture<Void> capture(String holdKey, String recipient, BigDecimal amount, String idempotencyKey);
+
+    /**
+     * Returns the held funds to the payer.<br/>
+     * The method must be idempotent and non-blocking.
+     *
+     * @param holdKey idempotency key of the hold
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if the hold doesn't exist
+     */
+    CompletableFuture<Void> voidHold(String holdKey, String idempotencyKey);
+
+    /**
+     * Creates account with zero balance, it can take transfers as soon as the future completes.<br/>
+     * The method must be non-blocking.
+     *
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if the account exists or ID is invalid
+     */
+    CompletableFuture<Void> openAccount(String accountId);
+
+    /**
+     * Closes account with zero balance, its ID can be used for a new account afterwards.<br/>
+     * Transfers of the account which are running meanwhile either finish before the closure or fail.
+     *
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if the account doesn't exist or has money
+     */
+    CompletableFuture<Void> closeAccount(String accountId);
+
+    /**
+     * Makes read-only follower the primary: replication from the old primary stops and writes are accepted.<br/>
+     * Transfers replicated before the promotion keep their idempotency keys, so client retries are safe.
+     *
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if the server isn't a follower
+     */
+    CompletableFuture<Void> promote();
+
+    /**
+     * Reads the current balance of one account, it may include running transfers.<br/>
+     * Use {@link #snapshot()} to get consistent balances of many accounts.
+     *
+     * @throws MoneyTransferException if the account doesn't exist
+     */
+    BigDecimal balance(String accountId);
+
+    /**
+     * Reads funds of the account which are held by open holds, they aren't included into {@link #balance(String)}.
+     *
+     * @throws MoneyTransferException if the account doesn't exist
+     */
+    BigDecimal heldBalance(String accountId);
+
+    /**
+     * Reads a page of the account history, newest changes first.
+     * It includes every change of the account which had completed before the call.<br/>
+     * The method must be non-blocking.
+     *
+     * @param before cursor from {@link TransactionHistory#nextCursor()} of the previous page or {@link Long#MAX_VALUE} for the first page
+     * @param limit  maximum number of entries, greater than zero
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if the account doesn't exist
+     */
+    CompletableFuture<TransactionHistory> history(String accountId, long before, int limit);
+
+    /**
+     * Subscribes to balance changes of the accounts, the subscription must be started and closed by the caller.<br/>
+     * Balances polled after the start include every change which had completed before the call.
+     * The method must be non-blocking.
+     *
+     * @return CompletableFuture which fails with {@link MoneyTransferException} if any account doesn't exist
+     */
+    CompletableFuture<BalanceSubscription> subscribe(List<String> accountIds);
+
+    /**
+     * Takes consistent snapshot of all balances while transfers keep running.
+     */
+    CompletableFuture<BalanceSnapshot> snapshot();
+
     void shutdown() throws InterruptedException;
 }
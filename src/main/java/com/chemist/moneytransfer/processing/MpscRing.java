@@ -0,0 +1,72 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.<br/>
+ * Every cell has a sequence number: producers claim the cell by CAS on the tail and publish the element
+ * by moving the sequence forward, the consumer frees the cell by moving it one lap forward.
+ * So producers don't contend with the consumer and elements are never copied.
+ */
+final class MpscRing<E> {
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    //changed only by the consumer
+    private long head;
+
+    MpscRing(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be power of 2");
+        mask = capacity - 1;
+        elements = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(E element) {
+        for (; ; ) {
+            long t = tail.get();
+            int i = (int) t & mask;
+            long sequence = sequences.get(i);
+            if (sequence == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    elements[i] = element;
+                    sequences.set(i, t + 1);
+                    return true;
+                }
+            } else if (sequence < t) {
+                //the cell of the previous lap isn't consumed yet
+                return false;
+            }
+            //otherwise other producer has claimed the cell, retry with the new tail
+        }
+    }
+
+    /**
+     * Must be called by the consumer only.
+     *
+     * @return null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        int i = (int) head & mask;
+        if (sequences.get(i) != head + 1) return null;
+        E element = (E) elements[i];
+        elements[i] = null;
+        sequences.lazySet(i, head + mask + 1);
+        head++;
+        return element;
+    }
+
+    /**
+     * Must be called by the consumer only.
+     */
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
@@ -0,0 +1,77 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets by int key, e.g. account slot.<br/>
+ * Every bucket is one long: the time when the bucket becomes full again (virtual scheduling form of token bucket).
+ * Taking a token moves it one token interval forward by CAS, the request is rejected if it would go further than
+ * the burst from now. So refill is lazy, there are no background threads, and neither path allocates.
+ * Buckets are kept in pages of primitive arrays which are allocated on the first use of their keys.
+ */
+public final class RateLimiter {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    //time of one token and the bucket capacity in time
+    private final long intervalNanos;
+    private final long burstNanos;
+    //times are relative to it, so zero is the full bucket
+    private final long origin = System.nanoTime();
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param perSecond tokens added to every bucket per second
+     * @param burst     bucket capacity
+     */
+    public RateLimiter(int perSecond, int burst) {
+        if (perSecond <= 0 || burst <= 0) throw new IllegalArgumentException("Invalid rate limit");
+        intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / perSecond);
+        burstNanos = intervalNanos * burst;
+    }
+
+    /**
+     * @param key non-negative
+     * @return false if the bucket is empty
+     */
+    public boolean tryAcquire(int key) {
+        AtomicLongArray page = page(key >>> PAGE_BITS);
+        int i = key & PAGE_MASK;
+        long now = System.nanoTime() - origin;
+        for (; ; ) {
+            long full = page.get(i);
+            long next = Math.max(full, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                rejected.increment();
+                return false;
+            }
+            if (page.compareAndSet(i, full, next)) return true;
+        }
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    private AtomicLongArray page(int index) {
+        AtomicLongArray[] pages = this.pages;
+        if (index < pages.length && pages[index] != null) return pages[index];
+        return addPage(index);
+    }
+
+    private synchronized AtomicLongArray addPage(int index) {
+        AtomicLongArray[] pages = this.pages;
+        if (index < pages.length && pages[index] != null) return pages[index];
+        AtomicLongArray[] grown = new AtomicLongArray[Math.max(index + 1, pages.length)];
+        System.arraycopy(pages, 0, grown, 0, pages.length);
+        grown[index] = new AtomicLongArray(PAGE_SIZE);
+        //the page is published together with the new array
+        this.pages = grown;
+        return grown[index];
+    }
+}
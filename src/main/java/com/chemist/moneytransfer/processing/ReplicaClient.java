@@ -0,0 +1,227 @@
+package com.chemist.moneytransfer.processing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Follower side of replication, see {@link ReplicationLog} for the protocol.<br/>
+ * The state is received once on start, then the single thread applies records in the log order and acks them.
+ * If the connection breaks, the client reconnects and resumes from the last applied record until it's closed.
+ */
+class ReplicaClient implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ReplicaClient.class);
+
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final byte[] secret;
+    private Thread thread;
+    private volatile Socket socket;
+    private volatile boolean closed;
+    //connection which has brought the snapshot, records follow it there
+    private DataInputStream snapshotInput;
+
+    //set by the snapshot, records of earlier epochs are included into it
+    private long logId;
+    private int snapshotEpoch;
+    //changed by the replication thread only after start
+    private volatile long appliedSequence;
+
+    final LongAdder appliedRecords = new LongAdder();
+
+    /**
+     * @param primary host:port of the primary replication listener
+     * @param secret  shared secret of the primary
+     */
+    ReplicaClient(String primary, String secret) {
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Primary address must be host:port");
+        host = primary.substring(0, colon);
+        port = Integer.parseInt(primary.substring(colon + 1));
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Connects to the primary and receives its state.
+     */
+    SnapshotFile snapshot() throws IOException {
+        var in = connect(ReplicationLog.STATE_REQUEST);
+        in.readInt();
+        byte type = in.readByte();
+        if (type != ReplicationLog.SNAPSHOT) throw new IOException("Unexpected replication frame " + type);
+        logId = in.readLong();
+        appliedSequence = in.readLong();
+        int epoch = in.readInt();
+        int scale = in.readInt();
+        int count = in.readInt();
+        int keyCount = in.readInt();
+        int holdCount = in.readInt();
+        if (count < 0 || keyCount < 0 || keyCount > Integer.MAX_VALUE / 2 || holdCount < 0 || holdCount > Integer.MAX_VALUE / 2) {
+            throw new IOException("Bad snapshot header");
+        }
+        String[] ids = new String[count];
+        long[] balances = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = readString(in);
+            balances[i] = in.readLong();
+        }
+        long[] holdKeys = new long[2 * holdCount];
+        String[] holdPayers = new String[holdCount];
+        long[] holdAmounts = new long[holdCount];
+        int[] holdExpirations = new int[holdCount];
+        for (int i = 0; i < holdCount; i++) {
+            holdKeys[2 * i] = in.readLong();
+            holdKeys[2 * i + 1] = in.readLong();
+            holdPayers[i] = readString(in);
+            holdAmounts[i] = in.readLong();
+            holdExpirations[i] = in.readInt();
+        }
+        long[] keys = new long[2 * keyCount];
+        int[] keyExpirations = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[2 * i] = in.readLong();
+            keys[2 * i + 1] = in.readLong();
+            keyExpirations[i] = in.readInt();
+        }
+        snapshotEpoch = epoch;
+        snapshotInput = in;
+        log.info("Received snapshot of epoch {} with {} accounts from {}:{}", epoch, count, host, port);
+        return new SnapshotFile(epoch, scale, ids, balances, keys, keyExpirations, holdKeys, holdPayers, holdAmounts, holdExpirations);
+    }
+
+    /**
+     * Starts applying records which follow the snapshot.
+     *
+     * @param applier receives every record and the snapshot epoch, it must not fail unless the state has diverged
+     */
+    void start(ObjIntConsumer<JournalRecord> applier) {
+        thread = new Thread(() -> run(applier), "replica");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    long appliedSequence() {
+        return appliedSequence;
+    }
+
+    private void run(ObjIntConsumer<JournalRecord> applier) {
+        DataInputStream in = snapshotInput;
+        snapshotInput = null;
+        //the state is applied by now, so the primary waits for this follower from the first record
+        boolean ack = in != null;
+        while (!closed) {
+            try {
+                if (in == null) in = connect(appliedSequence);
+                receive(in, applier, ack);
+            } catch (IOException e) {
+                if (closed) return;
+                log.warn("Replication from {}:{} is broken: {}", host, port, e.toString());
+            } catch (RuntimeException e) {
+                //it can't continue from this position, followers of the new primary start from its snapshot
+                log.error("Replication from {}:{} stopped, restart the follower to get the state again", host, port, e);
+                closeSocket();
+                return;
+            }
+            in = null;
+            ack = false;
+            closeSocket();
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void receive(DataInputStream in, ObjIntConsumer<JournalRecord> applier, boolean ack) throws IOException {
+        var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64));
+        if (ack) {
+            out.writeLong(appliedSequence);
+            out.flush();
+        }
+        byte[] bytes = new byte[INPUT_BUFFER_SIZE];
+        for (; ; ) {
+            int length = in.readInt();
+            byte type = in.readByte();
+            if (type == ReplicationLog.STALE) throw new IllegalStateException("Primary can't resume from " + appliedSequence);
+            if (type != ReplicationLog.RECORDS || length < 13) throw new IOException("Unexpected replication frame " + type);
+            //the frame is read completely before it's applied, so the follower always resumes from frame boundary
+            if (length - 1 > bytes.length) bytes = new byte[length - 1];
+            in.readFully(bytes, 0, length - 1);
+            var frame = ByteBuffer.wrap(bytes, 0, length - 1);
+            long first = frame.getLong();
+            int count = frame.getInt();
+            if (first != appliedSequence + 1) throw new IllegalStateException("Expected record " + (appliedSequence + 1) + " but got " + first);
+            for (int i = 0; i < count; i++) {
+                int recordLength = frame.getInt();
+                var record = frame.slice().limit(recordLength);
+                frame.position(frame.position() + recordLength);
+                applier.accept(JournalRecord.decode(record), snapshotEpoch);
+            }
+            appliedSequence = first + count - 1;
+            appliedRecords.add(count);
+            //one ack per frame, records of the frame are applied by now
+            out.writeLong(appliedSequence);
+            out.flush();
+        }
+    }
+
+    private DataInputStream connect(long sequence) throws IOException {
+        var socket = new Socket();
+        this.socket = socket;
+        if (closed) throw new IOException("Replica is closed");
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64));
+        out.writeInt(ReplicationLog.MAGIC);
+        out.writeShort(secret.length);
+        out.write(secret);
+        out.writeLong(logId);
+        out.writeLong(sequence);
+        out.flush();
+        return new DataInputStream(new BufferedInputStream(socket.getInputStream(), INPUT_BUFFER_SIZE));
+    }
+
+    private void closeSocket() {
+        try {
+            Socket socket = this.socket;
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            log.error("Can't close replication connection", e);
+        }
+    }
+
+    /**
+     * Stops replication, no record is applied after it returns.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        closeSocket();
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
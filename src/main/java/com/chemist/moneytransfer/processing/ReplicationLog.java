@@ -0,0 +1,493 @@
+package com.chemist.moneytransfer.processing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Primary side of replication: ordered log of applied changes which is streamed to followers over TCP.<br/>
+ * Records are appended at the same point as to the journal, before the change becomes visible, so the log order
+ * is causal: any transfer which spends money goes after the one which brought it.
+ * The single sequencer thread numbers records, encodes all pending ones into one frame and keeps recent frames
+ * in the backlog bounded by size, so every follower gets the same bytes and a follower which reconnects
+ * resumes from its last sequence number.
+ * <p>
+ * New follower gets the state first: the log is marked, the epoch is advanced and balances are cut at it
+ * (same as checkpoint). Records after the mark are streamed then, the follower skips those of the epochs
+ * before the snapshot one like journal replay does.
+ * <p>
+ * Followers authenticate with the shared secret. Only followers which have acked the log are waited for, so a connection
+ * which doesn't apply it can't stall transfers.
+ * <p>
+ * Protocol, all numbers are big-endian:<br/>
+ * follower sends magic (int), secret (unsigned short length and UTF-8 bytes), log ID (long)
+ * and the last applied sequence number (long), -1 requests the state,
+ * then it sends the last applied sequence number (long) after the snapshot and after every frame;<br/>
+ * primary sends frames of length of the rest (int) and type (byte):
+ * {@link #SNAPSHOT}: log ID (long), sequence number of the mark (long), epoch, balance scale, account count,
+ * key count, hold count (ints), accounts as (ID, balance), holds as (key high, key low, payer ID, amount, expiration),
+ * keys as (high, low, expiration);
+ * {@link #RECORDS}: sequence number of the first record (long), record count (int),
+ * records as (length (int), {@link JournalRecord} bytes);
+ * {@link #STALE}: the log can't continue from the follower position.
+ * Length of the snapshot frame is zero, it's streamed without buffering.
+ */
+class ReplicationLog implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ReplicationLog.class);
+
+    static final int MAGIC = 0x4D545250;
+    static final long STATE_REQUEST = -1;
+    static final byte SNAPSHOT = 1;
+    static final byte RECORDS = 2;
+    static final byte STALE = 3;
+
+    private static final byte APPEND = 0;
+    private static final byte MARK = 1;
+    private static final byte STOP = 2;
+
+    private static final int MAX_BATCH = 4096;
+    private static final int FRAME_HEADER_LENGTH = 4 + 1 + 8 + 4;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    //random, so followers don't resume from the same sequence number of other primary or after restart
+    private final long logId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    private final boolean waitForAck;
+    private final long ackTimeoutMillis;
+    private final long maxBacklogBytes;
+    private final byte[] secret;
+    private final Supplier<SnapshotFile> snapshots;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread sequencer;
+    private final ServerSocket listener;
+    private final Thread acceptor;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger sessionNumber = new AtomicInteger();
+    //sessions which have acked at least once
+    private final AtomicInteger ackingSessions = new AtomicInteger();
+    private volatile boolean closed;
+
+    //guarded by this
+    private final ArrayDeque<Frame> backlog = new ArrayDeque<>();
+    private long backlogBytes;
+    private long lastSequence;
+
+    //records waiting for the first follower ack in sequence order, guarded by itself
+    private final ArrayDeque<Pending> unacknowledged = new ArrayDeque<>();
+
+    //changed by the sequencer only
+    private long nextSequence = 1;
+
+    final LongAdder ackTimeouts = new LongAdder();
+
+    /**
+     * @param snapshots takes consistent snapshot of the state, records of its epoch and later ones must be appended
+     *                  after the call starts
+     */
+    ReplicationLog(String host, int port, String secret, boolean waitForAck, long ackTimeoutMillis, long maxBacklogBytes,
+                   Supplier<SnapshotFile> snapshots) throws IOException {
+        this.waitForAck = waitForAck;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.snapshots = snapshots;
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(host, port));
+
+        sequencer = new Thread(this::run, "replication-sequencer");
+        sequencer.setDaemon(true);
+        sequencer.start();
+        acceptor = new Thread(this::accept, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Replication log is listening on {}", listener.getLocalSocketAddress());
+    }
+
+    int port() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * @return number of connected followers which ack the log
+     */
+    int followers() {
+        return ackingSessions.get();
+    }
+
+    /**
+     * @return future which completes when any follower has applied the record if acks are awaited,
+     * or after the timeout, which is counted in {@link #ackTimeouts}; completed future otherwise
+     */
+    CompletableFuture<Void> append(JournalRecord record) {
+        //there is nobody to wait for, transfers shouldn't stall until the follower comes back
+        boolean awaitAck = waitForAck && ackingSessions.get() > 0;
+        var pending = new Pending(APPEND, record, awaitAck ? new CompletableFuture<>() : null);
+        if (closed) return COMPLETED;
+        queue.add(pending);
+        if (!awaitAck) return COMPLETED;
+        return pending.future.orTimeout(ackTimeoutMillis, TimeUnit.MILLISECONDS).exceptionally(e -> {
+            ackTimeouts.increment();
+            return null;
+        });
+    }
+
+    /**
+     * @return future with sequence number of the last record appended before this call
+     */
+    private CompletableFuture<Long> mark() {
+        var pending = new Pending(MARK, null, new CompletableFuture<>());
+        queue.add(pending);
+        return pending.future.thenApply(v -> pending.sequence);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        if (closed) return;
+        closed = true;
+        queue.add(new Pending(STOP, null, null));
+        sequencer.join();
+        try {
+            listener.close();
+        } catch (IOException e) {
+            log.error("Can't close replication listener", e);
+        }
+        acceptor.join();
+        synchronized (this) {
+            notifyAll();
+        }
+        for (Session session : sessions) session.close();
+        synchronized (unacknowledged) {
+            for (Pending pending : unacknowledged) pending.future.complete(null);
+            unacknowledged.clear();
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        var buffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        for (; ; ) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                return;
+            }
+            int from = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                var pending = batch.get(i);
+                if (pending.command == APPEND) continue;
+                buffer = publish(batch.subList(from, i), buffer);
+                from = i + 1;
+                if (pending.command == STOP) return;
+                //frames end at marks, so followers start from frame boundary
+                pending.sequence = nextSequence - 1;
+                pending.future.complete(null);
+            }
+            buffer = publish(batch.subList(from, batch.size()), buffer);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Encodes records into one frame and adds it to the backlog.
+     *
+     * @return buffer for the next frame
+     */
+    private ByteBuffer publish(List<Pending> records, ByteBuffer buffer) {
+        if (records.isEmpty()) return buffer;
+        long first = nextSequence;
+        buffer.clear();
+        buffer.position(FRAME_HEADER_LENGTH);
+        for (Pending pending : records) {
+            int maxLength = 4 + pending.record.maxEncodedLength();
+            if (buffer.remaining() < maxLength) {
+                var bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + maxLength));
+                buffer = bigger.put(buffer.flip());
+            }
+            int start = buffer.position();
+            buffer.position(start + 4);
+            pending.record.encode(buffer);
+            buffer.putInt(start, buffer.position() - start - 4);
+            pending.sequence = nextSequence++;
+        }
+        buffer.putInt(0, buffer.position() - 4).put(4, RECORDS).putLong(5, first).putInt(13, records.size());
+        var frame = new Frame(first, nextSequence - 1, Arrays.copyOf(buffer.array(), buffer.position()));
+
+        //registered before followers see the frame, so their acks can't come earlier
+        if (waitForAck) {
+            synchronized (unacknowledged) {
+                for (Pending pending : records) {
+                    if (pending.future != null) unacknowledged.add(pending);
+                }
+            }
+        }
+        synchronized (this) {
+            backlog.add(frame);
+            backlogBytes += frame.bytes.length;
+            //the last frame is kept even if it's bigger than the limit
+            while (backlogBytes > maxBacklogBytes && backlog.size() > 1) backlogBytes -= backlog.poll().bytes.length;
+            lastSequence = frame.last;
+            notifyAll();
+        }
+        //the reusable buffer doesn't grow forever because of one huge batch
+        return buffer.capacity() > OUTPUT_BUFFER_SIZE * 16 ? ByteBuffer.allocate(OUTPUT_BUFFER_SIZE) : buffer;
+    }
+
+    /**
+     * Waits for the frame which follows the given sequence number.
+     *
+     * @return null if the log is closed
+     * @throws IllegalStateException if the frame isn't in the backlog anymore
+     */
+    private synchronized Frame next(long sequence) throws InterruptedException {
+        while (!closed && lastSequence <= sequence) wait();
+        if (closed) return null;
+        //followers are near the end normally
+        for (Iterator<Frame> it = backlog.descendingIterator(); it.hasNext(); ) {
+            Frame frame = it.next();
+            if (frame.first == sequence + 1) return frame;
+            if (frame.first <= sequence) break;
+        }
+        throw new IllegalStateException("Follower is behind the backlog");
+    }
+
+    private synchronized boolean canResume(long sequence) {
+        if (sequence == lastSequence) return true;
+        if (sequence > lastSequence || backlog.isEmpty()) return false;
+        for (Frame frame : backlog) {
+            if (frame.first == sequence + 1) return true;
+        }
+        return false;
+    }
+
+    private void acknowledged(long sequence) {
+        synchronized (unacknowledged) {
+            for (Pending pending; (pending = unacknowledged.peek()) != null; ) {
+                //timed out futures are dropped as well
+                if (pending.sequence > sequence && !pending.future.isDone()) break;
+                unacknowledged.poll().future.complete(null);
+            }
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept();
+                var session = new Session(socket);
+                sessions.add(session);
+                session.start();
+            } catch (IOException e) {
+                if (!closed) log.error("Can't accept follower connection", e);
+            }
+        }
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Connection of one follower: the writer thread sends frames, the reader thread receives acks.
+     */
+    private final class Session {
+        private final Socket socket;
+        private final Thread writer;
+        private final Thread reader;
+        //guarded by this
+        private boolean acking;
+        private boolean closed;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            int number = sessionNumber.getAndIncrement();
+            writer = new Thread(this::write, "replication-writer-" + number);
+            writer.setDaemon(true);
+            reader = new Thread(this::read, "replication-reader-" + number);
+            reader.setDaemon(true);
+        }
+
+        void start() {
+            writer.start();
+        }
+
+        private void write() {
+            try {
+                var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE));
+                //connections which don't complete the handshake don't hold the writer thread forever
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                if (in.readInt() != MAGIC) throw new IOException("Bad magic");
+                byte[] followerSecret = new byte[in.readUnsignedShort()];
+                in.readFully(followerSecret);
+                if (!MessageDigest.isEqual(followerSecret, secret)) throw new IOException("Wrong secret");
+                long followerLogId = in.readLong();
+                long sequence = in.readLong();
+                socket.setSoTimeout(0);
+                if (sequence == STATE_REQUEST) {
+                    sequence = sendSnapshot(out);
+                } else if (followerLogId != logId || !canResume(sequence)) {
+                    log.warn("Follower {} can't resume from {}", socket.getRemoteSocketAddress(), sequence);
+                    out.writeInt(1);
+                    out.writeByte(STALE);
+                    out.flush();
+                    return;
+                }
+                log.info("Follower {} is streamed from {}", socket.getRemoteSocketAddress(), sequence + 1);
+                reader.start();
+                for (; ; ) {
+                    Frame frame = next(sequence);
+                    if (frame == null) return;
+                    out.write(frame.bytes);
+                    //frames which are ready meanwhile go to the same flush
+                    if (lastSequence() == frame.last) out.flush();
+                    sequence = frame.last;
+                }
+            } catch (IOException e) {
+                if (!closed) log.warn("Replication to {} stopped: {}", socket.getRemoteSocketAddress(), e.toString());
+            } catch (IllegalStateException e) {
+                log.warn("Replication to {} stopped: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * @return sequence number of the mark, records after it follow the snapshot
+         */
+        private long sendSnapshot(DataOutputStream out) throws IOException {
+            long mark = mark().join();
+            SnapshotFile snapshot = snapshots.get();
+            int keyCount = snapshot.keyExpirations.length;
+            out.writeInt(0);
+            out.writeByte(SNAPSHOT);
+            out.writeLong(logId);
+            out.writeLong(mark);
+            out.writeInt(snapshot.epoch);
+            out.writeInt(snapshot.scale);
+            out.writeInt(snapshot.ids.length);
+            out.writeInt(keyCount);
+            out.writeInt(snapshot.holdAmounts.length);
+            for (int i = 0; i < snapshot.ids.length; i++) {
+                putString(out, snapshot.ids[i]);
+                out.writeLong(snapshot.balances[i]);
+            }
+            for (int i = 0; i < snapshot.holdAmounts.length; i++) {
+                out.writeLong(snapshot.holdKeys[2 * i]);
+                out.writeLong(snapshot.holdKeys[2 * i + 1]);
+                putString(out, snapshot.holdPayers[i]);
+                out.writeLong(snapshot.holdAmounts[i]);
+                out.writeInt(snapshot.holdExpirations[i]);
+            }
+            for (int i = 0; i < keyCount; i++) {
+                out.writeLong(snapshot.keys[2 * i]);
+                out.writeLong(snapshot.keys[2 * i + 1]);
+                out.writeInt(snapshot.keyExpirations[i]);
+            }
+            out.flush();
+            log.info("Sent snapshot of epoch {} with {} accounts to {}", snapshot.epoch, snapshot.ids.length,
+                    socket.getRemoteSocketAddress());
+            return mark;
+        }
+
+        private void read() {
+            try {
+                var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                for (; ; ) {
+                    long sequence = in.readLong();
+                    startAcking();
+                    acknowledged(sequence);
+                }
+            } catch (EOFException | SocketException e) {
+                //closed by either side
+            } catch (IOException e) {
+                log.warn("Can't read acks of {}: {}", socket.getRemoteSocketAddress(), e.toString());
+            } finally {
+                close();
+            }
+        }
+
+        private synchronized void startAcking() {
+            if (acking || closed) return;
+            acking = true;
+            ackingSessions.incrementAndGet();
+        }
+
+        void close() {
+            if (!sessions.remove(this)) return;
+            synchronized (this) {
+                closed = true;
+                if (acking) ackingSessions.decrementAndGet();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("Can't close follower connection", e);
+            }
+        }
+    }
+
+    private synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    private static final class Pending {
+        final byte command;
+        final JournalRecord record;
+        final CompletableFuture<Void> future;
+        //assigned by the sequencer
+        long sequence;
+
+        Pending(byte command, JournalRecord record, CompletableFuture<Void> future) {
+            this.command = command;
+            this.record = record;
+            this.future = future;
+        }
+    }
+
+    private static final class Frame {
+        final long first;
+        final long last;
+        final byte[] bytes;
+
+        Frame(long first, long last, byte[] bytes) {
+            this.first = first;
+            this.last = last;
+            this.bytes = bytes;
+        }
+    }
+}
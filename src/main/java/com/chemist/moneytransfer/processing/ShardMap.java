@@ -0,0 +1,55 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.List;
+
+/**
+ * Splits account IDs between cluster nodes by hash ranges: the 32 bit hash space is cut into equal ranges,
+ * one per node in the configured order. Every node must be configured with the same list.
+ */
+public final class ShardMap {
+    private final List<String> nodes;
+    private final int self;
+
+    /**
+     * @param nodes host:port of HTTP listener of every node
+     * @param self  index of this node in the list
+     */
+    public ShardMap(List<String> nodes, int self) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("Cluster has no nodes");
+        if (self < 0 || self >= nodes.size()) throw new IllegalArgumentException("Node index is out of range");
+        this.nodes = List.copyOf(nodes);
+        this.self = self;
+    }
+
+    /**
+     * @return index of the node which owns the account
+     */
+    public int owner(CharSequence accountId) {
+        //the same value as String.hashCode(), so CharSequence views of request bytes don't need copying
+        int h = 0;
+        for (int i = 0; i < accountId.length(); i++) h = 31 * h + accountId.charAt(i);
+        //spread bits, IDs like acc1, acc2 differ only in low bits
+        h *= 0x9E3779B9;
+        h ^= h >>> 16;
+        return (int) (((h & 0xFFFFFFFFL) * nodes.size()) >>> 32);
+    }
+
+    public boolean owns(CharSequence accountId) {
+        return owner(accountId) == self;
+    }
+
+    public int self() {
+        return self;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return host:port of the node
+     */
+    public String node(int index) {
+        return nodes.get(index);
+    }
+}
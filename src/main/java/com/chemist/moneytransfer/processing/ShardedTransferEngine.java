@@ -0,0 +1,365 @@
+package com.chemist.moneytransfer.processing;
+
+import com.chemist.moneytransfer.metrics.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Accounts are partitioned between shards by slot, every shard is owned by its own thread,
+ * so balances are changed by a single writer without CAS and contention.<br/>
+ * Transfer is sent to the ring of the sender shard which does the debit and commit.
+ * If the recipient belongs to other shard, the credit is handed off to its credit ring.
+ * Batch visits shards of all its accounts in the same way: debits, commit, credits.
+ * The transfer stays in its epoch until the last credit is done, so snapshots are consistent as in CAS mode.
+ * <p>
+ * Transfer is rejected with 503 if the ring of the sender shard is full.
+ * Handoffs never block: if the credit ring of other shard is full, the task waits in the local outbox,
+ * and the shard doesn't take new transfers until the outbox is empty.
+ */
+class ShardedTransferEngine implements TransferEngine {
+    private static final Logger log = LoggerFactory.getLogger(ShardedTransferEngine.class);
+
+    private static final int DONE = -1;
+    //max number of credits processed at once, so new transfers aren't starved
+    private static final int CREDIT_BATCH = 256;
+    private static final int SPINS = 1000;
+    private static final int YIELDS = 100;
+    //safety net against lost wakeup, shard thread is woken up explicitly anyway
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AccountStore accounts;
+    private final EpochGate gate;
+    private final Commit commit;
+    private final Shard[] shards;
+    private final Histogram queueWait;
+    private final Histogram execution;
+
+    //accepted transfers which are not finished yet
+    private final AtomicLong inFlight = new AtomicLong();
+    private volatile boolean stopped;
+    private volatile boolean terminated;
+
+    ShardedTransferEngine(AccountStore accounts, EpochGate gate, Commit commit, int shardCount, int ringSize,
+                          ThreadFactory threadFactory, Histogram queueWait, Histogram execution) {
+        if (shardCount <= 0) throw new IllegalArgumentException("Shard count must be positive");
+        this.accounts = accounts;
+        this.gate = gate;
+        this.commit = commit;
+        this.queueWait = queueWait;
+        this.execution = execution;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) shards[i] = new Shard(i, ringSize);
+        for (Shard shard : shards) {
+            shard.thread = threadFactory.newThread(shard);
+            shard.thread.start();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> transfer(int senderSlot, int recipientSlot, long amount, String idempotencyKey) {
+        return submit(new Transfer(senderSlot, recipientSlot, amount, idempotencyKey), senderSlot);
+    }
+
+    @Override
+    public CompletableFuture<Void> transferBatch(int[] slots, long[] deltas, int payerCount, String idempotencyKey,
+                                                 Object attachment) {
+        return submit(new Batch(slots, deltas, payerCount, idempotencyKey, attachment), slots.length > 0 ? slots[0] : 0);
+    }
+
+    private CompletableFuture<Void> submit(Task task, int slot) {
+        inFlight.incrementAndGet();
+        //checked after increment, so shutdown either sees this transfer or we see the flag
+        if (stopped) {
+            inFlight.decrementAndGet();
+            return CompletableFuture.failedFuture(new MoneyTransferException(503, "Server is shutting down."));
+        }
+
+        Shard shard = shard(slot);
+        if (!shard.debits.offer(task)) {
+            inFlight.decrementAndGet();
+            return CompletableFuture.failedFuture(TransferEngine.overloadedException());
+        }
+        shard.wakeUp();
+        return task.result.thenCompose(durable -> durable);
+    }
+
+    @Override
+    public void shutdown() throws InterruptedException {
+        stopped = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (inFlight.get() != 0) {
+            if (System.nanoTime() > deadline) {
+                log.info("Waiting for transfers completion");
+                deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            }
+            Thread.sleep(1);
+        }
+        terminated = true;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+            shard.thread.join();
+        }
+    }
+
+    private Shard shard(int slot) {
+        return shards[slot % shards.length];
+    }
+
+    /**
+     * Transfer which moves between shards. Every step is run by the owner of the account it changes.
+     */
+    private abstract class Task {
+        //completed with durability future when the task is finished
+        final CompletableFuture<CompletableFuture<Void>> result = new CompletableFuture<>();
+        final long submitted = System.nanoTime();
+        long startedAt;
+        int epoch;
+        CompletableFuture<Void> durable;
+
+        /**
+         * Is called by the first step.
+         */
+        void start() {
+            startedAt = System.nanoTime();
+            queueWait.record(startedAt - submitted);
+            epoch = gate.enter();
+        }
+
+        /**
+         * @return slot of the account which is changed by the next step or {@link #DONE}
+         */
+        abstract int step();
+
+        int finish() {
+            gate.exit(epoch);
+            execution.recordSince(startedAt);
+            inFlight.decrementAndGet();
+            result.complete(durable);
+            return DONE;
+        }
+
+        int fail(MoneyTransferException e) {
+            gate.exit(epoch);
+            execution.recordSince(startedAt);
+            inFlight.decrementAndGet();
+            result.completeExceptionally(e);
+            return DONE;
+        }
+    }
+
+    private final class Transfer extends Task {
+        final int senderSlot;
+        final int recipientSlot;
+        final long amount;
+        final String idempotencyKey;
+        boolean debited;
+
+        Transfer(int senderSlot, int recipientSlot, long amount, String idempotencyKey) {
+            this.senderSlot = senderSlot;
+            this.recipientSlot = recipientSlot;
+            this.amount = amount;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        @Override
+        int step() {
+            if (debited) {
+                accounts.creditOwned(recipientSlot, amount, epoch);
+                commit.changed(recipientSlot);
+                return finish();
+            }
+            start();
+            MoneyTransferException closed = TransferEngine.checkOpen(accounts, senderSlot, recipientSlot);
+            if (closed != null) return fail(closed);
+            if (!accounts.tryDebitOwned(senderSlot, amount, epoch)) return fail(TransferEngine.notEnoughMoneyException());
+            durable = commit.commit(epoch, senderSlot, recipientSlot, amount, idempotencyKey);
+            commit.changed(senderSlot);
+            debited = true;
+            return recipientSlot;
+        }
+    }
+
+    private final class Batch extends Task {
+        static final int DEBIT = 0;
+        static final int REFUND = 1;
+        static final int CREDIT = 2;
+
+        final int[] slots;
+        final long[] deltas;
+        final int payerCount;
+        final String idempotencyKey;
+        final Object attachment;
+        boolean started;
+        int phase = DEBIT;
+        //index of the account changed by the current step
+        int next;
+
+        Batch(int[] slots, long[] deltas, int payerCount, String idempotencyKey, Object attachment) {
+            this.slots = slots;
+            this.deltas = deltas;
+            this.payerCount = payerCount;
+            this.idempotencyKey = idempotencyKey;
+            this.attachment = attachment;
+        }
+
+        @Override
+        int step() {
+            if (!started) {
+                started = true;
+                start();
+                MoneyTransferException closed = TransferEngine.checkOpen(accounts, slots);
+                if (closed != null) return fail(closed);
+                if (payerCount == 0) return commitAndCredit();
+            }
+            switch (phase) {
+                case DEBIT:
+                    if (!accounts.tryDebitOwned(slots[next], -deltas[next], epoch)) {
+                        phase = REFUND;
+                        return refundPrevious();
+                    }
+                    commit.changed(slots[next]);
+                    next++;
+                    return next < payerCount ? slots[next] : commitAndCredit();
+                case REFUND:
+                    accounts.creditOwned(slots[next], -deltas[next], epoch);
+                    commit.changed(slots[next]);
+                    return refundPrevious();
+                default:
+                    accounts.creditOwned(slots[next], deltas[next], epoch);
+                    commit.changed(slots[next]);
+                    next++;
+                    return next < slots.length ? slots[next] : finish();
+            }
+        }
+
+        private int refundPrevious() {
+            next--;
+            return next >= 0 ? slots[next] : fail(TransferEngine.notEnoughMoneyException());
+        }
+
+        private int commitAndCredit() {
+            durable = commit.commitBatch(epoch, slots, deltas, idempotencyKey, attachment);
+            phase = CREDIT;
+            next = payerCount;
+            return next < slots.length ? slots[next] : finish();
+        }
+    }
+
+    private final class Shard implements Runnable {
+        final int index;
+        final MpscRing<Task> debits;
+        final MpscRing<Task> credits;
+        volatile boolean sleeping;
+        Thread thread;
+
+        //tasks which didn't fit to credit rings of other shards, changed by the owner thread only
+        final ArrayDeque<Task>[] outboxes;
+        int outboxSize;
+
+        @SuppressWarnings("unchecked")
+        Shard(int index, int ringSize) {
+            this.index = index;
+            debits = new MpscRing<>(ringSize);
+            credits = new MpscRing<>(ringSize);
+            outboxes = new ArrayDeque[shards.length];
+        }
+
+        void wakeUp() {
+            if (sleeping) LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (!terminated) {
+                //handoffs first, they finish transfers and free the epoch
+                boolean worked = flushOutboxes();
+                worked |= drainCredits();
+                if (outboxSize == 0) {
+                    Task task = debits.poll();
+                    if (task != null) {
+                        process(task);
+                        worked = true;
+                    }
+                }
+
+                if (worked) {
+                    idle = 0;
+                } else if (idle < SPINS) {
+                    idle++;
+                    Thread.onSpinWait();
+                } else if (idle < SPINS + YIELDS) {
+                    idle++;
+                    Thread.yield();
+                } else if (outboxSize == 0) {
+                    sleeping = true;
+                    //producers check the flag after offer, so recheck is required to not miss their wakeup
+                    if (debits.isEmpty() && credits.isEmpty() && !terminated) LockSupport.parkNanos(this, PARK_NANOS);
+                    sleeping = false;
+                } else {
+                    //other shard is busy, it doesn't wake us up when its ring gets free space
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+            }
+        }
+
+        private void process(Task task) {
+            for (; ; ) {
+                int slot = task.step();
+                if (slot == DONE) return;
+                Shard owner = shard(slot);
+                if (owner != this) {
+                    handOff(owner, task);
+                    return;
+                }
+            }
+        }
+
+        private void handOff(Shard owner, Task task) {
+            ArrayDeque<Task> outbox = outboxes[owner.index];
+            //order of tasks to the same shard is kept
+            if ((outbox == null || outbox.isEmpty()) && owner.credits.offer(task)) {
+                owner.wakeUp();
+                return;
+            }
+            if (outbox == null) outbox = outboxes[owner.index] = new ArrayDeque<>();
+            outbox.add(task);
+            outboxSize++;
+        }
+
+        private boolean flushOutboxes() {
+            if (outboxSize == 0) return false;
+            boolean worked = false;
+            for (int i = 0; i < outboxes.length; i++) {
+                ArrayDeque<Task> outbox = outboxes[i];
+                if (outbox == null || outbox.isEmpty()) continue;
+                Shard owner = shards[i];
+                while (!outbox.isEmpty() && owner.credits.offer(outbox.peek())) {
+                    outbox.poll();
+                    outboxSize--;
+                    worked = true;
+                }
+                if (worked) owner.wakeUp();
+            }
+            return worked;
+        }
+
+        private boolean drainCredits() {
+            boolean worked = false;
+            for (int i = 0; i < CREDIT_BATCH; i++) {
+                Task task = credits.poll();
+                if (task == null) break;
+                process(task);
+                worked = true;
+            }
+            return worked;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.chemist.moneytransfer.processing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Compact binary snapshot of all balances and open holds at the start of some epoch.<br/>
+ * Layout: magic, version, epoch, balance scale, account count, hold count (ints),
+ * accounts as (ID, balance), holds as (key high, key low, payer ID, amount, expiration),
+ * succeeded idempotency keys as (high, low, expiration) up to the end, CRC32C of everything before it (int).
+ * Version 2 files have no holds and are still loaded.
+ * Account IDs are stored as unsigned short length + UTF-8 bytes.<br/>
+ * The file is written to temporary name and renamed after fsync, so partially written snapshot is never loaded.
+ */
+class SnapshotFile {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotFile.class);
+
+    private static final int MAGIC = 0x4D54534E;
+    private static final int VERSION = 3;
+    private static final int VERSION_WITHOUT_HOLDS = 2;
+    private static final int KEY_LENGTH = 8 + 8 + 4;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    //snapshot can be bigger than 2GB, so it's mapped by windows
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    final int epoch;
+    final int scale;
+    final String[] ids;
+    final long[] balances;
+    //high and low of every key
+    final long[] keys;
+    final int[] keyExpirations;
+    //high and low of every hold key
+    final long[] holdKeys;
+    final String[] holdPayers;
+    final long[] holdAmounts;
+    final int[] holdExpirations;
+
+    SnapshotFile(int epoch, int scale, String[] ids, long[] balances, long[] keys, int[] keyExpirations,
+                 long[] holdKeys, String[] holdPayers, long[] holdAmounts, int[] holdExpirations) {
+        this.epoch = epoch;
+        this.scale = scale;
+        this.ids = ids;
+        this.balances = balances;
+        this.keys = keys;
+        this.keyExpirations = keyExpirations;
+        this.holdKeys = holdKeys;
+        this.holdPayers = holdPayers;
+        this.holdAmounts = holdAmounts;
+        this.holdExpirations = holdExpirations;
+    }
+
+    void restoreKeys(IdempotencyStore store) {
+        for (int i = 0; i < keyExpirations.length; i++) {
+            store.restore(keys[2 * i], keys[2 * i + 1], keyExpirations[i]);
+        }
+    }
+
+    /**
+     * Adds holds and their held funds, it's called before records after the snapshot are applied.
+     */
+    void restoreHolds(HoldStore holds, AccountStore accounts) {
+        for (int i = 0; i < holdAmounts.length; i++) {
+            int slot = accounts.slot(holdPayers[i]);
+            if (slot == AccountStore.NOT_FOUND) throw new IllegalStateException("Snapshot hold refers to unknown account");
+            if (holds.add(holdKeys[2 * i], holdKeys[2 * i + 1], slot, holdAmounts[i], holdExpirations[i])) {
+                holds.addHeld(slot, holdAmounts[i]);
+            }
+        }
+    }
+
+    /**
+     * Copies balances of open accounts, their holds and succeeded idempotency keys, it's used to send the state to followers.
+     */
+    static SnapshotFile of(int epoch, int scale, AccountStore accounts, long[] balances, HoldStore holdStore,
+                           IdempotencyStore idempotencyStore) {
+        int[] slots = accounts.openSlots(balances.length);
+        int count = slots == null ? balances.length : slots.length;
+        String[] ids = new String[count];
+        long[] openBalances = new long[count];
+        for (int i = 0; i < count; i++) {
+            int slot = slots == null ? i : slots[i];
+            ids[i] = accounts.id(slot);
+            openBalances[i] = balances[slot];
+        }
+        int[] keyCount = {0};
+        long[][] keys = {new long[1024]};
+        int[][] keyExpirations = {new int[512]};
+        idempotencyStore.forEachSucceeded((high, low, expiresAt) -> {
+            int i = keyCount[0]++;
+            if (i == keyExpirations[0].length) {
+                keys[0] = Arrays.copyOf(keys[0], 4 * i);
+                keyExpirations[0] = Arrays.copyOf(keyExpirations[0], 2 * i);
+            }
+            keys[0][2 * i] = high;
+            keys[0][2 * i + 1] = low;
+            keyExpirations[0][i] = expiresAt;
+        });
+        Holds holds = Holds.of(holdStore, accounts, balances.length);
+        return new SnapshotFile(epoch, scale, ids, openBalances, Arrays.copyOf(keys[0], 2 * keyCount[0]),
+                Arrays.copyOf(keyExpirations[0], keyCount[0]), holds.keys, holds.payers, holds.amounts, holds.expirations);
+    }
+
+    /**
+     * Writes new snapshot and deletes older ones.
+     */
+    static void write(Path dir, int epoch, int scale, AccountStore accounts, long[] balances, HoldStore holdStore,
+                      IdempotencyStore idempotencyStore) throws IOException {
+        Path tmp = dir.resolve(fileName(epoch) + ".tmp");
+        long[] keyCount = {0};
+        var crc = new CRC32C();
+        var buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        //closed accounts are skipped
+        int[] slots = accounts.openSlots(balances.length);
+        int count = slots == null ? balances.length : slots.length;
+        //holds are copied first, because their count goes to the header
+        Holds holds = Holds.of(holdStore, accounts, balances.length);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            buf.putInt(MAGIC).putInt(VERSION).putInt(epoch).putInt(scale).putInt(count).putInt(holds.amounts.length);
+            for (int i = 0; i < count; i++) {
+                int slot = slots == null ? i : slots[i];
+                ensureRemaining(ch, buf, crc);
+                JournalRecord.putString(buf, accounts.id(slot));
+                buf.putLong(balances[slot]);
+            }
+            for (int i = 0; i < holds.amounts.length; i++) {
+                ensureRemaining(ch, buf, crc);
+                buf.putLong(holds.keys[2 * i]).putLong(holds.keys[2 * i + 1]);
+                JournalRecord.putString(buf, holds.payers[i]);
+                buf.putLong(holds.amounts[i]).putInt(holds.expirations[i]);
+            }
+            try {
+                idempotencyStore.forEachSucceeded((high, low, expiresAt) -> {
+                    try {
+                        ensureRemaining(ch, buf, crc);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    buf.putLong(high).putLong(low).putInt(expiresAt);
+                    keyCount[0]++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            flush(ch, buf, crc);
+            buf.putInt((int) crc.getValue()).flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        Path target = dir.resolve(fileName(epoch));
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        //the rename must be durable before older snapshots and covered journal segments are deleted
+        Journal.forceDirectory(dir);
+        log.info("Written snapshot {} with {} accounts, {} holds and {} idempotency keys", target, count, holds.amounts.length,
+                keyCount[0]);
+
+        for (Path old : snapshots(dir)) {
+            if (!old.equals(target)) Files.delete(old);
+        }
+    }
+
+    /**
+     * Loads the latest valid snapshot using memory mapped IO.
+     *
+     * @return null if there is no snapshot
+     */
+    static SnapshotFile loadLatest(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return null;
+        var snapshots = snapshots(dir);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            try {
+                var snapshot = load(snapshots.get(i));
+                log.info("Loaded snapshot {} with {} accounts", snapshots.get(i), snapshot.ids.length);
+                return snapshot;
+            } catch (IllegalArgumentException e) {
+                log.error("Snapshot {} is corrupted: {}", snapshots.get(i), e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private static SnapshotFile load(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 24) throw new IllegalArgumentException("file is too short");
+
+            var crc = new CRC32C();
+            for (long pos = 0; pos < size - 4; pos += WINDOW_SIZE) {
+                crc.update(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, size - 4 - pos)));
+            }
+            int expectedCrc = ch.map(FileChannel.MapMode.READ_ONLY, size - 4, 4).getInt();
+            if ((int) crc.getValue() != expectedCrc) throw new IllegalArgumentException("checksum mismatch");
+
+            var reader = new MappedReader(ch, size - 4);
+            if (reader.getInt() != MAGIC) throw new IllegalArgumentException("bad magic");
+            int version = reader.getInt();
+            if (version != VERSION && version != VERSION_WITHOUT_HOLDS) throw new IllegalArgumentException("unsupported version");
+            int epoch = reader.getInt();
+            int scale = reader.getInt();
+            int count = reader.getInt();
+            int holdCount = version == VERSION ? reader.getInt() : 0;
+            if (count < 0 || holdCount < 0 || holdCount > Integer.MAX_VALUE / 2) throw new IllegalArgumentException("bad header");
+            String[] ids = new String[count];
+            long[] balances = new long[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = reader.getString();
+                balances[i] = reader.getLong();
+            }
+            long[] holdKeys = new long[2 * holdCount];
+            String[] holdPayers = new String[holdCount];
+            long[] holdAmounts = new long[holdCount];
+            int[] holdExpirations = new int[holdCount];
+            for (int i = 0; i < holdCount; i++) {
+                holdKeys[2 * i] = reader.getLong();
+                holdKeys[2 * i + 1] = reader.getLong();
+                holdPayers[i] = reader.getString();
+                holdAmounts[i] = reader.getLong();
+                holdExpirations[i] = reader.getInt();
+            }
+            long keysLength = reader.remaining();
+            if (keysLength % KEY_LENGTH != 0 || keysLength / KEY_LENGTH > Integer.MAX_VALUE / 2) {
+                throw new IllegalArgumentException("bad idempotency keys section");
+            }
+            int keyCount = (int) (keysLength / KEY_LENGTH);
+            long[] keys = new long[2 * keyCount];
+            int[] keyExpirations = new int[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[2 * i] = reader.getLong();
+                keys[2 * i + 1] = reader.getLong();
+                keyExpirations[i] = reader.getInt();
+            }
+            return new SnapshotFile(epoch, scale, ids, balances, keys, keyExpirations,
+                    holdKeys, holdPayers, holdAmounts, holdExpirations);
+        }
+    }
+
+    private static void ensureRemaining(FileChannel ch, ByteBuffer buf, CRC32C crc) throws IOException {
+        //enough for the longest string and a hold
+        if (buf.remaining() < 2 + JournalRecord.MAX_STRING_LENGTH + 3 * 8 + 4) flush(ch, buf, crc);
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf, CRC32C crc) throws IOException {
+        buf.flip();
+        crc.update(buf.duplicate());
+        while (buf.hasRemaining()) ch.write(buf);
+        buf.clear();
+    }
+
+    private static String fileName(int epoch) {
+        return String.format("%s%010d%s", PREFIX, epoch, SUFFIX);
+    }
+
+    private static List<Path> snapshots(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                    .filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted(Comparator.naturalOrder())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Holds of accounts covered by the snapshot, the ones of later accounts are restored from their records.
+     * Holds taken for release are included, because their release could be committed after the snapshot epoch.
+     */
+    private static final class Holds {
+        long[] keys = new long[64];
+        String[] payers = new String[32];
+        long[] amounts = new long[32];
+        int[] expirations = new int[32];
+
+        static Holds of(HoldStore store, AccountStore accounts, int slotCount) {
+            var holds = new Holds();
+            int[] count = {0};
+            store.forEach((high, low, payerSlot, amount, expiresAt) -> {
+                if (payerSlot >= slotCount) return;
+                int i = count[0]++;
+                if (i == holds.amounts.length) holds.grow();
+                holds.keys[2 * i] = high;
+                holds.keys[2 * i + 1] = low;
+                holds.payers[i] = accounts.id(payerSlot);
+                holds.amounts[i] = amount;
+                holds.expirations[i] = expiresAt;
+            });
+            holds.keys = Arrays.copyOf(holds.keys, 2 * count[0]);
+            holds.payers = Arrays.copyOf(holds.payers, count[0]);
+            holds.amounts = Arrays.copyOf(holds.amounts, count[0]);
+            holds.expirations = Arrays.copyOf(holds.expirations, count[0]);
+            return holds;
+        }
+
+        private void grow() {
+            keys = Arrays.copyOf(keys, 2 * keys.length);
+            payers = Arrays.copyOf(payers, 2 * payers.length);
+            amounts = Arrays.copyOf(amounts, 2 * amounts.length);
+            expirations = Arrays.copyOf(expirations, 2 * expirations.length);
+        }
+    }
+
+    /**
+     * Sequential reader over memory mapped windows of the file.
+     */
+    static final class MappedReader {
+        private final FileChannel ch;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedReader(FileChannel ch, long size) throws IOException {
+            this.ch = ch;
+            this.size = size;
+            remap(0);
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return window.getLong();
+        }
+
+        String getString() throws IOException {
+            ensure(2);
+            int len = Short.toUnsignedInt(window.getShort(window.position()));
+            ensure(2 + len);
+            return JournalRecord.getString(window);
+        }
+
+        /**
+         * Skips the string without decoding.
+         */
+        void skipString() throws IOException {
+            ensure(2);
+            int len = Short.toUnsignedInt(window.getShort());
+            ensure(len);
+            window.position(window.position() + len);
+        }
+
+        void skip(int bytes) throws IOException {
+            ensure(bytes);
+            window.position(window.position() + bytes);
+        }
+
+        long position() {
+            return windowStart + window.position();
+        }
+
+        long remaining() {
+            return size - windowStart - window.position();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (window.remaining() >= bytes) return;
+            long position = windowStart + window.position();
+            if (size - position < bytes) throw new IllegalArgumentException("unexpected end of file");
+            remap(position);
+        }
+
+        private void remap(long position) throws IOException {
+            windowStart = position;
+            window = ch.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+        }
+    }
+}
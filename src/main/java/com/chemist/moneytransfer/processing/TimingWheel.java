@@ -0,0 +1,139 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel with int payloads.<br/>
+ * There are {@link #LEVELS} wheels of {@link #BUCKETS} buckets, every next level bucket spans all buckets of the previous one.
+ * Insertion is O(1). When time passes the bucket of the upper level, its payloads are cascaded to lower levels,
+ * so every payload is moved at most {@link #LEVELS} times and expires together with the whole bucket.<br/>
+ * Payloads are stored in primitive int arrays, deadline of a payload is requested from {@link Owner} during cascading,
+ * so the wheel doesn't store it. Owner should ignore stale payloads (e.g. cancelled or already removed ones).<br/>
+ * The wheel isn't thread safe.
+ */
+class TimingWheel {
+    static final int LEVELS = 4;
+    static final int BITS = 6;
+    static final int BUCKETS = 1 << BITS;
+    private static final int MASK = BUCKETS - 1;
+    //the longest delay which fits into the wheel, longer ones are clamped and cascaded later
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    interface Owner {
+        /**
+         * @return deadline tick of the payload or negative value if the payload isn't needed anymore
+         */
+        long deadline(int payload);
+
+        void expire(int payload);
+    }
+
+    private final Owner owner;
+    private final int[][] buckets = new int[LEVELS * BUCKETS][];
+    private final int[] sizes = new int[LEVELS * BUCKETS];
+    private long tick;
+    private long count;
+
+    TimingWheel(Owner owner, long tick) {
+        this.owner = owner;
+        this.tick = tick;
+    }
+
+    /**
+     * Adds the payload, it's expired immediately on the next {@link #advance(long)} if deadline has passed.
+     */
+    void add(int payload, long deadline) {
+        long delta = Math.max(1, deadline - tick);
+        if (delta >= SPAN) {
+            delta = SPAN - 1;
+        }
+        long target = tick + delta;
+        int level = 0;
+        while (delta >= (1L << (BITS * (level + 1)))) level++;
+        int bucket = level * BUCKETS + (int) ((target >>> (BITS * level)) & MASK);
+        push(bucket, payload);
+        count++;
+    }
+
+    /**
+     * Moves the wheel to the given tick and expires all due payloads.
+     */
+    void advance(long now) {
+        if (count == 0) {
+            tick = Math.max(tick, now);
+            return;
+        }
+        while (tick < now) {
+            tick++;
+            //cascade upper levels first, their payloads may fall to the current bucket of the lower level
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(level * BUCKETS + (int) ((tick >>> (BITS * level)) & MASK));
+                }
+            }
+            fire((int) (tick & MASK));
+            if (count == 0) {
+                tick = now;
+                return;
+            }
+        }
+    }
+
+    long size() {
+        return count;
+    }
+
+    /**
+     * Removes all payloads.
+     */
+    void clear() {
+        Arrays.fill(buckets, null);
+        Arrays.fill(sizes, 0);
+        count = 0;
+    }
+
+    private void cascade(int bucket) {
+        int[] payloads = buckets[bucket];
+        int size = sizes[bucket];
+        buckets[bucket] = null;
+        sizes[bucket] = 0;
+        count -= size;
+        for (int i = 0; i < size; i++) {
+            long deadline = owner.deadline(payloads[i]);
+            if (deadline < 0) continue;
+            if (deadline <= tick) {
+                //it's due right now, put it to the current bucket which is fired next
+                push((int) (tick & MASK), payloads[i]);
+                count++;
+            } else {
+                add(payloads[i], deadline);
+            }
+        }
+    }
+
+    private void fire(int bucket) {
+        int[] payloads = buckets[bucket];
+        int size = sizes[bucket];
+        buckets[bucket] = null;
+        sizes[bucket] = 0;
+        count -= size;
+        for (int i = 0; i < size; i++) {
+            long deadline = owner.deadline(payloads[i]);
+            if (deadline < 0) continue;
+            if (deadline <= tick) owner.expire(payloads[i]);
+            else add(payloads[i], deadline);
+        }
+    }
+
+    private void push(int bucket, int payload) {
+        int[] payloads = buckets[bucket];
+        int size = sizes[bucket];
+        if (payloads == null) {
+            payloads = buckets[bucket] = new int[16];
+        } else if (size == payloads.length) {
+            payloads = buckets[bucket] = Arrays.copyOf(payloads, size * 2);
+        }
+        payloads[size] = payload;
+        sizes[bucket] = size + 1;
+    }
+}
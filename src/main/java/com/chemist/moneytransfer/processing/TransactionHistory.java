@@ -0,0 +1,97 @@
+package com.chemist.moneytransfer.processing;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+/**
+ * Page of account history, newest entry first.<br/>
+ * Entries are read from the history itself when they are requested, so a big page isn't copied.
+ * Entry positions in the history never change, so the cursor of the next page stays valid while new entries are added,
+ * until the entries it points to are dropped by retention.
+ */
+public final class TransactionHistory {
+    private final String accountId;
+    private final TransactionLog.Chunk[] chunks;
+    //index of chunks[0] among chunks of the account
+    private final int firstChunk;
+    //position of the oldest kept entry of the account
+    private final long first;
+    //range of entry positions, oldest first
+    private final long start;
+    private final long end;
+    private final int scale;
+    private final IntFunction<String> accountIds;
+
+    TransactionHistory(String accountId, TransactionLog.Chunk[] chunks, int firstChunk, long first, long start, long end,
+                       int scale, IntFunction<String> accountIds) {
+        this.accountId = accountId;
+        this.chunks = chunks;
+        this.firstChunk = firstChunk;
+        this.first = first;
+        this.start = start;
+        this.end = end;
+        this.scale = scale;
+        this.accountIds = accountIds;
+    }
+
+    public String accountId() {
+        return accountId;
+    }
+
+    public int size() {
+        return (int) (end - start);
+    }
+
+    /**
+     * @return cursor of the next (older) page or -1 if this page has the oldest entry
+     */
+    public long nextCursor() {
+        return start > first ? start : -1;
+    }
+
+    /**
+     * @return milliseconds since the epoch when the change was committed
+     */
+    public long timestamp(int index) {
+        long position = position(index);
+        return chunk(position).values[4 * TransactionLog.offset(position)];
+    }
+
+    /**
+     * @return balance change, negative for debit
+     */
+    public BigDecimal amount(int index) {
+        long position = position(index);
+        return Money.fromMinorUnits(chunk(position).values[4 * TransactionLog.offset(position) + 1], scale);
+    }
+
+    /**
+     * @return the other account of the transfer or null for batch and cross-node transfer
+     */
+    public String counterparty(int index) {
+        long position = position(index);
+        int slot = chunk(position).counterparties[TransactionLog.offset(position)];
+        return slot == TransactionLog.NO_COUNTERPARTY ? null : accountIds.apply(slot);
+    }
+
+    /**
+     * @return Idempotency-Key of the change as UUID, it's the key itself for UUID keys
+     * and UUID form of 128 bit hash for other keys, see {@link IdempotencyStore#high}
+     */
+    public String idempotencyKey(int index) {
+        long position = position(index);
+        int offset = TransactionLog.offset(position);
+        long[] values = chunk(position).values;
+        return new UUID(values[4 * offset + 2], values[4 * offset + 3]).toString();
+    }
+
+    private long position(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException(index);
+        return end - 1 - index;
+    }
+
+    private TransactionLog.Chunk chunk(long position) {
+        return chunks[TransactionLog.chunk(position) - firstChunk];
+    }
+}
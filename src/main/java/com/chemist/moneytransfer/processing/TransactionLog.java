@@ -0,0 +1,342 @@
+package com.chemist.moneytransfer.processing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * Append-only history of balance changes per account.<br/>
+ * Committing threads only offer an event to the ring, the single writer thread appends it to the history of accounts,
+ * so the transfer doesn't wait for it and hot accounts don't contend.
+ * History of an account is a sequence of chunks of primitive arrays, chunks grow from small to {@link #MAX_CHUNK_SIZE},
+ * so accounts with a few entries take little memory and appends never copy old entries.
+ * Entries are primitives: keys are two longs (see {@link IdempotencyStore#high}), counterparties are account slots,
+ * which are never reused, so they are resolved to IDs when the page is read.
+ * Every account keeps its latest entries only, chunks of older ones are dropped.
+ * Queries go through the same ring, so they see every change committed before them.
+ */
+class TransactionLog implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(TransactionLog.class);
+
+    static final int NO_COUNTERPARTY = -1;
+    private static final int FIRST_CHUNK_SIZE = 8;
+    private static final int MAX_CHUNK_SIZE = 4096;
+    //number of growing chunks and entries in them, chunks have the max size after them
+    private static final int GROWING_CHUNKS = Integer.numberOfTrailingZeros(MAX_CHUNK_SIZE / FIRST_CHUNK_SIZE);
+    private static final long GROWING_ENTRIES = (long) FIRST_CHUNK_SIZE * ((1 << GROWING_CHUNKS) - 1);
+    //it's woken up by queries, changes wait for the next round
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MpscRing<Event> ring;
+    private final Thread writer;
+    //the writer is stopped by close or failure, events are dropped after it, so committing threads never wait for it
+    private volatile boolean stopped;
+    private final long maxEntries;
+    //slot to account ID, it's used for counterparties
+    private final IntFunction<String> accountIds;
+
+    //history by account slot, changed by the writer only
+    private AccountHistory[] histories = new AccountHistory[1024];
+    private volatile long entries;
+
+    //times when committing thread waited for free space in the ring
+    final LongAdder ringFull = new LongAdder();
+
+    /**
+     * @param maxEntries number of the latest entries kept per account
+     */
+    TransactionLog(int ringSize, long maxEntries, IntFunction<String> accountIds, ThreadFactory threadFactory) {
+        if (maxEntries < 1) throw new IllegalArgumentException("History must keep at least one entry");
+        ring = new MpscRing<>(ringSize);
+        this.maxEntries = maxEntries;
+        this.accountIds = accountIds;
+        writer = threadFactory.newThread(this::run);
+        writer.start();
+    }
+
+    /**
+     * Is called on commit of the transfer.
+     */
+    void transfer(long timestamp, int senderSlot, int recipientSlot, long amount, long keyHigh, long keyLow) {
+        offer(new Transfer(timestamp, senderSlot, recipientSlot, amount, keyHigh, keyLow));
+    }
+
+    /**
+     * Is called on commit of the batch, entries of its accounts have no counterparty, because deltas are netted.
+     */
+    void batch(long timestamp, int[] slots, long[] deltas, long keyHigh, long keyLow) {
+        offer(new Batch(timestamp, slots, deltas, keyHigh, keyLow));
+    }
+
+    /**
+     * Drops history of the closed account, it's called after all its transfers are committed.
+     */
+    void closed(int slot) {
+        offer(new Close(slot));
+    }
+
+    /**
+     * @param before index of the entry after the newest one to return, {@link Long#MAX_VALUE} for the newest entry
+     * @param limit  maximum number of entries
+     * @param scale  balance scale of amounts
+     * @return future of entries of the account committed before the call, newest first
+     */
+    CompletableFuture<TransactionHistory> query(int slot, String accountId, long before, int limit, int scale) {
+        var query = new Query(slot, accountId, before, limit, scale);
+        //the writer could stop after the event is added, so the flag is checked again
+        if (!offer(query) || stopped) query.result.completeExceptionally(stoppedException());
+        LockSupport.unpark(writer);
+        return query.result;
+    }
+
+    long entries() {
+        return entries;
+    }
+
+    /**
+     * @return false if the writer is stopped and the event is dropped
+     */
+    private boolean offer(Event event) {
+        if (stopped) return false;
+        if (ring.offer(event)) return true;
+        //the writer is behind, committing threads wait for it instead of losing history
+        ringFull.increment();
+        LockSupport.unpark(writer);
+        while (!ring.offer(event)) {
+            if (stopped) return false;
+            Thread.yield();
+        }
+        return true;
+    }
+
+    private void run() {
+        try {
+            while (!stopped) {
+                Event event = ring.poll();
+                if (event == null) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                    continue;
+                }
+                event.apply();
+            }
+        } catch (RuntimeException | Error e) {
+            log.error("Transaction history writer failed, changes aren't recorded anymore", e);
+            stopped = true;
+        }
+        //queries left in the ring would never complete otherwise
+        for (Event event = ring.poll(); event != null; event = ring.poll()) {
+            if (event instanceof Query) ((Query) event).result.completeExceptionally(stoppedException());
+        }
+    }
+
+    private void append(int slot, long timestamp, long delta, int counterparty, long keyHigh, long keyLow) {
+        if (slot >= histories.length) histories = Arrays.copyOf(histories, Math.max(slot + 1, 2 * histories.length));
+        AccountHistory history = histories[slot];
+        if (history == null) {
+            history = new AccountHistory();
+            histories[slot] = history;
+        }
+        entries += history.append(timestamp, delta, counterparty, keyHigh, keyLow, maxEntries);
+    }
+
+    /**
+     * Stops the writer, changes committed after it aren't recorded.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        stopped = true;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+    private static MoneyTransferException stoppedException() {
+        return new MoneyTransferException(503, "Transaction history is stopped.");
+    }
+
+    /**
+     * @return index of the chunk which holds the entry
+     */
+    static int chunk(long entry) {
+        if (entry < GROWING_ENTRIES) return 31 - Integer.numberOfLeadingZeros((int) (entry / FIRST_CHUNK_SIZE + 1));
+        return GROWING_CHUNKS + (int) ((entry - GROWING_ENTRIES) / MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * @return index of the entry in its chunk
+     */
+    static int offset(long entry) {
+        if (entry < GROWING_ENTRIES) return (int) (entry - (long) FIRST_CHUNK_SIZE * ((1 << chunk(entry)) - 1));
+        return (int) ((entry - GROWING_ENTRIES) % MAX_CHUNK_SIZE);
+    }
+
+    private static int chunkSize(int chunk) {
+        return chunk < GROWING_CHUNKS ? FIRST_CHUNK_SIZE << chunk : MAX_CHUNK_SIZE;
+    }
+
+    /**
+     * Entries of one account, oldest first. It's changed by the writer only.
+     * Positions of entries never change, chunks[0] is the chunk {@link #firstChunk}, the ones before it are dropped.
+     */
+    private static final class AccountHistory {
+        Chunk[] chunks = new Chunk[4];
+        int firstChunk;
+        int chunkCount;
+        //position of the next entry and of the oldest kept one
+        long size;
+        long first;
+
+        /**
+         * @return change of the number of kept entries, it's 0 when the oldest one is dropped
+         */
+        int append(long timestamp, long delta, int counterparty, long keyHigh, long keyLow, long maxEntries) {
+            int chunk = chunk(size) - firstChunk;
+            if (chunk == chunkCount) {
+                if (chunk == chunks.length) chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+                chunks[chunk] = new Chunk(chunkSize(chunk + firstChunk));
+                chunkCount++;
+            }
+            chunks[chunk].set(offset(size), timestamp, delta, counterparty, keyHigh, keyLow);
+            size++;
+            if (size - first <= maxEntries) return 1;
+
+            first++;
+            //readers keep their copies of the array, so dropped chunks stay readable for them
+            int dropped = chunk(first) - firstChunk;
+            if (dropped > 0) {
+                System.arraycopy(chunks, dropped, chunks, 0, chunkCount - dropped);
+                Arrays.fill(chunks, chunkCount - dropped, chunkCount, null);
+                chunkCount -= dropped;
+                firstChunk += dropped;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Entries are stored in two arrays: timestamp, delta and key longs, counterparty slots.
+     */
+    static final class Chunk {
+        final long[] values;
+        final int[] counterparties;
+
+        Chunk(int size) {
+            values = new long[4 * size];
+            counterparties = new int[size];
+        }
+
+        void set(int offset, long timestamp, long delta, int counterparty, long keyHigh, long keyLow) {
+            values[4 * offset] = timestamp;
+            values[4 * offset + 1] = delta;
+            values[4 * offset + 2] = keyHigh;
+            values[4 * offset + 3] = keyLow;
+            counterparties[offset] = counterparty;
+        }
+    }
+
+    /**
+     * Change of balances or a query, it's applied by the writer.
+     */
+    private abstract static class Event {
+        abstract void apply();
+    }
+
+    private final class Transfer extends Event {
+        final long timestamp;
+        final int senderSlot;
+        final int recipientSlot;
+        final long amount;
+        final long keyHigh;
+        final long keyLow;
+
+        Transfer(long timestamp, int senderSlot, int recipientSlot, long amount, long keyHigh, long keyLow) {
+            this.timestamp = timestamp;
+            this.senderSlot = senderSlot;
+            this.recipientSlot = recipientSlot;
+            this.amount = amount;
+            this.keyHigh = keyHigh;
+            this.keyLow = keyLow;
+        }
+
+        @Override
+        void apply() {
+            append(senderSlot, timestamp, -amount, recipientSlot, keyHigh, keyLow);
+            append(recipientSlot, timestamp, amount, senderSlot, keyHigh, keyLow);
+        }
+    }
+
+    private final class Batch extends Event {
+        final long timestamp;
+        final int[] slots;
+        final long[] deltas;
+        final long keyHigh;
+        final long keyLow;
+
+        Batch(long timestamp, int[] slots, long[] deltas, long keyHigh, long keyLow) {
+            this.timestamp = timestamp;
+            this.slots = slots;
+            this.deltas = deltas;
+            this.keyHigh = keyHigh;
+            this.keyLow = keyLow;
+        }
+
+        @Override
+        void apply() {
+            for (int i = 0; i < slots.length; i++) append(slots[i], timestamp, deltas[i], NO_COUNTERPARTY, keyHigh, keyLow);
+        }
+    }
+
+    private final class Close extends Event {
+        final int slot;
+
+        Close(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        void apply() {
+            if (slot >= histories.length || histories[slot] == null) return;
+            entries -= histories[slot].size - histories[slot].first;
+            histories[slot] = null;
+        }
+    }
+
+    private final class Query extends Event {
+        final int slot;
+        final String accountId;
+        final long before;
+        final int limit;
+        final int scale;
+        final CompletableFuture<TransactionHistory> result = new CompletableFuture<>();
+
+        Query(int slot, String accountId, long before, int limit, int scale) {
+            this.slot = slot;
+            this.accountId = accountId;
+            this.before = before;
+            this.limit = limit;
+            this.scale = scale;
+        }
+
+        @Override
+        void apply() {
+            //slots aren't reused, so the history belongs to the account
+            AccountHistory history = slot < histories.length ? histories[slot] : null;
+            if (history == null) {
+                result.complete(new TransactionHistory(accountId, new Chunk[0], 0, 0, 0, 0, scale, accountIds));
+                return;
+            }
+            //the cursor may point to dropped entries, the page is empty then
+            long end = Math.max(history.first, Math.min(before, history.size));
+            long start = Math.max(history.first, end - limit);
+            //chunks of the range are never changed, the array is copied, because the writer adds chunks to it
+            result.complete(new TransactionHistory(accountId, Arrays.copyOf(history.chunks, history.chunkCount),
+                    history.firstChunk, history.first, start, end, scale, accountIds));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Applies validated transfers to {@link AccountStore}.<br/>
+ * Every transfer runs inside {@link EpochGate}: check that accounts are open, debit, {@link Commit#commit}, credit.
+ * Batch does all debits first, so it's atomic: if any debit fails, previous ones are returned and nothing is committed.
+ */
+interface TransferEngine {
+    /**
+     * Is called by the engine after the debit and before the credit, inside the epoch of the transfer.
+     */
+    interface Commit {
+        /**
+         * @return future which completes when the transfer is durable
+         */
+        CompletableFuture<Void> commit(int epoch, int senderSlot, int recipientSlot, long amount, String idempotencyKey);
+
+        /**
+         * Batch version of {@link #commit}, arrays and the attachment are the same as in {@link #transferBatch}.
+         */
+        CompletableFuture<Void> commitBatch(int epoch, int[] slots, long[] deltas, String idempotencyKey, Object attachment);
+
+        /**
+         * Is called after every change of the account balance including refunds of failed batch, inside the epoch.
+         */
+        default void changed(int slot) {
+        }
+    }
+
+    /**
+     * @return future which completes when the transfer is applied and durable
+     */
+    CompletableFuture<Void> transfer(int senderSlot, int recipientSlot, long amount, String idempotencyKey);
+
+    /**
+     * Applies netted balance changes atomically.
+     *
+     * @param slots      distinct accounts, the first payerCount ones have negative deltas, the rest have positive ones
+     * @param deltas     balance changes in minor units
+     * @param payerCount number of accounts to debit
+     * @param attachment passed to {@link Commit#commitBatch} as is, null for plain batches
+     * @return future which completes when the batch is applied and durable
+     */
+    CompletableFuture<Void> transferBatch(int[] slots, long[] deltas, int payerCount, String idempotencyKey, Object attachment);
+
+    default CompletableFuture<Void> transferBatch(int[] slots, long[] deltas, int payerCount, String idempotencyKey) {
+        return transferBatch(slots, deltas, payerCount, idempotencyKey, null);
+    }
+
+    /**
+     * Waits for completion of accepted transfers, new ones are rejected.
+     */
+    void shutdown() throws InterruptedException;
+
+    static MoneyTransferException notEnoughMoneyException() {
+        return new MoneyTransferException(500, "Sender doesn't have enough money.");
+    }
+
+    static MoneyTransferException overloadedException() {
+        return new MoneyTransferException(503, "Server is overloaded.");
+    }
+
+    static MoneyTransferException rateLimitedException() {
+        return new MoneyTransferException(429, "Too many requests.");
+    }
+
+    static MoneyTransferException accountNotFoundException(String accountId) {
+        return new MoneyTransferException(400, "Account '" + accountId + "' not found.");
+    }
+
+    /**
+     * Account may be closed after the transfer is validated, so it's checked again inside the epoch.
+     * Closure waits for the epoch to drain, so the account isn't changed after it has been checked by everyone.
+     *
+     * @return exception for the first closed account or null
+     */
+    static MoneyTransferException checkOpen(AccountStore accounts, int... slots) {
+        for (int slot : slots) {
+            if (accounts.isClosed(slot)) return accountNotFoundException(accounts.id(slot));
+        }
+        return null;
+    }
+}
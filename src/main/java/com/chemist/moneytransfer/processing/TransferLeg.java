@@ -0,0 +1,30 @@
+package com.chemist.moneytransfer.processing;
+
+import java.math.BigDecimal;
+
+/**
+ * Single leg of batch transfer, see {@link MoneyTransferService#transferBatch}.
+ */
+public final class TransferLeg {
+    private final String sender;
+    private final String recipient;
+    private final BigDecimal amount;
+
+    public TransferLeg(String sender, String recipient, BigDecimal amount) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.amount = amount;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+}
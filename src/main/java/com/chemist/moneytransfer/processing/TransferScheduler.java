@@ -0,0 +1,380 @@
+package com.chemist.moneytransfer.processing;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Future and recurring transfers.<br/>
+ * Schedules are kept in pages of primitive arrays by index, they reference accounts by slot and the idempotency key
+ * as two longs (see {@link IdempotencyStore#high(String)}), so a pending schedule takes about 70 bytes
+ * including the open addressing key table and its entry in the {@link TimingWheel} of indexes.
+ * Insertion and cancellation are O(1): cancelled schedule is only marked, its index is freed when the wheel,
+ * the due queue or the running transfer gives it back, so the index is never held twice.
+ * <p>
+ * The single thread advances the wheel every tick and releases due runs to the {@link Runner} in batches,
+ * the number of running transfers is bounded, the rest wait in the due queue.
+ * Every run has the key derived from the schedule key and the run number, so the idempotency store
+ * never executes it twice, and runs rejected by overload are retried on the next tick with the same key.
+ * Schedules live in memory only, they aren't journaled, so the service doesn't create the scheduler
+ * when its state is persisted or replicated.
+ */
+class TransferScheduler implements TimingWheel.Owner, AutoCloseable {
+    private static final int PAGE_BITS = 14;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int BATCH_SIZE = 256;
+
+    private static final byte FREE = 0;
+    //in the wheel
+    private static final byte WAITING = 1;
+    //in the due queue
+    private static final byte DUE = 2;
+    private static final byte RUNNING = 3;
+    //it's freed by the current holder
+    private static final byte CANCELLED = 4;
+
+    /**
+     * Starts one run, it must not block.
+     */
+    interface Runner {
+        CompletableFuture<Void> run(int senderSlot, int recipientSlot, long amount, String idempotencyKey);
+    }
+
+    private final Runner runner;
+    private final long tickMillis;
+    private final int maxSchedules;
+    private final int maxInFlight;
+    private final TimingWheel wheel;
+
+    //the rest of fields is guarded by this
+    private Page[] pages = new Page[0];
+    //number of indexes ever used, indexes below it are either live or free
+    private int used;
+    private int[] free = new int[1024];
+    private int freeCount;
+    //index + 1 by key, 0 is empty
+    private int[] keys = new int[1024];
+    private volatile int size;
+
+    //due indexes, ring buffer
+    private int[] due = new int[1024];
+    private int dueHead;
+    private int dueCount;
+    private volatile boolean hasDue;
+
+    //batch of the scheduler thread, it's filled under the lock and released without it
+    private final int[] batchIndexes = new int[BATCH_SIZE];
+    private final int[] batchSenders = new int[BATCH_SIZE];
+    private final int[] batchRecipients = new int[BATCH_SIZE];
+    private final long[] batchAmounts = new long[BATCH_SIZE];
+    private final String[] batchKeys = new String[BATCH_SIZE];
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    final LongAdder succeeded = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder retried = new LongAdder();
+    //runs of schedules whose account was closed, the schedule is dropped
+    final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param tickMillis  resolution of run times
+     * @param maxInFlight maximum number of running transfers
+     */
+    TransferScheduler(Runner runner, long tickMillis, int maxSchedules, int maxInFlight, ThreadFactory threadFactory) {
+        if (tickMillis <= 0 || maxInFlight <= 0) throw new IllegalArgumentException("Invalid scheduler settings");
+        this.runner = runner;
+        this.tickMillis = tickMillis;
+        this.maxSchedules = maxSchedules;
+        this.maxInFlight = maxInFlight;
+        wheel = new TimingWheel(this, now());
+        thread = threadFactory.newThread(this::run);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds the schedule unless there is one with the same key.
+     *
+     * @param firstRunMillis time of the first run, milliseconds since epoch, it's rounded up to the tick
+     * @param periodMillis   time between runs, it's rounded down to the tick, ignored for a single run
+     * @param runs           number of runs, -1 for endless schedule
+     * @return false if the key is already scheduled
+     * @throws MoneyTransferException if there are too many schedules
+     */
+    synchronized boolean add(int senderSlot, int recipientSlot, long amount, long firstRunMillis, long periodMillis,
+                             int runs, String idempotencyKey) {
+        long high = IdempotencyStore.high(idempotencyKey);
+        long low = IdempotencyStore.low(idempotencyKey);
+        if (find(high, low) >= 0) return false;
+        if (size >= maxSchedules) throw new MoneyTransferException(503, "Too many scheduled transfers.");
+
+        int index = freeCount > 0 ? free[--freeCount] : newIndex();
+        Page page = pages[index >>> PAGE_BITS];
+        int i = index & PAGE_MASK;
+        page.senders[i] = senderSlot;
+        page.recipients[i] = recipientSlot;
+        page.amounts[i] = amount;
+        page.deadlines[i] = Math.floorDiv(firstRunMillis + tickMillis - 1, tickMillis);
+        page.periods[i] = (int) Math.min(Integer.MAX_VALUE, Math.max(1, periodMillis / tickMillis));
+        page.remaining[i] = runs;
+        page.runs[i] = 0;
+        page.highs[i] = high;
+        page.lows[i] = low;
+        page.states[i] = WAITING;
+        insertKey(index);
+        size++;
+        wheel.add(index, page.deadlines[i]);
+        return true;
+    }
+
+    /**
+     * Stops future runs, the running one completes.
+     *
+     * @return false if there is no schedule with the key
+     */
+    synchronized boolean cancel(String idempotencyKey) {
+        int position = find(IdempotencyStore.high(idempotencyKey), IdempotencyStore.low(idempotencyKey));
+        if (position < 0) return false;
+        int index = keys[position] - 1;
+        removeKey(position);
+        pages[index >>> PAGE_BITS].states[index & PAGE_MASK] = CANCELLED;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return number of schedules with future runs
+     */
+    int size() {
+        return size;
+    }
+
+    @Override
+    public long deadline(int index) {
+        Page page = pages[index >>> PAGE_BITS];
+        int i = index & PAGE_MASK;
+        if (page.states[i] == CANCELLED) {
+            release(index);
+            return -1;
+        }
+        return page.deadlines[i];
+    }
+
+    @Override
+    public void expire(int index) {
+        pages[index >>> PAGE_BITS].states[index & PAGE_MASK] = DUE;
+        if (dueCount == due.length) {
+            int[] grown = new int[due.length * 2];
+            for (int k = 0; k < dueCount; k++) grown[k] = due[(dueHead + k) & (due.length - 1)];
+            due = grown;
+            dueHead = 0;
+        }
+        due[(dueHead + dueCount) & (due.length - 1)] = index;
+        dueCount++;
+        hasDue = true;
+    }
+
+    private void run() {
+        while (!stopped) {
+            int count = nextBatch();
+            for (int k = 0; k < count; k++) {
+                int index = batchIndexes[k];
+                CompletableFuture<Void> result;
+                try {
+                    result = runner.run(batchSenders[k], batchRecipients[k], batchAmounts[k], batchKeys[k]);
+                } catch (RuntimeException e) {
+                    result = CompletableFuture.failedFuture(e);
+                }
+                batchKeys[k] = null;
+                result.whenComplete((r, e) -> completed(index, e));
+            }
+            //due runs are waiting for free capacity, they are woken up by completions
+            if (count < BATCH_SIZE || inFlight.get() >= maxInFlight) {
+                long nextTick = (now() + 1) * tickMillis;
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, nextTick - System.currentTimeMillis())));
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel and takes due runs up to the free capacity.
+     */
+    private synchronized int nextBatch() {
+        wheel.advance(now());
+        int count = 0;
+        while (count < BATCH_SIZE && dueCount > 0 && inFlight.get() < maxInFlight) {
+            int index = due[dueHead];
+            dueHead = (dueHead + 1) & (due.length - 1);
+            dueCount--;
+            Page page = pages[index >>> PAGE_BITS];
+            int i = index & PAGE_MASK;
+            if (page.states[i] == CANCELLED) {
+                release(index);
+                continue;
+            }
+            page.states[i] = RUNNING;
+            inFlight.incrementAndGet();
+            batchIndexes[count] = index;
+            batchSenders[count] = page.senders[i];
+            batchRecipients[count] = page.recipients[i];
+            batchAmounts[count] = page.amounts[i];
+            batchKeys[count] = runKey(page.highs[i], page.lows[i], page.runs[i]);
+            count++;
+        }
+        hasDue = dueCount > 0;
+        return count;
+    }
+
+    private synchronized void completed(int index, Throwable error) {
+        inFlight.decrementAndGet();
+        Page page = pages[index >>> PAGE_BITS];
+        int i = index & PAGE_MASK;
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        int code = cause instanceof MoneyTransferException ? ((MoneyTransferException) cause).getHttpCode() : 0;
+
+        if (page.states[i] == CANCELLED) {
+            release(index);
+        } else if (code == 503 || code == 429) {
+            //nothing is remembered with the key, the same run is retried
+            retried.increment();
+            page.states[i] = WAITING;
+            wheel.add(index, now() + 1);
+        } else if (code == 400) {
+            //parameters were validated, so the account is closed, its slot is never reused
+            dropped.increment();
+            finish(index);
+        } else {
+            (error == null ? succeeded : failed).increment();
+            page.runs[i]++;
+            if (page.remaining[i] > 0) page.remaining[i]--;
+            if (page.remaining[i] == 0) {
+                finish(index);
+            } else {
+                //runs don't overlap, a late run shifts neither the next ones nor their keys
+                page.deadlines[i] += page.periods[i];
+                page.states[i] = WAITING;
+                wheel.add(index, page.deadlines[i]);
+            }
+        }
+        if (hasDue) LockSupport.unpark(thread);
+    }
+
+    private void finish(int index) {
+        removeKey(find(pages[index >>> PAGE_BITS].highs[index & PAGE_MASK], pages[index >>> PAGE_BITS].lows[index & PAGE_MASK]));
+        size--;
+        release(index);
+    }
+
+    private void release(int index) {
+        pages[index >>> PAGE_BITS].states[index & PAGE_MASK] = FREE;
+        if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+        free[freeCount++] = index;
+    }
+
+    private int newIndex() {
+        int index = used++;
+        int page = index >>> PAGE_BITS;
+        if (page == pages.length) {
+            pages = Arrays.copyOf(pages, page + 1);
+            pages[page] = new Page();
+        }
+        return index;
+    }
+
+    /**
+     * @return position in the key table or -1
+     */
+    private int find(long high, long low) {
+        int mask = keys.length - 1;
+        for (int p = (int) IdempotencyStore.mix(high, low) & mask; ; p = (p + 1) & mask) {
+            int entry = keys[p];
+            if (entry == 0) return -1;
+            Page page = pages[(entry - 1) >>> PAGE_BITS];
+            int i = (entry - 1) & PAGE_MASK;
+            if (page.highs[i] == high && page.lows[i] == low) return p;
+        }
+    }
+
+    private void insertKey(int index) {
+        if ((size + 1) * 4L > keys.length * 3L) {
+            int[] old = keys;
+            keys = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) keys[position(entry - 1)] = entry;
+            }
+        }
+        keys[position(index)] = index + 1;
+    }
+
+    /**
+     * @return empty position for the index
+     */
+    private int position(int index) {
+        int mask = keys.length - 1;
+        Page page = pages[index >>> PAGE_BITS];
+        int p = (int) IdempotencyStore.mix(page.highs[index & PAGE_MASK], page.lows[index & PAGE_MASK]) & mask;
+        while (keys[p] != 0) p = (p + 1) & mask;
+        return p;
+    }
+
+    /**
+     * Backward shift deletion, so the table has no tombstones.
+     */
+    private void removeKey(int position) {
+        int mask = keys.length - 1;
+        int hole = position;
+        for (int p = (position + 1) & mask; keys[p] != 0; p = (p + 1) & mask) {
+            int entry = keys[p];
+            Page page = pages[(entry - 1) >>> PAGE_BITS];
+            int home = (int) IdempotencyStore.mix(page.highs[(entry - 1) & PAGE_MASK], page.lows[(entry - 1) & PAGE_MASK]) & mask;
+            //the entry may fill the hole if its home isn't in the cyclic range (hole, p]
+            if (((p - home) & mask) >= ((p - hole) & mask)) {
+                keys[hole] = entry;
+                hole = p;
+            }
+        }
+        keys[hole] = 0;
+    }
+
+    private long now() {
+        return System.currentTimeMillis() / tickMillis;
+    }
+
+    private static String runKey(long high, long low, int run) {
+        return "schedule:" + Long.toHexString(high) + ':' + Long.toHexString(low) + ':' + run;
+    }
+
+    /**
+     * Stops releasing runs, running transfers complete on their own.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        stopped = true;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+    private static final class Page {
+        final int[] senders = new int[PAGE_SIZE];
+        final int[] recipients = new int[PAGE_SIZE];
+        final long[] amounts = new long[PAGE_SIZE];
+        //ticks
+        final long[] deadlines = new long[PAGE_SIZE];
+        final int[] periods = new int[PAGE_SIZE];
+        //-1 for endless schedule
+        final int[] remaining = new int[PAGE_SIZE];
+        final int[] runs = new int[PAGE_SIZE];
+        final long[] highs = new long[PAGE_SIZE];
+        final long[] lows = new long[PAGE_SIZE];
+        final byte[] states = new byte[PAGE_SIZE];
+    }
+}
@@ -0,0 +1,139 @@
+package com.chemist.moneytransfer.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive limit of requests which are processed concurrently, requests above it are rejected at once
+ * instead of waiting in queues, so latency of admitted ones stays close to the service time without load.<br/>
+ * The limit is recalculated every window by gradient of the service time: the long-term average is compared
+ * with the average of the window. While they are close, the limit grows by its square root, so it finds
+ * the throughput of the server quickly. When queues build up, the window average grows and the limit shrinks
+ * proportionally. Requests dropped by the overloaded service shrink the limit multiplicatively.
+ * <p>
+ * Samples are summed by {@link LongAdder}s, the thread which completes the window recalculates the limit,
+ * so the request path costs two atomic updates of the in-flight counter.
+ */
+final class AdmissionLimiter {
+    /**
+     * Permit of the rejected request, permits of admitted ones are times since {@link #ORIGIN}, so they never reach it.
+     */
+    static final long REJECTED = Long.MIN_VALUE;
+    //fixed origin of permit times, System.nanoTime() alone may be any value, even negative
+    private static final long ORIGIN = System.nanoTime();
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    //too few samples don't tell anything about the latency
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    //window average may exceed the long-term one that much before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    //share of the new value in the limit and in the long-term average
+    private static final double LIMIT_SMOOTHING = 0.2;
+    private static final double LONG_AVERAGE_SMOOTHING = 0.05;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    private final LongAdder sampleNanos = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    //max in-flight requests of the window, the limit doesn't grow if it isn't used
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicLong windowEnd = new AtomicLong(now() + WINDOW_NANOS);
+    //changed by the thread which has completed the window
+    private double longAverageNanos;
+
+    //requests rejected over the limit
+    final LongAdder rejected = new LongAdder();
+
+    AdmissionLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || minLimit > maxLimit) throw new IllegalArgumentException("Invalid admission limits");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * @return permit which must be passed to {@link #release} when the request is done or {@link #REJECTED}
+     */
+    long acquire() {
+        int current = inFlight.incrementAndGet();
+        if (current > limit) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            return REJECTED;
+        }
+        if (current > peak.get()) peak.accumulateAndGet(current, Math::max);
+        return now();
+    }
+
+    /**
+     * @param dropped true if the service has rejected the request because it's overloaded
+     */
+    void release(long permit, boolean dropped) {
+        inFlight.decrementAndGet();
+        long now = now();
+        if (dropped) {
+            drops.increment();
+        } else {
+            sampleNanos.add(now - permit);
+            samples.increment();
+        }
+        long end = windowEnd.get();
+        if (now - end >= 0 && windowEnd.compareAndSet(end, now + WINDOW_NANOS)) update();
+    }
+
+    /**
+     * Returns the permit of the request which was rejected before processing, it isn't a latency sample.
+     */
+    void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    private static long now() {
+        return System.nanoTime() - ORIGIN;
+    }
+
+    private void update() {
+        long count = samples.sumThenReset();
+        long sum = sampleNanos.sumThenReset();
+        long dropCount = drops.sumThenReset();
+        int peakInFlight = peak.getAndSet(inFlight.get());
+        int current = limit;
+
+        if (dropCount > 0) {
+            limit = Math.max(minLimit, (int) (current * BACKOFF_RATIO));
+            return;
+        }
+        if (count < MIN_WINDOW_SAMPLES) return;
+
+        double average = (double) sum / count;
+        if (longAverageNanos == 0) {
+            longAverageNanos = average;
+        } else {
+            longAverageNanos += (average - longAverageNanos) * LONG_AVERAGE_SMOOTHING;
+            //load has gone, so the long-term average forgets the overload faster
+            if (longAverageNanos > 2 * average) longAverageNanos = 2 * average;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longAverageNanos / average));
+        //the limit grows only if requests have used it, otherwise it would grow without load
+        double growth = peakInFlight * 2 >= current ? Math.sqrt(current) : 0;
+        double target = current * gradient + growth;
+        int next = (int) (current + (target - current) * LIMIT_SMOOTHING);
+        if (next == current && target > current) next++;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+}
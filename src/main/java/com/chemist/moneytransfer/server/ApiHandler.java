@@ -1,37 +1,260 @@
 package com.chemist.moneytransfer.server;
 
+import com.chemist.moneytransfer.metrics.Histogram;
+import com.chemist.moneytransfer.metrics.MetricsRegistry;
+import com.chemist.moneytransfer.processing.BalanceSubscription;
+import com.chemist.moneytransfer.processing.Money;
 import com.chemist.moneytransfer.processing.MoneyTransferException;
 import com.chemist.moneytransfer.processing.MoneyTransferService;
+import com.chemist.moneytransfer.processing.RateLimiter;
+import com.chemist.moneytransfer.processing.TransferLeg;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.NettyOutbound;
 import reactor.netty.http.server.HttpServerRequest;
 import reactor.netty.http.server.HttpServerResponse;
 import reactor.util.annotation.Nullable;
 
 import java.math.BigDecimal;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 class ApiHandler {
     private static final Logger log = LoggerFactory.getLogger(ApiHandler.class);
 
+    //legs count is limited by the service, the body is limited here before it's aggregated in memory
+    private static final int MAX_BATCH_BODY_LENGTH = 4 * 1024 * 1024;
+    private static final String ACCOUNT_PATH_PREFIX = "accounts/";
+    private static final String TRANSACTIONS_PATH_SUFFIX = "/transactions";
+    private static final String SCHEDULE_PATH_PREFIX = "scheduled-transfers/";
+    private static final String HOLD_PATH_PREFIX = "holds/";
+    private static final String CAPTURE_PATH_SUFFIX = "/capture";
+    private static final String VOID_PATH_SUFFIX = "/void";
+    //accounts per chunk of streamed snapshot
+    private static final int SNAPSHOT_CHUNK_SIZE = 1024;
+    //entries per chunk of streamed history and limits of the page
+    private static final int HISTORY_CHUNK_SIZE = 256;
+    private static final int DEFAULT_HISTORY_LIMIT = 1000;
+    private static final int MAX_HISTORY_LIMIT = 100_000;
+    //balances polled from the subscription at once, the event loop isn't held by a big subscription
+    private static final int STREAM_POLL_LIMIT = 256;
+    //client rate limit has 2^bits buckets
+    private static final int CLIENT_BUCKET_BITS = 16;
+    private static final AsciiString RETRY_AFTER_SECONDS = AsciiString.of("1");
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final FastThreadLocal<TransferParams> TRANSFER_PARAMS = new FastThreadLocal<>() {
+        @Override
+        protected TransferParams initialValue() {
+            return new TransferParams();
+        }
+    };
+    //constant messages are encoded once, responses share their read-only buffers
+    private static final Map<String, EncodedMessage> ENCODED_MESSAGES = encode(
+            "Page not found.",
+            "Method not allowed.",
+            "'Idempotency-Key' header is required.",
+            "'Idempotency-Key' header is too long.",
+            "'sender' param is required.",
+            "'recipient' param is required.",
+            "'amount' param is required.",
+            "'amount' param has invalid value.",
+            "'id' param is required.",
+            "'account' param is required.",
+            "'id' param has invalid value.",
+            "'cursor' param has invalid value.",
+            "'limit' param has invalid value.",
+            "'ids' param is required.",
+            "'at' param is required.",
+            "'at' param has invalid value.",
+            "'every' param has invalid value.",
+            "'count' param has invalid value.",
+            "Too many scheduled transfers.",
+            "'ttl' param has invalid value.",
+            "Amount is greater than held one.",
+            "Transaction history is disabled.",
+            "Scheduled transfers are disabled with persistence or replication.",
+            "Batch is empty.",
+            "Sender doesn't have enough money.",
+            "Server is overloaded.",
+            "Too many requests.",
+            "Server is shutting down.",
+            "Batch is too big.",
+            "Server is read-only follower.",
+            "Server isn't a follower.",
+            "Unauthorized.",
+            "Forbidden.",
+            "Batch accounts belong to different nodes.",
+            "Transfer isn't completed, retry it with the same Idempotency-Key."
+    );
+
     private final MoneyTransferService service;
+    //the same service in cluster mode, internal calls of other nodes are served only then
+    @Nullable
+    private final ShardedMoneyTransferService cluster;
+    //null if admission control is disabled
+    @Nullable
+    private final AdmissionLimiter limiter;
+    //buckets by hash of client address, null if the limit is disabled
+    @Nullable
+    private final RateLimiter clientLimiter;
+    //bearer token of admin requests, null if admin listener is disabled
+    @Nullable
+    private final byte[] adminSecret;
 
-    ApiHandler(MoneyTransferService service) {
+    private final MetricsRegistry metrics;
+    private final Histogram requestDuration;
+    private final Histogram parseDuration;
+    //counters by http code, they are registered on the first use
+    private final LongAdder[] statusCounters = new LongAdder[600];
+
+    ApiHandler(MoneyTransferService service, @Nullable ShardedMoneyTransferService cluster, MetricsRegistry metrics,
+               @Nullable AdmissionLimiter limiter, @Nullable RateLimiter clientLimiter, @Nullable String adminSecret) {
         this.service = service;
+        this.cluster = cluster;
+        this.metrics = metrics;
+        this.limiter = limiter;
+        this.clientLimiter = clientLimiter;
+        this.adminSecret = adminSecret == null ? null : adminSecret.getBytes(StandardCharsets.UTF_8);
+        requestDuration = metrics.histogram("http_request_duration_seconds", "Time from request routing to response completion.");
+        parseDuration = metrics.histogram("http_request_parse_seconds", "Time of request parameters parsing and validation.");
+        for (int code : new int[]{200, 400, 404, 500, 503}) countStatus(code, 0);
+        if (limiter != null) {
+            metrics.gauge("admission_limit", "Current limit of concurrently processed transfers.", limiter::limit);
+            metrics.gauge("admission_in_flight", "Transfers being processed.", limiter::inFlight);
+            metrics.counter("admission_rejected_total", "Transfers rejected over the limit.", null, null, limiter.rejected::sum);
+        }
+        if (clientLimiter != null) {
+            metrics.counter("rate_limited_total", "Transfers rejected by rate limit.", "scope", "client", clientLimiter::rejected);
+        }
     }
 
     Mono<Void> handle(HttpServerRequest req, HttpServerResponse resp) {
+        long start = System.nanoTime();
+        return route(req, resp, start).doFinally(signal -> requestDuration.recordSince(start));
+    }
+
+    /**
+     * Serves admin listener, every request must have 'Authorization: Bearer {adminSecret}' header.
+     */
+    Mono<Void> handleAdmin(HttpServerRequest req, HttpServerResponse resp) {
+        long start = System.nanoTime();
+        return routeAdmin(req, resp).doFinally(signal -> requestDuration.recordSince(start));
+    }
+
+    private Mono<Void> routeAdmin(HttpServerRequest req, HttpServerResponse resp) {
+        if (!hasToken(req.requestHeaders().get(HttpHeaderNames.AUTHORIZATION), adminSecret)) {
+            return fail(resp, HttpResponseStatus.UNAUTHORIZED.code(), "Unauthorized.");
+        }
+        if (req.path().equals("promote")) {
+            if (req.method() == HttpMethod.POST) {
+                return respond(service.promote(), resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else {
+            return fail(resp, HttpResponseStatus.NOT_FOUND.code(), "Page not found.");
+        }
+    }
+
+    private Mono<Void> route(HttpServerRequest req, HttpServerResponse resp, long start) {
         if (req.path().equals("transfer")) {
             if (req.method() == HttpMethod.POST) {
-                return transfer(req, resp);
+                return transfer(req, resp, start);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().equals("transfers/batch")) {
+            if (req.method() == HttpMethod.POST) {
+                return transferBatch(req, resp, start);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().equals("scheduled-transfers")) {
+            if (req.method() == HttpMethod.POST) {
+                return schedule(req, resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().startsWith(SCHEDULE_PATH_PREFIX)) {
+            if (req.method() == HttpMethod.DELETE) {
+                String idempotencyKey = QueryStringDecoder.decodeComponent(req.path().substring(SCHEDULE_PATH_PREFIX.length()));
+                return respond(service.cancelSchedule(idempotencyKey), resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().equals("holds")) {
+            if (req.method() == HttpMethod.POST) {
+                return hold(req, resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().startsWith(HOLD_PATH_PREFIX)
+                && (req.path().endsWith(CAPTURE_PATH_SUFFIX) || req.path().endsWith(VOID_PATH_SUFFIX))) {
+            if (req.method() == HttpMethod.POST) {
+                return releaseHold(req, resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().equals("accounts")) {
+            if (req.method() == HttpMethod.GET) {
+                return accounts(resp);
+            } else if (req.method() == HttpMethod.POST) {
+                return openAccount(req, resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().equals("accounts/stream")) {
+            if (req.method() == HttpMethod.GET) {
+                return stream(req, resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().startsWith(ACCOUNT_PATH_PREFIX) && req.path().endsWith(TRANSACTIONS_PATH_SUFFIX)) {
+            if (req.method() == HttpMethod.GET) {
+                return transactions(req, resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().startsWith(ACCOUNT_PATH_PREFIX)) {
+            if (req.method() == HttpMethod.GET) {
+                return account(req, resp);
+            } else if (req.method() == HttpMethod.DELETE) {
+                return closeAccount(req, resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (cluster != null && req.path().equals("internal/credit")) {
+            if (req.method() == HttpMethod.POST) {
+                return credit(req, resp);
+            } else {
+                return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
+            }
+        } else if (req.path().equals("metrics")) {
+            if (req.method() == HttpMethod.GET) {
+                return metrics(resp);
             } else {
                 return fail(resp, HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "Method not allowed.");
             }
@@ -40,12 +263,38 @@ class ApiHandler {
         }
     }
 
-    private Mono<Void> transfer(HttpServerRequest req, HttpServerResponse resp) {
+    private Mono<Void> transfer(HttpServerRequest req, HttpServerResponse resp, long start) {
+        if (isRateLimited(req)) return fail(resp, HttpResponseStatus.TOO_MANY_REQUESTS.code(), "Too many requests.");
         var idempotencyKey = req.requestHeaders().get("Idempotency-Key");
         if (isEmpty(idempotencyKey)) {
             return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'Idempotency-Key' header is required.");
         }
 
+        //fast path parses params and looks up accounts without allocations,
+        //the header value, the futures and the response are still allocated per request
+        TransferParams params = TRANSFER_PARAMS.get();
+        switch (params.parse(req.uri())) {
+            case TransferParams.OK:
+                parseDuration.recordSince(start);
+                long permit = admit();
+                if (permit == AdmissionLimiter.REJECTED) return fail(resp, HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Server is overloaded.");
+                return respond(release(permit, service.transfer(params.sender, params.recipient, params.amount,
+                        params.amountScale, idempotencyKey)), resp);
+            case TransferParams.NO_SENDER:
+                return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'sender' param is required.");
+            case TransferParams.NO_RECIPIENT:
+                return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'recipient' param is required.");
+            case TransferParams.NO_AMOUNT:
+                return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param is required.");
+            default:
+                return transferSlowPath(req, resp, start, idempotencyKey);
+        }
+    }
+
+    /**
+     * Parses params which need decoding or have unusual amount format.
+     */
+    private Mono<Void> transferSlowPath(HttpServerRequest req, HttpServerResponse resp, long start, String idempotencyKey) {
         QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
         var sender = queryStringParam(decoder, "sender");
         if (sender.isEmpty() || isEmpty(sender.get())) {
@@ -64,13 +313,482 @@ class ApiHandler {
 
         BigDecimal parsedAmount;
         try {
-            parsedAmount = new BigDecimal(amount.get());
+            parsedAmount = Money.parse(amount.get());
         } catch (Exception e) {
             return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param has invalid value.");
         }
 
-        return Mono.fromFuture(service.transfer(sender.get(), recipient.get(), parsedAmount, idempotencyKey))
-                .then(Mono.defer(resp::send))
+        parseDuration.recordSince(start);
+        long permit = admit();
+        if (permit == AdmissionLimiter.REJECTED) return fail(resp, HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Server is overloaded.");
+        return respond(release(permit, service.transfer(sender.get(), recipient.get(), parsedAmount, idempotencyKey)), resp);
+    }
+
+    /**
+     * Body is plain text, every line is a leg: sender, recipient and amount separated by spaces.
+     */
+    private Mono<Void> transferBatch(HttpServerRequest req, HttpServerResponse resp, long start) {
+        if (isRateLimited(req)) return fail(resp, HttpResponseStatus.TOO_MANY_REQUESTS.code(), "Too many requests.");
+        var idempotencyKey = req.requestHeaders().get("Idempotency-Key");
+        if (isEmpty(idempotencyKey)) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'Idempotency-Key' header is required.");
+        }
+
+        var contentLength = req.requestHeaders().getInt(HttpHeaderNames.CONTENT_LENGTH);
+        if (contentLength != null && contentLength > MAX_BATCH_BODY_LENGTH) {
+            return fail(resp, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE.code(), "Batch is too big.");
+        }
+
+        //chunked body has no Content-Length, so the limit is checked while it's received, before it's buffered whole
+        var received = new AtomicLong();
+        var body = req.receive().doOnNext(buf -> {
+            if (received.addAndGet(buf.readableBytes()) > MAX_BATCH_BODY_LENGTH) {
+                throw new MoneyTransferException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE.code(), "Batch is too big.");
+            }
+        });
+        return ByteBufFlux.fromInbound(body).aggregate().asString(StandardCharsets.UTF_8).defaultIfEmpty("")
+                .flatMap(text -> {
+                    //waiting for the body isn't parsing
+                    long parseStart = System.nanoTime();
+                    List<TransferLeg> legs = new ArrayList<>();
+                    String[] lines = text.split("\n");
+                    for (int i = 0; i < lines.length; i++) {
+                        String line = lines[i].trim();
+                        if (line.isEmpty()) continue;
+                        String[] fields = line.split(" +");
+                        if (fields.length != 3) {
+                            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "Batch line " + (i + 1) + " is invalid.");
+                        }
+                        BigDecimal amount;
+                        try {
+                            amount = Money.parse(fields[2]);
+                        } catch (Exception e) {
+                            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "Batch line " + (i + 1) + " has invalid amount.");
+                        }
+                        legs.add(new TransferLeg(fields[0], fields[1], amount));
+                    }
+                    parseDuration.recordSince(parseStart);
+                    long permit = admit();
+                    if (permit == AdmissionLimiter.REJECTED) return fail(resp, HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Server is overloaded.");
+                    return respond(release(permit, service.transferBatch(legs, idempotencyKey)), resp);
+                })
+                .onErrorResume(MoneyTransferException.class, e -> fail(resp, e.getHttpCode(), e.getMessage()));
+    }
+
+    /**
+     * Adds transfer which runs at 'at' time in milliseconds since epoch. Recurring transfer has 'every' period
+     * in milliseconds and runs 'count' times or until it's cancelled by its Idempotency-Key.
+     */
+    private Mono<Void> schedule(HttpServerRequest req, HttpServerResponse resp) {
+        if (isRateLimited(req)) return fail(resp, HttpResponseStatus.TOO_MANY_REQUESTS.code(), "Too many requests.");
+        var idempotencyKey = req.requestHeaders().get("Idempotency-Key");
+        if (isEmpty(idempotencyKey)) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'Idempotency-Key' header is required.");
+        }
+
+        QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+        var sender = queryStringParam(decoder, "sender");
+        if (sender.isEmpty() || isEmpty(sender.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'sender' param is required.");
+        }
+
+        var recipient = queryStringParam(decoder, "recipient");
+        if (recipient.isEmpty() || isEmpty(recipient.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'recipient' param is required.");
+        }
+
+        var amount = queryStringParam(decoder, "amount");
+        if (amount.isEmpty() || isEmpty(amount.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param is required.");
+        }
+        BigDecimal parsedAmount;
+        try {
+            parsedAmount = Money.parse(amount.get());
+        } catch (Exception e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param has invalid value.");
+        }
+
+        var at = queryStringParam(decoder, "at");
+        if (at.isEmpty() || isEmpty(at.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'at' param is required.");
+        }
+        long firstRunMillis;
+        try {
+            firstRunMillis = Long.parseLong(at.get());
+        } catch (NumberFormatException e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'at' param has invalid value.");
+        }
+
+        var every = queryStringParam(decoder, "every");
+        long periodMillis;
+        int runs;
+        try {
+            periodMillis = every.map(Long::parseLong).orElse(0L);
+        } catch (NumberFormatException e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'every' param has invalid value.");
+        }
+        try {
+            //recurring transfer is endless by default
+            runs = queryStringParam(decoder, "count").map(Integer::parseInt).orElse(every.isPresent() ? -1 : 1);
+        } catch (NumberFormatException e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'count' param has invalid value.");
+        }
+
+        return respond(service.schedule(sender.get(), recipient.get(), parsedAmount, firstRunMillis, periodMillis, runs,
+                idempotencyKey), resp);
+    }
+
+    /**
+     * Reserves 'amount' of 'account' for 'ttl' seconds, Idempotency-Key identifies the hold.
+     */
+    private Mono<Void> hold(HttpServerRequest req, HttpServerResponse resp) {
+        if (isRateLimited(req)) return fail(resp, HttpResponseStatus.TOO_MANY_REQUESTS.code(), "Too many requests.");
+        var idempotencyKey = req.requestHeaders().get("Idempotency-Key");
+        if (isEmpty(idempotencyKey)) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'Idempotency-Key' header is required.");
+        }
+
+        QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+        var accountId = queryStringParam(decoder, "account");
+        if (accountId.isEmpty() || isEmpty(accountId.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'account' param is required.");
+        }
+
+        var amount = queryStringParam(decoder, "amount");
+        if (amount.isEmpty() || isEmpty(amount.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param is required.");
+        }
+        BigDecimal parsedAmount;
+        try {
+            parsedAmount = Money.parse(amount.get());
+        } catch (Exception e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param has invalid value.");
+        }
+
+        var ttl = queryStringParam(decoder, "ttl");
+        long lifetimeSec;
+        try {
+            //zero means the configured lifetime
+            lifetimeSec = ttl.map(Long::parseLong).orElse(0L);
+        } catch (NumberFormatException e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'ttl' param has invalid value.");
+        }
+        if (ttl.isPresent() && lifetimeSec <= 0) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'ttl' param has invalid value.");
+        }
+
+        long permit = admit();
+        if (permit == AdmissionLimiter.REJECTED) return fail(resp, HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Server is overloaded.");
+        return respond(release(permit, service.hold(accountId.get(), parsedAmount, lifetimeSec, idempotencyKey)), resp);
+    }
+
+    /**
+     * Captures the hold to 'recipient' (the whole hold if 'amount' is omitted) or voids it.
+     */
+    private Mono<Void> releaseHold(HttpServerRequest req, HttpServerResponse resp) {
+        if (isRateLimited(req)) return fail(resp, HttpResponseStatus.TOO_MANY_REQUESTS.code(), "Too many requests.");
+        var idempotencyKey = req.requestHeaders().get("Idempotency-Key");
+        if (isEmpty(idempotencyKey)) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'Idempotency-Key' header is required.");
+        }
+        String path = req.path();
+        boolean capture = path.endsWith(CAPTURE_PATH_SUFFIX);
+        String holdKey = QueryStringDecoder.decodeComponent(path.substring(HOLD_PATH_PREFIX.length(),
+                path.length() - (capture ? CAPTURE_PATH_SUFFIX : VOID_PATH_SUFFIX).length()));
+        if (!capture) {
+            long permit = admit();
+            if (permit == AdmissionLimiter.REJECTED) return fail(resp, HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Server is overloaded.");
+            return respond(release(permit, service.voidHold(holdKey, idempotencyKey)), resp);
+        }
+
+        QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+        var recipient = queryStringParam(decoder, "recipient");
+        if (recipient.isEmpty() || isEmpty(recipient.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'recipient' param is required.");
+        }
+        BigDecimal parsedAmount;
+        try {
+            parsedAmount = queryStringParam(decoder, "amount").map(Money::parse).orElse(null);
+        } catch (NumberFormatException e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param has invalid value.");
+        }
+
+        long permit = admit();
+        if (permit == AdmissionLimiter.REJECTED) return fail(resp, HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Server is overloaded.");
+        return respond(release(permit, service.capture(holdKey, recipient.get(), parsedAmount, idempotencyKey)), resp);
+    }
+
+    private Mono<Void> account(HttpServerRequest req, HttpServerResponse resp) {
+        String accountId = QueryStringDecoder.decodeComponent(req.path().substring(ACCOUNT_PATH_PREFIX.length()));
+        try {
+            String balance = service.balance(accountId).toPlainString();
+            //the body is the available balance, funds of open holds are reported aside
+            BigDecimal held = service.heldBalance(accountId);
+            if (held.signum() != 0) resp.header("X-Held-Balance", held.toPlainString());
+            ByteBuf buf = Unpooled.copiedBuffer(balance, StandardCharsets.UTF_8);
+            countStatus(HttpResponseStatus.OK.code(), 1);
+            return resp
+                    .header(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(buf.readableBytes()))
+                    .send(Mono.just(buf))
+                    .then();
+        } catch (MoneyTransferException e) {
+            return fail(resp, e.getHttpCode(), e.getMessage());
+        }
+    }
+
+    /**
+     * The second phase of transfer from account of other cluster node, see {@link ShardedMoneyTransferService}.
+     */
+    private Mono<Void> credit(HttpServerRequest req, HttpServerResponse resp) {
+        if (!cluster.isPeer(req.requestHeaders().get(ShardedMoneyTransferService.CLUSTER_SECRET_HEADER), req.remoteAddress())) {
+            return fail(resp, HttpResponseStatus.FORBIDDEN.code(), "Forbidden.");
+        }
+        var idempotencyKey = req.requestHeaders().get("Idempotency-Key");
+        if (isEmpty(idempotencyKey)) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'Idempotency-Key' header is required.");
+        }
+        QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+        var accountId = queryStringParam(decoder, "account");
+        if (accountId.isEmpty() || isEmpty(accountId.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'account' param is required.");
+        }
+        var amount = queryStringParam(decoder, "amount");
+        if (amount.isEmpty() || isEmpty(amount.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param is required.");
+        }
+        BigDecimal parsedAmount;
+        try {
+            parsedAmount = Money.parse(amount.get());
+        } catch (Exception e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'amount' param has invalid value.");
+        }
+        long permit = admit();
+        if (permit == AdmissionLimiter.REJECTED) return fail(resp, HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Server is overloaded.");
+        return respond(release(permit, cluster.credit(accountId.get(), parsedAmount, idempotencyKey)), resp);
+    }
+
+    private Mono<Void> openAccount(HttpServerRequest req, HttpServerResponse resp) {
+        var accountId = queryStringParam(new QueryStringDecoder(req.uri()), "id");
+        if (accountId.isEmpty() || isEmpty(accountId.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'id' param is required.");
+        }
+        return respond(service.openAccount(accountId.get()), resp);
+    }
+
+    private Mono<Void> closeAccount(HttpServerRequest req, HttpServerResponse resp) {
+        String accountId = QueryStringDecoder.decodeComponent(req.path().substring(ACCOUNT_PATH_PREFIX.length()));
+        return respond(service.closeAccount(accountId), resp);
+    }
+
+    /**
+     * Streams consistent snapshot of all balances, every line is account ID and balance separated by space.
+     */
+    private Mono<Void> accounts(HttpServerResponse resp) {
+        return Mono.fromFuture(service.snapshot())
+                .flatMap(snapshot -> {
+                    int chunks = (snapshot.size() + SNAPSHOT_CHUNK_SIZE - 1) / SNAPSHOT_CHUNK_SIZE;
+                    //the body is encoded lazily by chunks, so big snapshot isn't copied to memory as a whole
+                    Flux<ByteBuf> body = Flux.range(0, chunks).map(chunk -> {
+                        ByteBuf buf = resp.alloc().buffer();
+                        int end = Math.min(snapshot.size(), (chunk + 1) * SNAPSHOT_CHUNK_SIZE);
+                        for (int i = chunk * SNAPSHOT_CHUNK_SIZE; i < end; i++) {
+                            buf.writeCharSequence(snapshot.accountId(i), StandardCharsets.UTF_8);
+                            buf.writeByte(' ');
+                            buf.writeCharSequence(snapshot.balance(i).toPlainString(), StandardCharsets.US_ASCII);
+                            buf.writeByte('\n');
+                        }
+                        return buf;
+                    });
+                    countStatus(HttpResponseStatus.OK.code(), 1);
+                    return resp
+                            .header("X-Snapshot-Version", String.valueOf(snapshot.getVersion()))
+                            .header("X-Total-Balance", snapshot.total().toPlainString())
+                            .send(body)
+                            .then();
+                })
+                .onErrorResume(e -> {
+                    log.error("Unexpected server error", e);
+                    return fail(resp, HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), e.getMessage());
+                });
+    }
+
+    /**
+     * Streams a page of the account history, newest first. Every line is timestamp in milliseconds, signed amount,
+     * counterparty ("-" if there is no single one) and idempotency key separated by spaces.
+     * X-Next-Cursor header is the cursor param of the next page, it's missing on the last one.
+     */
+    private Mono<Void> transactions(HttpServerRequest req, HttpServerResponse resp) {
+        String path = req.path();
+        String accountId = QueryStringDecoder.decodeComponent(
+                path.substring(ACCOUNT_PATH_PREFIX.length(), path.length() - TRANSACTIONS_PATH_SUFFIX.length()));
+        QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+        long cursor;
+        int limit;
+        try {
+            cursor = queryStringParam(decoder, "cursor").map(Long::parseLong).orElse(Long.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'cursor' param has invalid value.");
+        }
+        try {
+            limit = queryStringParam(decoder, "limit").map(Integer::parseInt).orElse(DEFAULT_HISTORY_LIMIT);
+        } catch (NumberFormatException e) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'limit' param has invalid value.");
+        }
+        if (cursor < 0) return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'cursor' param has invalid value.");
+        if (limit <= 0 || limit > MAX_HISTORY_LIMIT) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'limit' param has invalid value.");
+        }
+
+        return Mono.fromFuture(service.history(accountId, cursor, limit))
+                .flatMap(page -> {
+                    int chunks = (page.size() + HISTORY_CHUNK_SIZE - 1) / HISTORY_CHUNK_SIZE;
+                    //entries are read from the history while the body is sent, so the page isn't copied
+                    Flux<ByteBuf> body = Flux.range(0, chunks).map(chunk -> {
+                        ByteBuf buf = resp.alloc().buffer();
+                        int end = Math.min(page.size(), (chunk + 1) * HISTORY_CHUNK_SIZE);
+                        for (int i = chunk * HISTORY_CHUNK_SIZE; i < end; i++) {
+                            buf.writeCharSequence(String.valueOf(page.timestamp(i)), StandardCharsets.US_ASCII);
+                            buf.writeByte(' ');
+                            buf.writeCharSequence(page.amount(i).toPlainString(), StandardCharsets.US_ASCII);
+                            buf.writeByte(' ');
+                            String counterparty = page.counterparty(i);
+                            buf.writeCharSequence(counterparty == null ? "-" : counterparty, StandardCharsets.UTF_8);
+                            buf.writeByte(' ');
+                            buf.writeCharSequence(page.idempotencyKey(i), StandardCharsets.UTF_8);
+                            buf.writeByte('\n');
+                        }
+                        return buf;
+                    });
+                    countStatus(HttpResponseStatus.OK.code(), 1);
+                    if (page.nextCursor() >= 0) resp.header("X-Next-Cursor", String.valueOf(page.nextCursor()));
+                    return resp.send(body).then();
+                })
+                .onErrorResume(e -> {
+                    if (e instanceof MoneyTransferException) {
+                        MoneyTransferException moneyTransferException = (MoneyTransferException) e;
+                        return fail(resp, moneyTransferException.getHttpCode(), moneyTransferException.getMessage());
+                    }
+                    log.error("Unexpected server error", e);
+                    return fail(resp, HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), e.getMessage());
+                });
+    }
+
+    /**
+     * Streams balances of accounts from comma separated 'ids' param: the current ones first, then every change.
+     * Every message is account ID and balance separated by space. It's WebSocket if the client asks for upgrade,
+     * otherwise it's server-sent events.<br/>
+     * Changes are conflated per account while the client doesn't read, so it always gets the latest balance
+     * and the server doesn't buffer anything for it. The stream never completes, so every message is sent and flushed
+     * on its own, the next one is polled when the previous one is written.
+     */
+    private Mono<Void> stream(HttpServerRequest req, HttpServerResponse resp) {
+        var ids = queryStringParam(new QueryStringDecoder(req.uri()), "ids");
+        if (ids.isEmpty() || isEmpty(ids.get())) {
+            return fail(resp, HttpResponseStatus.BAD_REQUEST.code(), "'ids' param is required.");
+        }
+        boolean websocket = req.requestHeaders().containsValue(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET, true);
+
+        return Mono.fromFuture(service.subscribe(List.of(ids.get().split(","))))
+                .flatMap(subscription -> {
+                    Mono<Void> session;
+                    if (websocket) {
+                        countStatus(HttpResponseStatus.SWITCHING_PROTOCOLS.code(), 1);
+                        session = resp.sendWebsocket((in, out) -> {
+                            //the stream ends when the client closes the connection
+                            return updates(subscription, out)
+                                    .takeUntilOther(in.receive().then())
+                                    .concatMap(update -> out.sendObject(new TextWebSocketFrame(update)).then(), 1)
+                                    .then();
+                        });
+                    } else {
+                        countStatus(HttpResponseStatus.OK.code(), 1);
+                        session = resp
+                                .header(HttpHeaderNames.CONTENT_TYPE, "text/event-stream")
+                                .sendHeaders()
+                                .then()
+                                .thenMany(updates(subscription, resp).concatMap(update -> resp.sendObject(
+                                        Unpooled.copiedBuffer("data: " + update + "\n\n", StandardCharsets.UTF_8)).then(), 1))
+                                .then();
+                    }
+                    //the subscription is closed when the stream is disposed,
+                    //the websocket mono completes on handshake already, so only failures are handled here
+                    return session.doOnError(e -> subscription.close());
+                })
+                .onErrorResume(e -> {
+                    Throwable cause = e.getCause() instanceof MoneyTransferException ? e.getCause() : e;
+                    if (cause instanceof MoneyTransferException) {
+                        MoneyTransferException moneyTransferException = (MoneyTransferException) cause;
+                        return fail(resp, moneyTransferException.getHttpCode(), moneyTransferException.getMessage());
+                    }
+                    log.error("Unexpected server error", e);
+                    return fail(resp, HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), e.getMessage());
+                });
+    }
+
+    /**
+     * Balances are polled on the event loop of the connection only while the client has demand,
+     * the transferring thread which has changed the balance only schedules the poll.
+     */
+    private static Flux<String> updates(BalanceSubscription subscription, NettyOutbound out) {
+        EventLoop[] eventLoop = new EventLoop[1];
+        out.withConnection(connection -> eventLoop[0] = connection.channel().eventLoop());
+        return Flux.create(sink -> {
+            Runnable poll = () -> {
+                for (; ; ) {
+                    int limit = (int) Math.min(sink.requestedFromDownstream(), STREAM_POLL_LIMIT);
+                    if (limit <= 0 || sink.isCancelled()) return;
+                    if (subscription.poll(limit, (accountId, balance) -> sink.next(accountId + " " + balance.toPlainString())) < limit) return;
+                }
+            };
+            //polls are serialized by the event loop
+            sink.onRequest(n -> eventLoop[0].execute(poll));
+            sink.onDispose(subscription::close);
+            subscription.start(() -> eventLoop[0].execute(poll));
+        });
+    }
+
+    /**
+     * Client is the remote IP address, its hash selects one of 2^{@link #CLIENT_BUCKET_BITS} buckets.
+     * The address is cached by the channel, so the check doesn't allocate.
+     */
+    private boolean isRateLimited(HttpServerRequest req) {
+        if (clientLimiter == null) return false;
+        InetSocketAddress address = req.remoteAddress();
+        if (address == null || address.getAddress() == null) return false;
+        int bucket = (address.getAddress().hashCode() * 0x9E3779B9) >>> (32 - CLIENT_BUCKET_BITS);
+        return !clientLimiter.tryAcquire(bucket);
+    }
+
+    /**
+     * @return permit of {@link AdmissionLimiter} or {@link AdmissionLimiter#REJECTED} if the request must be rejected
+     * without processing
+     */
+    private long admit() {
+        return limiter == null ? 0 : limiter.acquire();
+    }
+
+    /**
+     * Returns the permit when the result is ready, its latency is the sample of the limiter.
+     */
+    private CompletableFuture<Void> release(long permit, CompletableFuture<Void> result) {
+        if (limiter != null) {
+            result.whenComplete((v, e) -> {
+                Throwable cause = e != null && e.getCause() != null ? e.getCause() : e;
+                int httpCode = cause instanceof MoneyTransferException ? ((MoneyTransferException) cause).getHttpCode() : 0;
+                //rate limited transfer isn't processed, so its latency tells nothing
+                if (httpCode == HttpResponseStatus.TOO_MANY_REQUESTS.code()) limiter.cancel();
+                else limiter.release(permit, httpCode == HttpResponseStatus.SERVICE_UNAVAILABLE.code());
+            });
+        }
+        return result;
+    }
+
+    private Mono<Void> respond(CompletableFuture<Void> result, HttpServerResponse resp) {
+        return Mono.fromFuture(result)
+                .then(Mono.defer(() -> {
+                    countStatus(HttpResponseStatus.OK.code(), 1);
+                    return resp.send();
+                }))
                 .onErrorResume(e -> {
                     if (e instanceof MoneyTransferException) {
                         MoneyTransferException moneyTransferException = (MoneyTransferException) e;
@@ -85,7 +803,43 @@ class ApiHandler {
                 });
     }
 
+    private Mono<Void> metrics(HttpServerResponse resp) {
+        var text = new StringBuilder(16 * 1024);
+        metrics.write(text);
+        ByteBuf buf = Unpooled.copiedBuffer(text, StandardCharsets.UTF_8);
+        countStatus(HttpResponseStatus.OK.code(), 1);
+        return resp
+                .header(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4")
+                .header(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(buf.readableBytes()))
+                .send(Mono.just(buf))
+                .then();
+    }
+
+    private void countStatus(int httpCode, int count) {
+        if (httpCode < 0 || httpCode >= statusCounters.length) return;
+        LongAdder counter = statusCounters[httpCode];
+        if (counter == null) {
+            //registry returns the same counter for the same code, so the race is harmless
+            counter = metrics.counter("http_responses_total", "Responses by http code.", "code", String.valueOf(httpCode));
+            statusCounters[httpCode] = counter;
+        }
+        counter.add(count);
+    }
+
     private Mono<Void> fail(HttpServerResponse resp, int httpCode, String message) {
+        countStatus(httpCode, 1);
+        //every 503 is temporary: overload, shutdown, follower or unavailable cluster node, and so is rate limit
+        if (httpCode == HttpResponseStatus.SERVICE_UNAVAILABLE.code() || httpCode == HttpResponseStatus.TOO_MANY_REQUESTS.code()) {
+            resp.header(HttpHeaderNames.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        }
+        EncodedMessage encoded = ENCODED_MESSAGES.get(message);
+        if (encoded != null) {
+            return resp
+                    .status(httpCode)
+                    .header(HttpHeaderNames.CONTENT_LENGTH, encoded.contentLength)
+                    .send(Mono.just(encoded.body.duplicate()))
+                    .then();
+        }
         ByteBuf buf = Unpooled.copiedBuffer(message, StandardCharsets.UTF_8);
         return resp
                 .status(httpCode)
@@ -94,11 +848,40 @@ class ApiHandler {
                 .then();
     }
 
+    private static Map<String, EncodedMessage> encode(String... messages) {
+        var result = new HashMap<String, EncodedMessage>();
+        for (String message : messages) {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            ByteBuf body = Unpooled.unreleasableBuffer(
+                    Unpooled.directBuffer(bytes.length).writeBytes(bytes).asReadOnly());
+            result.put(message, new EncodedMessage(body, AsciiString.of(String.valueOf(bytes.length))));
+        }
+        return result;
+    }
+
+    private static final class EncodedMessage {
+        final ByteBuf body;
+        final AsciiString contentLength;
+
+        EncodedMessage(ByteBuf body, AsciiString contentLength) {
+            this.body = body;
+            this.contentLength = contentLength;
+        }
+    }
+
     private static Optional<String> queryStringParam(QueryStringDecoder decoder, String name) {
         return Optional.ofNullable(decoder.parameters().get(name))
                 .map(list -> list.get(0));
     }
 
+    /**
+     * Compares in constant time, so the response time doesn't reveal the matching prefix of the token.
+     */
+    private static boolean hasToken(@Nullable String authorization, @Nullable byte[] token) {
+        if (token == null || authorization == null || !authorization.startsWith(BEARER_PREFIX)) return false;
+        return MessageDigest.isEqual(authorization.substring(BEARER_PREFIX.length()).getBytes(StandardCharsets.UTF_8), token);
+    }
+
     private static boolean isEmpty(@Nullable String value) {
         return value == null || value.isEmpty();
     }
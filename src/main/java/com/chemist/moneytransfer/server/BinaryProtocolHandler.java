@@ -0,0 +1,134 @@
+package com.chemist.moneytransfer.server;
+
+import com.chemist.moneytransfer.processing.MoneyTransferException;
+import com.chemist.moneytransfer.processing.MoneyTransferService;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Compact binary transfer protocol for internal callers, one instance per connection.<br/>
+ * Every frame starts with int length of the rest of the frame, all numbers are big-endian.
+ * <p>
+ * Request: long request ID, idempotency key (16 bytes, UUID as two longs), sender and recipient
+ * (unsigned short length + UTF-8 bytes each), long amount in minor units (see {@link Config#balanceMaxScale}).<br/>
+ * Response: long request ID, short status (HTTP code), error message (unsigned short length + UTF-8 bytes, empty on success).
+ * <p>
+ * Clients may pipeline requests, responses are sent in completion order and matched by request ID.
+ * Responses are flushed in batches: one flush is scheduled to the event loop for all responses written before it runs.
+ * When there are too many outstanding requests, reading from the connection is paused.
+ * Malformed frame closes the connection.
+ */
+class BinaryProtocolHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger log = LoggerFactory.getLogger(BinaryProtocolHandler.class);
+
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private final MoneyTransferService service;
+    private final int scale;
+    private final int maxInFlight;
+
+    //all fields below are accessed from the event loop only
+    private int inFlight;
+    private boolean flushScheduled;
+
+    BinaryProtocolHandler(MoneyTransferService service, int scale, int maxInFlight) {
+        this.service = service;
+        this.scale = scale;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Splits the stream to frames, it must be added to the pipeline before the handler.
+     */
+    static LengthFieldBasedFrameDecoder frameDecoder() {
+        return new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf frame = (ByteBuf) msg;
+        long requestId;
+        String idempotencyKey;
+        CharSequence sender;
+        CharSequence recipient;
+        long amount;
+        try {
+            requestId = frame.readLong();
+            idempotencyKey = new UUID(frame.readLong(), frame.readLong()).toString();
+            sender = frame.readCharSequence(frame.readUnsignedShort(), StandardCharsets.UTF_8);
+            recipient = frame.readCharSequence(frame.readUnsignedShort(), StandardCharsets.UTF_8);
+            amount = frame.readLong();
+            if (frame.isReadable()) throw new IndexOutOfBoundsException("Unexpected bytes at the end of frame");
+        } catch (IndexOutOfBoundsException e) {
+            log.debug("Malformed frame from {}: {}", ctx.channel().remoteAddress(), e.getMessage());
+            ctx.close();
+            return;
+        } finally {
+            frame.release();
+        }
+
+        if (++inFlight >= maxInFlight) ctx.channel().config().setAutoRead(false);
+        service.transfer(sender, recipient, amount, scale, idempotencyKey).whenComplete((result, e) -> {
+            if (ctx.executor().inEventLoop()) {
+                complete(ctx, requestId, e);
+            } else {
+                ctx.executor().execute(() -> complete(ctx, requestId, e));
+            }
+        });
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.debug("Binary protocol connection error", cause);
+        ctx.close();
+    }
+
+    private void complete(ChannelHandlerContext ctx, long requestId, Throwable e) {
+        if (--inFlight <= maxInFlight / 2 && !ctx.channel().config().isAutoRead()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+
+        int status = HttpResponseStatus.OK.code();
+        String message = "";
+        if (e instanceof MoneyTransferException) {
+            status = ((MoneyTransferException) e).getHttpCode();
+            message = e.getMessage();
+        } else if (e != null && e.getCause() instanceof MoneyTransferException) {
+            status = ((MoneyTransferException) e.getCause()).getHttpCode();
+            message = e.getCause().getMessage();
+        } else if (e != null) {
+            log.error("Unexpected server error", e);
+            status = HttpResponseStatus.INTERNAL_SERVER_ERROR.code();
+            message = String.valueOf(e.getMessage());
+        }
+
+        int messageLength = ByteBufUtil.utf8Bytes(message);
+        ByteBuf response = ctx.alloc().buffer(4 + 8 + 2 + 2 + messageLength);
+        response.writeInt(8 + 2 + 2 + messageLength)
+                .writeLong(requestId)
+                .writeShort(status)
+                .writeShort(messageLength);
+        response.writeCharSequence(message, StandardCharsets.UTF_8);
+        ctx.write(response, ctx.voidPromise());
+        scheduleFlush(ctx);
+    }
+
+    private void scheduleFlush(ChannelHandlerContext ctx) {
+        if (flushScheduled) return;
+        flushScheduled = true;
+        //the task runs after completions which are already queued to the event loop, so they share the flush
+        ctx.executor().execute(() -> {
+            flushScheduled = false;
+            ctx.flush();
+        });
+    }
+}
@@ -1,5 +1,7 @@
 package com.chemist.moneytransfer.server;
 
+import java.lang.reflect.Field;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class Config {
@@ -10,9 +12,288 @@ public class Config {
     public int port = 4646;
     public String host = "0.0.0.0";
     public int backlog = 10240;
+    /**
+     * Accept HTTP/2 over cleartext (prior knowledge or upgrade) besides HTTP/1.1,
+     * so many concurrent requests may share one connection.
+     */
+    public boolean h2c = false;
+    /**
+     * Maximum number of response flushes which are coalesced into one while requests of the connection are being read,
+     * so responses to pipelined requests from one read are written with one syscall. Zero disables coalescing.
+     */
+    public int flushConsolidationLimit = 256;
+    /**
+     * Port of admin listener which serves POST /promote. Negative value disables it.
+     */
+    public int adminPort = -1;
+    /**
+     * Address of admin listener, it's loopback by default, so only local tools can reach it.
+     */
+    public String adminHost = "127.0.0.1";
+    /**
+     * Token which admin requests send as 'Authorization: Bearer {token}', it's required if admin listener is enabled.
+     */
+    public String adminSecret = null;
+    /**
+     * Port of binary transfer protocol listener, see {@link BinaryProtocolHandler}. Negative value disables it.
+     */
+    public int binaryPort = -1;
+    /**
+     * Maximum number of outstanding binary protocol requests per connection, reading is paused above it.
+     */
+    public int binaryMaxInFlight = 1024;
+
+    /**
+     * Use native epoll transport if it's available (Linux), NIO is used otherwise.
+     */
+    public boolean nativeTransport = true;
+    /**
+     * Number of listeners of every port in epoll mode, they are bound with SO_REUSEPORT and accept on their own threads,
+     * the kernel spreads new connections between them. NIO mode has one listener.
+     */
+    public int acceptors = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    /**
+     * Length of the queue of pending TCP Fast Open connections in epoll mode, zero disables it.
+     */
+    public int tcpFastOpen = 256;
 
     public int nioThreads = Runtime.getRuntime().availableProcessors() / 2;
     public int processingThreads = Runtime.getRuntime().availableProcessors() / 2;
+    /**
+     * How transfers are applied to balances.
+     */
+    public Engine engine = Engine.CAS;
+    /**
+     * Capacity of the queue of processing threads in {@link Engine#CAS} mode.
+     * Transfers are rejected with 503 when it's full.
+     */
+    public int processingQueueSize = 65536;
+    /**
+     * Reject transfers with 503 above adaptive limit of concurrently processed ones instead of queueing them,
+     * see {@link AdmissionLimiter}.
+     */
+    public boolean admissionControl = true;
+    /**
+     * Starting point and bounds of the admission limit.
+     */
+    public int admissionInitialLimit = 1000;
+    public int admissionMinLimit = 16;
+    public int admissionMaxLimit = 100_000;
+    /**
+     * Transfers per second which every sender account may start, above it they are rejected with 429.
+     * Batches are limited by payers, cluster debits by the debited account. Zero disables the limit.
+     */
+    public int accountRateLimit = 0;
+    /**
+     * Transfers which the sender account may start at once after idle time.
+     */
+    public int accountRateBurst = 100;
+    /**
+     * Transfers, batches, schedules and hold operations per second which every client IP address may send over HTTP,
+     * above it they are rejected with 429. Addresses are hashed to a fixed table of buckets, so rare collisions share the limit. Zero disables it.
+     */
+    public int clientRateLimit = 0;
+    public int clientRateBurst = 1000;
+    /**
+     * Capacity of every shard ring in {@link Engine#SHARDED} mode, must be power of 2.
+     * Transfers are rejected with 503 when the ring of the sender shard is full.
+     */
+    public int shardRingSize = 65536;
+    /**
+     * Accounts whose balance is striped from the start, see {@link #maxHotAccounts}.
+     */
+    public List<String> hotAccounts = List.of();
+    /**
+     * Maximum number of hot accounts, configured ones and those detected by contended credits.
+     * Credits to hot account are spread over stripes, so they don't contend in {@link Engine#CAS} mode.
+     * Zero disables striping.
+     */
+    public int maxHotAccounts = 64;
+    /**
+     * Number of stripes of every hot account, must be power of 2. It should be not less than {@link #processingThreads}.
+     */
+    public int hotAccountStripes = 16;
     public int balanceMaxScale = 2;
     public long idempotencyKeyCacheLifetimeSec = TimeUnit.DAYS.toSeconds(1);
+    /**
+     * Maximum number of legs in one batch transfer.
+     */
+    public int maxBatchLegs = 1000;
+    /**
+     * CSV or binary file of initial accounts, it's used instead of accounts passed to the server
+     * if there is no snapshot in {@link #dataDir}. See README for formats.
+     */
+    public String accountsFile = null;
+
+    /**
+     * Directory for journal files. Persistence is disabled if it's null.
+     */
+    public String dataDir = null;
+    /**
+     * Maximum number of journal records which share one fsync.
+     */
+    public int journalBatchSize = 4096;
+    /**
+     * How long journal writer waits for more records before fsync if the batch isn't full.
+     * Zero means that fsync starts as soon as writer is free, batches are still formed while previous fsync is running.
+     */
+    public long journalMaxDelayMicros = 0;
+    /**
+     * How often snapshot of all balances is written. Journal older than the snapshot is deleted.
+     * Zero disables periodic snapshots, the snapshot is still written on shutdown.
+     */
+    public long snapshotIntervalSec = TimeUnit.MINUTES.toSeconds(5);
+
+    /**
+     * Keep history of balance changes of every account in memory, it's served by GET /accounts/{id}/transactions.
+     */
+    public boolean transactionHistory = false;
+    /**
+     * Number of the latest history entries kept per account, older ones are dropped.
+     */
+    public int historyMaxEntries = 10_000;
+    /**
+     * Capacity of the ring of changes waiting to be added to the history, must be power of 2.
+     * Committing threads wait when it's full.
+     */
+    public int historyRingSize = 65536;
+
+    /**
+     * Maximum number of accounts in one subscription of GET /accounts/stream.
+     */
+    public int subscriptionMaxAccounts = 10_000;
+
+    /**
+     * Resolution of scheduled transfer times, see POST /scheduled-transfers.
+     */
+    public long scheduleTickMillis = 100;
+    /**
+     * Maximum number of schedules with future runs, new ones are rejected with 503 above it.
+     */
+    public int maxScheduledTransfers = 50_000_000;
+    /**
+     * Maximum number of running scheduled transfers, due runs above it wait, so they don't crowd out API transfers.
+     */
+    public int scheduledMaxInFlight = 1024;
+
+    /**
+     * Lifetime of holds which don't set it, see POST /holds. Expired holds are voided.
+     */
+    public long holdLifetimeSec = TimeUnit.DAYS.toSeconds(7);
+
+    /**
+     * Port of replication listener, followers connect to it to receive the log of applied changes.
+     * Negative value disables it.
+     */
+    public int replicationPort = -1;
+    /**
+     * Address of replication listener, it's loopback by default, so followers on other hosts need it to be set explicitly.
+     */
+    public String replicationHost = "127.0.0.1";
+    /**
+     * Secret which followers send to the primary replication listener, it's required on both sides of replication.
+     */
+    public String replicationSecret = null;
+    /**
+     * host:port of the primary replication listener. If it's set, the server starts as read-only follower:
+     * it gets the state from the primary and applies its log until it's promoted.
+     */
+    public String replicaOf = null;
+    /**
+     * When transfer future completes in relation to followers.
+     */
+    public ReplicationAck replicationAck = ReplicationAck.ASYNC;
+    /**
+     * How long transfer waits for follower ack in {@link ReplicationAck#ONE_FOLLOWER} mode before it completes anyway,
+     * such transfers are counted by replication_ack_timeouts_total metric.
+     */
+    public long replicationAckTimeoutMillis = 1000;
+    /**
+     * Size of the recent replication log kept in memory, follower which reconnects within it doesn't need the state again.
+     */
+    public long replicationBacklogBytes = 64 * 1024 * 1024;
+
+    /**
+     * host:port of HTTP listener of every cluster node, accounts are split between them by ID hash ranges.
+     * Every node must have the same list. Empty list means single node which owns all accounts.
+     */
+    public List<String> clusterNodes = List.of();
+    /**
+     * Index of this node in {@link #clusterNodes}.
+     */
+    public int clusterNodeIndex = 0;
+    /**
+     * How long the node retries credit of transfer to account of other node while it's unavailable.
+     * The transfer fails with 503 afterwards and completes when it's retried with the same Idempotency-Key.
+     */
+    public long clusterRetryTimeoutMillis = 30_000;
+    /**
+     * Token which nodes send with internal calls, it's required in cluster mode.
+     * Internal calls are accepted only with it and only from addresses of {@link #clusterNodes}.
+     */
+    public String clusterSecret = null;
+
+    /**
+     * Sets the field by name from command line option, it supports fields of primitive, String, enum
+     * and comma separated List&lt;String&gt; types.
+     *
+     * @throws IllegalArgumentException if there is no such field or the value is invalid
+     */
+    public void set(String name, String value) {
+        try {
+            Field field = Config.class.getField(name);
+            Class<?> type = field.getType();
+            if (type == int.class) field.setInt(this, Integer.parseInt(value));
+            else if (type == long.class) field.setLong(this, Long.parseLong(value));
+            else if (type == boolean.class) field.setBoolean(this, Boolean.parseBoolean(value));
+            else if (type == String.class) field.set(this, value);
+            else if (type == List.class) field.set(this, value.isEmpty() ? List.of() : List.of(value.split(",")));
+            else if (type.isEnum()) setEnum(field, name, value);
+            else throw new IllegalArgumentException("Option " + name + " can't be set from command line");
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Unknown option " + name);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <E extends Enum<E>> void setEnum(Field field, String name, String value) throws IllegalAccessException {
+        //the field type is checked by the caller, the cast only restores its type parameter lost by reflection
+        @SuppressWarnings("unchecked")
+        Class<E> type = (Class<E>) field.getType();
+        field.set(this, parseEnum(name, type, value));
+    }
+
+    private static <E extends Enum<E>> E parseEnum(String name, Class<E> type, String value) {
+        try {
+            return Enum.valueOf(type, value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Option " + name + " has invalid value " + value, e);
+        }
+    }
+
+    public enum Engine {
+        /**
+         * Any processing thread can change any account using CAS loops.
+         */
+        CAS,
+        /**
+         * Accounts are partitioned between processing threads, every shard is changed by its own thread only.
+         * Transfers are passed to shards via lock-free ring buffers.
+         */
+        SHARDED
+    }
+
+    public enum ReplicationAck {
+        /**
+         * Transfers don't wait for followers.
+         */
+        ASYNC,
+        /**
+         * Transfer completes when at least one follower has applied it, so failover doesn't lose it.
+         * It's best effort: transfers don't wait if no connected follower acks the log,
+         * and complete after {@link #replicationAckTimeoutMillis} if no ack comes.
+         */
+        ONE_FOLLOWER
+    }
 }
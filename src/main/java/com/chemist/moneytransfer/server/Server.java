@@ -1,17 +1,32 @@
 package com.chemist.moneytransfer.server;
 
 
+import com.chemist.moneytransfer.metrics.MetricsRegistry;
 import com.chemist.moneytransfer.processing.InMemoryMoneyTransferService;
+import com.chemist.moneytransfer.processing.MoneyTransferService;
+import com.chemist.moneytransfer.processing.RateLimiter;
+import com.chemist.moneytransfer.processing.ShardMap;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.netty.DisposableServer;
+import reactor.netty.channel.BootstrapHandlers;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.server.HttpServer;
 import reactor.netty.resources.LoopResources;
 import reactor.netty.tcp.TcpServer;
+import reactor.util.annotation.Nullable;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 /**
  * Warning! SSL termination must be done at frontend level (nginx, haproxy).
@@ -21,60 +36,207 @@ public class Server {
 
     //package private for testing purpose
     final InMemoryMoneyTransferService service;
+    //routes calls to other cluster nodes, it's the local service for single node
+    private final MoneyTransferService api;
     private final HttpServer httpServer;
-    private volatile DisposableServer disposableServer;
+    @Nullable
+    private final TcpServer binaryServer;
+    @Nullable
+    private final HttpServer adminServer;
+    //number of listeners of every port, they share the port with SO_REUSEPORT
+    private final int listeners;
+    //null if the server isn't started
+    private volatile List<DisposableServer> disposableServers;
+    @Nullable
+    private volatile List<DisposableServer> disposableBinaryServers;
+    @Nullable
+    private volatile DisposableServer disposableAdminServer;
 
     public Server(Config config, Map<String, BigDecimal> accounts) {
-        service = new InMemoryMoneyTransferService(config, accounts);
-        var apiHandler = new ApiHandler(service);
+        if (!config.clusterNodes.isEmpty() && (config.clusterSecret == null || config.clusterSecret.isEmpty())) {
+            throw new IllegalArgumentException("Cluster mode requires clusterSecret");
+        }
+        var metrics = new MetricsRegistry();
+        service = new InMemoryMoneyTransferService(config, accounts, metrics);
+        var cluster = config.clusterNodes.isEmpty()
+                ? null
+                : new ShardedMoneyTransferService(service, new ShardMap(config.clusterNodes, config.clusterNodeIndex),
+                config.clusterRetryTimeoutMillis, config.clusterSecret);
+        api = cluster == null ? service : cluster;
+        var limiter = config.admissionControl
+                ? new AdmissionLimiter(config.admissionInitialLimit, config.admissionMinLimit, config.admissionMaxLimit)
+                : null;
+        var clientLimiter = config.clientRateLimit > 0 ? new RateLimiter(config.clientRateLimit, config.clientRateBurst) : null;
+        if (config.adminPort >= 0 && (config.adminSecret == null || config.adminSecret.isEmpty())) {
+            throw new IllegalArgumentException("Admin listener requires adminSecret");
+        }
+        var apiHandler = new ApiHandler(api, cluster, metrics, limiter, clientLimiter, config.adminSecret);
 
-        LoopResources loopResources = LoopResources.create("nio", config.nioThreads, 1, true);
+        boolean epoll = config.nativeTransport && Epoll.isAvailable();
+        if (config.nativeTransport && !epoll) {
+            log.warn("Native epoll transport is unavailable, NIO is used: {}", String.valueOf(Epoll.unavailabilityCause()));
+        }
+        //every listener is registered on its own acceptor thread, connections are served by NIO threads
+        listeners = epoll ? Math.max(1, config.acceptors) : 1;
+        LoopResources loopResources = LoopResources.create(epoll ? "epoll" : "nio", listeners, config.nioThreads, true);
         TcpServer tcpServer = TcpServer.create()
-                .runOn(loopResources, true)
+                .runOn(loopResources, epoll)
                 .selectorOption(ChannelOption.SO_BACKLOG, config.backlog)
                 .selectorOption(ChannelOption.SO_REUSEADDR, true)
                 .host(config.host)
                 .port(config.port);
+        if (epoll) {
+            //the kernel spreads new connections between listeners of the port, so accepts scale with cores
+            tcpServer = tcpServer
+                    .selectorOption(EpollChannelOption.SO_REUSEPORT, listeners > 1)
+                    .selectorOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                    .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+            if (config.tcpFastOpen > 0) tcpServer = tcpServer.selectorOption(EpollChannelOption.TCP_FASTOPEN, config.tcpFastOpen);
+        }
+
+        if (config.flushConsolidationLimit > 0) {
+            //it's the first handler of every connection, so it sees flushes of both HTTP/1.1 and HTTP/2 codecs.
+            //Flushes outside of reading aren't delayed, otherwise streamed responses stall
+            tcpServer = tcpServer.bootstrap(b -> BootstrapHandlers.updateConfiguration(b, "flushConsolidation",
+                    (observer, channel) -> channel.pipeline()
+                            .addFirst(new FlushConsolidationHandler(config.flushConsolidationLimit, false))));
+        }
+
+        httpServer = HttpServer.from(tcpServer)
+                .protocol(config.h2c ? new HttpProtocol[]{HttpProtocol.HTTP11, HttpProtocol.H2C} : new HttpProtocol[]{HttpProtocol.HTTP11})
+                .handle(apiHandler::handle);
 
-        httpServer = HttpServer.from(tcpServer).handle(apiHandler::handle);
+        if (config.binaryPort >= 0) {
+            //the handler answers frames itself, subscription to inbound only enables reading and keeps connection open
+            binaryServer = tcpServer
+                    .port(config.binaryPort)
+                    .doOnConnection(connection -> connection
+                            .addHandlerLast(BinaryProtocolHandler.frameDecoder())
+                            .addHandlerLast(new BinaryProtocolHandler(api, config.balanceMaxScale, config.binaryMaxInFlight)))
+                    .handle((in, out) -> in.receive().then());
+        } else {
+            binaryServer = null;
+        }
+
+        if (config.adminPort >= 0) {
+            //admin requests are rare, so the listener is single one even in epoll mode
+            adminServer = HttpServer.from(tcpServer.host(config.adminHost).port(config.adminPort))
+                    .handle(apiHandler::handleAdmin);
+        } else {
+            adminServer = null;
+        }
     }
 
     public void start() {
-        if (disposableServer != null) throw new IllegalStateException("Server is already started");
-        disposableServer = httpServer.bindNow();
+        if (disposableServers != null) throw new IllegalStateException("Server is already started");
+        var servers = bind(httpServer::bindNow, port -> httpServer.port(port).bindNow());
+        if (binaryServer != null) {
+            var binaryServers = bind(binaryServer::bindNow, port -> binaryServer.port(port).bindNow());
+            disposableBinaryServers = binaryServers;
+            log.info("Binary protocol listener started on {}:{}", binaryServers.get(0).host(), binaryServers.get(0).port());
+        }
+        if (adminServer != null) {
+            var admin = adminServer.bindNow();
+            disposableAdminServer = admin;
+            log.info("Admin listener started on {}:{}", admin.host(), admin.port());
+        }
+        disposableServers = servers;
         Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
-        log.info("Server started on {}:{}", disposableServer.host(), disposableServer.port());
+        log.info("Server started on {}:{} with {} listeners", servers.get(0).host(), servers.get(0).port(), listeners);
+    }
+
+    /**
+     * Binds all listeners of the port, the first one gets the port from the kernel if it's zero.
+     */
+    private List<DisposableServer> bind(Supplier<DisposableServer> first, IntFunction<DisposableServer> other) {
+        var servers = new ArrayList<DisposableServer>(listeners);
+        servers.add(first.get());
+        for (int i = 1; i < listeners; i++) servers.add(other.apply(servers.get(0).port()));
+        return servers;
     }
 
     public int port() {
         checkServerStarted();
-        return disposableServer.port();
+        return disposableServers.get(0).port();
+    }
+
+    /**
+     * @return port of binary protocol listener
+     */
+    public int binaryPort() {
+        checkServerStarted();
+        var binaryServers = disposableBinaryServers;
+        if (binaryServers == null) throw new IllegalStateException("Binary protocol is disabled");
+        return binaryServers.get(0).port();
+    }
+
+    /**
+     * @return port of admin listener
+     */
+    public int adminPort() {
+        checkServerStarted();
+        var admin = disposableAdminServer;
+        if (admin == null) throw new IllegalStateException("Admin listener is disabled");
+        return admin.port();
+    }
+
+    /**
+     * @return port of replication listener
+     */
+    public int replicationPort() {
+        int port = service.replicationPort();
+        if (port < 0) throw new IllegalStateException("Replication is disabled");
+        return port;
     }
 
     public void blockUntilShutdown() {
         checkServerStarted();
-        disposableServer.onDispose().block();
+        disposableServers.get(0).onDispose().block();
     }
 
     public void stop() {
         checkServerStarted();
-        disposableServer.disposeNow();
+        for (DisposableServer server : disposableServers) server.disposeNow();
+        var binaryServers = disposableBinaryServers;
+        if (binaryServers != null) {
+            for (DisposableServer server : binaryServers) server.disposeNow();
+            disposableBinaryServers = null;
+        }
+        var admin = disposableAdminServer;
+        if (admin != null) {
+            admin.disposeNow();
+            disposableAdminServer = null;
+        }
         try {
-            service.shutdown();
+            api.shutdown();
         } catch (InterruptedException e) {
             log.error("Service shutdown is interrupted", e);
         }
-        disposableServer = null;
+        disposableServers = null;
         log.info("Server stopped");
     }
 
     private void checkServerStarted() {
-        if (disposableServer == null) throw new IllegalStateException("Server isn't started");
+        if (disposableServers == null) throw new IllegalStateException("Server isn't started");
     }
 
     public static void main(String[] args) {
         Config config = new Config();
-        var initialAccounts = Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0));
+        //options are --name=value for public fields of Config, e.g. --port=4647 --clusterNodes=host1:4646,host2:4646.
+        //File of initial accounts can be passed as the only other argument, demo accounts are used otherwise.
+        //Initial accounts are used only if there is no snapshot and journal in config.dataDir
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                config.accountsFile = arg;
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Option " + arg + " has no value");
+            config.set(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        var initialAccounts = config.accountsFile == null
+                ? Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0))
+                : Map.<String, BigDecimal>of();
         //todo load config from a local file
         Server server = new Server(config, initialAccounts);
         server.start();
@@ -0,0 +1,369 @@
+package com.chemist.moneytransfer.server;
+
+import com.chemist.moneytransfer.processing.BalanceSnapshot;
+import com.chemist.moneytransfer.processing.BalanceSubscription;
+import com.chemist.moneytransfer.processing.InMemoryMoneyTransferService;
+import com.chemist.moneytransfer.processing.MoneyTransferException;
+import com.chemist.moneytransfer.processing.MoneyTransferService;
+import com.chemist.moneytransfer.processing.ShardMap;
+import com.chemist.moneytransfer.processing.TransactionHistory;
+import com.chemist.moneytransfer.processing.TransferLeg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.util.annotation.Nullable;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes calls to the cluster node which owns the account, see {@link ShardMap}.<br/>
+ * Transfers are run by the node which owns the sender, other nodes forward them there with the same Idempotency-Key.
+ * If the recipient belongs to other node, the transfer is two-phase: the sender is debited locally,
+ * then the recipient is credited by internal call to its node. Both phases are idempotent operations with keys
+ * derived from the transfer key, so a retry of the transfer continues from the phase where it stopped.
+ * Credit is retried while the node is unavailable, and debit is refunded if the credit is rejected by the answer
+ * which the recipient node remembers with the key. The coordinator outcome is kept with the transfer key,
+ * and the journaled refund stops the retry after restart, so the rejected transfer is never credited later.
+ * Batch transfer must have all accounts on one node.
+ */
+final class ShardedMoneyTransferService implements MoneyTransferService {
+    private static final Logger log = LoggerFactory.getLogger(ShardedMoneyTransferService.class);
+
+    static final String CLUSTER_SECRET_HEADER = "X-Cluster-Secret";
+    private static final String DEBIT_SUFFIX = "/debit";
+    private static final String CREDIT_SUFFIX = "/credit";
+    private static final String REFUND_SUFFIX = "/refund";
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    private final InMemoryMoneyTransferService local;
+    private final ShardMap shards;
+    private final long retryTimeoutMillis;
+    private final ConnectionProvider connections;
+    //null for this node
+    private final HttpClient[] clients;
+    private final String secret;
+    private final byte[] secretBytes;
+    //addresses of other nodes, they are resolved on start
+    private final Set<InetAddress> peers = new HashSet<>();
+    private final boolean loopbackPeer;
+
+    ShardedMoneyTransferService(InMemoryMoneyTransferService local, ShardMap shards, long retryTimeoutMillis, String secret) {
+        this.local = local;
+        this.shards = shards;
+        this.retryTimeoutMillis = retryTimeoutMillis;
+        this.secret = secret;
+        secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        //keep-alive connections to other nodes, the pool is kept per node address
+        connections = ConnectionProvider.fixed("cluster", 256);
+        clients = new HttpClient[shards.size()];
+        for (int i = 0; i < clients.length; i++) {
+            if (i == shards.self()) continue;
+            clients[i] = HttpClient.create(connections).baseUrl("http://" + shards.node(i));
+            String host = shards.node(i).substring(0, shards.node(i).lastIndexOf(':'));
+            try {
+                peers.addAll(List.of(InetAddress.getAllByName(host)));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Can't resolve cluster node " + shards.node(i), e);
+            }
+        }
+        loopbackPeer = peers.stream().anyMatch(InetAddress::isLoopbackAddress);
+    }
+
+    @Override
+    public CompletableFuture<Void> transfer(String sender, String recipient, BigDecimal amount, String idempotencyKey) {
+        int senderNode = shards.owner(sender);
+        if (senderNode != shards.self()) {
+            return post(senderNode, "/transfer?sender=" + encode(sender) + "&recipient=" + encode(recipient)
+                    + "&amount=" + amount.toPlainString(), idempotencyKey, null);
+        }
+        int recipientNode = shards.owner(recipient);
+        if (recipientNode == shards.self()) return local.transfer(sender, recipient, amount, idempotencyKey);
+        return transferOut(sender, recipient, recipientNode, amount, idempotencyKey);
+    }
+
+    @Override
+    public CompletableFuture<Void> transfer(CharSequence sender, CharSequence recipient, long amount, int amountScale,
+                                            String idempotencyKey) {
+        //the allocation-free path is kept for transfers inside the node
+        if (shards.owns(sender) && shards.owns(recipient)) {
+            return local.transfer(sender, recipient, amount, amountScale, idempotencyKey);
+        }
+        if (amountScale < 0) return CompletableFuture.failedFuture(new MoneyTransferException(400, "'amount' param has invalid value."));
+        return transfer(sender.toString(), recipient.toString(), BigDecimal.valueOf(amount, amountScale), idempotencyKey);
+    }
+
+    /**
+     * Debits the sender of this node and credits the recipient of the other one.
+     */
+    private CompletableFuture<Void> transferOut(String sender, String recipient, int recipientNode, BigDecimal amount,
+                                                String idempotencyKey) {
+        if (idempotencyKey.length() > InMemoryMoneyTransferService.MAX_ID_LENGTH) {
+            return CompletableFuture.failedFuture(new MoneyTransferException(400, "'Idempotency-Key' header is too long."));
+        }
+        //concurrent retries wait for the running one, and the retry of refunded transfer gets its rejection
+        return local.coordinate(idempotencyKey, () -> runTransferOut(sender, recipient, recipientNode, amount, idempotencyKey));
+    }
+
+    private CompletableFuture<Void> runTransferOut(String sender, String recipient, int recipientNode, BigDecimal amount,
+                                                   String idempotencyKey) {
+        long deadline = System.currentTimeMillis() + retryTimeoutMillis;
+        //a retry after successful debit gets the stored result and goes on to the credit
+        return local.debit(sender, amount, idempotencyKey + DEBIT_SUFFIX)
+                .thenCompose(v -> {
+                    //the outcome is lost on restart, but the refund is durable
+                    if (local.isSucceeded(idempotencyKey + REFUND_SUFFIX)) {
+                        return CompletableFuture.<Void>failedFuture(new MoneyTransferException(409,
+                                "Transfer was rejected by the recipient node and refunded."));
+                    }
+                    return credit(recipientNode, recipient, amount, idempotencyKey, deadline);
+                })
+                .handle((v, e) -> {
+                    if (e == null) return COMPLETED;
+                    Throwable cause = unwrap(e);
+                    if (!(cause instanceof Rejected)) return CompletableFuture.<Void>failedFuture(cause);
+                    //the recipient node has remembered the rejection, so the money never arrives there
+                    MoneyTransferException rejection = ((Rejected) cause).rejection;
+                    return local.credit(sender, amount, idempotencyKey + REFUND_SUFFIX)
+                            .thenCompose(refunded -> CompletableFuture.<Void>failedFuture(rejection));
+                })
+                .thenCompose(f -> f);
+    }
+
+    private CompletableFuture<Void> credit(int node, String recipient, BigDecimal amount, String idempotencyKey, long deadline) {
+        String uri = "/internal/credit?account=" + encode(recipient) + "&amount=" + amount.toPlainString();
+        var client = clients[node].headers(h -> h
+                .set("Idempotency-Key", idempotencyKey + CREDIT_SUFFIX)
+                .set(CLUSTER_SECRET_HEADER, secret));
+        return result(node, client.post().uri(uri).send(Mono.empty()))
+                .handle((v, e) -> {
+                    if (e == null) return COMPLETED;
+                    Throwable cause = unwrap(e);
+                    if (cause instanceof MoneyTransferException && isFinal((MoneyTransferException) cause)) {
+                        return CompletableFuture.<Void>failedFuture(new Rejected((MoneyTransferException) cause));
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        log.warn("Credit {} to node {} isn't done: {}", idempotencyKey, shards.node(node), cause.getMessage());
+                        return CompletableFuture.<Void>failedFuture(new MoneyTransferException(503,
+                                "Transfer isn't completed, retry it with the same Idempotency-Key."));
+                    }
+                    return CompletableFuture.supplyAsync(() -> credit(node, recipient, amount, idempotencyKey, deadline),
+                            CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS))
+                            .thenCompose(f -> f);
+                })
+                .thenCompose(f -> f);
+    }
+
+    /**
+     * Rejections which aren't remembered by the recipient node (overload, rate limit, wrong node or caller)
+     * could change on retry, so the credit is retried and the money is never refunded for them.
+     */
+    private static boolean isFinal(MoneyTransferException e) {
+        int code = e.getHttpCode();
+        return code != 503 && code != 429 && code != 421 && code != 403;
+    }
+
+    @Override
+    public CompletableFuture<Void> transferBatch(List<TransferLeg> legs, String idempotencyKey) {
+        if (legs.isEmpty()) return local.transferBatch(legs, idempotencyKey);
+        int node = shards.owner(legs.get(0).getSender());
+        var body = new StringBuilder();
+        for (TransferLeg leg : legs) {
+            if (shards.owner(leg.getSender()) != node || shards.owner(leg.getRecipient()) != node) {
+                return CompletableFuture.failedFuture(new MoneyTransferException(400, "Batch accounts belong to different nodes."));
+            }
+            body.append(leg.getSender()).append(' ').append(leg.getRecipient()).append(' ')
+                    .append(leg.getAmount().toPlainString()).append('\n');
+        }
+        if (node == shards.self()) return local.transferBatch(legs, idempotencyKey);
+        return post(node, "/transfers/batch", idempotencyKey, body.toString());
+    }
+
+    /**
+     * Credits the account of this node on request of other node, see {@link #transferOut}.
+     * The caller must be checked by {@link #isPeer} first.
+     */
+    CompletableFuture<Void> credit(String accountId, BigDecimal amount, String idempotencyKey) {
+        if (!shards.owns(accountId)) return CompletableFuture.failedFuture(otherNodeException(accountId));
+        return local.credit(accountId, amount, idempotencyKey);
+    }
+
+    @Override
+    public CompletableFuture<Void> openAccount(String accountId) {
+        int node = shards.owner(accountId);
+        if (node == shards.self()) return local.openAccount(accountId);
+        return post(node, "/accounts?id=" + encode(accountId), null, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAccount(String accountId) {
+        int node = shards.owner(accountId);
+        if (node == shards.self()) return local.closeAccount(accountId);
+        return result(node, clients[node].delete().uri("/accounts/" + encode(accountId)));
+    }
+
+    @Override
+    public CompletableFuture<Void> promote() {
+        return local.promote();
+    }
+
+    /**
+     * Balance is read by the owner only, it's a blocking call, so it isn't forwarded.
+     */
+    @Override
+    public BigDecimal balance(String accountId) {
+        if (!shards.owns(accountId)) throw otherNodeException(accountId);
+        return local.balance(accountId);
+    }
+
+    @Override
+    public BigDecimal heldBalance(String accountId) {
+        if (!shards.owns(accountId)) throw otherNodeException(accountId);
+        return local.heldBalance(accountId);
+    }
+
+    /**
+     * Runs are local transfers, so both accounts must belong to this node.
+     */
+    @Override
+    public CompletableFuture<Void> schedule(String sender, String recipient, BigDecimal amount, long firstRunMillis,
+                                            long periodMillis, int runs, String idempotencyKey) {
+        if (!shards.owns(sender)) return CompletableFuture.failedFuture(otherNodeException(sender));
+        if (!shards.owns(recipient)) return CompletableFuture.failedFuture(otherNodeException(recipient));
+        return local.schedule(sender, recipient, amount, firstRunMillis, periodMillis, runs, idempotencyKey);
+    }
+
+    @Override
+    public CompletableFuture<Void> hold(String accountId, BigDecimal amount, long lifetimeSec, String idempotencyKey) {
+        if (!shards.owns(accountId)) return CompletableFuture.failedFuture(otherNodeException(accountId));
+        return local.hold(accountId, amount, lifetimeSec, idempotencyKey);
+    }
+
+    /**
+     * Holds are kept by the node of the payer, captured funds are transferred locally, so the recipient must be there too.
+     */
+    @Override
+    public CompletableFuture<Void> capture(String holdKey, String recipient, BigDecimal amount, String idempotencyKey) {
+        if (!shards.owns(recipient)) return CompletableFuture.failedFuture(otherNodeException(recipient));
+        return local.capture(holdKey, recipient, amount, idempotencyKey);
+    }
+
+    @Override
+    public CompletableFuture<Void> voidHold(String holdKey, String idempotencyKey) {
+        return local.voidHold(holdKey, idempotencyKey);
+    }
+
+    /**
+     * Schedules are kept by the node which has added them.
+     */
+    @Override
+    public CompletableFuture<Void> cancelSchedule(String idempotencyKey) {
+        return local.cancelSchedule(idempotencyKey);
+    }
+
+    /**
+     * History is read by the owner only like the balance, it isn't proxied through the node.
+     */
+    @Override
+    public CompletableFuture<TransactionHistory> history(String accountId, long before, int limit) {
+        if (!shards.owns(accountId)) return CompletableFuture.failedFuture(otherNodeException(accountId));
+        return local.history(accountId, before, limit);
+    }
+
+    /**
+     * @return snapshot of accounts of this node
+     */
+    @Override
+    public CompletableFuture<BalanceSubscription> subscribe(List<String> accountIds) {
+        for (String accountId : accountIds) {
+            if (!shards.owns(accountId)) return CompletableFuture.failedFuture(otherNodeException(accountId));
+        }
+        return local.subscribe(accountIds);
+    }
+
+    @Override
+    public CompletableFuture<BalanceSnapshot> snapshot() {
+        return local.snapshot();
+    }
+
+    @Override
+    public void shutdown() throws InterruptedException {
+        local.shutdown();
+        connections.dispose();
+    }
+
+    private CompletableFuture<Void> post(int node, String uri, String idempotencyKey, String body) {
+        var client = idempotencyKey == null ? clients[node] : clients[node].headers(h -> h.set("Idempotency-Key", idempotencyKey));
+        return result(node, client.post().uri(uri).send(body == null ? Mono.empty() : ByteBufFlux.fromString(Mono.just(body))));
+    }
+
+    /**
+     * Turns response of the other node into the result: 200 is success, other codes are failures with the same message.
+     */
+    private CompletableFuture<Void> result(int node, HttpClient.ResponseReceiver<?> request) {
+        return request
+                .responseSingle((resp, buf) -> buf.asString().defaultIfEmpty("").map(message -> {
+                    if (resp.status().code() != 200) throw new MoneyTransferException(resp.status().code(), message);
+                    return message;
+                }))
+                .toFuture()
+                .handle((message, e) -> {
+                    if (e == null) return null;
+                    Throwable cause = unwrap(e);
+                    if (cause instanceof MoneyTransferException) throw (MoneyTransferException) cause;
+                    throw new MoneyTransferException(503, "Node " + shards.node(node) + " is unavailable.");
+                });
+    }
+
+    /**
+     * Internal call is accepted with the cluster secret from address of other node only, so leaked secret alone
+     * doesn't let clients mint money. The secret is compared in constant time.
+     */
+    boolean isPeer(@Nullable String callerSecret, @Nullable InetSocketAddress caller) {
+        if (callerSecret == null || caller == null || caller.getAddress() == null) return false;
+        InetAddress address = caller.getAddress();
+        //local node may connect by any loopback address, e.g. ::1 while 'localhost' resolves to 127.0.0.1
+        boolean known = address.isLoopbackAddress() ? loopbackPeer : peers.contains(address);
+        if (!known) return false;
+        return MessageDigest.isEqual(callerSecret.getBytes(StandardCharsets.UTF_8), secretBytes);
+    }
+
+    private MoneyTransferException otherNodeException(String accountId) {
+        return new MoneyTransferException(421, "Account '" + accountId + "' belongs to node " + shards.node(shards.owner(accountId)) + ".");
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * Final rejection of the credit by the recipient node.
+     */
+    private static final class Rejected extends RuntimeException {
+        final MoneyTransferException rejection;
+
+        Rejected(MoneyTransferException rejection) {
+            super(rejection.getMessage(), null, false, false);
+            this.rejection = rejection;
+        }
+    }
+}
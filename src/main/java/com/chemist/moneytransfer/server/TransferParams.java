@@ -0,0 +1,142 @@
+package com.chemist.moneytransfer.server;
+
+/**
+ * Reusable parser of transfer query string params.<br/>
+ * It scans the URI in place: account IDs are views of the URI and amount is parsed straight to fixed-point,
+ * so parsing of a usual request doesn't allocate anything.
+ * Requests which need decoding (percent-encoded or '+' chars) or have unusual amount format
+ * are reported as {@link #SLOW_PATH}, they must be parsed by QueryStringDecoder.<br/>
+ * The parser isn't thread safe, it's used as a thread local.
+ */
+class TransferParams {
+    static final int OK = 0;
+    static final int NO_SENDER = 1;
+    static final int NO_RECIPIENT = 2;
+    static final int NO_AMOUNT = 3;
+    static final int SLOW_PATH = 4;
+
+    //longer unscaled amount may not fit long
+    private static final int MAX_AMOUNT_DIGITS = 18;
+
+    final Slice sender = new Slice();
+    final Slice recipient = new Slice();
+    //amount without decimal point and number of digits after it
+    long amount;
+    int amountScale;
+
+    private int amountStart;
+    private int amountEnd;
+
+    /**
+     * Fills params from the URI, the URI must not be changed while params are used.
+     *
+     * @return {@link #OK}, code of the first missing param or {@link #SLOW_PATH}
+     */
+    int parse(String uri) {
+        sender.reset(uri);
+        recipient.reset(uri);
+        amountStart = amountEnd = -1;
+
+        int pos = uri.indexOf('?');
+        if (pos >= 0) {
+            pos++;
+            while (pos <= uri.length()) {
+                int end = pos;
+                int eq = -1;
+                for (; end < uri.length(); end++) {
+                    char c = uri.charAt(end);
+                    if (c == '&') break;
+                    if (c == '=' && eq < 0) eq = end;
+                    else if (c == '%' || c == '+' || c == ';' || c == '#') return SLOW_PATH;
+                }
+                int nameEnd = eq < 0 ? end : eq;
+                int valueStart = eq < 0 ? end : eq + 1;
+                //the first occurrence of the param wins like in QueryStringDecoder
+                if (isName(uri, pos, nameEnd, "sender")) {
+                    if (sender.start < 0) sender.set(valueStart, end);
+                } else if (isName(uri, pos, nameEnd, "recipient")) {
+                    if (recipient.start < 0) recipient.set(valueStart, end);
+                } else if (isName(uri, pos, nameEnd, "amount")) {
+                    if (amountStart < 0) {
+                        amountStart = valueStart;
+                        amountEnd = end;
+                    }
+                }
+                pos = end + 1;
+            }
+        }
+
+        if (sender.length() == 0) return NO_SENDER;
+        if (recipient.length() == 0) return NO_RECIPIENT;
+        if (amountEnd - amountStart <= 0) return NO_AMOUNT;
+        return parseAmount(uri) ? OK : SLOW_PATH;
+    }
+
+    /**
+     * Accepts only plain digits with optional fraction, everything else is left to BigDecimal.
+     */
+    private boolean parseAmount(String uri) {
+        long value = 0;
+        int digits = 0;
+        int dot = -1;
+        for (int i = amountStart; i < amountEnd; i++) {
+            char c = uri.charAt(i);
+            if (c == '.' && dot < 0) {
+                dot = i;
+            } else if (c >= '0' && c <= '9') {
+                if (++digits > MAX_AMOUNT_DIGITS) return false;
+                value = value * 10 + (c - '0');
+            } else {
+                return false;
+            }
+        }
+        //"5." and ".5" are valid for BigDecimal, but they are rare enough for the slow path
+        if (dot == amountStart || dot == amountEnd - 1) return false;
+        amount = value;
+        amountScale = dot < 0 ? 0 : amountEnd - dot - 1;
+        return true;
+    }
+
+    private static boolean isName(String uri, int start, int end, String name) {
+        return end - start == name.length() && uri.regionMatches(start, name, 0, name.length());
+    }
+
+    /**
+     * Mutable view of the part of a string.
+     */
+    static final class Slice implements CharSequence {
+        private String source;
+        private int start;
+        private int end;
+
+        private void reset(String source) {
+            this.source = source;
+            start = end = -1;
+        }
+
+        private void set(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return source.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return source.substring(this.start + start, this.start + end);
+        }
+
+        @Override
+        public String toString() {
+            return start < 0 ? "" : source.substring(start, end);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.chemist.moneytransfer.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsRegistryTest {
+    @Test
+    void histogramBuckets() {
+        var histogram = new Histogram();
+        histogram.record(1);
+        histogram.record(1024);
+        histogram.record(1025);
+        histogram.record(Long.MAX_VALUE / 2);
+        long[] values = histogram.read();
+        assertEquals(2, values[0]);
+        assertEquals(1, values[1]);
+        assertEquals(1, values[Histogram.BUCKETS]);
+    }
+
+    @Test
+    void histogramFromManyThreads() throws InterruptedException {
+        var histogram = new Histogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) histogram.record(2000);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        long[] values = histogram.read();
+        assertEquals(80000, values[1]);
+        assertEquals(80000L * 2000, values[Histogram.BUCKETS + 1]);
+    }
+
+    @Test
+    void prometheusFormat() {
+        var registry = new MetricsRegistry();
+        registry.counter("responses_total", "Responses.", "code", "200").add(3);
+        assertSame(registry.counter("responses_total", "Responses.", "code", "200"),
+                registry.counter("responses_total", "Responses.", "code", "200"));
+        registry.gauge("keys", "Keys.", () -> 42);
+        registry.histogram("latency_seconds", "Latency.").record(1000);
+
+        var out = new StringBuilder();
+        registry.write(out);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE responses_total counter\nresponses_total{code=\"200\"} 3\n"), text);
+        assertTrue(text.contains("# TYPE keys gauge\nkeys 42\n"), text);
+        assertTrue(text.contains("latency_seconds_bucket{le=\"1.024E-6\"} 1\n"), text);
+        assertTrue(text.contains("latency_seconds_bucket{le=\"+Inf\"} 1\nlatency_seconds_sum 1.0E-6\nlatency_seconds_count 1\n"), text);
+    }
+}
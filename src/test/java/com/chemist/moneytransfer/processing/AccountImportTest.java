@@ -0,0 +1,111 @@
+package com.chemist.moneytransfer.processing;
+
+import com.chemist.moneytransfer.server.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AccountImportTest {
+    private static final int ACCOUNTS = 10000;
+
+    private Path dir;
+
+    @BeforeEach
+    void init() throws IOException {
+        dir = Files.createTempDirectory("import-test");
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void csvIsSplitAtLineBoundaries() throws IOException {
+        var csv = new StringBuilder("id,balance\n");
+        for (int i = 0; i < ACCOUNTS; i++) {
+            csv.append("acc").append(i).append(',').append(i % 3 == 0 ? i + ".5" : String.valueOf(i));
+            csv.append(i % 2 == 0 ? "\r\n" : "\n");
+            if (i % 100 == 0) csv.append('\n');
+        }
+        Path file = dir.resolve("accounts.csv");
+        Files.writeString(file, csv);
+
+        //tiny chunks make lines cross chunk boundaries at every possible position
+        for (int chunkSize : new int[]{7, 64, AccountImport.CHUNK_SIZE}) {
+            var imported = AccountImport.load(file, 2, chunkSize);
+            assertEquals(ACCOUNTS, imported.ids.length);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                assertEquals("acc" + i, imported.ids[i]);
+                assertEquals(i * 100L + (i % 3 == 0 ? 50 : 0), imported.balances[i]);
+            }
+        }
+    }
+
+    @Test
+    void binaryIsSplitAtRecordBoundaries() throws IOException {
+        var buf = ByteBuffer.allocate(12 + ACCOUNTS * 32);
+        buf.putInt(AccountImport.BINARY_MAGIC).putInt(2).putInt(ACCOUNTS);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            JournalRecord.putString(buf, "acc" + i);
+            buf.putLong(i);
+        }
+        Path file = dir.resolve("accounts.bin");
+        Files.write(file, Arrays.copyOf(buf.array(), buf.position()));
+
+        var imported = AccountImport.load(file, 2, 100);
+        assertEquals(ACCOUNTS, imported.ids.length);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertEquals("acc" + i, imported.ids[i]);
+            assertEquals(i, imported.balances[i]);
+        }
+
+        var exception = assertThrows(IllegalArgumentException.class, () -> AccountImport.load(file, 3));
+        assertEquals("Account file balance scale 2 differs from configured one", exception.getMessage());
+    }
+
+    @Test
+    void invalidCsvLine() throws IOException {
+        Path file = dir.resolve("accounts.csv");
+        Files.writeString(file, "a,1\nb,1.234\n");
+        var exception = assertThrows(IllegalArgumentException.class, () -> AccountImport.load(file, 2));
+        assertEquals("Invalid account record at byte 4: invalid balance", exception.getMessage());
+
+        //duplicates are found by the index which is built in parallel too
+        Files.writeString(file, "a,1\nb,1\na,2\n");
+        var imported = AccountImport.load(file, 2, 4);
+        exception = assertThrows(IllegalArgumentException.class, () -> new AccountStore(imported.ids, imported.balances, 0));
+        assertEquals("Duplicate account 'a'", exception.getMessage());
+    }
+
+    @Test
+    void serviceImportsAccountsFile() throws Exception {
+        Path file = dir.resolve("accounts.csv");
+        Files.writeString(file, "a,10\nb,0\n");
+        Config config = new Config();
+        config.accountsFile = file.toString();
+        var service = new InMemoryMoneyTransferService(config, Map.of());
+        try {
+            service.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+            assertEquals(new BigDecimal("7.50"), service.balance("a"));
+            assertEquals(new BigDecimal("2.50"), service.balance("b"));
+        } finally {
+            service.shutdown();
+        }
+    }
+}
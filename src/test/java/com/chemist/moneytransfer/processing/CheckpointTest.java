@@ -0,0 +1,174 @@
+package com.chemist.moneytransfer.processing;
+
+import com.chemist.moneytransfer.server.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CheckpointTest {
+    private static final int ACCOUNTS = 10;
+
+    private Path dir;
+    private Config config;
+    private Map<String, BigDecimal> initialAccounts;
+
+    @BeforeEach
+    void init() throws IOException {
+        dir = Files.createTempDirectory("checkpoint-test");
+        config = new Config();
+        config.dataDir = dir.toString();
+        config.snapshotIntervalSec = 0;
+        initialAccounts = new HashMap<>();
+        for (int i = 0; i < ACCOUNTS; i++) initialAccounts.put("acc" + i, BigDecimal.valueOf(100));
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Takes snapshots while two threads do random transfers.
+     * Every snapshot must contain the same total amount of money.
+     */
+    @Test
+    void snapshotsAreConsistentUnderLoad() throws Exception {
+        checkSnapshotsUnderLoad();
+    }
+
+    @Test
+    void snapshotsAreConsistentUnderLoadInShardedMode() throws Exception {
+        config.engine = Config.Engine.SHARDED;
+        config.processingThreads = 3;
+        checkSnapshotsUnderLoad();
+    }
+
+    private void checkSnapshotsUnderLoad() throws Exception {
+        var service = new InMemoryMoneyTransferService(config, initialAccounts);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CountDownLatch latch = new CountDownLatch(2);
+        for (int t = 0; t < 2; t++) {
+            int seed = t;
+            executor.execute(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 3000; i++) {
+                    transferIgnoringFailure(service, random);
+                }
+                latch.countDown();
+            });
+        }
+
+        long total = ACCOUNTS * 100 * 100;
+        while (latch.getCount() > 0) {
+            service.checkpoint();
+            assertEquals(total, LongStream.of(SnapshotFile.loadLatest(dir).balances).sum());
+        }
+        executor.shutdown();
+        service.shutdown();
+    }
+
+    @Test
+    void restartUsesSnapshotAndJournalTail() throws Exception {
+        var service = new InMemoryMoneyTransferService(config, initialAccounts);
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) transferIgnoringFailure(service, random);
+        service.checkpoint();
+        for (int i = 0; i < 500; i++) transferIgnoringFailure(service, random);
+
+        //start the second instance without shutdown of the first one, it's like crash after the last fsync
+        var recovered = new InMemoryMoneyTransferService(config, Map.of());
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertEquals(service.balance("acc" + i), recovered.balance("acc" + i));
+        }
+        recovered.shutdown();
+        service.shutdown();
+    }
+
+    @Test
+    void restartReplaysOpenedAndClosedAccounts() throws Exception {
+        var service = new InMemoryMoneyTransferService(config, initialAccounts);
+        service.openAccount("before").join();
+        service.openAccount("closed").join();
+        service.checkpoint();
+        service.transfer("acc0", "before", BigDecimal.ONE, "key1").join();
+        service.openAccount("after").join();
+        service.transfer("acc0", "after", BigDecimal.ONE, "key2").join();
+        service.closeAccount("closed").join();
+
+        var recovered = new InMemoryMoneyTransferService(config, Map.of());
+        assertEquals(new BigDecimal("1.00"), recovered.balance("before"));
+        assertEquals(new BigDecimal("1.00"), recovered.balance("after"));
+        var exception = assertThrows(MoneyTransferException.class, () -> recovered.balance("closed"));
+        assertEquals(404, exception.getHttpCode());
+
+        //closed account isn't written to the snapshot
+        recovered.checkpoint();
+        assertEquals(ACCOUNTS + 2, SnapshotFile.loadLatest(dir).ids.length);
+        recovered.shutdown();
+        service.shutdown();
+    }
+
+    @Test
+    void restartRestoresHoldsFromSnapshot() throws Exception {
+        var service = new InMemoryMoneyTransferService(config, initialAccounts);
+        service.hold("acc0", BigDecimal.TEN, 60, "hold1").join();
+        service.hold("acc0", BigDecimal.TEN, 60, "hold2").join();
+        service.checkpoint();
+        service.capture("hold2", "acc1", new BigDecimal("4"), "capture2").join();
+        service.hold("acc0", BigDecimal.ONE, 60, "hold3").join();
+
+        var recovered = new InMemoryMoneyTransferService(config, Map.of());
+        assertEquals(new BigDecimal("85.00"), recovered.balance("acc0"));
+        assertEquals(new BigDecimal("11.00"), recovered.heldBalance("acc0"));
+        assertEquals(new BigDecimal("104.00"), recovered.balance("acc1"));
+        recovered.capture("hold1", "acc1", null, "capture1").join();
+        recovered.voidHold("hold3", "void3").join();
+        assertEquals(new BigDecimal("86.00"), recovered.balance("acc0"));
+        assertEquals(new BigDecimal("0.00"), recovered.heldBalance("acc0"));
+        assertEquals(new BigDecimal("114.00"), recovered.balance("acc1"));
+
+        //the hold isn't lost when the recovered state is written again
+        var open = new InMemoryMoneyTransferService(config, Map.of());
+        open.checkpoint();
+        open.hold("acc2", BigDecimal.ONE, 60, "hold4").join();
+        open.checkpoint();
+        var reloaded = new InMemoryMoneyTransferService(config, Map.of());
+        assertEquals(new BigDecimal("1.00"), reloaded.heldBalance("acc2"));
+        reloaded.shutdown();
+        open.shutdown();
+        recovered.shutdown();
+        service.shutdown();
+    }
+
+    private static void transferIgnoringFailure(InMemoryMoneyTransferService service, Random random) {
+        CompletableFuture<Void> future = service.transfer("acc" + random.nextInt(ACCOUNTS), "acc" + random.nextInt(ACCOUNTS),
+                BigDecimal.valueOf(1 + random.nextInt(5000), 2), UUID.randomUUID().toString());
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof MoneyTransferException)) throw e;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.chemist.moneytransfer.processing;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HoldStoreTest {
+    @Test
+    void holdIsReleasedOnce() {
+        var store = new HoldStore();
+        int expiresAt = HoldStore.now() + 60;
+        assertTrue(store.add(1, 2, 7, 500, expiresAt));
+        assertFalse(store.add(1, 2, 7, 100, expiresAt));
+        assertEquals(500, store.amount(1, 2));
+
+        var hold = store.remove(1, 2);
+        assertEquals(7, hold.payerSlot);
+        assertEquals(500, hold.amount);
+        assertNull(store.remove(1, 2));
+        assertEquals(-1, store.amount(1, 2));
+
+        //failed release returns it
+        store.restore(hold);
+        assertTrue(store.contains(1, 2));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void expiredHoldsAreTaken() {
+        var store = new HoldStore();
+        int now = HoldStore.now();
+        for (int i = 0; i < 10_000; i++) store.add(i, i, i, 1, now + 1 + i % 2 * 3600);
+        //removed holds don't expire
+        store.remove(0, 0);
+
+        assertTrue(store.expire(now).isEmpty());
+        var expired = store.expire(now + 1);
+        assertEquals(4_999, expired.size());
+        for (var hold : expired) assertEquals(0, hold.high % 2);
+        assertEquals(5_000, store.size());
+        assertEquals(4_999, store.expired.sum());
+    }
+
+    @Test
+    void holdsTakenForReleaseSurviveRehash() {
+        var store = new HoldStore();
+        int now = HoldStore.now();
+        //more than a table of every segment, expired holds stay in the tables until their voids are committed
+        for (int i = 0; i < 20_000; i++) store.add(i, i, 1, 1, now + 1);
+        assertEquals(20_000, store.expire(now + 1).size());
+        for (int i = 20_000; i < 40_000; i++) assertTrue(store.add(i, i, 1, 1, now + 60));
+
+        assertEquals(20_000, store.size());
+        for (int i = 0; i < 20_000; i++) assertTrue(store.contains(i, i));
+        for (int i = 0; i < 20_000; i++) assertTrue(store.released(i, i));
+        //tombstones of released holds are dropped by the next rehash
+        for (int i = 40_000; i < 60_000; i++) assertTrue(store.add(i, i, 1, 1, now + 60));
+        assertEquals(40_000, store.size());
+    }
+
+    @Test
+    void heldFundsArePerAccount() {
+        var store = new HoldStore();
+        store.addHeld(3, 100);
+        store.addHeld(3, -40);
+        store.addHeld(1_000_000, 5);
+        assertEquals(60, store.held(3));
+        assertEquals(5, store.held(1_000_000));
+        assertEquals(0, store.held(4));
+        assertEquals(0, store.held(5_000_000));
+    }
+}
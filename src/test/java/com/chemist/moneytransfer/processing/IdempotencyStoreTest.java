@@ -0,0 +1,133 @@
+package com.chemist.moneytransfer.processing;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyStoreTest {
+    @Test
+    void uuidKeysAreEncodedExactly() {
+        UUID uuid = UUID.randomUUID();
+        assertEquals(uuid.getMostSignificantBits(), IdempotencyStore.high(uuid.toString()));
+        assertEquals(uuid.getLeastSignificantBits(), IdempotencyStore.low(uuid.toString()));
+    }
+
+    @Test
+    void duplicateReturnsRunningThenCompletedResult() {
+        var store = new IdempotencyStore(60);
+        var calls = new AtomicInteger();
+        var operation = new CompletableFuture<Void>();
+
+        var first = store.execute("key", () -> {
+            calls.incrementAndGet();
+            return operation;
+        });
+        var second = store.execute("key", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        assertSame(first, second);
+
+        store.succeeded("key");
+        operation.complete(null);
+        store.execute("key", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }).join();
+        assertEquals(1, calls.get());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void failureIsRemembered() {
+        var store = new IdempotencyStore(60);
+        store.execute("key", () -> CompletableFuture.failedFuture(new MoneyTransferException(500, "No money.")));
+
+        var exception = assertThrows(CompletionException.class,
+                () -> store.execute("key", () -> CompletableFuture.completedFuture(null)).join());
+        assertEquals("No money.", exception.getCause().getMessage());
+    }
+
+    @Test
+    void failuresWithDistinctMessagesAreRemembered() {
+        var store = new IdempotencyStore(60);
+        //more than the interned codes, messages have account IDs
+        for (int i = 0; i < 10_000; i++) {
+            var failure = new MoneyTransferException(404, "Account 'acc" + i + "' not found.");
+            store.execute("key" + i, () -> CompletableFuture.failedFuture(failure));
+        }
+
+        for (int i = 0; i < 10_000; i++) {
+            String key = "key" + i;
+            var exception = assertThrows(CompletionException.class,
+                    () -> store.execute(key, () -> CompletableFuture.completedFuture(null)).join());
+            assertEquals("Account 'acc" + i + "' not found.", exception.getCause().getMessage());
+        }
+    }
+
+    @Test
+    void unexpectedFailureIsForgotten() {
+        var store = new IdempotencyStore(60);
+        store.execute("key", () -> CompletableFuture.failedFuture(new IllegalStateException("disk failure")));
+
+        store.execute("key", () -> CompletableFuture.completedFuture(null)).join();
+    }
+
+    @Test
+    void manyKeysSurviveRehash() {
+        var store = new IdempotencyStore(60);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            String key = i % 2 == 0 ? UUID.randomUUID().toString() : "key" + i;
+            keys.add(key);
+            store.execute(key, () -> CompletableFuture.completedFuture(null));
+            store.succeeded(key);
+        }
+        assertEquals(keys.size(), store.size());
+        for (String key : keys) {
+            store.execute(key, () -> {
+                throw new AssertionError("key " + key + " is lost");
+            }).join();
+        }
+    }
+
+    @Test
+    void timingWheelExpiresInOrder() {
+        long[] deadlines = new long[1000];
+        long[] now = {100_000};
+        List<Integer> expired = new ArrayList<>();
+        var wheel = new TimingWheel(new TimingWheel.Owner() {
+            @Override
+            public long deadline(int payload) {
+                return deadlines[payload];
+            }
+
+            @Override
+            public void expire(int payload) {
+                assertTrue(deadlines[payload] <= now[0]);
+                expired.add(payload);
+                deadlines[payload] = -1;
+            }
+        }, 0);
+        for (int i = 0; i < deadlines.length; i++) {
+            deadlines[i] = 1 + (long) i * i * 31 % 20_000_000;
+            wheel.add(i, deadlines[i]);
+        }
+
+        wheel.advance(now[0]);
+        for (int i = 0; i < deadlines.length; i++) {
+            assertEquals(deadlines[i] == -1, expired.contains(i));
+        }
+        now[0] = 20_000_000;
+        wheel.advance(now[0]);
+        assertEquals(deadlines.length, expired.size());
+        assertEquals(0, wheel.size());
+    }
+}
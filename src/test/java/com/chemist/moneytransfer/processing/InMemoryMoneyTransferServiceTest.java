@@ -6,23 +6,37 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * There are some very simple tests.<br/>
  * The complete integrations tests are located in {@link ServerTest}.
  */
 class InMemoryMoneyTransferServiceTest {
-    private MoneyTransferService service;
+    private InMemoryMoneyTransferService service;
 
     @BeforeEach
     void init() {
         Config config = new Config();
+        config.transactionHistory = true;
         service = new InMemoryMoneyTransferService(config,
                 Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0)));
     }
@@ -37,6 +51,94 @@ class InMemoryMoneyTransferServiceTest {
         service.transfer("a", "b", BigDecimal.valueOf(10), "key1").join();
     }
 
+    @Test
+    void balancesAreUpdated() {
+        service.transfer("a", "b", new BigDecimal("2.55"), "key1").join();
+        assertEquals(new BigDecimal("7.45"), service.balance("a"));
+        assertEquals(new BigDecimal("2.55"), service.balance("b"));
+    }
+
+    @Test
+    void fixedPointTransferWithCharSequenceIds() {
+        service.transfer(new StringBuilder("a"), new StringBuilder("b"), 255, 2, "key1").join();
+        assertEquals(new BigDecimal("7.45"), service.balance("a"));
+
+        var exception = assertThrows(CompletionException.class, () -> {
+            service.transfer(new StringBuilder("a"), new StringBuilder("c"), 1, 0, "key2").join();
+        });
+        assertEquals("Account 'c' not found.", exception.getCause().getMessage());
+
+        exception = assertThrows(CompletionException.class, () -> {
+            service.transfer("a", "b", 1, 5, "key3").join();
+        });
+        assertEquals(400, ((MoneyTransferException) exception.getCause()).getHttpCode());
+    }
+
+    @Test
+    void accountLookupByCharSequenceDoesNotAllocate() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        var accounts = new AccountStore(new String[]{"alice", "bob"}, new long[]{10, 0}, 0);
+        //the fast path passes views of the URI, it's the same CharSequence lookup
+        CharSequence sender = new StringBuilder("alice");
+        CharSequence recipient = new StringBuilder("bob");
+        long checksum = 0;
+        for (int i = 0; i < 100_000; i++) checksum += accounts.slot(sender) + accounts.slot(recipient);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) checksum += accounts.slot(sender) + accounts.slot(recipient);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum > 0);
+        assertTrue(allocated < 1024, "Lookup allocated " + allocated + " bytes");
+    }
+
+    @Test
+    void transferAllocationIsBounded() throws InterruptedException {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var accounts = Map.of("alice", BigDecimal.valueOf(1_000_000), "bob", BigDecimal.ZERO);
+        var allocating = new InMemoryMoneyTransferService(new Config(), accounts);
+        int count = 100_000;
+        String[] keys = new String[2 * count];
+        for (int i = 0; i < keys.length; i++) keys[i] = "key" + i;
+        CharSequence sender = new StringBuilder("alice");
+        CharSequence recipient = new StringBuilder("bob");
+        for (int i = 0; i < count; i++) allocating.transfer(sender, recipient, 1, 0, keys[i]).join();
+
+        //processing threads are counted too, the futures and the idempotency entries are the expected cost
+        long[] ids = threads.getAllThreadIds();
+        long before = Arrays.stream(threads.getThreadAllocatedBytes(ids)).sum();
+        for (int i = count; i < 2 * count; i++) allocating.transfer(sender, recipient, 1, 0, keys[i]).join();
+        long perTransfer = (Arrays.stream(threads.getThreadAllocatedBytes(ids)).sum() - before) / count;
+        allocating.shutdown();
+
+        assertTrue(perTransfer < 1024, "Transfer allocated " + perTransfer + " bytes");
+    }
+
+    @Test
+    void tooBigAmount() {
+        var exception = assertThrows(CompletionException.class, () -> {
+            service.transfer("a", "b", new BigDecimal("1e30"), "key1").join();
+        });
+        var moneyTransferException = (MoneyTransferException) exception.getCause();
+        assertEquals(400, moneyTransferException.getHttpCode());
+    }
+
+    @Test
+    void hugeExponentIsRejectedWithoutScaling() {
+        var huge = new BigDecimal("1e10000000");
+        long start = System.nanoTime();
+        assertEquals(400, httpCode(service.transfer("a", "b", huge, "key1")));
+        assertEquals(400, httpCode(service.transferBatch(List.of(new TransferLeg("a", "b", huge)), "key2")));
+        assertEquals(400, httpCode(service.hold("a", huge, 60, "key3")));
+        service.hold("a", BigDecimal.ONE, 60, "hold").join();
+        assertEquals(400, httpCode(service.capture("hold", "b", huge, "key4")));
+        assertEquals(400, httpCode(service.credit("b", huge, "key5")));
+        assertEquals(400, httpCode(service.debit("a", new BigDecimal("1e-10000000"), "key6")));
+        //scaling of one such amount takes seconds
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
     @Test
     void noMoreMoney() {
         var exception = assertThrows(CompletionException.class, () -> {
@@ -63,4 +165,378 @@ class InMemoryMoneyTransferServiceTest {
         var moneyTransferException = (MoneyTransferException) exception.getCause();
         assertEquals(400, moneyTransferException.getHttpCode());
     }
-}
\ No newline at end of file
+
+    @Test
+    void batchMaySpendReceivedMoney() {
+        service.transferBatch(List.of(
+                new TransferLeg("b", "a", BigDecimal.valueOf(3)),
+                new TransferLeg("a", "b", BigDecimal.valueOf(10))), "key1").join();
+        assertEquals(new BigDecimal("3.00"), service.balance("a"));
+        assertEquals(new BigDecimal("7.00"), service.balance("b"));
+    }
+
+    @Test
+    void batchIsAtomic() {
+        var exception = assertThrows(CompletionException.class, () -> {
+            service.transferBatch(List.of(
+                    new TransferLeg("a", "b", BigDecimal.valueOf(5)),
+                    new TransferLeg("a", "b", BigDecimal.valueOf(6))), "key1").join();
+        });
+        assertEquals(500, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        assertEquals(new BigDecimal("10.00"), service.balance("a"));
+        assertEquals(new BigDecimal("0.00"), service.balance("b"));
+    }
+
+    @Test
+    void snapshotIsConsistentUnderLoad() throws InterruptedException {
+        var previousVersion = -1;
+        var worker = new Thread(() -> {
+            for (int i = 0; i < 20000; i++) {
+                String sender = i % 2 == 0 ? "a" : "b";
+                String recipient = i % 2 == 0 ? "b" : "a";
+                try {
+                    service.transfer(sender, recipient, new BigDecimal("0.01"), "key" + i).join();
+                } catch (CompletionException e) {
+                    //not enough money is fine
+                }
+            }
+        });
+        worker.start();
+        while (worker.isAlive()) {
+            var snapshot = service.snapshot().join();
+            assertEquals(new BigDecimal("10.00"), snapshot.total());
+            assertTrue(snapshot.getVersion() > previousVersion);
+            previousVersion = snapshot.getVersion();
+        }
+        worker.join();
+    }
+
+    @Test
+    void snapshotIncludesCompletedTransfers() {
+        service.transfer("a", "b", new BigDecimal("1.50"), "key1").join();
+        var snapshot = service.snapshot().join();
+        assertEquals(2, snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            var expected = snapshot.accountId(i).equals("a") ? new BigDecimal("8.50") : new BigDecimal("1.50");
+            assertEquals(expected, snapshot.balance(i));
+        }
+    }
+
+    @Test
+    void hotAccountDebitGathersStripes() throws InterruptedException {
+        Config config = new Config();
+        config.processingThreads = 4;
+        config.hotAccounts = List.of("b");
+        var hotService = new InMemoryMoneyTransferService(config,
+                Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0)));
+        try {
+            //credits of different processing threads go to different stripes
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 1000; i++) futures.add(hotService.transfer("a", "b", new BigDecimal("0.01"), "key" + i));
+            futures.forEach(CompletableFuture::join);
+            assertEquals(new BigDecimal("10.00"), hotService.balance("b"));
+            assertEquals(new BigDecimal("10.00"), hotService.snapshot().join().total());
+
+            var exception = assertThrows(CompletionException.class, () -> {
+                hotService.transfer("b", "a", new BigDecimal("10.01"), "overdraft").join();
+            });
+            assertEquals(500, ((MoneyTransferException) exception.getCause()).getHttpCode());
+
+            hotService.transfer("b", "a", BigDecimal.valueOf(10), "all").join();
+            assertEquals(new BigDecimal("0.00"), hotService.balance("b"));
+            assertEquals(new BigDecimal("10.00"), hotService.balance("a"));
+        } finally {
+            hotService.shutdown();
+        }
+    }
+
+    @Test
+    void concurrentDebitsOfHotAccountSeeGatheredMoney() throws Exception {
+        int threads = 8;
+        int rounds = 500;
+        int debits = 20;
+        var accounts = new AccountStore(new String[]{"hot"}, new long[]{0}, 0, 1, threads);
+        accounts.makeHot(0);
+        var pool = Executors.newFixedThreadPool(threads);
+        try {
+            //every thread credits its stripe, then all of them spend the money at once, so they gather concurrently
+            var barrier = new CyclicBarrier(threads);
+            var failures = new AtomicInteger();
+            var tasks = new ArrayList<Callable<Void>>();
+            for (int t = 0; t < threads; t++) {
+                tasks.add(() -> {
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < debits; i++) accounts.credit(0, 1, 0);
+                        barrier.await();
+                        for (int i = 0; i < debits; i++) {
+                            if (!accounts.tryDebit(0, 1, 0)) failures.incrementAndGet();
+                        }
+                        barrier.await();
+                    }
+                    return null;
+                });
+            }
+            for (var future : pool.invokeAll(tasks)) future.get();
+            assertEquals(0, failures.get());
+            assertEquals(0, accounts.balance(0));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void openAndCloseAccount() {
+        service.openAccount("c").join();
+        var exception = assertThrows(CompletionException.class, () -> service.openAccount("c").join());
+        assertEquals(409, ((MoneyTransferException) exception.getCause()).getHttpCode());
+
+        service.transfer("a", "c", BigDecimal.valueOf(3), "key1").join();
+        exception = assertThrows(CompletionException.class, () -> service.closeAccount("c").join());
+        assertEquals("Account 'c' has money.", exception.getCause().getMessage());
+
+        service.transfer("c", "a", BigDecimal.valueOf(3), "key2").join();
+        service.closeAccount("c").join();
+        exception = assertThrows(CompletionException.class, () -> service.transfer("a", "c", BigDecimal.ONE, "key3").join());
+        assertEquals("Account 'c' not found.", exception.getCause().getMessage());
+        exception = assertThrows(CompletionException.class, () -> service.closeAccount("c").join());
+        assertEquals(404, ((MoneyTransferException) exception.getCause()).getHttpCode());
+
+        var snapshot = service.snapshot().join();
+        assertEquals(2, snapshot.size());
+        assertEquals(new BigDecimal("10.00"), snapshot.total());
+
+        //the ID is free again, the new account starts with zero balance
+        service.openAccount("c").join();
+        assertEquals(new BigDecimal("0.00"), service.balance("c"));
+    }
+
+    @Test
+    void accountsAreOpenedWhileTransfersRun() throws InterruptedException {
+        var worker = new Thread(() -> {
+            //enough accounts to grow the index many times
+            for (int i = 0; i < 100_000; i++) service.openAccount("new" + i).join();
+        });
+        worker.start();
+        for (int i = 0; worker.isAlive(); i++) {
+            String sender = i % 2 == 0 ? "a" : "b";
+            String recipient = i % 2 == 0 ? "b" : "a";
+            try {
+                service.transfer(sender, recipient, new BigDecimal("0.01"), "key" + i).join();
+            } catch (CompletionException e) {
+                //not enough money is fine, but accounts must be always found
+                assertEquals(500, ((MoneyTransferException) e.getCause()).getHttpCode());
+            }
+        }
+        worker.join();
+        for (int i = 0; i < 100_000; i++) assertEquals(new BigDecimal("0.00"), service.balance("new" + i));
+        service.transfer("a", "new99999", BigDecimal.ONE, "last").join();
+        assertEquals(new BigDecimal("10.00"), service.snapshot().join().total());
+    }
+
+    @Test
+    void historyIsPagedNewestFirst() {
+        service.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+        service.transferBatch(List.of(new TransferLeg("b", "a", BigDecimal.ONE)), "key2").join();
+
+        var page = service.history("a", Long.MAX_VALUE, 10).join();
+        assertEquals(2, page.size());
+        assertEquals(-1, page.nextCursor());
+        assertEquals(new BigDecimal("1.00"), page.amount(0));
+        assertEquals(null, page.counterparty(0));
+        assertEquals(historyKey("key2"), page.idempotencyKey(0));
+        assertEquals(new BigDecimal("-2.50"), page.amount(1));
+        assertEquals("b", page.counterparty(1));
+        assertEquals(historyKey("key1"), page.idempotencyKey(1));
+        assertTrue(page.timestamp(1) <= page.timestamp(0));
+
+        //enough entries to fill growing chunks and a few full ones, but less than retention
+        for (int i = 0; i < 9_000; i++) {
+            service.transfer(i % 2 == 0 ? "a" : "b", i % 2 == 0 ? "b" : "a", new BigDecimal("0.01"), "next" + i).join();
+        }
+        int count = 0;
+        long cursor = Long.MAX_VALUE;
+        do {
+            page = service.history("b", cursor, 777).join();
+            for (int i = 0; i < page.size(); i++, count++) {
+                String expectedKey = count < 9_000 ? "next" + (8_999 - count) : count == 9_000 ? "key2" : "key1";
+                assertEquals(historyKey(expectedKey), page.idempotencyKey(i));
+            }
+            cursor = page.nextCursor();
+        } while (cursor >= 0);
+        assertEquals(9_002, count);
+
+        String uuid = UUID.randomUUID().toString();
+        service.transfer("a", "b", new BigDecimal("0.01"), uuid).join();
+        assertEquals(uuid, service.history("a", Long.MAX_VALUE, 1).join().idempotencyKey(0));
+    }
+
+    @Test
+    void historyKeepsLatestEntries() throws InterruptedException {
+        service.shutdown();
+        Config config = new Config();
+        config.transactionHistory = true;
+        config.historyMaxEntries = 20;
+        service = new InMemoryMoneyTransferService(config, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0)));
+
+        for (int i = 0; i < 100; i++) service.transfer("a", "b", new BigDecimal("0.01"), "key" + i).join();
+        var page = service.history("a", Long.MAX_VALUE, 15).join();
+        assertEquals(15, page.size());
+        assertEquals(historyKey("key99"), page.idempotencyKey(0));
+        page = service.history("a", page.nextCursor(), 15).join();
+        assertEquals(5, page.size());
+        assertEquals(historyKey("key80"), page.idempotencyKey(4));
+        assertEquals(-1, page.nextCursor());
+        //cursor of dropped entries
+        assertEquals(0, service.history("a", 10, 15).join().size());
+    }
+
+    @Test
+    void stoppedHistoryDropsChanges() throws InterruptedException {
+        var history = new TransactionLog(8, 10, slot -> "a", Thread::new);
+        history.close();
+        //more changes than the ring holds, nobody frees it
+        for (int i = 0; i < 100; i++) history.transfer(0, 0, 1, 1, 0, i);
+        var exception = assertThrows(CompletionException.class, () -> history.query(0, "a", Long.MAX_VALUE, 10, 2).join());
+        assertEquals(503, ((MoneyTransferException) exception.getCause()).getHttpCode());
+    }
+
+    private static String historyKey(String idempotencyKey) {
+        return new UUID(IdempotencyStore.high(idempotencyKey), IdempotencyStore.low(idempotencyKey)).toString();
+    }
+
+    @Test
+    void historyOfClosedAccountIsDropped() {
+        service.openAccount("c").join();
+        service.transfer("a", "c", BigDecimal.ONE, "key1").join();
+        service.transfer("c", "a", BigDecimal.ONE, "key2").join();
+        assertEquals(2, service.history("c", Long.MAX_VALUE, 10).join().size());
+        service.closeAccount("c").join();
+
+        var exception = assertThrows(CompletionException.class, () -> service.history("c", Long.MAX_VALUE, 10).join());
+        assertEquals(404, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        service.openAccount("c").join();
+        assertEquals(0, service.history("c", Long.MAX_VALUE, 10).join().size());
+        //history of the counterparty is kept
+        assertEquals(2, service.history("a", Long.MAX_VALUE, 10).join().size());
+    }
+
+    @Test
+    void senderIsRateLimited() throws InterruptedException {
+        service.shutdown();
+        Config config = new Config();
+        config.accountRateLimit = 1;
+        config.accountRateBurst = 2;
+        service = new InMemoryMoneyTransferService(config, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(10)));
+
+        service.transfer("a", "b", BigDecimal.ONE, "key1").join();
+        service.transfer("a", "b", BigDecimal.ONE, "key2").join();
+        var exception = assertThrows(CompletionException.class, () -> service.transfer("a", "b", BigDecimal.ONE, "key3").join());
+        assertEquals(429, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        exception = assertThrows(CompletionException.class,
+                () -> service.transferBatch(List.of(new TransferLeg("a", "b", BigDecimal.ONE)), "key4").join());
+        assertEquals(429, ((MoneyTransferException) exception.getCause()).getHttpCode());
+
+        //the limit is per sender, the rejected key isn't remembered
+        service.transfer("b", "a", BigDecimal.ONE, "key3").join();
+        assertEquals(new BigDecimal("9.00"), service.balance("a"));
+    }
+
+    @Test
+    void subscriptionConflatesChanges() {
+        var subscription = service.subscribe(List.of("a", "b", "a")).join();
+        var signals = new AtomicInteger();
+        subscription.start(signals::incrementAndGet);
+        assertEquals(1, signals.get());
+
+        var updates = new LinkedHashMap<String, BigDecimal>();
+        assertEquals(2, subscription.poll(10, updates::put));
+        assertEquals(Map.of("a", new BigDecimal("10.00"), "b", new BigDecimal("0.00")), updates);
+
+        //the subscriber doesn't poll, changes of the same account are merged
+        for (int i = 0; i < 100; i++) service.transfer("a", "b", new BigDecimal("0.01"), "key" + i).join();
+        assertEquals(2, signals.get());
+        updates.clear();
+        assertEquals(2, subscription.poll(10, updates::put));
+        assertEquals(Map.of("a", new BigDecimal("9.00"), "b", new BigDecimal("1.00")), updates);
+        assertEquals(0, subscription.poll(10, updates::put));
+
+        subscription.close();
+        service.transfer("a", "b", BigDecimal.ONE, "key").join();
+        assertEquals(0, subscription.poll(10, updates::put));
+        assertEquals(2, signals.get());
+
+        var exception = assertThrows(CompletionException.class, () -> service.subscribe(List.of("a", "c")).join());
+        assertEquals(404, ((MoneyTransferException) exception.getCause()).getHttpCode());
+    }
+
+    @Test
+    void scheduledTransfersRunUntilCancelled() throws InterruptedException {
+        service.shutdown();
+        Config config = new Config();
+        config.scheduleTickMillis = 10;
+        service = new InMemoryMoneyTransferService(config, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0)));
+
+        long now = System.currentTimeMillis();
+        service.schedule("a", "b", BigDecimal.ONE, now, 20, 3, "payroll").join();
+        service.schedule("a", "b", BigDecimal.ONE, now, 0, 1, "payroll").join();
+        service.schedule("b", "a", new BigDecimal("0.50"), now + 3_600_000, 1000, -1, "subscription").join();
+        for (int i = 0; i < 200 && !service.balance("b").equals(new BigDecimal("3.00")); i++) Thread.sleep(10);
+        assertEquals(new BigDecimal("3.00"), service.balance("b"));
+
+        //the finished schedule is gone, the endless one is cancelled before its first run
+        var exception = assertThrows(CompletionException.class, () -> service.cancelSchedule("payroll").join());
+        assertEquals(404, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        service.cancelSchedule("subscription").join();
+
+        exception = assertThrows(CompletionException.class,
+                () -> service.schedule("a", "c", BigDecimal.ONE, now, 0, 1, "key").join());
+        assertEquals(400, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        exception = assertThrows(CompletionException.class,
+                () -> service.schedule("a", "b", BigDecimal.ONE, now, 1, -1, "key").join());
+        assertEquals(400, ((MoneyTransferException) exception.getCause()).getHttpCode());
+    }
+
+    @Test
+    void holdIsCapturedOrVoided() throws InterruptedException {
+        service.hold("a", new BigDecimal("4"), 60, "hold1").join();
+        assertEquals(new BigDecimal("6.00"), service.balance("a"));
+        assertEquals(new BigDecimal("4.00"), service.heldBalance("a"));
+        //available balance is checked, held funds can't be spent
+        var exception = assertThrows(CompletionException.class, () -> service.transfer("a", "b", BigDecimal.TEN, "key1").join());
+        assertEquals(500, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        exception = assertThrows(CompletionException.class, () -> service.closeAccount("a").join());
+        assertEquals(409, ((MoneyTransferException) exception.getCause()).getHttpCode());
+
+        //the rest of the capture returns to the payer
+        service.capture("hold1", "b", new BigDecimal("3"), "capture1").join();
+        service.capture("hold1", "b", new BigDecimal("3"), "capture1").join();
+        assertEquals(new BigDecimal("7.00"), service.balance("a"));
+        assertEquals(new BigDecimal("3.00"), service.balance("b"));
+        assertEquals(new BigDecimal("0.00"), service.heldBalance("a"));
+        exception = assertThrows(CompletionException.class, () -> service.voidHold("hold1", "void1").join());
+        assertEquals(404, ((MoneyTransferException) exception.getCause()).getHttpCode());
+
+        service.hold("a", new BigDecimal("5"), 60, "hold2").join();
+        exception = assertThrows(CompletionException.class,
+                () -> service.capture("hold2", "b", new BigDecimal("6"), "capture2").join());
+        assertEquals(400, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        service.voidHold("hold2", "void2").join();
+        assertEquals(new BigDecimal("7.00"), service.balance("a"));
+
+        exception = assertThrows(CompletionException.class, () -> service.hold("a", BigDecimal.TEN, 60, "hold3").join());
+        assertEquals(500, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        assertEquals(new BigDecimal("0.00"), service.heldBalance("a"));
+
+        //expired hold is voided by the background task
+        service.hold("a", BigDecimal.ONE, 1, "hold4").join();
+        assertEquals(new BigDecimal("6.00"), service.balance("a"));
+        for (int i = 0; i < 400 && service.heldBalance("a").signum() != 0; i++) Thread.sleep(10);
+        assertEquals(new BigDecimal("7.00"), service.balance("a"));
+        assertEquals(new BigDecimal("0.00"), service.heldBalance("a"));
+    }
+
+    private static int httpCode(CompletableFuture<Void> future) {
+        var e = assertThrows(CompletionException.class, future::join);
+        return ((MoneyTransferException) e.getCause()).getHttpCode();
+    }
+}
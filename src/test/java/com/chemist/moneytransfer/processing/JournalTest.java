@@ -0,0 +1,211 @@
+package com.chemist.moneytransfer.processing;
+
+import com.chemist.moneytransfer.server.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JournalTest {
+    private Path dir;
+
+    @BeforeEach
+    void init() throws IOException {
+        dir = Files.createTempDirectory("journal-test");
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void appendAndReplay() throws Exception {
+        var journal = new Journal(dir, 16, 100);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(journal.append(JournalRecord.transfer(0, "key" + i, "a", "b", i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        journal.close();
+
+        List<JournalRecord> records = new ArrayList<>();
+        Journal.replay(dir, records::add);
+        assertEquals(1000, records.size());
+        assertEquals("key999", records.get(999).idempotencyKey);
+        assertEquals(999, records.get(999).amount);
+    }
+
+    @Test
+    void tornTailIsIgnored() throws Exception {
+        var journal = new Journal(dir, 16, 0);
+        journal.append(JournalRecord.transfer(0, "key1", "a", "b", 1)).join();
+        journal.append(JournalRecord.transfer(0, "key2", "a", "b", 2)).join();
+        journal.close();
+
+        //cut the last record in the middle
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        try (var ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+
+        List<JournalRecord> records = new ArrayList<>();
+        Journal.replay(dir, records::add);
+        assertEquals(1, records.size());
+        assertEquals("key1", records.get(0).idempotencyKey);
+    }
+
+    @Test
+    void serviceRecoversFromJournal() throws InterruptedException {
+        Config config = new Config();
+        config.dataDir = dir.toString();
+        var accounts = Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0));
+
+        var service = new InMemoryMoneyTransferService(config, accounts);
+        service.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+        service.transfer("b", "a", new BigDecimal("0.50"), "key2").join();
+        service.shutdown();
+
+        service = new InMemoryMoneyTransferService(config, accounts);
+        assertEquals(new BigDecimal("8.00"), service.balance("a"));
+        assertEquals(new BigDecimal("2.00"), service.balance("b"));
+
+        //retry of durable transfer must not be applied twice
+        service.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+        assertEquals(new BigDecimal("8.00"), service.balance("a"));
+        service.shutdown();
+    }
+
+    @Test
+    void batchIsRecoveredFromJournal() throws InterruptedException {
+        Config config = new Config();
+        config.dataDir = dir.toString();
+        var accounts = Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0), "c", BigDecimal.valueOf(0));
+
+        var service = new InMemoryMoneyTransferService(config, accounts);
+        service.transferBatch(List.of(
+                new TransferLeg("a", "b", new BigDecimal("5")),
+                new TransferLeg("b", "c", new BigDecimal("1.25"))), "key1").join();
+
+        //start the second instance without shutdown of the first one, so balances come from the journal only
+        var recovered = new InMemoryMoneyTransferService(config, accounts);
+        assertEquals(new BigDecimal("5.00"), recovered.balance("a"));
+        assertEquals(new BigDecimal("3.75"), recovered.balance("b"));
+        assertEquals(new BigDecimal("1.25"), recovered.balance("c"));
+        recovered.shutdown();
+        service.shutdown();
+    }
+
+    @Test
+    void holdsAreRecoveredFromJournal() throws InterruptedException {
+        Config config = new Config();
+        config.dataDir = dir.toString();
+        var accounts = Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0));
+
+        var service = new InMemoryMoneyTransferService(config, accounts);
+        service.hold("a", new BigDecimal("4"), 60, "hold1").join();
+        service.hold("a", new BigDecimal("3"), 60, "hold2").join();
+        service.capture("hold2", "b", new BigDecimal("1"), "capture2").join();
+        service.hold("a", new BigDecimal("2"), 60, "hold3").join();
+        service.voidHold("hold3", "void3").join();
+
+        var recovered = new InMemoryMoneyTransferService(config, accounts);
+        assertEquals(new BigDecimal("5.00"), recovered.balance("a"));
+        assertEquals(new BigDecimal("4.00"), recovered.heldBalance("a"));
+        assertEquals(new BigDecimal("1.00"), recovered.balance("b"));
+        //released holds are gone, the open one can be captured
+        assertEquals(404, httpCode(recovered.voidHold("hold2", "void2")));
+        recovered.capture("hold1", "b", null, "capture1").join();
+        assertEquals(new BigDecimal("0.00"), recovered.heldBalance("a"));
+        assertEquals(new BigDecimal("5.00"), recovered.balance("b"));
+        recovered.shutdown();
+        service.shutdown();
+    }
+
+    @Test
+    void writeFailureStopsServiceUntilRestart() throws Exception {
+        Config config = new Config();
+        config.dataDir = dir.toString();
+        config.snapshotIntervalSec = 0;
+        var accounts = Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0));
+
+        var service = new InMemoryMoneyTransferService(config, accounts);
+        service.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+
+        //the open segment is moved away with the directory, so rotation can't create the next one
+        Path moved = dir.resolveSibling(dir.getFileName() + "-moved");
+        Files.move(dir, moved);
+        try {
+            assertThrows(Exception.class, service::checkpoint);
+            assertEquals(503, httpCode(service.transfer("a", "b", new BigDecimal("1"), "key2")));
+            assertEquals(503, httpCode(service.openAccount("c")));
+            assertEquals(503, assertThrows(MoneyTransferException.class, () -> service.balance("a")).getHttpCode());
+        } finally {
+            Files.move(moved, dir);
+        }
+
+        //the restart recovers the durable state
+        var recovered = new InMemoryMoneyTransferService(config, accounts);
+        assertEquals(new BigDecimal("7.50"), recovered.balance("a"));
+        recovered.transfer("a", "b", new BigDecimal("1"), "key2").join();
+        assertEquals(new BigDecimal("6.50"), recovered.balance("a"));
+        recovered.shutdown();
+        service.shutdown();
+    }
+
+    @Test
+    void failureListenerIsCalledOnce() throws Exception {
+        List<Exception> failures = new ArrayList<>();
+        var journal = new Journal(dir, 16, 0, failures::add);
+        journal.append(JournalRecord.transfer(0, "key1", "a", "b", 1)).join();
+
+        Path moved = dir.resolveSibling(dir.getFileName() + "-moved");
+        Files.move(dir, moved);
+        try {
+            assertThrows(CompletionException.class, () -> journal.rotate().join());
+            assertThrows(CompletionException.class, () -> journal.append(JournalRecord.transfer(0, "key2", "a", "b", 1)).join());
+            journal.close();
+        } finally {
+            Files.move(moved, dir);
+        }
+        assertEquals(1, failures.size());
+    }
+
+    @Test
+    void schedulesAreRefusedWithPersistence() throws InterruptedException {
+        Config config = new Config();
+        config.dataDir = dir.toString();
+        var service = new InMemoryMoneyTransferService(config, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0)));
+
+        //pending runs aren't journaled, so they would be lost on restart
+        assertEquals(404, httpCode(service.schedule("a", "b", BigDecimal.ONE, System.currentTimeMillis(), 0, 1, "key1")));
+        assertEquals(404, httpCode(service.cancelSchedule("key1")));
+        service.shutdown();
+    }
+
+    private static int httpCode(CompletableFuture<Void> future) {
+        var e = assertThrows(CompletionException.class, future::join);
+        return ((MoneyTransferException) e.getCause()).getHttpCode();
+    }
+}
@@ -0,0 +1,49 @@
+package com.chemist.moneytransfer.processing;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+    @Test
+    void burstIsLimited() {
+        var limiter = new RateLimiter(1, 3);
+        for (int i = 0; i < 3; i++) assertTrue(limiter.tryAcquire(7));
+        assertFalse(limiter.tryAcquire(7));
+        //other buckets aren't affected, including ones of other pages
+        assertTrue(limiter.tryAcquire(8));
+        assertTrue(limiter.tryAcquire(1_000_000));
+        assertEquals(1, limiter.rejected());
+    }
+
+    @Test
+    void tokensAreRefilled() throws InterruptedException {
+        var limiter = new RateLimiter(100, 1);
+        assertTrue(limiter.tryAcquire(0));
+        assertFalse(limiter.tryAcquire(0));
+        Thread.sleep(20);
+        assertTrue(limiter.tryAcquire(0));
+    }
+
+    @Test
+    void concurrentAcquiresDontExceedBurst() throws InterruptedException {
+        var limiter = new RateLimiter(1, 1000);
+        var threads = new Thread[4];
+        var acquired = new AtomicInteger();
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (limiter.tryAcquire(0)) acquired.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        //one more token may be refilled meanwhile
+        assertTrue(acquired.get() >= 1000 && acquired.get() <= 1001, "acquired " + acquired.get());
+    }
+}
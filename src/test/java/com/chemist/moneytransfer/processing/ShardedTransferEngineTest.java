@@ -0,0 +1,136 @@
+package com.chemist.moneytransfer.processing;
+
+import com.chemist.moneytransfer.metrics.Histogram;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedTransferEngineTest {
+    private static final int ACCOUNTS = 16;
+    private static final long BALANCE = 1000;
+
+    private AccountStore accounts;
+    private AtomicLong commits;
+    private ShardedTransferEngine engine;
+
+    @BeforeEach
+    void init() {
+        String[] ids = new String[ACCOUNTS];
+        long[] balances = new long[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            ids[i] = "acc" + i;
+            balances[i] = BALANCE;
+        }
+        accounts = new AccountStore(ids, balances, 0);
+        commits = new AtomicLong();
+        var commit = new TransferEngine.Commit() {
+            @Override
+            public CompletableFuture<Void> commit(int epoch, int senderSlot, int recipientSlot, long amount, String key) {
+                commits.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public CompletableFuture<Void> commitBatch(int epoch, int[] slots, long[] deltas, String key, Object attachment) {
+                commits.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+        engine = new ShardedTransferEngine(accounts, new EpochGate(0), commit, 3, 1024, Executors.defaultThreadFactory(),
+                new Histogram(), new Histogram());
+    }
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        engine.shutdown();
+    }
+
+    @Test
+    void notEnoughMoney() {
+        var exception = assertThrows(CompletionException.class, () -> engine.transfer(0, 1, BALANCE + 1, "key").join());
+        assertEquals(500, ((MoneyTransferException) exception.getCause()).getHttpCode());
+        assertEquals(BALANCE, accounts.balance(0));
+        assertEquals(0, commits.get());
+    }
+
+    /**
+     * Many threads send transfers between all shards, total amount of money must stay the same.
+     */
+    @Test
+    void concurrentTransfersKeepTotal() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                Random random = ThreadLocalRandom.current();
+                for (int i = 0; i < 5000; i++) {
+                    var future = engine.transfer(random.nextInt(ACCOUNTS), random.nextInt(ACCOUNTS), 1 + random.nextInt(50), "key");
+                    futures.add(future.exceptionally(e -> {
+                        if (!(e.getCause() instanceof MoneyTransferException)) throw new AssertionError(e);
+                        return null;
+                    }));
+                    //limit in-flight transfers, so the ring is never full
+                    if (futures.size() == 256) {
+                        futures.forEach(CompletableFuture::join);
+                        futures.clear();
+                    }
+                }
+                futures.forEach(CompletableFuture::join);
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+
+        long total = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertTrue(accounts.balance(i) >= 0);
+            total += accounts.balance(i);
+        }
+        assertEquals(ACCOUNTS * BALANCE, total);
+        assertTrue(commits.get() > 0);
+    }
+
+    @Test
+    void batchAcrossShards() {
+        //slots 0, 1, 2 belong to different shards
+        engine.transferBatch(new int[]{0, 1, 2}, new long[]{-100, -50, 150}, 2, "key").join();
+        assertEquals(BALANCE - 100, accounts.balance(0));
+        assertEquals(BALANCE - 50, accounts.balance(1));
+        assertEquals(BALANCE + 150, accounts.balance(2));
+
+        //the second debit fails, so the first one is returned
+        assertThrows(CompletionException.class,
+                () -> engine.transferBatch(new int[]{0, 1, 2}, new long[]{-100, -BALANCE, BALANCE + 100}, 2, "key").join());
+        assertEquals(BALANCE - 100, accounts.balance(0));
+        assertEquals(BALANCE - 50, accounts.balance(1));
+        assertEquals(BALANCE + 150, accounts.balance(2));
+        assertEquals(1, commits.get());
+    }
+
+    @Test
+    void ringIsBounded() {
+        var ring = new MpscRing<Integer>(4);
+        for (int i = 0; i < 4; i++) assertTrue(ring.offer(i));
+        assertFalse(ring.offer(4));
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) assertEquals(Integer.valueOf(i), ring.poll());
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,111 @@
+package com.chemist.moneytransfer.processing;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransferSchedulerTest {
+    private final List<String> keys = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<Void>> results = new CopyOnWriteArrayList<>();
+    private TransferScheduler scheduler;
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        scheduler.close();
+    }
+
+    @Test
+    void runsAreRepeatedWithDerivedKeys() throws InterruptedException {
+        scheduler = scheduler(100, (sender, recipient, amount, key) -> {
+            keys.add(key);
+            return CompletableFuture.completedFuture(null);
+        });
+        assertTrue(scheduler.add(1, 2, 100, System.currentTimeMillis(), 10, 3, "key"));
+        //the same key is the retry of the request
+        assertFalse(scheduler.add(1, 2, 100, System.currentTimeMillis(), 10, 3, "key"));
+
+        await(() -> scheduler.size() == 0);
+        assertEquals(3, keys.size());
+        for (int run = 0; run < 3; run++) assertTrue(keys.get(run).endsWith(":" + run), keys.get(run));
+        assertEquals(3, scheduler.succeeded.sum());
+        assertFalse(scheduler.cancel("key"));
+    }
+
+    @Test
+    void overloadedRunIsRetriedWithSameKey() throws InterruptedException {
+        scheduler = scheduler(100, (sender, recipient, amount, key) -> {
+            keys.add(key);
+            return keys.size() == 1
+                    ? CompletableFuture.failedFuture(TransferEngine.overloadedException())
+                    : CompletableFuture.completedFuture(null);
+        });
+        scheduler.add(1, 2, 100, System.currentTimeMillis(), 0, 1, "key");
+
+        await(() -> scheduler.size() == 0);
+        assertEquals(2, keys.size());
+        assertEquals(keys.get(0), keys.get(1));
+        assertEquals(1, scheduler.retried.sum());
+    }
+
+    @Test
+    void runningTransfersAreBounded() throws InterruptedException {
+        scheduler = scheduler(2, (sender, recipient, amount, key) -> {
+            var result = new CompletableFuture<Void>();
+            results.add(result);
+            return result;
+        });
+        for (int i = 0; i < 5; i++) scheduler.add(1, 2, 100, System.currentTimeMillis(), 0, 1, "key" + i);
+
+        await(() -> results.size() == 2);
+        Thread.sleep(50);
+        assertEquals(2, results.size());
+        //completions release the waiting runs, failed ones as well
+        results.get(0).complete(null);
+        results.get(1).completeExceptionally(new MoneyTransferException(409, "Sender doesn't have enough money."));
+        await(() -> results.size() == 4);
+        for (int i = 2; i < 4; i++) results.get(i).complete(null);
+        await(() -> results.size() == 5);
+        results.get(4).complete(null);
+
+        await(() -> scheduler.size() == 0);
+        assertEquals(4, scheduler.succeeded.sum());
+        assertEquals(1, scheduler.failed.sum());
+    }
+
+    @Test
+    void cancelledKeysAreRemoved() {
+        scheduler = scheduler(100, (sender, recipient, amount, key) -> CompletableFuture.completedFuture(null));
+        long later = System.currentTimeMillis() + 3_600_000;
+        for (int i = 0; i < 10_000; i++) assertTrue(scheduler.add(1, 2, 100, later, 0, 1, "key" + i));
+        for (int i = 0; i < 10_000; i += 2) assertTrue(scheduler.cancel("key" + i));
+        assertFalse(scheduler.cancel("key0"));
+        assertEquals(5_000, scheduler.size());
+
+        //keys after removed ones are still found
+        for (int i = 1; i < 10_000; i += 2) assertFalse(scheduler.add(1, 2, 100, later, 0, 1, "key" + i));
+        //indexes of cancelled schedules stay taken until the wheel drops them, so new ones get other indexes
+        for (int i = 0; i < 10_000; i += 2) assertTrue(scheduler.add(1, 2, 100, later, 0, 1, "key" + i));
+        assertEquals(10_000, scheduler.size());
+    }
+
+    private static TransferScheduler scheduler(int maxInFlight, TransferScheduler.Runner runner) {
+        return new TransferScheduler(runner, 5, 1_000_000, maxInFlight, Executors.defaultThreadFactory());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timeout");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -18,6 +18,9 @@ abstract class AbstractServerTest {
         //we should make server port zero to obtain unused port from the kernel,
         //otherwise we can get exceptions like "bind failed" in CI (teamcity for example)
         config.port = 0;
+        config.binaryPort = 0;
+        config.h2c = true;
+        config.transactionHistory = true;
 
         var accounts = Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.valueOf(0));
 
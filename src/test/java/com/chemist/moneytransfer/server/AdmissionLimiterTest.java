@@ -0,0 +1,62 @@
+package com.chemist.moneytransfer.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionLimiterTest {
+    @Test
+    void requestsAboveLimitAreRejected() {
+        var limiter = new AdmissionLimiter(2, 1, 10);
+        long first = limiter.acquire();
+        assertTrue(first >= 0 && limiter.acquire() >= 0);
+        assertEquals(AdmissionLimiter.REJECTED, limiter.acquire());
+        assertEquals(1, limiter.rejected.sum());
+
+        limiter.release(first, false);
+        assertTrue(limiter.acquire() >= 0);
+        assertEquals(2, limiter.inFlight());
+    }
+
+    @Test
+    void limitFollowsLatency() throws InterruptedException {
+        var limiter = new AdmissionLimiter(100, 1, 1000);
+        for (int i = 0; i < 4; i++) window(limiter, 60, TimeUnit.MILLISECONDS.toNanos(1));
+        int grown = limiter.limit();
+        assertTrue(grown > 100, "limit " + grown);
+
+        //queues build up, so the service time is much longer than usual
+        for (int i = 0; i < 4; i++) window(limiter, 60, TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(limiter.limit() < grown * 0.8, "limit " + limiter.limit());
+    }
+
+    @Test
+    void limitIsIdleWithoutLoad() throws InterruptedException {
+        var limiter = new AdmissionLimiter(100, 1, 1000);
+        //latency is long enough, so scheduling delays of the test thread don't look like queueing
+        for (int i = 0; i < 4; i++) window(limiter, 20, TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(100, limiter.limit());
+    }
+
+    @Test
+    void dropsShrinkLimit() throws InterruptedException {
+        var limiter = new AdmissionLimiter(100, 1, 1000);
+        limiter.release(limiter.acquire(), true);
+        Thread.sleep(110);
+        limiter.release(limiter.acquire(), true);
+        assertEquals(90, limiter.limit());
+    }
+
+    /**
+     * Runs concurrent requests of the next window, the first release completes the previous window.
+     */
+    private static void window(AdmissionLimiter limiter, int requests, long latencyNanos) throws InterruptedException {
+        Thread.sleep(110);
+        long[] permits = new long[requests];
+        for (int i = 0; i < requests; i++) permits[i] = limiter.acquire();
+        for (long permit : permits) limiter.release(permit - latencyNanos, false);
+    }
+}
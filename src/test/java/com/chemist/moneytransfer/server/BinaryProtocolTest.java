@@ -0,0 +1,83 @@
+package com.chemist.moneytransfer.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BinaryProtocolTest extends AbstractServerTest {
+    @Test
+    void pipelinedTransfers() throws IOException {
+        try (var socket = new Socket("localhost", server.binaryPort())) {
+            socket.setSoTimeout(10_000);
+            var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            var in = new DataInputStream(socket.getInputStream());
+
+            //all requests are sent before reading responses
+            writeRequest(out, 1, UUID.randomUUID(), "a", "b", 250);
+            writeRequest(out, 2, UUID.randomUUID(), "a", "b", 100_000);
+            writeRequest(out, 3, UUID.randomUUID(), "a", "c", 1);
+            out.flush();
+
+            Map<Long, String> responses = new HashMap<>();
+            for (int i = 0; i < 3; i++) {
+                int length = in.readInt();
+                long requestId = in.readLong();
+                int status = in.readShort();
+                byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+                assertEquals(8 + 2 + 2 + message.length, length);
+                responses.put(requestId, status + " " + new String(message, StandardCharsets.UTF_8));
+            }
+
+            assertEquals("200 ", responses.get(1L));
+            assertEquals("500 Sender doesn't have enough money.", responses.get(2L));
+            assertEquals("400 Account 'c' not found.", responses.get(3L));
+        }
+        assertEquals(new BigDecimal("7.50"), server.service.balance("a"));
+    }
+
+    @Test
+    void duplicateKeyIsIdempotent() throws IOException {
+        var key = UUID.randomUUID();
+        try (var socket = new Socket("localhost", server.binaryPort())) {
+            socket.setSoTimeout(10_000);
+            var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            var in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < 2; i++) {
+                writeRequest(out, i, key, "a", "b", 100);
+                out.flush();
+                in.readInt();
+                assertEquals(i, in.readLong());
+                assertEquals(200, in.readShort());
+                assertEquals(0, in.readUnsignedShort());
+            }
+        }
+        assertEquals(new BigDecimal("1.00"), server.service.balance("b"));
+    }
+
+    private static void writeRequest(DataOutputStream out, long requestId, UUID key,
+                                     String sender, String recipient, long amount) throws IOException {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(8 + 16 + 2 + senderBytes.length + 2 + recipientBytes.length + 8);
+        out.writeLong(requestId);
+        out.writeLong(key.getMostSignificantBits());
+        out.writeLong(key.getLeastSignificantBits());
+        out.writeShort(senderBytes.length);
+        out.write(senderBytes);
+        out.writeShort(recipientBytes.length);
+        out.write(recipientBytes);
+        out.writeLong(amount);
+    }
+}
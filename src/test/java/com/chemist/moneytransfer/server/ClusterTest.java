@@ -0,0 +1,210 @@
+package com.chemist.moneytransfer.server;
+
+import com.chemist.moneytransfer.processing.MoneyTransferException;
+import com.chemist.moneytransfer.processing.ShardMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ClusterTest {
+    private static final int ACCOUNTS = 20;
+    private static final String CLUSTER_SECRET = "cluster-secret";
+
+    private final List<Server> servers = new ArrayList<>();
+    private final Map<String, BigDecimal> accounts = new HashMap<>();
+    private List<String> nodes;
+    private ShardMap shards;
+    //accounts owned by the first and the second node
+    private final List<String> first = new ArrayList<>();
+    private final List<String> second = new ArrayList<>();
+
+    @BeforeEach
+    void init() throws IOException {
+        //ports must be known before nodes start, because every node gets the list of all of them
+        nodes = List.of("localhost:" + freePort(), "localhost:" + freePort());
+        shards = new ShardMap(nodes, 0);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String id = "acc" + i;
+            accounts.put(id, BigDecimal.valueOf(100));
+            (shards.owner(id) == 0 ? first : second).add(id);
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        for (Server server : servers) server.stop();
+    }
+
+    @Test
+    void transfersAreRoutedToOwners() {
+        var node0 = start(0, 30_000);
+        var node1 = start(1, 30_000);
+        var client0 = HttpClient.create().port(node0.port());
+
+        //local to the second node, but it's sent to the first one
+        assertEquals("200 ", transfer(client0, second.get(0), second.get(1), "1.50", "key1"));
+        assertEquals(new BigDecimal("98.50"), node1.service.balance(second.get(0)));
+        assertEquals(new BigDecimal("101.50"), node1.service.balance(second.get(1)));
+
+        //cross-node in both directions
+        assertEquals("200 ", transfer(client0, first.get(0), second.get(0), "10", "key2"));
+        assertEquals("200 ", transfer(client0, second.get(1), first.get(1), "20", "key3"));
+        //retry doesn't apply the transfer again
+        assertEquals("200 ", transfer(client0, first.get(0), second.get(0), "10", "key2"));
+        assertEquals(new BigDecimal("90.00"), node0.service.balance(first.get(0)));
+        assertEquals(new BigDecimal("108.50"), node1.service.balance(second.get(0)));
+        assertEquals(new BigDecimal("81.50"), node1.service.balance(second.get(1)));
+        assertEquals(new BigDecimal("120.00"), node0.service.balance(first.get(1)));
+
+        assertEquals("500 Sender doesn't have enough money.", transfer(client0, second.get(2), first.get(2), "1000", "key4"));
+        assertEquals(0, BigDecimal.valueOf(100L * ACCOUNTS).compareTo(total(node0).add(total(node1))));
+    }
+
+    @Test
+    void rejectedCreditIsRefunded() {
+        var node0 = start(0, 30_000);
+        start(1, 30_000);
+        String unknown = unknownAccountOf(1);
+
+        var client0 = HttpClient.create().port(node0.port());
+        assertEquals("400 Account '" + unknown + "' not found.", transfer(client0, first.get(0), unknown, "5", "key1"));
+        assertEquals(new BigDecimal("100.00"), node0.service.balance(first.get(0)));
+        //the retry gets the same answer and isn't refunded twice
+        assertEquals("400 Account '" + unknown + "' not found.", transfer(client0, first.get(0), unknown, "5", "key1"));
+        assertEquals(new BigDecimal("100.00"), node0.service.balance(first.get(0)));
+    }
+
+    @Test
+    void refundedTransferIsNotCreditedByRetry() throws InterruptedException {
+        var node0 = start(0, 30_000);
+        var node1 = start(1, 30_000, 1);
+        String unknown = unknownAccountOf(1);
+        var client0 = HttpClient.create().port(node0.port());
+        assertEquals("400 Account '" + unknown + "' not found.", transfer(client0, first.get(0), unknown, "5", "key1"));
+
+        //the recipient node forgets the rejection and gets the account
+        Thread.sleep(2_100);
+        node1.service.openAccount(unknown).join();
+
+        assertEquals("400 Account '" + unknown + "' not found.", transfer(client0, first.get(0), unknown, "5", "key1"));
+        assertEquals(new BigDecimal("100.00"), node0.service.balance(first.get(0)));
+        assertEquals(new BigDecimal("0.00"), node1.service.balance(unknown));
+    }
+
+    @Test
+    void creditIsCompletedByRetryWhenNodeIsBack() {
+        var node0 = start(0, 300);
+        var client0 = HttpClient.create().port(node0.port());
+
+        assertEquals("503 Transfer isn't completed, retry it with the same Idempotency-Key.",
+                transfer(client0, first.get(0), second.get(0), "5", "key1"));
+        //the money is debited and waits for the credit
+        assertEquals(new BigDecimal("95.00"), node0.service.balance(first.get(0)));
+
+        var node1 = start(1, 300);
+        assertEquals("200 ", transfer(client0, first.get(0), second.get(0), "5", "key1"));
+        assertEquals(new BigDecimal("95.00"), node0.service.balance(first.get(0)));
+        assertEquals(new BigDecimal("105.00"), node1.service.balance(second.get(0)));
+    }
+
+    @Test
+    void accountsAreOpenedByOwner() {
+        var node0 = start(0, 30_000);
+        var node1 = start(1, 30_000);
+        String id = unknownAccountOf(1);
+        var client0 = HttpClient.create().port(node0.port());
+
+        assertEquals("200 ", request(client0.post().uri("/accounts?id=" + id)));
+        assertEquals(new BigDecimal("0.00"), node1.service.balance(id));
+        assertThrows(MoneyTransferException.class, () -> node0.service.balance(id));
+        //balance is read by the owner only
+        assertEquals("421 Account '" + id + "' belongs to node " + nodes.get(1) + ".", request(client0.get().uri("/accounts/" + id)));
+        assertEquals("200 ", request(client0.delete().uri("/accounts/" + id)));
+        assertThrows(MoneyTransferException.class, () -> node1.service.balance(id));
+    }
+
+    @Test
+    void internalCreditRequiresClusterSecret() {
+        var node0 = start(0, 30_000);
+        var client0 = HttpClient.create().port(node0.port());
+        String uri = "/internal/credit?account=" + first.get(0) + "&amount=1000";
+
+        assertEquals("403 Forbidden.", request(client0.headers(h -> h.set("Idempotency-Key", "key1")).post().uri(uri)));
+        assertEquals("403 Forbidden.", request(client0
+                .headers(h -> h.set("Idempotency-Key", "key2").set("X-Cluster-Secret", "wrong")).post().uri(uri)));
+        assertEquals(new BigDecimal("100.00"), node0.service.balance(first.get(0)));
+        //the test client connects from the address of the other node
+        assertEquals("200 ", request(client0
+                .headers(h -> h.set("Idempotency-Key", "key3").set("X-Cluster-Secret", CLUSTER_SECRET)).post().uri(uri)));
+        assertEquals(new BigDecimal("1100.00"), node0.service.balance(first.get(0)));
+    }
+
+    @Test
+    void clusterRequiresSecret() {
+        Config config = new Config();
+        config.clusterNodes = nodes;
+        var exception = assertThrows(IllegalArgumentException.class, () -> new Server(config, accounts));
+        assertEquals("Cluster mode requires clusterSecret", exception.getMessage());
+    }
+
+    private Server start(int index, long retryTimeoutMillis) {
+        return start(index, retryTimeoutMillis, new Config().idempotencyKeyCacheLifetimeSec);
+    }
+
+    private Server start(int index, long retryTimeoutMillis, long keyLifetimeSec) {
+        Config config = new Config();
+        config.idempotencyKeyCacheLifetimeSec = keyLifetimeSec;
+        config.port = Integer.parseInt(nodes.get(index).substring("localhost:".length()));
+        config.clusterNodes = nodes;
+        config.clusterNodeIndex = index;
+        config.clusterRetryTimeoutMillis = retryTimeoutMillis;
+        config.clusterSecret = CLUSTER_SECRET;
+        var server = new Server(config, accounts);
+        server.start();
+        servers.add(server);
+        return server;
+    }
+
+    private String unknownAccountOf(int node) {
+        for (int i = 0; ; i++) {
+            if (shards.owner("new" + i) == node) return "new" + i;
+        }
+    }
+
+    private static BigDecimal total(Server server) {
+        return server.service.snapshot().join().total();
+    }
+
+    private static String transfer(HttpClient client, String sender, String recipient, String amount, String idempotencyKey) {
+        return request(client
+                .headers(headers -> headers.set("Idempotency-Key", idempotencyKey))
+                .post()
+                .uri("/transfer?sender=" + sender + "&recipient=" + recipient + "&amount=" + amount)
+                .send(Mono.empty()));
+    }
+
+    private static String request(HttpClient.ResponseReceiver<?> request) {
+        return request.responseSingle((resp, buf) -> buf.asString().defaultIfEmpty("")
+                        .map(body -> resp.status().code() + " " + body))
+                .block();
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.chemist.moneytransfer.server;
+
+import com.chemist.moneytransfer.processing.BalanceSnapshot;
+import com.chemist.moneytransfer.processing.InMemoryMoneyTransferService;
+import com.chemist.moneytransfer.processing.MoneyTransferException;
+import com.chemist.moneytransfer.processing.TransferLeg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.io.DataOutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicationTest {
+    private static final String ADMIN_SECRET = "admin-secret";
+    private static final String REPLICATION_SECRET = "replication-secret";
+
+    private final List<Server> servers = new ArrayList<>();
+
+    @AfterEach
+    void shutdown() {
+        for (Server server : servers) server.stop();
+    }
+
+    @Test
+    void followersApplyPrimaryLog() throws InterruptedException {
+        var primary = start(Config.ReplicationAck.ONE_FOLLOWER, null, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.ZERO));
+        var follower1 = start(Config.ReplicationAck.ASYNC, primary, Map.of());
+        var follower2 = start(Config.ReplicationAck.ASYNC, primary, Map.of());
+
+        primary.service.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+        primary.service.openAccount("c").join();
+        primary.service.transferBatch(List.of(new TransferLeg("a", "c", new BigDecimal("1")),
+                new TransferLeg("b", "c", new BigDecimal("0.50"))), "key2").join();
+        primary.service.openAccount("d").join();
+        primary.service.closeAccount("d").join();
+
+        for (Server follower : List.of(follower1, follower2)) {
+            awaitBalances(primary, follower);
+            assertEquals(new BigDecimal("6.50"), follower.service.balance("a"));
+            assertEquals(new BigDecimal("2.00"), follower.service.balance("b"));
+            assertEquals(new BigDecimal("1.50"), follower.service.balance("c"));
+            assertThrows(MoneyTransferException.class, () -> follower.service.balance("d"));
+        }
+
+        //follower serves reads, but not writes
+        var exception = assertThrows(CompletionException.class,
+                () -> follower1.service.transfer("a", "b", BigDecimal.ONE, "key3").join());
+        assertEquals("Server is read-only follower.", exception.getCause().getMessage());
+        assertEquals(503, ((MoneyTransferException) exception.getCause()).getHttpCode());
+    }
+
+    @Test
+    void followerGetsStateWhileTransfersRun() throws Exception {
+        var accounts = new HashMap<String, BigDecimal>();
+        for (int i = 0; i < 100; i++) accounts.put("acc" + i, BigDecimal.valueOf(1000));
+        var primary = start(Config.ReplicationAck.ASYNC, null, accounts);
+
+        var stop = new AtomicBoolean();
+        var load = CompletableFuture.runAsync(() -> {
+            var random = ThreadLocalRandom.current();
+            while (!stop.get()) {
+                var futures = new ArrayList<CompletableFuture<Void>>();
+                for (int i = 0; i < 100; i++) {
+                    futures.add(primary.service.transfer("acc" + random.nextInt(100), "acc" + random.nextInt(100),
+                            BigDecimal.ONE, UUID.randomUUID().toString()).exceptionally(e -> null));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            }
+        });
+        try {
+            Thread.sleep(100);
+            var follower = start(Config.ReplicationAck.ASYNC, primary, Map.of());
+            Thread.sleep(100);
+            stop.set(true);
+            load.join();
+            awaitBalances(primary, follower);
+            assertEquals(0, new BigDecimal(100_000).compareTo(follower.service.snapshot().join().total()));
+        } finally {
+            stop.set(true);
+        }
+    }
+
+    @Test
+    void promotedFollowerAcceptsWrites() throws InterruptedException {
+        var primary = start(Config.ReplicationAck.ONE_FOLLOWER, null, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.ZERO));
+        var follower = start(Config.ReplicationAck.ASYNC, primary, Map.of());
+        primary.service.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+        awaitBalances(primary, follower);
+        primary.stop();
+        servers.remove(primary);
+
+        //promotion is served by the admin listener only
+        var client = HttpClient.create().port(follower.port());
+        assertEquals("404 Page not found.", post(client, "/promote", null));
+        var admin = HttpClient.create().tcpConfiguration(tcp -> tcp.host("127.0.0.1")).port(follower.adminPort());
+        assertEquals("401 Unauthorized.", post(admin, "/promote", null));
+        assertEquals("401 Unauthorized.", post(admin.headers(h -> h.set("Authorization", "Bearer wrong")), "/promote", null));
+        admin = admin.headers(h -> h.set("Authorization", "Bearer " + ADMIN_SECRET));
+        assertEquals("200 ", post(admin, "/promote", null));
+        assertEquals("409 Server isn't a follower.", post(admin, "/promote", null));
+
+        //retry of the replicated transfer isn't applied twice
+        assertEquals("200 ", post(client, "/transfer?sender=a&recipient=b&amount=2.50", "key1"));
+        assertEquals(new BigDecimal("7.50"), follower.service.balance("a"));
+        assertEquals("200 ", post(client, "/transfer?sender=a&recipient=b&amount=1", "key2"));
+        assertEquals(new BigDecimal("6.50"), follower.service.balance("a"));
+    }
+
+    @Test
+    void promotedFollowerReleasesReplicatedHolds() throws InterruptedException {
+        var primary = start(Config.ReplicationAck.ONE_FOLLOWER, null, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.ZERO));
+        //the first hold comes with the state, the others with the log
+        primary.service.hold("a", new BigDecimal("3"), 60, "hold1").join();
+        var follower = start(Config.ReplicationAck.ASYNC, primary, Map.of());
+        primary.service.hold("a", new BigDecimal("2"), 60, "hold2").join();
+        primary.service.hold("a", new BigDecimal("1"), 60, "hold3").join();
+        primary.service.capture("hold3", "b", null, "capture3").join();
+        awaitBalances(primary, follower);
+        assertEquals(new BigDecimal("5.00"), follower.service.heldBalance("a"));
+        primary.stop();
+        servers.remove(primary);
+
+        follower.service.promote().join();
+        follower.service.capture("hold1", "b", new BigDecimal("1"), "capture1").join();
+        follower.service.voidHold("hold2", "void2").join();
+        assertEquals(new BigDecimal("0.00"), follower.service.heldBalance("a"));
+        assertEquals(new BigDecimal("8.00"), follower.service.balance("a"));
+        assertEquals(new BigDecimal("2.00"), follower.service.balance("b"));
+    }
+
+    @Test
+    void promotedFollowerRecoversAfterRestart() throws Exception {
+        Path dataDir = Files.createTempDirectory("replication-test");
+        try {
+            //stale local data must not be replayed over the primary state
+            var stale = new InMemoryMoneyTransferService(persistentConfig(dataDir, null), Map.of("a", BigDecimal.ONE, "b", BigDecimal.ZERO));
+            stale.transfer("a", "b", BigDecimal.ONE, "stale").join();
+            stale.shutdown();
+
+            var primary = start(Config.ReplicationAck.ONE_FOLLOWER, null, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.ZERO));
+            var follower = new InMemoryMoneyTransferService(persistentConfig(dataDir, primary), Map.of());
+            primary.service.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+            primary.stop();
+            servers.remove(primary);
+
+            follower.promote().join();
+            follower.transfer("a", "b", new BigDecimal("1"), "key2").join();
+
+            //start the second instance without shutdown of the first one, so the state comes from its data only
+            var restarted = new InMemoryMoneyTransferService(persistentConfig(dataDir, null), Map.of());
+            assertEquals(new BigDecimal("6.50"), restarted.balance("a"));
+            assertEquals(new BigDecimal("3.50"), restarted.balance("b"));
+            //keys of replicated and own transfers are recovered
+            restarted.transfer("a", "b", new BigDecimal("2.50"), "key1").join();
+            restarted.transfer("a", "b", new BigDecimal("1"), "key2").join();
+            assertEquals(new BigDecimal("6.50"), restarted.balance("a"));
+            restarted.shutdown();
+            follower.shutdown();
+        } finally {
+            try (Stream<Path> files = Files.walk(dataDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    void followersMustKnowSecret() throws Exception {
+        var primary = start(Config.ReplicationAck.ONE_FOLLOWER, null, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.ZERO));
+
+        Config config = new Config();
+        config.replicaOf = "localhost:" + primary.replicationPort();
+        assertThrows(IllegalArgumentException.class, () -> new InMemoryMoneyTransferService(config, Map.of()));
+        config.replicationSecret = "wrong";
+        assertThrows(UncheckedIOException.class, () -> new InMemoryMoneyTransferService(config, Map.of()));
+
+        //connection which authenticates, but never acks, isn't waited for
+        try (var socket = new Socket("localhost", primary.replicationPort())) {
+            var out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(0x4D545250);
+            out.writeUTF(REPLICATION_SECRET);
+            out.writeLong(0);
+            out.writeLong(-1);
+            out.flush();
+            socket.getInputStream().read();
+            long start = System.nanoTime();
+            primary.service.transfer("a", "b", BigDecimal.ONE, "key1").join();
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        }
+        assertEquals(new BigDecimal("9.00"), primary.service.balance("a"));
+    }
+
+    private Server start(Config.ReplicationAck ack, Server primary, Map<String, BigDecimal> accounts) {
+        Config config = new Config();
+        config.port = 0;
+        config.adminPort = 0;
+        config.adminSecret = ADMIN_SECRET;
+        config.replicationPort = 0;
+        config.replicationAck = ack;
+        //longer than any test, so transfers complete only when followers ack
+        config.replicationAckTimeoutMillis = 60_000;
+        config.replicationSecret = REPLICATION_SECRET;
+        if (primary != null) config.replicaOf = "localhost:" + primary.replicationPort();
+        var server = new Server(config, accounts);
+        server.start();
+        servers.add(server);
+        return server;
+    }
+
+    private static Config persistentConfig(Path dataDir, Server primary) {
+        Config config = new Config();
+        config.dataDir = dataDir.toString();
+        config.snapshotIntervalSec = 0;
+        config.replicationSecret = REPLICATION_SECRET;
+        if (primary != null) config.replicaOf = "localhost:" + primary.replicationPort();
+        return config;
+    }
+
+    private static void awaitBalances(Server primary, Server follower) throws InterruptedException {
+        var expected = primary.service.snapshot().join();
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (; ; ) {
+            var actual = follower.service.snapshot().join();
+            if (balances(expected).equals(balances(actual))) return;
+            assertTrue(System.currentTimeMillis() < deadline, "follower hasn't caught up");
+            Thread.sleep(10);
+        }
+    }
+
+    private static Map<String, BigDecimal> balances(BalanceSnapshot snapshot) {
+        var balances = new HashMap<String, BigDecimal>();
+        for (int i = 0; i < snapshot.size(); i++) balances.put(snapshot.accountId(i), snapshot.balance(i));
+        return balances;
+    }
+
+    private static String post(HttpClient client, String uri, String idempotencyKey) {
+        return client
+                .headers(headers -> {
+                    if (idempotencyKey != null) headers.set("Idempotency-Key", idempotencyKey);
+                })
+                .post()
+                .uri(uri)
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> buf.asString().defaultIfEmpty("")
+                        .map(body -> resp.status().code() + " " + body))
+                .block();
+    }
+}
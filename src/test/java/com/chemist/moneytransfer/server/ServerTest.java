@@ -2,9 +2,32 @@ package com.chemist.moneytransfer.server;
 
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.http.client.HttpClient;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ServerTest extends AbstractServerTest {
     @Test
@@ -20,6 +43,21 @@ public class ServerTest extends AbstractServerTest {
         assertEquals("Page not found.", mono.block());
     }
 
+    @Test
+    void internalCreditIsNotServedBySingleNode() {
+        var mono = client
+                .headers(headers -> headers.set("Idempotency-Key", "123"))
+                .post()
+                .uri("/internal/credit?account=a&amount=100")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.NOT_FOUND, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("Page not found.", mono.block());
+        assertEquals(new BigDecimal("10.00"), server.service.balance("a"));
+    }
+
     @Test
     void noRequiredHeader() {
         var mono = client
@@ -75,6 +113,54 @@ public class ServerTest extends AbstractServerTest {
         assertEquals("'amount' param has invalid value.", mono.block());
     }
 
+    @Test
+    void h2cTransfers() throws Exception {
+        //reactor-netty 0.8 client doesn't support h2c, JDK client upgrades the first connection
+        var h2cClient = java.net.http.HttpClient.newBuilder().version(java.net.http.HttpClient.Version.HTTP_2).build();
+        var uri = URI.create("http://localhost:" + server.port() + "/transfer?sender=a&recipient=b&amount=1");
+        var first = h2cClient.send(transferRequest(uri, "h2c0"), HttpResponse.BodyHandlers.discarding());
+        assertEquals(200, first.statusCode());
+
+        var responses = new ArrayList<CompletableFuture<HttpResponse<Void>>>();
+        for (int i = 1; i < 5; i++) {
+            responses.add(h2cClient.sendAsync(transferRequest(uri, "h2c" + i), HttpResponse.BodyHandlers.discarding()));
+        }
+        for (var response : responses) {
+            assertEquals(200, response.get().statusCode());
+            assertEquals(java.net.http.HttpClient.Version.HTTP_2, response.get().version());
+        }
+        assertEquals(new BigDecimal("5.00"), server.service.balance("b"));
+    }
+
+    private static HttpRequest transferRequest(URI uri, String idempotencyKey) {
+        return HttpRequest.newBuilder(uri)
+                .header("Idempotency-Key", idempotencyKey)
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+    }
+
+    @Test
+    void pipelinedRequests() throws IOException {
+        try (var socket = new Socket("localhost", server.port())) {
+            socket.setSoTimeout(10_000);
+            String request = "POST /transfer?sender=a&recipient=b&amount=1 HTTP/1.1\r\n" +
+                    "Host: localhost\r\nIdempotency-Key: %s\r\nContent-Length: 0\r\n\r\n";
+            //both requests are sent in one packet before reading any response
+            socket.getOutputStream().write((String.format(request, "p1") + String.format(request, "p2"))
+                    .getBytes(StandardCharsets.US_ASCII));
+            var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            int responses = 0;
+            for (String line; responses < 2 && (line = in.readLine()) != null; ) {
+                if (line.startsWith("HTTP/1.1 ")) {
+                    assertEquals("HTTP/1.1 200 OK", line);
+                    responses++;
+                }
+            }
+            assertEquals(2, responses);
+        }
+        assertEquals(new BigDecimal("2.00"), server.service.balance("b"));
+    }
+
     @Test
     void negativeAmount() {
         var mono = client
@@ -103,6 +189,22 @@ public class ServerTest extends AbstractServerTest {
         assertEquals("'amount' param has invalid value.", mono.block());
     }
 
+    @Test
+    void hugeAmountExponent() {
+        long start = System.nanoTime();
+        var mono = client
+                .headers(headers -> headers.set("Idempotency-Key", "123"))
+                .post()
+                .uri("/transfer?sender=a&recipient=b&amount=1e10000000")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.BAD_REQUEST, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("'amount' param has invalid value.", mono.block());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
     @Test
     void badMethod() {
         var mono = client
@@ -211,4 +313,361 @@ public class ServerTest extends AbstractServerTest {
                 });
         assertEquals("Account 'c' not found.", mono.block());
     }
-}
\ No newline at end of file
+
+    @Test
+    void batchTransfer() {
+        var mono = client
+                .headers(headers -> headers.set("Idempotency-Key", "123"))
+                .post()
+                .uri("/transfers/batch")
+                .send(ByteBufFlux.fromString(Mono.just("a b 10\nb a 2.5\n")))
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.OK, resp.status());
+                    return buf.asString().defaultIfEmpty("");
+                });
+        mono.block();
+        assertEquals(new BigDecimal("2.50"), server.service.balance("a"));
+        assertEquals(new BigDecimal("7.50"), server.service.balance("b"));
+    }
+
+    @Test
+    void invalidBatchLine() {
+        var mono = client
+                .headers(headers -> headers.set("Idempotency-Key", "123"))
+                .post()
+                .uri("/transfers/batch")
+                .send(ByteBufFlux.fromString(Mono.just("a b 1\na b\n")))
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.BAD_REQUEST, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("Batch line 2 is invalid.", mono.block());
+    }
+
+    @Test
+    void chunkedBatchOverLimit() throws Exception {
+        try (var socket = new Socket("localhost", server.port())) {
+            socket.setSoTimeout(10_000);
+            //endless body of 64KB chunks without Content-Length, it would be buffered until memory runs out
+            var sender = CompletableFuture.runAsync(() -> {
+                try {
+                    var out = socket.getOutputStream();
+                    out.write(("POST /transfers/batch HTTP/1.1\r\nHost: localhost\r\nIdempotency-Key: 123\r\n" +
+                            "Transfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    String lines = "a b 1\n".repeat(64 * 1024 / 6);
+                    byte[] chunk = (Integer.toHexString(lines.length()) + "\r\n" + lines + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                    for (; ; ) out.write(chunk);
+                } catch (IOException e) {
+                    //the server has closed the connection
+                }
+            });
+            var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 413 Request Entity Too Large", in.readLine());
+            socket.close();
+            sender.join();
+        }
+        assertEquals(new BigDecimal("10.00"), server.service.balance("a"));
+    }
+
+    @Test
+    void accountBalance() {
+        var mono = client
+                .get()
+                .uri("/accounts/a")
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.OK, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("10.00", mono.block());
+    }
+
+    @Test
+    void unknownAccountBalance() {
+        var mono = client
+                .get()
+                .uri("/accounts/c")
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.NOT_FOUND, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("Account 'c' not found.", mono.block());
+    }
+
+    @Test
+    void openAndCloseAccount() {
+        var mono = client
+                .post()
+                .uri("/accounts?id=c")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.OK, mono.block());
+
+        var exists = client
+                .post()
+                .uri("/accounts?id=c")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.CONFLICT, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("Account 'c' already exists.", exists.block());
+
+        var closed = client
+                .delete()
+                .uri("/accounts/c")
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.OK, closed.block());
+
+        var hasMoney = client
+                .delete()
+                .uri("/accounts/a")
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.CONFLICT, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("Account 'a' has money.", hasMoney.block());
+    }
+
+    @Test
+    void allAccounts() {
+        var mono = client
+                .get()
+                .uri("/accounts")
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.OK, resp.status());
+                    assertEquals("10.00", resp.responseHeaders().get("X-Total-Balance"));
+                    return buf.asString();
+                });
+        var lines = mono.block().split("\n");
+        Arrays.sort(lines);
+        assertArrayEquals(new String[]{"a 10.00", "b 0.00"}, lines);
+    }
+
+    @Test
+    void transactions() {
+        for (int i = 1; i <= 3; i++) {
+            client
+                    .headers(headers -> headers.set("Idempotency-Key", "key" + System.nanoTime()))
+                    .post()
+                    .uri("/transfer?sender=a&recipient=b&amount=" + i)
+                    .send(Mono.empty())
+                    .responseSingle((resp, buf) -> Mono.just(resp.status()))
+                    .block();
+        }
+
+        var cursor = new String[1];
+        var mono = client
+                .get()
+                .uri("/accounts/b/transactions?limit=2")
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.OK, resp.status());
+                    cursor[0] = resp.responseHeaders().get("X-Next-Cursor");
+                    return buf.asString();
+                });
+        var lines = mono.block().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("3.00 a", lines[0].split(" ")[1] + " " + lines[0].split(" ")[2]);
+        assertEquals("2.00 a", lines[1].split(" ")[1] + " " + lines[1].split(" ")[2]);
+        assertEquals("1", cursor[0]);
+
+        var last = client
+                .get()
+                .uri("/accounts/a/transactions?cursor=1")
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.OK, resp.status());
+                    assertEquals(null, resp.responseHeaders().get("X-Next-Cursor"));
+                    return buf.asString();
+                });
+        var fields = last.block().split(" ");
+        assertEquals("-1.00 b", fields[1] + " " + fields[2]);
+
+        var invalid = client
+                .get()
+                .uri("/accounts/a/transactions?limit=0")
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.BAD_REQUEST, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("'limit' param has invalid value.", invalid.block());
+
+        var unknown = client
+                .get()
+                .uri("/accounts/c/transactions")
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.NOT_FOUND, unknown.block());
+    }
+
+    @Test
+    void balanceStream() throws InterruptedException {
+        var updates = new LinkedBlockingQueue<String>();
+        var connection = client
+                .websocket()
+                .uri("/accounts/stream?ids=a,b")
+                .handle((in, out) -> in.receive().asString().doOnNext(updates::add))
+                .subscribe();
+        try {
+            assertEquals(Set.of("a 10.00", "b 0.00"), Set.of(updates.poll(10, TimeUnit.SECONDS), updates.poll(10, TimeUnit.SECONDS)));
+
+            client
+                    .headers(headers -> headers.set("Idempotency-Key", "123"))
+                    .post()
+                    .uri("/transfer?sender=a&recipient=b&amount=3")
+                    .send(Mono.empty())
+                    .responseSingle((resp, buf) -> Mono.just(resp.status()))
+                    .block();
+            assertEquals(Set.of("a 7.00", "b 3.00"), Set.of(updates.poll(10, TimeUnit.SECONDS), updates.poll(10, TimeUnit.SECONDS)));
+        } finally {
+            connection.dispose();
+        }
+
+        //without upgrade balances are sent as server-sent events
+        var events = client
+                .get()
+                .uri("/accounts/stream?ids=b")
+                .responseContent()
+                .asString()
+                .blockFirst();
+        assertEquals("data: b 3.00\n\n", events);
+
+        var unknown = client
+                .get()
+                .uri("/accounts/stream?ids=a,c")
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.NOT_FOUND, unknown.block());
+    }
+
+    @Test
+    void scheduledTransfers() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        var scheduled = client
+                .headers(headers -> headers.set("Idempotency-Key", "once"))
+                .post()
+                .uri("/scheduled-transfers?sender=a&recipient=b&amount=2&at=" + now)
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.OK, scheduled.block());
+
+        var recurring = client
+                .headers(headers -> headers.set("Idempotency-Key", "monthly"))
+                .post()
+                .uri("/scheduled-transfers?sender=a&recipient=b&amount=1&at=" + (now + 3_600_000) + "&every=2592000000")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.OK, recurring.block());
+
+        var noTime = client
+                .headers(headers -> headers.set("Idempotency-Key", "123"))
+                .post()
+                .uri("/scheduled-transfers?sender=a&recipient=b&amount=1")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.BAD_REQUEST, resp.status());
+                    return buf.asString();
+                });
+        assertEquals("'at' param is required.", noTime.block());
+
+        var balance = client.get().uri("/accounts/b").responseSingle((resp, buf) -> buf.asString());
+        for (int i = 0; i < 100 && !"2.00".equals(balance.block()); i++) Thread.sleep(50);
+        assertEquals("2.00", balance.block());
+
+        var cancelled = client
+                .delete()
+                .uri("/scheduled-transfers/monthly")
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.OK, cancelled.block());
+        var unknown = client
+                .delete()
+                .uri("/scheduled-transfers/monthly")
+                .responseSingle((resp, buf) -> buf.asString());
+        assertEquals("Scheduled transfer 'monthly' not found.", unknown.block());
+    }
+
+    @Test
+    void holds() {
+        var held = client
+                .headers(headers -> headers.set("Idempotency-Key", "auth"))
+                .post()
+                .uri("/holds?account=a&amount=4&ttl=60")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.OK, held.block());
+
+        var balance = client
+                .get()
+                .uri("/accounts/a")
+                .responseSingle((resp, buf) -> buf.asString().map(body -> body + " " + resp.responseHeaders().get("X-Held-Balance")));
+        assertEquals("6.00 4.00", balance.block());
+
+        var captured = client
+                .headers(headers -> headers.set("Idempotency-Key", "capture"))
+                .post()
+                .uri("/holds/auth/capture?recipient=b&amount=1.5")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> Mono.just(resp.status()));
+        assertEquals(HttpResponseStatus.OK, captured.block());
+        assertEquals("8.50 null", balance.block());
+
+        var voided = client
+                .headers(headers -> headers.set("Idempotency-Key", "void"))
+                .post()
+                .uri("/holds/auth/void")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> buf.asString());
+        assertEquals("Hold 'auth' not found.", voided.block());
+    }
+
+    @Test
+    void captureAndVoidAreRateLimited() {
+        Config config = new Config();
+        config.port = 0;
+        config.clientRateLimit = 1;
+        config.clientRateBurst = 1;
+        var limited = new Server(config, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.ZERO));
+        limited.start();
+        try {
+            limited.service.hold("a", BigDecimal.ONE, 60, "auth").join();
+            var limitedClient = HttpClient.create().port(limited.port());
+            for (String uri : List.of("/holds/auth/capture?recipient=b&amount=0.01", "/holds/auth/void")) {
+                //the first request may take the only token, the next one within a second can't
+                boolean rejected = false;
+                for (int i = 0; i < 10 && !rejected; i++) {
+                    String key = uri + i;
+                    var status = limitedClient
+                            .headers(headers -> headers.set("Idempotency-Key", key))
+                            .post()
+                            .uri(uri)
+                            .send(Mono.empty())
+                            .responseSingle((resp, buf) -> Mono.just(resp.status()))
+                            .block();
+                    rejected = HttpResponseStatus.TOO_MANY_REQUESTS.equals(status);
+                }
+                assertTrue(rejected, uri + " isn't rate limited");
+            }
+        } finally {
+            limited.stop();
+        }
+    }
+
+    @Test
+    void metrics() {
+        client
+                .headers(headers -> headers.set("Idempotency-Key", "123"))
+                .post()
+                .uri("/transfer?sender=a&recipient=b&amount=1")
+                .send(Mono.empty())
+                .responseSingle((resp, buf) -> Mono.just(resp.status()))
+                .block();
+
+        var mono = client
+                .get()
+                .uri("/metrics")
+                .responseSingle((resp, buf) -> {
+                    assertEquals(HttpResponseStatus.OK, resp.status());
+                    return buf.asString();
+                });
+        String text = mono.block();
+        assertTrue(text.contains("http_responses_total{code=\"200\"} 1\n"), text);
+        assertTrue(text.contains("transfer_execution_seconds_count 1\n"), text);
+        assertTrue(text.contains("idempotency_requests_total{result=\"miss\"} 1\n"), text);
+    }
+}
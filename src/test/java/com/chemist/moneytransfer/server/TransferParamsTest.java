@@ -0,0 +1,62 @@
+package com.chemist.moneytransfer.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferParamsTest {
+    @Test
+    void plainParams() {
+        var params = new TransferParams();
+        assertEquals(TransferParams.OK, params.parse("/transfer?amount=12.50&recipient=bob&sender=alice"));
+        assertEquals("alice", params.sender.toString());
+        assertEquals("bob", params.recipient.toString());
+        assertEquals(1250, params.amount);
+        assertEquals(2, params.amountScale);
+
+        assertEquals(TransferParams.OK, params.parse("/transfer?sender=a&recipient=b&amount=7&sender=c"));
+        assertEquals("a", params.sender.toString());
+        assertEquals(7, params.amount);
+        assertEquals(0, params.amountScale);
+    }
+
+    @Test
+    void missingParams() {
+        var params = new TransferParams();
+        assertEquals(TransferParams.NO_SENDER, params.parse("/transfer"));
+        assertEquals(TransferParams.NO_SENDER, params.parse("/transfer?sender=&recipient=b&amount=1"));
+        assertEquals(TransferParams.NO_RECIPIENT, params.parse("/transfer?sender=a&recipient&amount=1"));
+        assertEquals(TransferParams.NO_AMOUNT, params.parse("/transfer?sender=a&recipient=b&"));
+    }
+
+    @Test
+    void unusualRequestsGoToSlowPath() {
+        var params = new TransferParams();
+        assertEquals(TransferParams.SLOW_PATH, params.parse("/transfer?sender=a%20b&recipient=b&amount=1"));
+        assertEquals(TransferParams.SLOW_PATH, params.parse("/transfer?sender=a+b&recipient=b&amount=1"));
+        assertEquals(TransferParams.SLOW_PATH, params.parse("/transfer?sender=a&recipient=b&amount=1e2"));
+        assertEquals(TransferParams.SLOW_PATH, params.parse("/transfer?sender=a&recipient=b&amount=-1"));
+        assertEquals(TransferParams.SLOW_PATH, params.parse("/transfer?sender=a&recipient=b&amount=5."));
+        assertEquals(TransferParams.SLOW_PATH, params.parse("/transfer?sender=a&recipient=b&amount=1234567890123456789"));
+    }
+
+    @Test
+    void parsingDoesNotAllocate() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        var params = new TransferParams();
+        String uri = "/transfer?sender=alice&recipient=bob&amount=1000.25";
+        long checksum = 0;
+        for (int i = 0; i < 100_000; i++) checksum += params.parse(uri) + params.amount;
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) checksum += params.parse(uri) + params.amount + params.sender.length();
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum > 0);
+        //a few bytes may be allocated by the measurement itself
+        assertTrue(allocated < 1024, "Parsing allocated " + allocated + " bytes");
+    }
+}
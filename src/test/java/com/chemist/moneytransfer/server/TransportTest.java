@@ -0,0 +1,53 @@
+package com.chemist.moneytransfer.server;
+
+import io.netty.channel.epoll.Epoll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.netty.http.client.HttpClient;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TransportTest {
+    private Server server;
+
+    @AfterEach
+    void shutdown() {
+        if (server != null) server.stop();
+    }
+
+    @Test
+    void reusePortListenersAcceptConnections() {
+        assumeTrue(Epoll.isAvailable(), "native transport is unavailable");
+        Config config = new Config();
+        config.port = 0;
+        config.binaryPort = 0;
+        config.acceptors = 4;
+        start(config);
+
+        //every request has new connection, so they are accepted by different listeners
+        for (int i = 0; i < 100; i++) assertEquals("10.00", balance(HttpClient.newConnection().port(server.port())));
+    }
+
+    @Test
+    void nioTransport() {
+        Config config = new Config();
+        config.port = 0;
+        config.nativeTransport = false;
+        start(config);
+
+        assertEquals("10.00", balance(HttpClient.create().port(server.port())));
+    }
+
+    private void start(Config config) {
+        server = new Server(config, Map.of("a", BigDecimal.valueOf(10), "b", BigDecimal.ZERO));
+        server.start();
+    }
+
+    private static String balance(HttpClient client) {
+        return client.get().uri("/accounts/a").responseSingle((resp, buf) -> buf.asString()).block();
+    }
+}